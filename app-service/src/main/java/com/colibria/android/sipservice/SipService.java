@@ -27,6 +27,7 @@ import android.content.SharedPreferences;
 import android.os.IBinder;
 import android.os.PowerManager;
 import com.colibria.android.sipservice.logging.AndroidLogger;
+import com.colibria.android.sipservice.logging.AsyncLogger;
 import com.colibria.android.sipservice.logging.Logger;
 import com.colibria.android.sipservice.sip.*;
 import com.colibria.android.sipservice.sip.frameworks.register.IRegisterControllerListener;
@@ -58,7 +59,8 @@ public class SipService extends Service implements ISipStackListener, ISipTcpCon
     public static final String VERSION_STRING = "Android SIP Provider: 0.2";
 
     static {
-        Logger.setLOGGER_IMPL(AndroidLogger.getInstance());
+        // keep logcat and file I/O off the TcpController and worker threads
+        Logger.setLOGGER_IMPL(new AsyncLogger(AndroidLogger.getInstance()));
     }
 
     public static final int SIP_SERVICE_STATE_UNCONFIGURED = 1;
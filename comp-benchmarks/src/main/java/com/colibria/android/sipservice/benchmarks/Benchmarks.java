@@ -0,0 +1,42 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+
+/**
+ * Shared set-up for all benchmarks
+ *
+ * @author Sebastian Dehne
+ */
+class Benchmarks {
+
+    /**
+     * Installs a logger which discards everything. The log statements themselves are still
+     * executed, just like on a device with logging turned down.
+     */
+    static void silenceLogging() {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+    }
+}
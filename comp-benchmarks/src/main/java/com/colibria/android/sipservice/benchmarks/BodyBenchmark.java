@@ -0,0 +1,79 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.sdp.api.SdpParseException;
+import com.colibria.android.sipservice.sdp.api.SdpFactory;
+import com.colibria.android.sipservice.sdp.api.SessionDescription;
+import com.colibria.android.sipservice.xml.resourcelists.ResourceLists;
+import com.colibria.android.sipservice.xml.resourcelists.ResourceListsUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of message bodies: SDP offers and resource-lists documents
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BodyBenchmark {
+
+    private SdpFactory sdpFactory;
+    private ResourceLists resourceLists;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.silenceLogging();
+        sdpFactory = SdpFactory.getInstance();
+        resourceLists = ResourceListsUtil.fromXml(Corpus.RESOURCE_LISTS);
+        if (resourceLists == null) {
+            throw new IllegalStateException("Corpus resource-lists could not be parsed");
+        }
+    }
+
+    @Benchmark
+    public SessionDescription createSessionDescription() throws SdpParseException {
+        return sdpFactory.createSessionDescription(Corpus.SDP_OFFER);
+    }
+
+    @Benchmark
+    public ResourceLists resourceListsFromXml() {
+        return ResourceListsUtil.fromXml(Corpus.RESOURCE_LISTS);
+    }
+
+    @Benchmark
+    public byte[] resourceListsToXml() {
+        return ResourceListsUtil.toXml(resourceLists);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.parse.ByteParser;
+import com.colibria.android.sipservice.sip.URI;
+import com.colibria.android.sipservice.sip.UriParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The low-level tokenizer and the URI parser which all header parsers are built on
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ByteParserBenchmark {
+
+    private static final ByteParser.Pattern PATTERN_VIA_TOKENS;
+
+    static {
+        PATTERN_VIA_TOKENS = new ByteParser.Pattern(true);
+        PATTERN_VIA_TOKENS.setWordCharacter('A', 'Z');
+        PATTERN_VIA_TOKENS.setWordCharacter('a', 'z');
+        PATTERN_VIA_TOKENS.setWordCharacter('0', '9');
+        PATTERN_VIA_TOKENS.setWordCharacter('.');
+        PATTERN_VIA_TOKENS.setWordCharacter('-');
+        PATTERN_VIA_TOKENS.setDelimiterCharacter('/');
+        PATTERN_VIA_TOKENS.setDelimiterCharacter(':');
+        PATTERN_VIA_TOKENS.setDelimiterCharacter(';');
+        PATTERN_VIA_TOKENS.setDelimiterCharacter('=');
+        PATTERN_VIA_TOKENS.setDelimiterCharacter(',');
+        PATTERN_VIA_TOKENS.setSpaceCharacter(' ');
+    }
+
+    private static final byte[] VIA_VALUE = ("SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bK07921d79ef0522c95d99f487f030cfbf," +
+            "SIP/2.0/UDP 127.0.0.1:5071;branch=z9hG4bKfbc592069eaa3505fe7315dd0c79c921," +
+            "SIP/2.0/UDP sipserver:5050;branch=z9hG4bK-a1c3af132cd3579aff58b10b17402e11;received=127.0.0.1").getBytes();
+
+    private ByteBuffer readBuffer;
+    private ByteParser byteParser;
+    private UriParser uriParser;
+    private byte[][] uris;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.silenceLogging();
+        readBuffer = ByteBuffer.allocate(1024 * 8);
+        byteParser = new ByteParser();
+        uriParser = new UriParser();
+
+        uris = new byte[Corpus.URIS.length][];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = Corpus.URIS[i].getBytes();
+        }
+    }
+
+    @Benchmark
+    public int byteParserTokenize() throws IOException {
+        readBuffer.clear();
+        readBuffer.put(VIA_VALUE);
+        readBuffer.flip();
+        byteParser.reset();
+        int chars = 0;
+        int token;
+        while ((token = byteParser.read(readBuffer, PATTERN_VIA_TOKENS)) != ByteParser.READ_EOF) {
+            if (token == ByteParser.READ_WORD) {
+                chars += byteParser.getWordLength();
+                byteParser.resetWord();
+            }
+        }
+        return chars;
+    }
+
+    @Benchmark
+    public URI uriParser() throws IOException {
+        URI last = null;
+        for (byte[] uri : uris) {
+            readBuffer.clear();
+            readBuffer.put(uri);
+            readBuffer.flip();
+            uriParser.reset();
+            last = uriParser.parseMore(readBuffer);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.MsrpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of SEND chunks with a binary body of chunkSize bytes, which is dominated by the search
+ * for the end-line.
+ * <p/>
+ * parseComplete() parses a chunk which is completely present in the read buffer; parseStreamed()
+ * feeds an interruptible chunk through a read buffer of the default size, the way ChannelState
+ * does when the chunk arrives over the network.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkScanBenchmark {
+
+    private static final String TX_ID = "a786hjs2";
+    private static final int READ_BUFFER_SIZE = 1024 * 8;
+
+    @Param({"2048", "65536", "1048576"})
+    public int chunkSize;
+
+    private byte[] completeChunk;
+    private byte[] interruptibleChunk;
+    private ByteBuffer completeBuffer;
+    private ByteBuffer readBuffer;
+    private MsrpParser parser;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.silenceLogging();
+
+        // random content contains CR bytes (and the occasional CRLF) just like real files do
+        byte[] body = new byte[chunkSize];
+        new Random(42).nextBytes(body);
+        completeChunk = chunk(body, "1-" + chunkSize + "/" + chunkSize);
+        interruptibleChunk = chunk(body, "1-*/" + chunkSize);
+
+        completeBuffer = ByteBuffer.allocate(completeChunk.length);
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        parser = new MsrpParser();
+
+        if (parseComplete() != MsrpParser.State.done || parseStreamed() != chunkSize) {
+            throw new IllegalStateException("Chunk could not be parsed");
+        }
+    }
+
+    @Benchmark
+    public MsrpParser.State parseComplete() {
+        completeBuffer.clear();
+        completeBuffer.put(completeChunk);
+        completeBuffer.flip();
+        MsrpParser.State result = parser.parse(completeBuffer);
+        parser.reset();
+        parser.resetBufferPosition();
+        return result;
+    }
+
+    /*
+     * Same sequence as ChannelState.dataReceived(), returns the number of body bytes parsed
+     */
+    @Benchmark
+    public int parseStreamed() {
+        int bodyBytes = 0;
+        int offset = 0;
+        readBuffer.clear();
+        while (true) {
+            int n = Math.min(readBuffer.remaining(), interruptibleChunk.length - offset);
+            readBuffer.put(interruptibleChunk, offset, n);
+            offset += n;
+            readBuffer.flip();
+
+            MsrpParser.State result = parser.parse(readBuffer);
+            readBuffer.position(parser.getStoppedAtPosition());
+            if (result == MsrpParser.State.chunk_piece_parsed || result == MsrpParser.State.done) {
+                bodyBytes += ((MsrpSendRequest) parser.getParsedMessage()).getBodyLength();
+            }
+            if (result == MsrpParser.State.done) {
+                parser.reset();
+                parser.resetBufferPosition();
+                return bodyBytes;
+            }
+            if (result == MsrpParser.State.cannotProceed || offset == interruptibleChunk.length) {
+                throw new IllegalStateException("Chunk could not be parsed: " + result);
+            }
+            readBuffer.compact();
+            parser.resetBufferPosition();
+        }
+    }
+
+    private static byte[] chunk(byte[] body, String byteRange) {
+        byte[] head = ascii("MSRP " + TX_ID + " SEND\r\n" +
+                "To-Path: msrp://10.0.2.15:2855/s111271;tcp\r\n" +
+                "From-Path: msrp://95.130.218.67:2855/iau39soe2843z;tcp\r\n" +
+                "Message-ID: 87652491\r\n" +
+                "Byte-Range: " + byteRange + "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n");
+        byte[] tail = ascii("\r\n-------" + TX_ID + "$\r\n");
+        byte[] chunk = new byte[head.length + body.length + tail.length];
+        System.arraycopy(head, 0, chunk, 0, head.length);
+        System.arraycopy(body, 0, chunk, head.length, body.length);
+        System.arraycopy(tail, 0, chunk, head.length + body.length, tail.length);
+        return chunk;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
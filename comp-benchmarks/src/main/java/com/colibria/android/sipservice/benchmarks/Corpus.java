@@ -0,0 +1,186 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Hand-written SIP/MSRP messages, representative of what a client exchanges with the server,
+ * used as input for the benchmarks.
+ *
+ * @author Sebastian Dehne
+ */
+public class Corpus {
+
+    private static final String CRLF = "\r\n";
+
+    public static final String SDP_OFFER = "v=0\r\n" +
+            "o=android1 2890844526 2890844527 IN IP4 10.0.2.15\r\n" +
+            "s=-\r\n" +
+            "c=IN IP4 10.0.2.15\r\n" +
+            "t=0 0\r\n" +
+            "m=message 2855 TCP/MSRP *\r\n" +
+            "a=accept-types:message/cpim application/im-iscomposing+xml\r\n" +
+            "a=accept-wrapped-types:text/plain image/jpeg image/gif\r\n" +
+            "a=max-size:1048576\r\n" +
+            "a=path:msrp://10.0.2.15:2855/s111271;tcp\r\n" +
+            "a=setup:active\r\n";
+
+    public static final byte[] INVITE = sip("INVITE sip:alice@colibria.com SIP/2.0\r\n" +
+            "Call-ID: 3848276298220188511@10.0.2.15\r\n" +
+            "CSeq: 1 INVITE\r\n" +
+            "From: \"android1\" <sip:android1@colibria.com>;tag=518\r\n" +
+            "To: <sip:alice@colibria.com>\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Route: <sip:95.130.218.67;lr;transport=tcp>\r\n" +
+            "Contact: <sip:android1@10.0.2.15;transport=tcp>;+g.oma.sip-im\r\n" +
+            "Accept-Contact: *;+g.oma.sip-im\r\n" +
+            "User-Agent: Colibria-AndroidSipService/1.0\r\n" +
+            "Supported: timer\r\n" +
+            "Via: SIP/2.0/TCP 10.0.2.15:5060;branch=z9hG4bK776asdhds;alias\r\n" +
+            "Content-Type: application/sdp\r\n", SDP_OFFER);
+
+    public static final byte[] OK_REGISTER = sip("SIP/2.0 200 OK\r\n" +
+            "Call-ID: 215e4983fa4ab92ba10fc8c8302483fd@colibria.com\r\n" +
+            "From: \"android1\" <sip:android1@colibria.com>;tag=518\r\n" +
+            "To: \"android1\" <sip:android1@colibria.com>;tag=9105\r\n" +
+            "CSeq: 3 REGISTER\r\n" +
+            "Via: SIP/2.0/TCP 10.0.2.15:5060;alias;branch=z9hG4bKa6489b46495c470679507a2dd9333a6c;received=192.168.10.36;rport=48951\r\n" +
+            "Contact: <sip:android1@10.0.2.15;transport=tcp>;expires=3599;q=1.0,<sip:android1@192.168.10.71:5050;transport=udp>;expires=844;q=1.0\r\n", "");
+
+    public static final byte[] MESSAGE = sip("MESSAGE sip:alice@10.0.2.15;transport=tcp SIP/2.0\r\n" +
+            "Call-ID: 8522-1@sipserver\r\n" +
+            "CSeq: 1000 MESSAGE\r\n" +
+            "From: <sip:bob@colibria.com>;tag=501\r\n" +
+            "To: <sip:alice@colibria.com>\r\n" +
+            "Max-Forwards: 65\r\n" +
+            "Supported: timer\r\n" +
+            "Subject: This is the MESSAGE subject\r\n" +
+            "P-Asserted-Identity: <sip:bob@colibria.com>\r\n" +
+            "P-Access-Network-Info: 3GPP-UTRAN-TDD; utran-cell-id-3gpp=234151D0FCE11\r\n" +
+            "User-Agent: IM-client/OMA1.0 Colibria-PerlClient/v1.01\r\n" +
+            "Accept-Contact: *;+g.oma.sip-im\r\n" +
+            "Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bK07921d79ef0522c95d99f487f030cfbf,SIP/2.0/UDP 127.0.0.1:5071;branch=z9hG4bKfbc592069eaa3505fe7315dd0c79c921,SIP/2.0/UDP sipserver:5050;branch=z9hG4bK-a1c3af132cd3579aff58b10b17402e11;received=127.0.0.1\r\n" +
+            "Content-Type: text/plain\r\n", "hallo");
+
+    public static final byte[] NOTIFY = sip("NOTIFY sip:dehne1@cb69ad21570a51f6.192.168.1.183;transport=tcp SIP/2.0\r\n" +
+            "Call-ID: fbb229dc84e9fad35bc777fa9c39868f@colibria.com\r\n" +
+            "CSeq: 2 NOTIFY\r\n" +
+            "From: \"Alice in Wonderland\" <sip:dehne1@colibria.com>;tag=3349\r\n" +
+            "To: \"Alice in Wonderland\" <sip:dehne1@colibria.com>;tag=7400\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "Route: <sip:95.130.218.67;lr;transport=tcp>\r\n" +
+            "Contact: <sip:dehne1@95.130.218.67:5061;transport=tcp>\r\n" +
+            "Event: presence\r\n" +
+            "P-Charging-Vector: icid-value=AS-95.130.218.67-1265119824328\r\n" +
+            "Subscription-State: active;expires=14399;min-interval=0\r\n" +
+            "Expires: 14399\r\n" +
+            "Via: SIP/2.0/TCP 95.130.218.67:5061;alias;branch=z9hG4bKf3c41c402625282014df9db56d143bcb\r\n" +
+            "Content-Type: application/pidf+xml\r\n",
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><presence xmlns=\"urn:ietf:params:xml:ns:pidf\" entity=\"sip:dehne1@colibria.com\">\n" +
+                    "    <tuple id=\"xx998877yy\">\n" +
+                    "        <status>\n" +
+                    "            <basic>closed</basic>\n" +
+                    "        </status>\n" +
+                    "        <timestamp>2010-02-02T14:10:24Z</timestamp>\n" +
+                    "    </tuple>\n" +
+                    "</presence>");
+
+    public static final byte[] MSRP_SEND_CPIM = msrpSend("a786hjs2", "87652491",
+            "From: <sip:bob@colibria.com>\r\n" +
+                    "To: <sip:alice@colibria.com>\r\n" +
+                    "DateTime: 2010-02-02T14:10:24Z\r\n" +
+                    "\r\n" +
+                    "Content-Type: text/plain;charset=UTF-8\r\n" +
+                    "\r\n" +
+                    "Hi Alice, are we still meeting for lunch today? The usual place at noon would be great.");
+
+    public static final byte[] MSRP_RESPONSE = ascii("MSRP a786hjs2 200 OK\r\n" +
+            "To-Path: msrp://10.0.2.15:2855/s111271;tcp\r\n" +
+            "From-Path: msrp://95.130.218.67:2855/iau39soe2843z;tcp\r\n" +
+            "-------a786hjs2$\r\n");
+
+    public static final byte[] RESOURCE_LISTS = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<resource-lists xmlns=\"urn:ietf:params:xml:ns:resource-lists\">" +
+            "<list name=\"friends\">" +
+            "<display-name>Friends</display-name>" +
+            "<entry uri=\"sip:alice@colibria.com\"><display-name>Alice</display-name></entry>" +
+            "<entry uri=\"sip:bob@colibria.com\"><display-name>Bob</display-name></entry>" +
+            "<entry uri=\"sip:carol@colibria.com\"><display-name>Carol</display-name></entry>" +
+            "<entry uri=\"tel:+4722334455\"/>" +
+            "<external anchor=\"http://xcap.colibria.com/resource-lists/users/sip:bob@colibria.com/index/~~/resource-lists/list%5b@name=%22friends%22%5d\"/>" +
+            "</list>" +
+            "<list name=\"colleagues\">" +
+            "<entry uri=\"sip:dave@colibria.com\"/>" +
+            "<entry uri=\"sip:erin@colibria.com\"/>" +
+            "</list>" +
+            "</resource-lists>");
+
+    public static final String[] URIS = {
+            "sip:android1@colibria.com ",
+            "sip:dehne1@95.130.218.67:5061;transport=tcp ",
+            "sip:username:password@hostname.com:5060;param1;param2=value ",
+            "tel:+4722334455 "
+    };
+
+    private static byte[] sip(String headers, String body) {
+        byte[] b = ascii(body);
+        return ascii(headers + "Content-Length: " + b.length + CRLF + CRLF + body);
+    }
+
+    private static byte[] msrpSend(String txId, String msgId, String cpim) {
+        byte[] content = ascii(cpim);
+        return ascii("MSRP " + txId + " SEND\r\n" +
+                "To-Path: msrp://10.0.2.15:2855/s111271;tcp\r\n" +
+                "From-Path: msrp://95.130.218.67:2855/iau39soe2843z;tcp\r\n" +
+                "Message-ID: " + msgId + CRLF +
+                "Byte-Range: 1-" + content.length + "/" + content.length + CRLF +
+                "Content-Type: message/cpim\r\n" +
+                CRLF +
+                cpim + CRLF +
+                "-------" + txId + "$\r\n");
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Looks up a SIP message of the corpus by name, used with @Param
+     *
+     * @param name the name of the message
+     * @return the serialized message
+     */
+    public static byte[] sipMessage(String name) {
+        if ("INVITE".equals(name)) {
+            return INVITE;
+        } else if ("OK_REGISTER".equals(name)) {
+            return OK_REGISTER;
+        } else if ("MESSAGE".equals(name)) {
+            return MESSAGE;
+        } else if ("NOTIFY".equals(name)) {
+            return NOTIFY;
+        }
+        throw new IllegalArgumentException("No such message in corpus: " + name);
+    }
+}
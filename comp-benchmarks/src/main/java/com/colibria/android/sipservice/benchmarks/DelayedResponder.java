@@ -0,0 +1,265 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal MSRP peer on the loopback interface which answers every SEND request with
+ * a 200 response after a fixed delay, in order to simulate a link with some round-trip time.
+ * <p/>
+ * Only understands what the benchmarks send: request lines, To-Path/From-Path headers and
+ * end-lines. Bodies must not contain lines starting with "MSRP " or the end-line.
+ * <p/>
+ * Optionally, reading can be throttled to a fixed rate in order to simulate a slow link, and a
+ * listener can be notified about every end-line seen.
+ * <p/>
+ * The Failure-Report and Success-Report headers are honored: no response is sent for requests with
+ * Failure-Report 'no' or 'partial' (every request is accepted), and a REPORT is sent once the last chunk of a
+ * message with Success-Report 'yes' arrived. The number of responses and bytes sent back is counted.
+ *
+ * @author Sebastian Dehne
+ */
+class DelayedResponder implements Runnable {
+
+    interface Listener {
+
+        /**
+         * Called on the reading thread for each end-line of a request
+         *
+         * @param messageId    the Message-ID of the request, or null if it had none
+         * @param continuation the continuation flag of the end-line
+         */
+        void endLineReceived(String messageId, char continuation);
+    }
+
+    private final ServerSocket serverSocket;
+    private final ScheduledExecutorService scheduler;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final Listener listener;
+
+    private final AtomicInteger responsesSent = new AtomicInteger();
+    private final AtomicInteger reportsSent = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private int nextReportId;
+
+    private long bytesRead;
+    private long readingStarted;
+
+    DelayedResponder(long latencyMillis) throws IOException {
+        this(latencyMillis, 0, null);
+    }
+
+    /**
+     * @param latencyMillis  the delay before each response is sent
+     * @param bytesPerSecond the read rate, or 0 to read as fast as possible
+     * @param listener       notified about end-lines, may be null
+     * @throws IOException if the server socket could not be opened
+     */
+    DelayedResponder(long latencyMillis, long bytesPerSecond, Listener listener) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.listener = listener;
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void start() {
+        Thread t = new Thread(this, "DelayedResponder");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return the number of responses sent so far
+     */
+    int getResponsesSent() {
+        return responsesSent.get();
+    }
+
+    /**
+     * @return the number of REPORTs sent so far
+     */
+    int getReportsSent() {
+        return reportsSent.get();
+    }
+
+    /**
+     * @return the number of bytes sent back to the peer so far
+     */
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    void close() throws IOException {
+        scheduler.shutdownNow();
+        serverSocket.close();
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                try {
+                    serve(s);
+                } finally {
+                    s.close();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket s) throws IOException {
+        s.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        final OutputStream out = s.getOutputStream();
+
+        String line, txId = null, toPath = null, fromPath = null, messageId = null, failureReport = null, successReport = null, total = null;
+        boolean isSend = false;
+        readingStarted = System.nanoTime();
+        bytesRead = 0;
+        while ((line = readLine(in)) != null) {
+            if (txId == null) {
+                if (line.startsWith("MSRP ")) {
+                    String[] parts = line.split(" ");
+                    txId = parts[1];
+                    isSend = parts.length > 2 && "SEND".equals(parts[2]);
+                    messageId = null;
+                    failureReport = null;
+                    successReport = null;
+                }
+            } else if (line.startsWith("To-Path: ")) {
+                toPath = line.substring(9);
+            } else if (line.startsWith("From-Path: ")) {
+                fromPath = line.substring(11);
+            } else if (line.startsWith("Message-ID: ")) {
+                messageId = line.substring(12);
+            } else if (line.startsWith("Byte-Range: ")) {
+                total = line.substring(line.indexOf('/') + 1);
+            } else if (line.startsWith("Failure-Report: ")) {
+                failureReport = line.substring(16);
+            } else if (line.startsWith("Success-Report: ")) {
+                successReport = line.substring(16);
+            } else if (line.startsWith("-------" + txId)) {
+                char continuation = line.charAt(line.length() - 1);
+                if (listener != null) {
+                    listener.endLineReceived(messageId, continuation);
+                }
+                if (isSend && !"no".equals(failureReport) && !"partial".equals(failureReport)) {
+                    respond(out, txId, fromPath, toPath);
+                }
+                if (isSend && continuation == '$' && "yes".equals(successReport)) {
+                    report(out, messageId, total, fromPath, toPath);
+                }
+                txId = null;
+            }
+        }
+    }
+
+    private void respond(OutputStream out, String txId, String toPath, String fromPath) throws IOException {
+        byte[] response = ("MSRP " + txId + " 200 OK\r\n" +
+                "To-Path: " + toPath + "\r\n" +
+                "From-Path: " + fromPath + "\r\n" +
+                "-------" + txId + "$\r\n").getBytes("US-ASCII");
+        responsesSent.incrementAndGet();
+        writeDelayed(out, response);
+    }
+
+    private void report(OutputStream out, String messageId, String total, String toPath, String fromPath) throws IOException {
+        String txId = "report" + (++nextReportId);
+        String byteRange = "*".equals(total) ? "1-*/*" : "1-" + total + "/" + total;
+        byte[] report = ("MSRP " + txId + " REPORT\r\n" +
+                "To-Path: " + toPath + "\r\n" +
+                "From-Path: " + fromPath + "\r\n" +
+                "Message-ID: " + messageId + "\r\n" +
+                "Byte-Range: " + byteRange + "\r\n" +
+                "Status: 000 200 OK\r\n" +
+                "-------" + txId + "$\r\n").getBytes("US-ASCII");
+        reportsSent.incrementAndGet();
+        writeDelayed(out, report);
+    }
+
+    private void writeDelayed(final OutputStream out, final byte[] data) {
+        bytesWritten.addAndGet(data.length);
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        out.write(data);
+                        out.flush();
+                    } catch (IOException e) {
+                        // peer went away
+                    }
+                }
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (bytesPerSecond > 0 && (++bytesRead & 1023) == 0) {
+                throttle();
+            }
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private void throttle() throws IOException {
+        long due = readingStarted + bytesRead * 1000000000L / bytesPerSecond;
+        long now = System.nanoTime();
+        if (due > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(due - now);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+}
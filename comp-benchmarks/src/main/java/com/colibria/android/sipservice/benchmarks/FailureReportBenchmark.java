@@ -0,0 +1,215 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.MsrpRemoteAddress;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.endpoint.MsrpEndpoint;
+import com.colibria.android.sipservice.endpoint.api.IEndPointSession;
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IMessageReportListener;
+import com.colibria.android.sipservice.endpoint.api.IMsrpEndpointApplication;
+import com.colibria.android.sipservice.endpoint.messagebuffer.ReceivedMessageMetaData;
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.headers.FailureReportHeader;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.sip.Address;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending two files at the same time to a peer which answers each SEND after a fixed delay, until the
+ * REPORTs confirming both files arrived, for the different Failure-Report values of file transfers
+ * (see Configurator.setFileTransferFailureReport()).
+ * <p/>
+ * Sending the two files interleaved cuts them into many chunks. With Failure-Report 'yes', every chunk
+ * waits for its response before the next one is sent; with 'partial' or 'no' the peer doesn't respond
+ * to accepted chunks and the chunks are sent back to back. The responses and upstream bytes columns show
+ * what the peer had to send back per operation.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FailureReportBenchmark {
+
+    static final int FILE_SIZE = 1024 * 1024;
+
+    @Param({"yes", "partial", "no"})
+    public String failureReport;
+
+    @Param({"5"})
+    public int latencyMillis;
+
+    private final BlockingQueue<String> reported = new LinkedBlockingQueue<String>();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final List<Address> recipients = new ArrayList<Address>();
+
+    private DelayedResponder responder;
+    private ScheduledExecutorService threadFarm;
+    private TcpController controller;
+    private IEndPointSession session;
+    private File file;
+
+    /**
+     * What the peer sent back, per operation
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Upstream {
+        public long responses;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            responses = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.silenceLogging();
+        Configurator.setFileTransferFailureReport(FailureReportHeader.Value.fromValue(failureReport));
+        Configurator.setFileTransferSuccessReport(true);
+        recipients.add(Address.fromString("sip:peer@127.0.0.1"));
+
+        // the responder reads line by line, so the content must not contain any line breaks
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) 'x');
+        file = File.createTempFile("failureReport", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        responder = new DelayedResponder(latencyMillis, 0, null);
+        responder.start();
+
+        threadFarm = Executors.newScheduledThreadPool(4);
+        controller = TcpController.createPreStartedController(threadFarm);
+        MsrpEndpoint endpoint = new MsrpEndpoint(controller, threadFarm);
+        session = endpoint.addParticipant(Address.fromString("sip:bench@127.0.0.1"), new Application());
+
+        MsrpURI remoteURI = new MsrpURI(false, null, "127.0.0.1", responder.getPort(), "responder", MsrpEndpoint.TRANSPORT_TCP, null);
+        session.establishOutgoingConnection(new MsrpRemoteAddress(remoteURI, new InetSocketAddress("127.0.0.1", responder.getPort())));
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Session did not connect");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        session.close();
+        controller.shutdown();
+        threadFarm.shutdownNow();
+        responder.close();
+        Configurator.setFileTransferFailureReport(FailureReportHeader.Value.yes);
+        Configurator.setFileTransferSuccessReport(false);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public String sendTwoFiles(Upstream upstream) throws Exception {
+        int responsesBefore = responder.getResponsesSent();
+        long bytesBefore = responder.getBytesWritten();
+
+        Set<String> pending = new HashSet<String>();
+        pending.add(session.sendFile(file, MimeType.APPLICATION_OCTET_STREAM, recipients, null, IEndPointSession.PRIORITY_NORMAL));
+        pending.add(session.sendFile(file, MimeType.APPLICATION_OCTET_STREAM, recipients, null, IEndPointSession.PRIORITY_NORMAL));
+        String msgId = null;
+        while (!pending.isEmpty()) {
+            msgId = reported.poll(30, TimeUnit.SECONDS);
+            if (msgId == null) {
+                throw new IllegalStateException("Not all files were reported as received");
+            }
+            pending.remove(msgId);
+        }
+
+        upstream.responses += responder.getResponsesSent() - responsesBefore;
+        upstream.bytes += responder.getBytesWritten() - bytesBefore;
+        return msgId;
+    }
+
+    private class Application implements IMsrpEndpointApplication, IMessageReportListener {
+
+        public IMessageContentStore getNewMessageCollector(ReceivedMessageMetaData metaData) {
+            return null;
+        }
+
+        public void moreBytesRecevied(String msgID, long byteCount, long totalSize, IMessageContentStore store) {
+            //void
+        }
+
+        public void messageRecevied(String msgID, ReceivedMessageMetaData metaData, IMessageContentStore contentStore) {
+            //void
+        }
+
+        public void connected() {
+            connected.countDown();
+        }
+
+        public void terminated() {
+            //void
+        }
+
+        public void reportReceived(String msgID, int statusCode, ByteRange byteRange) {
+            if (statusCode == 200) {
+                reported.offer(msgID);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.messagebuffer.FileBasedMessageCollector;
+import com.colibria.android.sipservice.endpoint.messagebuffer.FileChannelMessageCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing a MESSAGE_SIZE bytes large file transfer, received in chunk pieces of pieceSize bytes, into
+ * a file. One operation is one complete message, so MB/s is ops/s times MESSAGE_SIZE.
+ * <p/>
+ * randomAccessFile is the FileBasedMessageCollector, fileChannel and mapped are the two modes of the
+ * FileChannelMessageCollector.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileCollectorBenchmark {
+
+    static final int MESSAGE_SIZE = 1024 * 1024 * 16;
+
+    @Param({"randomAccessFile", "fileChannel", "mapped"})
+    public String collector;
+
+    @Param({"2048", "32768"})
+    public int pieceSize;
+
+    private ByteBuffer content;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        Benchmarks.silenceLogging();
+
+        // the pieces are slices of one buffer, as they are slices of the read buffer when received
+        byte[] body = new byte[pieceSize];
+        new Random(42).nextBytes(body);
+        content = ByteBuffer.wrap(body);
+
+        file = File.createTempFile("msrpbenchmark-", null);
+        file.deleteOnExit();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long storeMessage() {
+        IMessageContentStore store = create();
+        for (long stored = 0; stored < MESSAGE_SIZE; stored += pieceSize) {
+            if (store instanceof IByteBufferContentStore) {
+                ((IByteBufferContentStore) store).store(stored == 0 ? 0 : -1, content.duplicate());
+            } else {
+                store.store(stored == 0 ? 0 : -1, content.array(), 0, pieceSize);
+            }
+        }
+        store.receivingFinished(false);
+        return store.getBytesReceivedSoFar();
+    }
+
+    private IMessageContentStore create() {
+        if ("randomAccessFile".equals(collector)) {
+            return new FileBasedMessageCollector(file, null);
+        } else if ("fileChannel".equals(collector)) {
+            return new FileChannelMessageCollector(file, MESSAGE_SIZE, null);
+        } else if ("mapped".equals(collector)) {
+            return new FileChannelMessageCollector(file, MESSAGE_SIZE, true, null);
+        }
+        throw new IllegalArgumentException(collector);
+    }
+}
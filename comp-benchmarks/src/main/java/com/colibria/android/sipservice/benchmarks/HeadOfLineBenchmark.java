@@ -0,0 +1,194 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.MsrpRemoteAddress;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.endpoint.MsrpEndpoint;
+import com.colibria.android.sipservice.endpoint.api.IEndPointSession;
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IMsrpEndpointApplication;
+import com.colibria.android.sipservice.endpoint.api.ISendingListener;
+import com.colibria.android.sipservice.endpoint.messagebuffer.ReceivedMessageMetaData;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.sip.Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Head-of-line latency: the time from handing a small message to the endpoint until its end-line
+ * arrives at the peer, with and without a bulk transfer running on the same session.
+ * <p/>
+ * The peer reads at a fixed rate, such that the bulk transfer keeps the outbound queue filled.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeadOfLineBenchmark {
+
+    private static final byte[] SMALL = "Hello".getBytes();
+    private static final byte[] BULK_CONTENT = new byte[Configurator.getMaxChunkPieceSize()];
+
+    static {
+        Arrays.fill(BULK_CONTENT, (byte) 'x');
+    }
+
+    @Param({"false", "true"})
+    public boolean bulk;
+
+    @Param({"4", "16"})
+    public int priority;
+
+    @Param({"4194304"})
+    public long bytesPerSecond;
+
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<String>();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final List<Address> recipients = new ArrayList<Address>();
+
+    private DelayedResponder responder;
+    private ScheduledExecutorService threadFarm;
+    private TcpController controller;
+    private IEndPointSession session;
+    private volatile String bulkMsgId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.silenceLogging();
+        recipients.add(Address.fromString("sip:peer@127.0.0.1"));
+
+        responder = new DelayedResponder(0, bytesPerSecond, new DelayedResponder.Listener() {
+            public void endLineReceived(String messageId, char continuation) {
+                if (continuation == '$') {
+                    delivered.offer(messageId);
+                }
+            }
+        });
+        responder.start();
+
+        threadFarm = Executors.newScheduledThreadPool(4);
+        controller = TcpController.createPreStartedController(threadFarm);
+        MsrpEndpoint endpoint = new MsrpEndpoint(controller, threadFarm);
+        session = endpoint.addParticipant(Address.fromString("sip:bench@127.0.0.1"), new Application());
+
+        MsrpURI remoteURI = new MsrpURI(false, null, "127.0.0.1", responder.getPort(), "responder", MsrpEndpoint.TRANSPORT_TCP, null);
+        session.establishOutgoingConnection(new MsrpRemoteAddress(remoteURI, new InetSocketAddress("127.0.0.1", responder.getPort())));
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Session did not connect");
+        }
+
+        if (bulk) {
+            bulkMsgId = session.sendNewMessage(null, nextBulkPiece(), false, false, MimeType.APPLICATION_OCTET_STREAM, recipients, null, -1, new BulkPump(), IEndPointSession.PRIORITY_NORMAL);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        bulkMsgId = null;
+        session.close();
+        controller.shutdown();
+        threadFarm.shutdownNow();
+        responder.close();
+    }
+
+    @Benchmark
+    public String sendSmallMessage() throws InterruptedException {
+        String msgId = session.sendNewMessage(null, SMALL, false, true, MimeType.TEXT_PLAIN, recipients, null, SMALL.length, new BulkPump(), priority);
+        String received;
+        do {
+            received = delivered.poll(10, TimeUnit.SECONDS);
+            if (received == null) {
+                throw new IllegalStateException("Message did not arrive");
+            }
+        } while (!received.equals(msgId));
+        return received;
+    }
+
+    private byte[] nextBulkPiece() {
+        return Arrays.copyOf(BULK_CONTENT, Math.min(BULK_CONTENT.length, session.getChunkPieceSize()));
+    }
+
+    /**
+     * Keeps the bulk message going for as long as the benchmark runs
+     */
+    private class BulkPump implements ISendingListener {
+
+        public void abortSendingMsg(String msgID) {
+            session.sendNewMessage(msgID, null, true, true, null, null, null, -1, this);
+        }
+
+        public void readyForMore(String msgID) {
+            if (msgID.equals(bulkMsgId)) {
+                session.sendNewMessage(msgID, nextBulkPiece(), false, false, null, null, null, -1, this);
+            }
+        }
+    }
+
+    private class Application implements IMsrpEndpointApplication {
+
+        public IMessageContentStore getNewMessageCollector(ReceivedMessageMetaData metaData) {
+            return null;
+        }
+
+        public void moreBytesRecevied(String msgID, long byteCount, long totalSize, IMessageContentStore store) {
+            //void
+        }
+
+        public void messageRecevied(String msgID, ReceivedMessageMetaData metaData, IMessageContentStore contentStore) {
+            //void
+        }
+
+        public void connected() {
+            connected.countDown();
+        }
+
+        public void terminated() {
+            //void
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.fsm.Condition;
+import com.colibria.android.sipservice.fsm.Machine;
+import com.colibria.android.sipservice.fsm.State;
+import com.colibria.android.sipservice.fsm.Transition;
+import com.colibria.android.sipservice.fsm.TransitionActivityException;
+import com.colibria.android.sipservice.fsm.UnhandledConditionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single Machine.input() call for a two-state machine which toggles on every signal,
+ * with and without the flight recorder enabled
+ *
+ * @author Sebastian Dehne
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MachineBenchmark {
+
+    private static final String SIGNAL = "toggle";
+
+    private static final State<String, ToggleMachine> ON = new State<String, ToggleMachine>("ON");
+    private static final State<String, ToggleMachine> OFF = new State<String, ToggleMachine>("OFF");
+
+    static {
+        Condition<String, ToggleMachine> any = new Condition<String, ToggleMachine>() {
+            public boolean satisfiedBy(String signal, ToggleMachine owner) {
+                return SIGNAL.equals(signal);
+            }
+        };
+        OFF.addTransition(new Transition<String, ToggleMachine>(any, ON) {
+            public void activity(ToggleMachine machine, String signal) {
+                machine.toggles++;
+            }
+        });
+        ON.addTransition(new Transition<String, ToggleMachine>(any, OFF) {
+            public void activity(ToggleMachine machine, String signal) {
+                machine.toggles++;
+            }
+        });
+    }
+
+    static class ToggleMachine extends Machine<String> {
+        private long toggles;
+
+        ToggleMachine() {
+            super(OFF);
+        }
+    }
+
+    @Param({"0", "64"})
+    public int flightRecorderSize;
+
+    private ToggleMachine machine;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.silenceLogging();
+        machine = new ToggleMachine();
+        if (flightRecorderSize > 0) {
+            machine.enableFlightRecorder(flightRecorderSize);
+        }
+    }
+
+    @Benchmark
+    public long input() throws UnhandledConditionException, InterruptedException, TransitionActivityException {
+        machine.input(SIGNAL);
+        return machine.toggles;
+    }
+}
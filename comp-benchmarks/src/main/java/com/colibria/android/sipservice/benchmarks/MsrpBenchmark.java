@@ -0,0 +1,103 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.headers.IMsrpMessage;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.MsrpParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and marshalling of MSRP messages from the {@link Corpus}
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MsrpBenchmark {
+
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private MsrpParser parser;
+    private MsrpSendRequest sendRequest;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.silenceLogging();
+        readBuffer = ByteBuffer.allocate(1024 * 8);
+        writeBuffer = ByteBuffer.allocate(1024 * 16);
+        parser = new MsrpParser();
+
+        IMsrpMessage m = parse(Corpus.MSRP_SEND_CPIM);
+        if (!(m instanceof MsrpSendRequest)) {
+            throw new IllegalStateException("Corpus SEND request could not be parsed: " + m);
+        }
+        sendRequest = (MsrpSendRequest) m;
+        if (parse(Corpus.MSRP_RESPONSE) == null) {
+            throw new IllegalStateException("Corpus response could not be parsed");
+        }
+    }
+
+    @Benchmark
+    public IMsrpMessage parseSend() {
+        return parse(Corpus.MSRP_SEND_CPIM);
+    }
+
+    @Benchmark
+    public IMsrpMessage parseResponse() {
+        return parse(Corpus.MSRP_RESPONSE);
+    }
+
+    @Benchmark
+    public ByteBuffer marshall() {
+        writeBuffer.clear();
+        sendRequest.marshall(writeBuffer, null, null, null, null);
+        return writeBuffer;
+    }
+
+    /*
+     * Same sequence as ChannelState.dataReceived() for a single complete message
+     */
+    private IMsrpMessage parse(byte[] data) {
+        readBuffer.clear();
+        readBuffer.put(data);
+        readBuffer.flip();
+        MsrpParser.State result = parser.parse(readBuffer);
+        IMsrpMessage parsed = result == MsrpParser.State.done ? parser.getParsedMessage() : null;
+        parser.reset();
+        parser.resetBufferPosition();
+        return parsed;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.MsrpRemoteAddress;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.endpoint.MsrpEndpoint;
+import com.colibria.android.sipservice.endpoint.api.IEndPointSession;
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IMsrpEndpointApplication;
+import com.colibria.android.sipservice.endpoint.api.ISendingListener;
+import com.colibria.android.sipservice.endpoint.messagebuffer.ReceivedMessageMetaData;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.sip.Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a FILE_SIZE bytes large file to a peer on the loopback interface, until its end-line arrived.
+ * <p/>
+ * sendNewMessage reads the file piece by piece into byte arrays and passes them into sendNewMessage(), the way
+ * an application had to before; sendFile hands the file to the stack, which transfers it from the file to the
+ * socket. The gc profiler shows the heap traffic per transfer.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendFileBenchmark {
+
+    static final int FILE_SIZE = 1024 * 1024 * 4;
+
+    @Param({"sendNewMessage", "sendFile"})
+    public String api;
+
+    private final BlockingQueue<String> delivered = new LinkedBlockingQueue<String>();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final List<Address> recipients = new ArrayList<Address>();
+
+    private DelayedResponder responder;
+    private ScheduledExecutorService threadFarm;
+    private TcpController controller;
+    private IEndPointSession session;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.silenceLogging();
+        recipients.add(Address.fromString("sip:peer@127.0.0.1"));
+
+        // the responder reads line by line, so the content must not contain any line breaks
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) 'x');
+        file = File.createTempFile("sendFile", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        responder = new DelayedResponder(0, 0, new DelayedResponder.Listener() {
+            public void endLineReceived(String messageId, char continuation) {
+                if (continuation == '$') {
+                    delivered.offer(messageId);
+                }
+            }
+        });
+        responder.start();
+
+        threadFarm = Executors.newScheduledThreadPool(4);
+        controller = TcpController.createPreStartedController(threadFarm);
+        MsrpEndpoint endpoint = new MsrpEndpoint(controller, threadFarm);
+        session = endpoint.addParticipant(Address.fromString("sip:bench@127.0.0.1"), new Application());
+
+        MsrpURI remoteURI = new MsrpURI(false, null, "127.0.0.1", responder.getPort(), "responder", MsrpEndpoint.TRANSPORT_TCP, null);
+        session.establishOutgoingConnection(new MsrpRemoteAddress(remoteURI, new InetSocketAddress("127.0.0.1", responder.getPort())));
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Session did not connect");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        session.close();
+        controller.shutdown();
+        threadFarm.shutdownNow();
+        responder.close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public String sendOneFile() throws Exception {
+        String msgId;
+        if ("sendFile".equals(api)) {
+            msgId = session.sendFile(file, MimeType.APPLICATION_OCTET_STREAM, recipients, null, IEndPointSession.PRIORITY_NORMAL);
+        } else {
+            msgId = new FilePump().start();
+        }
+
+        String received;
+        do {
+            received = delivered.poll(30, TimeUnit.SECONDS);
+            if (received == null) {
+                throw new IllegalStateException("Message did not arrive");
+            }
+        } while (!received.equals(msgId));
+        return received;
+    }
+
+    /**
+     * Reads the file into byte arrays of getChunkPieceSize() bytes, whenever the stack is ready for more
+     */
+    private class FilePump implements ISendingListener {
+        private final FileInputStream in;
+
+        private FilePump() throws IOException {
+            in = new FileInputStream(file);
+        }
+
+        synchronized String start() throws IOException {
+            return session.sendNewMessage(null, nextPiece(), false, false, MimeType.APPLICATION_OCTET_STREAM, recipients, null, FILE_SIZE, this);
+        }
+
+        public synchronized void abortSendingMsg(String msgID) {
+            session.sendNewMessage(msgID, null, true, true, null, null, null, -1, this);
+        }
+
+        public synchronized void readyForMore(String msgID) {
+            try {
+                byte[] piece = nextPiece();
+                if (piece == null) {
+                    in.close();
+                    session.sendNewMessage(msgID, null, false, true, null, null, null, -1, this);
+                } else {
+                    session.sendNewMessage(msgID, piece, false, false, null, null, null, -1, this);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] nextPiece() throws IOException {
+            byte[] piece = new byte[session.getChunkPieceSize()];
+            int read = in.read(piece);
+            return read <= 0 ? null : Arrays.copyOf(piece, read);
+        }
+    }
+
+    private class Application implements IMsrpEndpointApplication {
+
+        public IMessageContentStore getNewMessageCollector(ReceivedMessageMetaData metaData) {
+            return null;
+        }
+
+        public void moreBytesRecevied(String msgID, long byteCount, long totalSize, IMessageContentStore store) {
+            //void
+        }
+
+        public void messageRecevied(String msgID, ReceivedMessageMetaData metaData, IMessageContentStore contentStore) {
+            //void
+        }
+
+        public void connected() {
+            connected.countDown();
+        }
+
+        public void terminated() {
+            //void
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.IMsrpApplication;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.endpoint.MsrpEndpoint;
+import com.colibria.android.sipservice.headers.MsrpPath;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
+import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.ChannelState;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.sip.Address;
+import com.colibria.android.sipservice.tx.IOutboundFSMListener;
+import com.colibria.android.sipservice.tx.Participant;
+import com.colibria.android.sipservice.tx.Participants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to get a burst of SEND requests acknowledged by a peer which answers each of them after
+ * a fixed delay, for different send window sizes (see Configurator.setSendWindowSize()).
+ * <p/>
+ * With a window of 1, every request costs a full round-trip; larger windows overlap them.
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendWindowBenchmark {
+
+    private static final int BURST = 32;
+
+    @Param({"1", "4", "16"})
+    public int sendWindowSize;
+
+    @Param({"5"})
+    public int latencyMillis;
+
+    private final Semaphore responses = new Semaphore(0);
+    private final CountDownLatch activated = new CountDownLatch(1);
+
+    private DelayedResponder responder;
+    private ScheduledExecutorService threadFarm;
+    private TcpController controller;
+    private MsrpEndpoint endpoint;
+    private Participant participant;
+    private MsrpPath toPath;
+    private MsrpPath fromPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Benchmarks.silenceLogging();
+        Configurator.setSendWindowSize(sendWindowSize);
+
+        responder = new DelayedResponder(latencyMillis);
+        responder.start();
+
+        threadFarm = Executors.newScheduledThreadPool(4);
+        controller = TcpController.createPreStartedController(threadFarm);
+        endpoint = new MsrpEndpoint(controller, threadFarm);
+        participant = Participants.getInstance().create(endpoint, new Application(), Address.fromString("sip:bench@127.0.0.1"), null);
+
+        MsrpURI remoteURI = new MsrpURI(false, null, "127.0.0.1", responder.getPort(), "responder", MsrpEndpoint.TRANSPORT_TCP, null);
+        participant.setRemoteURI(remoteURI);
+        toPath = new MsrpPath(remoteURI);
+        fromPath = new MsrpPath(participant.getLocalMsrpURI());
+        ChannelState.getOrCreate(endpoint, participant, new InetSocketAddress("127.0.0.1", responder.getPort()));
+
+        if (!activated.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Participant did not complete the handshake");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        participant.terminate();
+        controller.shutdown();
+        threadFarm.shutdownNow();
+        responder.close();
+        Configurator.setSendWindowSize(1);
+    }
+
+    @Benchmark
+    public int sendBurst() throws InterruptedException {
+        for (int i = 0; i < BURST; i++) {
+            participant.handleOutgoingRequest(MsrpSendRequest.generateHandShake(endpoint.getNextId(), toPath, fromPath, endpoint.getNextId()), null);
+        }
+        if (!responses.tryAcquire(BURST, 10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Not all responses received");
+        }
+        return BURST;
+    }
+
+    private class Application implements IMsrpApplication, IOutboundFSMListener {
+
+        public MsrpResponse.ResponseCode requestReceived(Participant participant, MsrpSendRequest request) {
+            return MsrpResponse.RESPONSE_200_OK;
+        }
+
+        public void responseReceived(String messageStateId, Participant participant, int responseCode) {
+            responses.release();
+        }
+
+        public void reportReceived(Participant participant, MsrpReportRequest report) {
+            //void
+        }
+
+        public void participantActivated(Participant participant) {
+            activated.countDown();
+        }
+
+        public void participantTerminated(Participant participant) {
+            //void
+        }
+
+        public IOutboundFSMListener getOutboundFsmListener() {
+            return this;
+        }
+
+        public void updateOutboundQueueUsage(float bufferCapacityInUse) {
+            //void
+        }
+
+        public int getMaxOutboudQueueSize() {
+            return Configurator.getMaxOutboundQueueSize();
+        }
+    }
+}
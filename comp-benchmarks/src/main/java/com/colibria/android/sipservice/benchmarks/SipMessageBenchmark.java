@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.ByteBufferOutputStream;
+import com.colibria.android.sipservice.sip.messages.SipMessage;
+import com.colibria.android.sipservice.sip.parser.SipMessageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serializing of complete SIP messages from the {@link Corpus}
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SipMessageBenchmark {
+
+    @Param({"INVITE", "OK_REGISTER", "MESSAGE", "NOTIFY"})
+    public String message;
+
+    private byte[] data;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private SipMessageParser sipMessageParser;
+    private SipMessage parsed;
+
+    @Setup
+    public void setUp() throws IOException {
+        Benchmarks.silenceLogging();
+        data = Corpus.sipMessage(message);
+        readBuffer = ByteBuffer.allocate(1024 * 8);
+        writeBuffer = ByteBuffer.allocate(1024 * 8);
+        sipMessageParser = new SipMessageParser();
+
+        parsed = parseMoreBytes();
+        if (parsed == null) {
+            throw new IllegalStateException("Corpus message " + message + " could not be parsed");
+        }
+    }
+
+    @Benchmark
+    public SipMessage parseMoreBytes() throws IOException {
+        readBuffer.clear();
+        readBuffer.put(data);
+        readBuffer.flip();
+        sipMessageParser.reset();
+        return sipMessageParser.parseMoreBytes(readBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer writeToBuffer() throws IOException {
+        writeBuffer.clear();
+        parsed.writeToBuffer(new ByteBufferOutputStream(writeBuffer));
+        return writeBuffer;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.benchmarks;
+
+import com.colibria.android.sipservice.sip.messages.Request;
+import com.colibria.android.sipservice.sip.messages.Response;
+import com.colibria.android.sipservice.sip.messages.SipMessage;
+import com.colibria.android.sipservice.sip.parser.SipMessageParser;
+import com.colibria.android.sipservice.sip.tx.ClientTransaction;
+import com.colibria.android.sipservice.sip.tx.TransactionRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching received responses against the client transactions in the repository, which
+ * is what every received response goes through in SipStack
+ *
+ * @author Sebastian Dehne
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionRepositoryBenchmark {
+
+    @Param({"10", "1000"})
+    public int transactions;
+
+    private TransactionRepository repository;
+    private Response[] responses;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Benchmarks.silenceLogging();
+        repository = new TransactionRepository();
+        responses = new Response[transactions];
+
+        SipMessageParser parser = new SipMessageParser();
+        ByteBuffer bb = ByteBuffer.allocate(1024 * 8);
+        for (int i = 0; i < transactions; i++) {
+            String branch = "z9hG4bK" + Integer.toHexString(0x10000000 + i * 7919);
+            Request request = (Request) parse(parser, bb, "MESSAGE sip:alice@colibria.com SIP/2.0\r\n" +
+                    "Call-ID: " + i + "-8522@10.0.2.15\r\n" +
+                    "CSeq: 1 MESSAGE\r\n" +
+                    "From: <sip:android1@colibria.com>;tag=501\r\n" +
+                    "To: <sip:alice@colibria.com>\r\n" +
+                    "Max-Forwards: 70\r\n" +
+                    "Via: SIP/2.0/TCP 10.0.2.15:5060;branch=" + branch + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "\r\n");
+            responses[i] = (Response) parse(parser, bb, "SIP/2.0 200 OK\r\n" +
+                    "Call-ID: " + i + "-8522@10.0.2.15\r\n" +
+                    "CSeq: 1 MESSAGE\r\n" +
+                    "From: <sip:android1@colibria.com>;tag=501\r\n" +
+                    "To: <sip:alice@colibria.com>;tag=9105\r\n" +
+                    "Via: SIP/2.0/TCP 10.0.2.15:5060;branch=" + branch + ";received=192.168.10.36\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "\r\n");
+            repository.getNewClientTransaction(request, null, null);
+        }
+        if (repository.getClientTransaction(responses[0]) == null) {
+            throw new IllegalStateException("Response didn't match its transaction");
+        }
+    }
+
+    @Benchmark
+    public ClientTransaction getClientTransaction() {
+        if (++next == responses.length) {
+            next = 0;
+        }
+        return repository.getClientTransaction(responses[next]);
+    }
+
+    private static SipMessage parse(SipMessageParser parser, ByteBuffer bb, String msg) throws IOException {
+        bb.clear();
+        bb.put(msg.getBytes());
+        bb.flip();
+        parser.reset();
+        return parser.parseMoreBytes(bb);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A response to a previously sent MSRP request.
+ *
+ * @author Sebastian Dehne
+ */
+@Name("com.colibria.sipservice.ChunkAcknowledged")
+@Label("MSRP Chunk Acknowledged")
+@Category({"Colibria", "MSRP"})
+class ChunkAcknowledgedEvent extends Event {
+
+    @Label("Correlation Id")
+    long correlationId;
+
+    @Label("Transaction Id")
+    String transactionId;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Round Trip Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long roundTripTime;
+}
@@ -0,0 +1,162 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.jfr;
+
+import com.colibria.android.sipservice.events.IStackEventListener;
+import com.colibria.android.sipservice.events.StackEvents;
+import com.colibria.android.sipservice.logging.Logger;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Turns stack events into JDK Flight Recorder events.
+ * <p/>
+ * Call {@link #install()} once during start-up. This listener only registers itself with
+ * {@link StackEvents} while at least one recording is running, so the stack doesn't even
+ * generate correlation ids while JFR is off.
+ *
+ * @author Sebastian Dehne
+ */
+public class JfrStackEventListener implements IStackEventListener {
+    private static final String TAG = "JfrStackEventListener";
+
+    private static final JfrStackEventListener INSTANCE = new JfrStackEventListener();
+
+    private JfrStackEventListener() {
+    }
+
+    /**
+     * Starts forwarding stack events to JFR whenever a recording is running
+     */
+    public static void install() {
+        if (!FlightRecorder.isAvailable()) {
+            Logger.i(TAG, "JFR is not available in this JVM, stack events won't be recorded");
+            return;
+        }
+        FlightRecorder.register(MessageParsedEvent.class);
+        FlightRecorder.register(TransactionStartedEvent.class);
+        FlightRecorder.register(TransactionCompletedEvent.class);
+        FlightRecorder.register(DialogCreatedEvent.class);
+        FlightRecorder.register(ChunkSentEvent.class);
+        FlightRecorder.register(ChunkAcknowledgedEvent.class);
+        FlightRecorder.register(ReassemblyCompletedEvent.class);
+
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                updateRegistration();
+            }
+        });
+        if (FlightRecorder.isInitialized()) {
+            updateRegistration();
+        }
+    }
+
+    private static synchronized void updateRegistration() {
+        boolean recording = false;
+        for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                recording = true;
+                break;
+            }
+        }
+        StackEvents.setListener(recording ? INSTANCE : null);
+    }
+
+    public void messageParsed(long correlationId, String protocol, String method, int statusCode, long parseNanos) {
+        MessageParsedEvent e = new MessageParsedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.protocol = protocol;
+            e.method = method;
+            e.statusCode = statusCode;
+            e.parseTime = parseNanos;
+            e.commit();
+        }
+    }
+
+    public void transactionStarted(long correlationId, boolean serverSide, String method, String branchId) {
+        TransactionStartedEvent e = new TransactionStartedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.serverSide = serverSide;
+            e.method = method;
+            e.branchId = branchId;
+            e.commit();
+        }
+    }
+
+    public void transactionCompleted(long correlationId, boolean serverSide, String method, String branchId, int statusCode, long durationNanos) {
+        TransactionCompletedEvent e = new TransactionCompletedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.serverSide = serverSide;
+            e.method = method;
+            e.branchId = branchId;
+            e.statusCode = statusCode;
+            e.transactionDuration = durationNanos;
+            e.commit();
+        }
+    }
+
+    public void dialogCreated(long correlationId, String callId, String method) {
+        DialogCreatedEvent e = new DialogCreatedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.callId = callId;
+            e.method = method;
+            e.commit();
+        }
+    }
+
+    public void chunkSent(long correlationId, String transactionId, String messageId) {
+        ChunkSentEvent e = new ChunkSentEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.transactionId = transactionId;
+            e.messageId = messageId;
+            e.commit();
+        }
+    }
+
+    public void chunkAcknowledged(long correlationId, String transactionId, int statusCode, long rttNanos) {
+        ChunkAcknowledgedEvent e = new ChunkAcknowledgedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.transactionId = transactionId;
+            e.statusCode = statusCode;
+            e.roundTripTime = rttNanos;
+            e.commit();
+        }
+    }
+
+    public void reassemblyCompleted(long correlationId, String messageId, long bytes, long durationNanos, boolean aborted) {
+        ReassemblyCompletedEvent e = new ReassemblyCompletedEvent();
+        if (e.isEnabled()) {
+            e.correlationId = correlationId;
+            e.messageId = messageId;
+            e.bytes = bytes;
+            e.reassemblyDuration = durationNanos;
+            e.aborted = aborted;
+            e.commit();
+        }
+    }
+}
@@ -18,6 +18,7 @@
  */
 package com.colibria.android.sipservice;
 
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
 import com.colibria.android.sipservice.headers.MsrpResponse;
 import com.colibria.android.sipservice.tx.IOutboundFSMListener;
 import com.colibria.android.sipservice.tx.Participant;
@@ -53,6 +54,14 @@ public interface IMsrpApplication {
      */
     public void responseReceived(String messageStateId, Participant participant, int responseCode);
 
+    /**
+     * A REPORT was received for a message which was sent with Success-Report or Failure-Report set.
+     *
+     * @param participant the participant which received the report
+     * @param report      the report itself
+     */
+    public void reportReceived(Participant participant, MsrpReportRequest report);
+
     /**
      * Notifies the application that a certain participant is now connected and ready to handle traffic
      *
@@ -0,0 +1,197 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint;
+
+import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * Compresses the content of an outgoing message piece by piece, for the Content-Encoding header of the mime
+ * part within cpim. Only textual content which is at least Configurator.getCompressionThreshold() bytes large
+ * is compressed, other content doesn't gain enough to be worth the cpu.
+ * <p/>
+ * The compressor keeps what it cannot emit yet (up to its window), so a piece may carry less compressed
+ * content than it was given, or none at all; all remaining content is emitted with the last piece.
+ * <p/>
+ * This class is not thread-safe, it is guarded by the SendingMessageState it belongs to.
+ *
+ * @author Sebastian Dehne
+ */
+public class ContentEncoder {
+
+    public static final String DEFLATE = "deflate";
+    public static final String GZIP = "gzip";
+
+    private static final Counter ENCODED_BYTES = Metrics.counter(Metrics.MSRP_CONTENT_ENCODED_BYTES);
+    private static final Counter SAVED_BYTES = Metrics.counter(Metrics.MSRP_CONTENT_ENCODING_SAVED_BYTES);
+
+    // magic, method deflate, no flags, no mtime, no extra flags, unknown os (RFC 1952)
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final String name;
+    private final Deflater deflater;
+    private final CRC32 crc; // only for gzip
+    private final long contentSize;
+    private final byte[] out;
+    private long bytesIn;
+    private long bytesOut;
+    private boolean headerWritten;
+
+    private ContentEncoder(String name, long contentSize) {
+        this.name = name;
+        this.contentSize = contentSize;
+        boolean gzip = GZIP.equals(name);
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        this.crc = gzip ? new CRC32() : null;
+        this.out = new byte[1024 * 8];
+        this.headerWritten = !gzip;
+    }
+
+    /**
+     * @param encoding the content-encoding
+     * @return true if content can be encoded (and decoded) with it
+     */
+    public static boolean isSupported(String encoding) {
+        return DEFLATE.equals(encoding) || GZIP.equals(encoding);
+    }
+
+    /**
+     * Creates an encoder for a new message, if the message is worth compressing
+     *
+     * @param encoding     the content-encoding of the session, or null
+     * @param contentType  the content-type of the message
+     * @param contentSize  the size of the content, -1 if unknown
+     * @param firstContent the content of the first piece
+     * @param lastChunk    whether the first piece is the last one as well
+     * @return the encoder, or null if the content is to be sent as is
+     */
+    static ContentEncoder create(String encoding, MimeType contentType, long contentSize, byte[] firstContent, boolean lastChunk) {
+        if (encoding == null || !isCompressible(contentType)) {
+            return null;
+        }
+        long size = contentSize;
+        if (size < 0 && lastChunk) {
+            size = firstContent == null ? 0 : firstContent.length;
+        }
+        if (size >= 0 && size < Configurator.getCompressionThreshold()) {
+            return null;
+        }
+        return new ContentEncoder(encoding, contentSize);
+    }
+
+    /*
+     * Text, xml and json; media and archives are compressed already
+     */
+    static boolean isCompressible(MimeType contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.getType();
+        String subtype = contentType.getSubtype();
+        if ("text".equalsIgnoreCase(type)) {
+            return true;
+        }
+        if (subtype == null) {
+            return false;
+        }
+        subtype = subtype.toLowerCase();
+        return subtype.equals("xml") || subtype.endsWith("+xml")
+                || subtype.equals("json") || subtype.endsWith("+json")
+                || subtype.equals("javascript");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param content   the content of the next piece, null at the end of the content
+     * @param lastChunk whether the application said this is the last piece
+     * @return true if this piece ends the content, either as said or because the announced size is reached
+     */
+    boolean isLast(byte[] content, boolean lastChunk) {
+        return lastChunk || content == null || (contentSize >= 0 && bytesIn + content.length >= contentSize);
+    }
+
+    /**
+     * @param content the content of the next piece, or null
+     * @param last    whether this is the last piece, see isLast()
+     * @return the compressed bytes to be sent in this piece
+     */
+    byte[] encode(byte[] content, boolean last) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content == null ? 64 : content.length / 2 + 64);
+        if (!headerWritten) {
+            bos.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            headerWritten = true;
+        }
+        if (content != null && content.length > 0) {
+            bytesIn += content.length;
+            if (crc != null) {
+                crc.update(content);
+            }
+            deflater.setInput(content);
+            while (!deflater.needsInput()) {
+                drain(bos);
+            }
+        }
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(bos);
+            }
+            if (crc != null) {
+                writeIntLE(bos, crc.getValue());
+                writeIntLE(bos, bytesIn);
+            }
+            deflater.end();
+        }
+        bytesOut += bos.size();
+        if (last) {
+            ENCODED_BYTES.add(bytesIn);
+            SAVED_BYTES.add(bytesIn - bytesOut);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Releases the compressor if the message ends without a last piece, e.g. when sending is aborted
+     */
+    void end() {
+        deflater.end();
+    }
+
+    private void drain(ByteArrayOutputStream bos) {
+        int n = deflater.deflate(out);
+        bos.write(out, 0, n);
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream bos, long v) {
+        bos.write((int) (v & 0xff));
+        bos.write((int) ((v >> 8) & 0xff));
+        bos.write((int) ((v >> 16) & 0xff));
+        bos.write((int) ((v >> 24) & 0xff));
+    }
+}
@@ -19,10 +19,14 @@
 package com.colibria.android.sipservice.endpoint;
 
 import com.colibria.android.sipservice.IMsrpResources;
+import com.colibria.android.sipservice.endpoint.api.IMessageReportListener;
 import com.colibria.android.sipservice.endpoint.api.IMsrpEndpointApplication;
 import com.colibria.android.sipservice.endpoint.api.ISendingListener;
+import com.colibria.android.sipservice.headers.MsrpPath;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
 import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.headers.SharedContent;
 import com.colibria.android.sipservice.sip.Address;
 import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.MsrpRemoteAddress;
@@ -30,7 +34,13 @@ import com.colibria.android.sipservice.tx.Participant;
 import com.colibria.android.sipservice.endpoint.api.IEndPointSession;
 import com.colibria.android.sipservice.headers.ContentDispositionHeader;
 import com.colibria.android.sipservice.io.ChannelState;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.logging.Logger;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 
@@ -38,6 +48,7 @@ import java.util.List;
  * @author Sebastian Dehne
  */
 public class EndPointSessionImpl implements IEndPointSession {
+    private static final String TAG = "EndPointSessionImpl";
 
     private final IMsrpResources msrpResources;
     private final IMsrpEndpointApplication application;
@@ -46,6 +57,8 @@ public class EndPointSessionImpl implements IEndPointSession {
     private final OutboundFSMListener outboundFsmListener;
 
     private volatile Participant participant;
+    private volatile String contentEncoding;
+    private volatile boolean contentEncodingSet;
 
     public EndPointSessionImpl(IMsrpResources msrpResources, IMsrpEndpointApplication application) {
         this.application = application;
@@ -64,17 +77,110 @@ public class EndPointSessionImpl implements IEndPointSession {
         return participant.getRemoteURI();
     }
 
+    MsrpPath getLocalPath() {
+        return participant.getLocalPath();
+    }
+
+    MsrpPath getRemotePath() {
+        return participant.getRemotePath();
+    }
+
     public void establishOutgoingConnection(MsrpRemoteAddress remoteAddress) {
         participant.setRemoteURI(remoteAddress.getRemoteURI());
         ChannelState.getOrCreate(msrpResources, participant, remoteAddress.getRemoteSocket());
     }
 
+    public void acceptIncomingConnection(MsrpURI remoteURI) {
+        participant.setRemoteURI(remoteURI);
+    }
+
+    public void setMaxMessageSize(long maxSize) {
+        messageReceiver.getCollectorFactory().setMaxMessageSize(maxSize);
+    }
+
+    public void setMaxMessageSize(MimeType contentType, long maxSize) {
+        messageReceiver.getCollectorFactory().setMaxMessageSize(contentType, maxSize);
+    }
+
+    public void setAcceptedContentTypes(List<MimeType> contentTypes) {
+        messageReceiver.getCollectorFactory().setAcceptedContentTypes(contentTypes);
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        if (contentEncoding != null && !ContentEncoder.isSupported(contentEncoding)) {
+            throw new IllegalArgumentException("Unsupported content-encoding " + contentEncoding);
+        }
+        this.contentEncoding = contentEncoding;
+        this.contentEncodingSet = true;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /*
+     * The remote end sent encoded content, so it can decode it as well
+     */
+    void remoteUsesContentEncoding(String contentEncoding) {
+        if (!contentEncodingSet && this.contentEncoding == null && ContentEncoder.isSupported(contentEncoding)) {
+            Logger.i(TAG, "Remote end uses content-encoding " + contentEncoding + ", using it as well");
+            this.contentEncoding = contentEncoding;
+        }
+    }
+
+    public int getChunkPieceSize() {
+        return participant.getChunkPieceSize();
+    }
+
+    float getOutboundQueueUsage() {
+        return participant.getOutboundQueueUsage();
+    }
+
     @Override
     public String sendNewMessage(String msgId, byte[] content, boolean abortSending, boolean lastChunk, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, long msgSize, ISendingListener sendingListener) {
-        if (content != null && content.length > SendingMessageState.SEND_AT_A_TIME) {
+        return sendNewMessage(msgId, content, abortSending, lastChunk, contentType, recipients, contentDispositionHeader, msgSize, sendingListener, PRIORITY_NORMAL);
+    }
+
+    @Override
+    public String sendNewMessage(String msgId, byte[] content, boolean abortSending, boolean lastChunk, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, long msgSize, ISendingListener sendingListener, int priority) {
+        if (content != null && content.length > Configurator.getMaxChunkPieceSize()) {
             throw new IllegalArgumentException("content too large");
         }
-        return messageSender.sendNewMessage(msgId, content, abortSending, lastChunk, contentType, contentDispositionHeader, recipients, msgSize, sendingListener);
+        return messageSender.sendNewMessage(msgId, content, abortSending, lastChunk, contentType, contentDispositionHeader, recipients, msgSize, sendingListener, priority);
+    }
+
+    @Override
+    public String sendFile(File file, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, int priority) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return messageSender.sendFile(channel, true, contentType, contentDispositionHeader, recipients, priority);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String resumeFile(String msgId, File file, long offset, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, int priority) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return messageSender.resumeFile(msgId, offset, channel, true, contentType, contentDispositionHeader, recipients, priority);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (IllegalArgumentException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String sendFile(FileChannel file, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, int priority) throws IOException {
+        return messageSender.sendFile(file, false, contentType, contentDispositionHeader, recipients, priority);
+    }
+
+    String sendSharedContent(String msgId, SharedContent content, MimeType contentType, List<Address> recipients, ContentDispositionHeader contentDispositionHeader, int priority) {
+        return messageSender.sendSharedContent(msgId, content, contentType, contentDispositionHeader, recipients, priority);
     }
 
     public void abortIncomingMessage(String msgID) {
@@ -113,11 +219,24 @@ public class EndPointSessionImpl implements IEndPointSession {
         return participant.getCpimAddress();
     }
 
-    public void send(MsrpSendRequest request) {
-        participant.handleOutgoingRequest(request, request.getMessageID());
+    public void send(MsrpSendRequest request, int priority) {
+        participant.handleOutgoingRequest(request, request.getMessageID(), priority);
     }
 
     public MessageReceiver getMessageReceiver() {
         return messageReceiver;
     }
+
+    public void sendReport(MsrpReportRequest report) {
+        participant.handleOutgoingReport(report);
+    }
+
+    void reportReceived(MsrpReportRequest report) {
+        if (application instanceof IMessageReportListener) {
+            ((IMessageReportListener) application).reportReceived(
+                    report.getMessageID(),
+                    report.getStatus() != null ? report.getStatus().getCode() : 0,
+                    report.getByteRange());
+        }
+    }
 }
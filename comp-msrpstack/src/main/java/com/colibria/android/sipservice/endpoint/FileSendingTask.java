@@ -0,0 +1,172 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint;
+
+import com.colibria.android.sipservice.endpoint.api.ISendingListener;
+import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.FileRegion;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.logging.Logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the sending of a file on behalf of the application. Each time the outbound queue has room for more,
+ * the next chunk piece is created, carrying a region of the file of getChunkPieceSize() bytes. The content of
+ * the regions is transferred by the connection straight from the file.
+ * <p/>
+ * The queue usage reported along with the readyForMore() callbacks may be outdated by the time the piece is
+ * created, e.g. when no responses are awaited and the notifications arrive back to back. It is therefore
+ * checked again right before a region is queued; if the queue filled up meanwhile, the next notification
+ * (which comes as soon as the queue drains) resumes sending.
+ * <p/>
+ * The callbacks of ISendingListener are called while MessageSender holds its lock, so they only schedule the
+ * actual work on the thread farm.
+ *
+ * @author Sebastian Dehne
+ */
+class FileSendingTask implements ISendingListener {
+    private static final String TAG = "FileSendingTask";
+
+    private final EndPointSessionImpl parent;
+    private final FileChannel file;
+    private final boolean closeWhenDone;
+    private final long end;
+    private final AtomicInteger regionsInFlight;
+    private final Runnable sendMore;
+    private final Runnable regionWritten;
+
+    private SendingMessageState messageState;
+    private long position; // guarded by 'this'
+    private volatile boolean abortRequested;
+    private volatile boolean finished;
+
+    /**
+     * @param parent        the session to send the file in
+     * @param file          the file, which is sent from its current position up to its size
+     * @param closeWhenDone whether the file should be closed once it has been sent
+     * @throws IOException if the position or the size of the file could not be read
+     */
+    FileSendingTask(EndPointSessionImpl parent, FileChannel file, boolean closeWhenDone) throws IOException {
+        this.parent = parent;
+        this.file = file;
+        this.closeWhenDone = closeWhenDone;
+        this.position = file.position();
+        this.end = file.size();
+        this.regionsInFlight = new AtomicInteger(0);
+        this.sendMore = new Runnable() {
+            public void run() {
+                sendNextChunkPiece();
+            }
+        };
+        this.regionWritten = new Runnable() {
+            public void run() {
+                if (regionsInFlight.decrementAndGet() == 0) {
+                    closeIfDone();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes of the file which are to be sent
+     */
+    synchronized long getSize() {
+        return end - position;
+    }
+
+    /**
+     * Starts sending, must be called once the message state has been registered with the MessageSender
+     *
+     * @param messageState the state of the message this file is sent in
+     */
+    void start(SendingMessageState messageState) {
+        this.messageState = messageState;
+        parent.getMsrpResources().getThreadFarm().execute(sendMore);
+    }
+
+    public void readyForMore(String msgID) {
+        if (!finished) {
+            parent.getMsrpResources().getThreadFarm().execute(sendMore);
+        }
+    }
+
+    public void abortSendingMsg(String msgID) {
+        abortRequested = true;
+        parent.getMsrpResources().getThreadFarm().execute(sendMore);
+    }
+
+    /**
+     * Called when the session has terminated. Pieces which were not written yet never will be, so the file
+     * can be closed right away.
+     */
+    void terminate() {
+        finished = true;
+        regionsInFlight.set(0);
+        closeIfDone();
+    }
+
+    private synchronized void sendNextChunkPiece() {
+        if (finished) {
+            return;
+        }
+
+        MsrpSendRequest nextChunkPiece;
+        if (abortRequested) {
+            nextChunkPiece = messageState.getNextChunkPiece((FileRegion) null, true, false);
+        } else if (position < end) {
+            if (parent.getOutboundQueueUsage() >= MessageSender.READY_FOR_MORE_THRESHOLD) {
+                return;
+            }
+            int length = (int) Math.min(parent.getChunkPieceSize(), end - position);
+            regionsInFlight.incrementAndGet();
+            nextChunkPiece = messageState.getNextChunkPiece(new FileRegion(file, position, length, regionWritten), false, false);
+            position += length;
+        } else {
+            nextChunkPiece = messageState.getNextChunkPiece((FileRegion) null, false, true);
+        }
+
+        if (nextChunkPiece.getContinuation() != Continuation.more) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "This is the last chunk (piece) for msgID=" + messageState.getMsgID());
+            }
+            finished = true;
+            parent.getMessageSender().sendingFinished(messageState.getMsgID());
+        }
+
+        // send chunk piece, the pieces of one file have to be handed over in order
+        parent.send(nextChunkPiece, messageState.getPriority());
+
+        if (finished) {
+            closeIfDone();
+        }
+    }
+
+    private void closeIfDone() {
+        if (closeWhenDone && finished && regionsInFlight.get() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Logger.i(TAG, "Could not close file", e);
+            }
+        }
+    }
+}
@@ -22,25 +22,90 @@ import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
 import com.colibria.android.sipservice.endpoint.messagebuffer.ReceivedMessageMetaData;
 import com.colibria.android.sipservice.headers.*;
+import com.colibria.android.sipservice.logging.Logger;
 import com.colibria.android.sipservice.sip.Address;
 import com.colibria.android.sipservice.endpoint.messagebuffer.MessageReassembler;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 
 /**
+ * Creates the collector for each new incoming message, unless the message exceeds the limits of the session:
+ * the max-size and accept-types the local end announced in SDP, and optionally a max-size per MIME type.
+ * Those limits are checked on the first chunk of a message, before anything is buffered. A message which is
+ * compressed with a Content-Encoding which isn't supported is rejected as well.
+ *
  * @author Sebastian Dehne
  */
 public class MessageCollectorFactory {
+    private static final String TAG = "MessageCollectorFactory";
+
+    private static final String CONTENT_ENCODING = "Content-Encoding";
 
     private final EndPointSessionImpl parent;
 
+    // replaced as a whole when changed
+    private volatile long maxMessageSize = -1;
+    private volatile Map<MimeType, Long> maxMessageSizes = Collections.emptyMap();
+    private volatile List<MimeType> acceptedContentTypes = null;
+
     public MessageCollectorFactory(EndPointSessionImpl parent) {
         this.parent = parent;
     }
 
+    void setMaxMessageSize(long maxSize) {
+        this.maxMessageSize = maxSize;
+    }
+
+    synchronized void setMaxMessageSize(MimeType contentType, long maxSize) {
+        Map<MimeType, Long> tmp = new LinkedHashMap<MimeType, Long>(maxMessageSizes);
+        if (maxSize < 0) {
+            tmp.remove(contentType);
+        } else {
+            tmp.put(contentType, maxSize);
+        }
+        maxMessageSizes = Collections.unmodifiableMap(tmp);
+    }
+
+    void setAcceptedContentTypes(List<MimeType> contentTypes) {
+        this.acceptedContentTypes = contentTypes == null ? null : Collections.unmodifiableList(new ArrayList<MimeType>(contentTypes));
+    }
+
+    /**
+     * Checks the first request of a new incoming message against the limits of this session
+     *
+     * @param request the request which would start a new message
+     * @return null if a collector may be created, otherwise the response to reject the message with
+     */
+    MsrpResponse.ResponseCode checkLimits(MsrpSendRequest request) {
+        MimeType contentType = getContentType(request);
+
+        List<MimeType> accepted = acceptedContentTypes;
+        if (accepted != null && contentType != null && !isAccepted(accepted, contentType)) {
+            Logger.i(TAG, "Rejecting msgID=" + request.getMessageID() + ", content-type " + contentType + " is not accepted");
+            return MsrpResponse.RESPONSE_415;
+        }
+
+        String contentEncoding = getContentEncoding(request);
+        if (contentEncoding != null && !ContentEncoder.isSupported(contentEncoding)) {
+            Logger.i(TAG, "Rejecting msgID=" + request.getMessageID() + ", content-encoding " + contentEncoding + " is not supported");
+            return MsrpResponse.RESPONSE_415;
+        }
+
+        long maxSize = getMaxMessageSize(contentType);
+        ByteRange byteRange = request.getByteRange();
+        if (maxSize >= 0 && byteRange != null && byteRange.getTotal() > maxSize) {
+            Logger.i(TAG, "Rejecting msgID=" + request.getMessageID() + ", " + byteRange.getTotal() + " bytes exceed the max-size of " + maxSize);
+            return MsrpResponse.RESPONSE_413;
+        }
+        return null;
+    }
+
     MessageReassembler create(MsrpSendRequest request) {
 
         Address originator;
@@ -56,15 +121,7 @@ public class MessageCollectorFactory {
                 destinations.add(((CPIMToHeader) h).getAsAddress());
             }
 
-        MimeType contentType = null;
-        if ((tmp = request.getCPIMHeader(MimeContentTypeHeader.NAME)) != null) {
-            for (ICPIMHeader h : tmp) {
-                contentType = ((MimeContentTypeHeader) h).getMimeType();
-            }
-        }
-        if (contentType == null) {
-            contentType = request.getContentType();
-        }
+        MimeType contentType = getContentType(request);
 
         ContentDispositionHeader contentDispositionHeader = null;
         if ((tmp = request.getCPIMHeader(ContentDispositionHeader.NAME)) != null)
@@ -85,9 +142,80 @@ public class MessageCollectorFactory {
                 request.getByteRange().getTotal()
         );
 
+        String contentEncoding = getContentEncoding(request);
+        if (contentEncoding != null) {
+            parent.remoteUsesContentEncoding(contentEncoding);
+        }
+
         IMessageContentStore store = parent.getApplication().getNewMessageCollector(receviedMessageMetaData);
 
-        return new MessageReassembler(parent, receviedMessageMetaData, store);
+        return new MessageReassembler(parent, receviedMessageMetaData, store, getMaxMessageSize(contentType), contentEncoding);
+
+    }
+
+    /*
+     * The content-type of the cpim body if wrapped, otherwise the one of the msrp request
+     */
+    private static MimeType getContentType(MsrpSendRequest request) {
+        MimeType contentType = null;
+        List<ICPIMHeader> tmp;
+        if ((tmp = request.getCPIMHeader(MimeContentTypeHeader.NAME)) != null) {
+            for (ICPIMHeader h : tmp) {
+                contentType = ((MimeContentTypeHeader) h).getMimeType();
+            }
+        }
+        if (contentType == null) {
+            contentType = request.getContentType();
+        }
+        return contentType;
+    }
+
+    /*
+     * The Content-Encoding of the cpim body, null if the content is not encoded
+     */
+    static String getContentEncoding(MsrpSendRequest request) {
+        Map<String, List<ICPIMHeader>> headers = request.getCPIMHeaders();
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<ICPIMHeader>> e : headers.entrySet()) {
+            if (CONTENT_ENCODING.equalsIgnoreCase(e.getKey())) {
+                for (ICPIMHeader h : e.getValue()) {
+                    if (h instanceof CPIMExtentionHeader && ((CPIMExtentionHeader) h).isInMimeSection()) {
+                        String value = ((CPIMExtentionHeader) h).getValue().trim().toLowerCase();
+                        return value.length() == 0 || value.equals("identity") ? null : value;
+                    }
+                }
+            }
+        }
+        return null;
+    }
 
+    private static boolean isAccepted(List<MimeType> accepted, MimeType contentType) {
+        for (MimeType m : accepted) {
+            int match = m.match(contentType);
+            if (match == MimeType.MATCH_TYPE || match >= MimeType.MATCH_SUBTYPE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The limit of the most specific MIME type which matches, otherwise the one of the session
+     */
+    private long getMaxMessageSize(MimeType contentType) {
+        long maxSize = maxMessageSize;
+        if (contentType != null) {
+            int bestMatch = MimeType.NO_MATCH;
+            for (Map.Entry<MimeType, Long> e : maxMessageSizes.entrySet()) {
+                int match = e.getKey().match(contentType);
+                if ((match == MimeType.MATCH_TYPE || match >= MimeType.MATCH_SUBTYPE) && match > bestMatch) {
+                    bestMatch = match;
+                    maxSize = e.getValue();
+                }
+            }
+        }
+        return maxSize;
     }
 }
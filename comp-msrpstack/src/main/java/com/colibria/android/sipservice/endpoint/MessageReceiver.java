@@ -20,12 +20,17 @@ package com.colibria.android.sipservice.endpoint;
 
 import com.colibria.android.sipservice.IMsrpApplication;
 import com.colibria.android.sipservice.endpoint.messagebuffer.MessageReassembler;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
 import com.colibria.android.sipservice.logging.Logger;
 import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.tx.IOutboundFSMListener;
 import com.colibria.android.sipservice.tx.Participant;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -38,7 +43,12 @@ import java.util.concurrent.ConcurrentHashMap;
 public class MessageReceiver implements IMsrpApplication {
     private static final String TAG = "MessageReceiver";
 
+    private static final int MAX_REJECTED_MESSAGES = 16;
+
+    private static final Counter MESSAGES_REJECTED = Metrics.counter(Metrics.MSRP_MESSAGES_REJECTED);
+
     private final ConcurrentHashMap<String, MessageReassembler> collectors;
+    private final Map<String, MsrpResponse.ResponseCode> rejectedMessages; // guarded by itself
     private final EndPointSessionImpl parent;
     private final MessageCollectorFactory collectorFactory;
 
@@ -46,6 +56,18 @@ public class MessageReceiver implements IMsrpApplication {
         this.parent = parent;
         collectors = new ConcurrentHashMap<String, MessageReassembler>();
         collectorFactory = new MessageCollectorFactory(parent);
+
+        // chunks of a rejected message which were already underway get the same response
+        rejectedMessages = new LinkedHashMap<String, MsrpResponse.ResponseCode>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MsrpResponse.ResponseCode> eldest) {
+                return size() > MAX_REJECTED_MESSAGES;
+            }
+        };
+    }
+
+    MessageCollectorFactory getCollectorFactory() {
+        return collectorFactory;
     }
 
     public MsrpResponse.ResponseCode requestReceived(Participant participant, MsrpSendRequest request) {
@@ -56,6 +78,19 @@ public class MessageReceiver implements IMsrpApplication {
             }
             return messageCollector.handleNextRequest(request);
         } else {
+            MsrpResponse.ResponseCode rejection;
+            synchronized (rejectedMessages) {
+                if ((rejection = rejectedMessages.get(request.getMessageID())) == null
+                        && (rejection = collectorFactory.checkLimits(request)) != null) {
+                    rejectedMessages.put(request.getMessageID(), rejection);
+                    MESSAGES_REJECTED.inc();
+                }
+            }
+            if (rejection != null) {
+                request.releaseBody();
+                return rejection;
+            }
+
             messageCollector = collectorFactory.create(request);
             if ((existingCollector = collectors.putIfAbsent(request.getMessageID(), messageCollector)) != null) {
                 messageCollector = existingCollector;
@@ -77,12 +112,22 @@ public class MessageReceiver implements IMsrpApplication {
         }
     }
 
+    public void reportReceived(Participant participant, MsrpReportRequest report) {
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Report received for msgID=" + report.getMessageID() + ": " + report.getStatus());
+        }
+        parent.reportReceived(report);
+    }
+
     public void participantActivated(Participant participant) {
         parent.getApplication().connected();
     }
 
     public void participantTerminated(Participant participant) {
         parent.getMessageSender().terminate();
+        for (MessageReassembler collector : collectors.values()) {
+            collector.terminated();
+        }
         collectors.clear();
         parent.getApplication().terminated();
     }
@@ -20,14 +20,21 @@ package com.colibria.android.sipservice.endpoint;
 
 import com.colibria.android.sipservice.endpoint.api.ISendingListener;
 import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.FailureReportHeader;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.SharedContent;
+import com.colibria.android.sipservice.headers.SuccessReportHeader;
+import com.colibria.android.sipservice.io.config.Configurator;
 import com.colibria.android.sipservice.logging.Logger;
 import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.headers.ContentDispositionHeader;
 import com.colibria.android.sipservice.sip.Address;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -42,6 +49,8 @@ public class MessageSender {
     private final EndPointSessionImpl parent;
     private final ReentrantLock sendingLock; // guards the message states and ensures that only one thread can transmit data at a time
     private final HashMap<String, SendingMessageState> queuedMessages; // guarded by 'sendingLock'
+    private final ConcurrentLinkedQueue<Runnable> pendingChunkPieces; // in the order the application passed the content in
+    private final Runnable sendPendingChunkPieces;
 
     /**
      * This field is updated (producer) by the msrp layer (OutboundFSM)
@@ -51,10 +60,27 @@ public class MessageSender {
      */
     private volatile boolean outputQueueReady;
 
+    /**
+     * More chunk pieces are handed to the msrp layer only while the outbound queue is used below this fraction
+     */
+    static final float READY_FOR_MORE_THRESHOLD = 0.5f;
+
     public MessageSender(EndPointSessionImpl parent) {
         sendingLock = new ReentrantLock();
         this.parent = parent;
         this.queuedMessages = new HashMap<String, SendingMessageState>();
+        this.pendingChunkPieces = new ConcurrentLinkedQueue<Runnable>();
+        this.sendPendingChunkPieces = new Runnable() {
+            public void run() {
+                // the tasks may run concurrently on the thread farm, but the pieces must be created and sent in order
+                synchronized (pendingChunkPieces) {
+                    Runnable next;
+                    while ((next = pendingChunkPieces.poll()) != null) {
+                        next.run();
+                    }
+                }
+            }
+        };
 
         outputQueueReady = true;
     }
@@ -84,7 +110,7 @@ public class MessageSender {
 
     }
 
-    public String sendNewMessage(String msgId, final byte[] content, final boolean abortSending, final boolean lastChunk, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, long msgSize, ISendingListener sendingListener) {
+    public String sendNewMessage(String msgId, final byte[] content, final boolean abortSending, final boolean lastChunk, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, long msgSize, ISendingListener sendingListener, int priority) {
         final SendingMessageState sendingMessageState;
         sendingLock.lock();
         try {
@@ -95,7 +121,8 @@ public class MessageSender {
                         contentType,
                         contentDispositionHeader,
                         receipients,
-                        sendingListener);
+                        sendingListener,
+                        priority);
                 queuedMessages.put(sendingMessageState.getMsgID(), sendingMessageState);
             } else {
                 sendingMessageState = queuedMessages.get(msgId);
@@ -111,7 +138,7 @@ public class MessageSender {
 
 
         // try to send it in background
-        parent.getMsrpResources().getThreadFarm().execute(new Runnable() {
+        pendingChunkPieces.offer(new Runnable() {
             public void run() {
                 MsrpSendRequest nextChunkPiece = sendingMessageState.getNextChunkPiece(content, abortSending, lastChunk);
 
@@ -128,13 +155,145 @@ public class MessageSender {
                 }
 
                 // send chunk piece
-                parent.send(nextChunkPiece);
+                parent.send(nextChunkPiece, sendingMessageState.getPriority());
             }
         });
+        parent.getMsrpResources().getThreadFarm().execute(sendPendingChunkPieces);
+
+        return sendingMessageState.getMsgID();
+    }
+
+    /**
+     * Sends the file from its current position up to its size as a new message. The chunk pieces are created by
+     * the stack whenever the outbound queue has room for more, see FileSendingTask.
+     *
+     * @param file                     the file to be sent
+     * @param closeWhenDone            whether the file should be closed once it has been sent
+     * @param contentType              the content-type of the message
+     * @param contentDispositionHeader the Content-Disposition header to be sent
+     * @param receipients              list of recipients
+     * @param priority                 the priority of this message
+     * @return the messageID which was generated by the endpoint
+     * @throws IOException if the position or the size of the file could not be read
+     */
+    public String sendFile(FileChannel file, boolean closeWhenDone, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, int priority) throws IOException {
+        return sendFile(null, 0, file, closeWhenDone, contentType, contentDispositionHeader, receipients, priority);
+    }
+
+    /**
+     * Continues sending a file of which an earlier attempt was interrupted, starting at contentOffset. The message
+     * keeps its Message-ID and Byte-Range positions, see SendingMessageState.
+     *
+     * @param msgId                    the Message-ID of the interrupted message
+     * @param contentOffset            where in the file to continue
+     * @param file                     the file to be sent
+     * @param closeWhenDone            whether the file should be closed once it has been sent
+     * @param contentType              the content-type of the message, as in the original message
+     * @param contentDispositionHeader the Content-Disposition header, as in the original message
+     * @param receipients              list of recipients, as in the original message
+     * @param priority                 the priority of this message
+     * @return the messageID
+     * @throws IOException if the position or the size of the file could not be read or set
+     */
+    public String resumeFile(String msgId, long contentOffset, FileChannel file, boolean closeWhenDone, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, int priority) throws IOException {
+        if (msgId == null) {
+            throw new IllegalArgumentException("msgId must be set");
+        }
+        if (contentOffset < 0 || contentOffset > file.size()) {
+            throw new IllegalArgumentException("invalid offset " + contentOffset);
+        }
+        file.position(contentOffset);
+        return sendFile(msgId, contentOffset, file, closeWhenDone, contentType, contentDispositionHeader, receipients, priority);
+    }
+
+    private String sendFile(String msgId, long contentOffset, FileChannel file, boolean closeWhenDone, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, int priority) throws IOException {
+        FileSendingTask task = new FileSendingTask(parent, file, closeWhenDone);
+        SendingMessageState sendingMessageState = new SendingMessageState(
+                parent,
+                msgId,
+                contentOffset,
+                contentOffset + task.getSize(),
+                contentType,
+                contentDispositionHeader,
+                receipients,
+                task,
+                priority);
+        sendingMessageState.setReportHeaders(
+                Configurator.isFileTransferSuccessReport() ? SuccessReportHeader.YES : null,
+                Configurator.getFileTransferFailureReport() != FailureReportHeader.Value.yes ? new FailureReportHeader(Configurator.getFileTransferFailureReport()) : null);
+        sendingLock.lock();
+        try {
+            if (queuedMessages.containsKey(sendingMessageState.getMsgID())) {
+                throw new IllegalArgumentException("message " + sendingMessageState.getMsgID() + " is still being sent");
+            }
+            queuedMessages.put(sendingMessageState.getMsgID(), sendingMessageState);
+        } finally {
+            sendingLock.unlock();
+        }
 
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Scheduling new file to be sent. MsgID=" + sendingMessageState.getMsgID() + ", size=" + task.getSize() + (contentOffset > 0 ? ", resuming at " + contentOffset : ""));
+        }
+
+        task.start(sendingMessageState);
+        return sendingMessageState.getMsgID();
+    }
+
+    /**
+     * Sends content which is shared with other sessions as a new message. The content already starts with the
+     * cpim header block; the chunk pieces are created by the stack whenever the outbound queue has room for more,
+     * see SharedContentSendingTask.
+     *
+     * @param msgId                    the Message-ID of the message
+     * @param content                  the cpim header block followed by the content
+     * @param contentType              the content-type of the message
+     * @param contentDispositionHeader the Content-Disposition header of the message
+     * @param receipients              list of recipients
+     * @param priority                 the priority of this message
+     * @return the messageID
+     */
+    String sendSharedContent(String msgId, SharedContent content, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, int priority) {
+        SharedContentSendingTask task = new SharedContentSendingTask(parent, content);
+        SendingMessageState sendingMessageState = new SendingMessageState(
+                parent,
+                msgId,
+                0,
+                content.getLength(),
+                contentType,
+                contentDispositionHeader,
+                receipients,
+                task,
+                priority);
+        sendingMessageState.setCpimHeaderBlockIncluded();
+        sendingLock.lock();
+        try {
+            queuedMessages.put(sendingMessageState.getMsgID(), sendingMessageState);
+        } finally {
+            sendingLock.unlock();
+        }
+
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Scheduling shared content to be sent. MsgID=" + sendingMessageState.getMsgID() + ", size=" + content.getLength());
+        }
+
+        task.start(sendingMessageState);
         return sendingMessageState.getMsgID();
     }
 
+    /**
+     * Called once the last chunk piece of a message has been created
+     *
+     * @param msgID the msgID of the message
+     */
+    void sendingFinished(String msgID) {
+        sendingLock.lock();
+        try {
+            queuedMessages.remove(msgID);
+        } finally {
+            sendingLock.unlock();
+        }
+    }
+
     /**
      * Called by the msrp layer (OutboudFSM)
      *
@@ -142,7 +301,7 @@ public class MessageSender {
      */
     public void writeCapacityAvailable(float bufferCapacityInUse) {
 
-        if (bufferCapacityInUse < 0.5) {
+        if (bufferCapacityInUse < READY_FOR_MORE_THRESHOLD) {
             if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                 Logger.d(TAG, "Outbound queue capacity is less than 50% (" + bufferCapacityInUse + "), allowing sending of more chunks");
             }
@@ -181,6 +340,13 @@ public class MessageSender {
                 sendingLock.lock();
                 try {
                     outputQueueReady = false;
+                    for (SendingMessageState msgState : queuedMessages.values()) {
+                        if (msgState.getSendingListener() instanceof FileSendingTask) {
+                            ((FileSendingTask) msgState.getSendingListener()).terminate();
+                        } else if (msgState.getSendingListener() instanceof SharedContentSendingTask) {
+                            ((SharedContentSendingTask) msgState.getSendingListener()).terminate();
+                        }
+                    }
                     queuedMessages.clear();
                 } finally {
                     sendingLock.unlock();
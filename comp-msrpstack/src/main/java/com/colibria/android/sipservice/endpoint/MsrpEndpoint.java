@@ -19,15 +19,27 @@
 package com.colibria.android.sipservice.endpoint;
 
 import com.colibria.android.sipservice.IMsrpResources;
+import com.colibria.android.sipservice.ITcpAcceptListener;
+import com.colibria.android.sipservice.ITcpConnectionListener;
+import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.RandomUtil;
+import com.colibria.android.sipservice.TcpConnection;
 import com.colibria.android.sipservice.TcpController;
 import com.colibria.android.sipservice.endpoint.api.IMsrpEndpointApplication;
 import com.colibria.android.sipservice.sip.Address;
 import com.colibria.android.sipservice.tx.Participant;
 import com.colibria.android.sipservice.endpoint.api.IEndPointSession;
+import com.colibria.android.sipservice.headers.ContentDispositionHeader;
 import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.headers.SharedContent;
+import com.colibria.android.sipservice.io.ChannelState;
+import com.colibria.android.sipservice.io.config.Configurator;
 import com.colibria.android.sipservice.tx.Participants;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 
 
@@ -40,6 +52,14 @@ public class MsrpEndpoint implements IMsrpResources {
     private final ScheduledExecutorService threadFarm;
     private final TcpController controller;
 
+    /*
+     * The host and port put into the local msrpURIs. Until listen() was called, nobody can connect
+     * to these anyway, they only identify the local end in outgoing connections.
+     */
+    private volatile String uriHost = "127.0.0.1";
+    private volatile int uriPort = 2855;
+    private volatile InetSocketAddress listeningAddress;
+
     public MsrpEndpoint(TcpController controller, ScheduledExecutorService threadFarm) {
         this.controller = controller;
         this.threadFarm = threadFarm;
@@ -50,7 +70,41 @@ public class MsrpEndpoint implements IMsrpResources {
     }
 
     public MsrpURI generateMsrpURI(boolean secure, String domain) {
-        return new MsrpURI(secure, null, "127.0.0.1", 2855, getNextId(), TRANSPORT_TCP, null);
+        return new MsrpURI(secure, null, uriHost, uriPort, getNextId(), TRANSPORT_TCP, null);
+    }
+
+    /**
+     * Starts accepting direct connections from remote ends, such that endpoint sessions can use
+     * IEndPointSession.acceptIncomingConnection() instead of connecting out through a relay. The msrpURIs of
+     * participants added afterwards carry the given host and the port bound to.
+     *
+     * @param bindAddress    the local address to listen on, the port may be 0 to have one picked
+     * @param advertisedHost the host to put into the msrpURIs, null to use the address bound to
+     * @throws IOException if the address could not be bound to
+     */
+    public void listen(InetSocketAddress bindAddress, String advertisedHost) throws IOException {
+        if (advertisedHost == null && bindAddress.getAddress().isAnyLocalAddress()) {
+            throw new IllegalArgumentException("advertisedHost is required when binding to the wildcard address");
+        }
+        InetSocketAddress bound = controller.listen(bindAddress, Configurator.getMaxAcceptsPerSecond(), new ITcpAcceptListener() {
+            public ITcpConnectionListener connectionAccepted(TcpConnection connection) {
+                return ChannelState.createForAcceptedConnection(MsrpEndpoint.this, connection);
+            }
+        });
+        listeningAddress = bound;
+        uriHost = advertisedHost != null ? advertisedHost : bound.getAddress().getHostAddress();
+        uriPort = bound.getPort();
+    }
+
+    /**
+     * Stops accepting direct connections, connections already accepted stay open
+     */
+    public void stopListening() {
+        InetSocketAddress bound = listeningAddress;
+        if (bound != null) {
+            listeningAddress = null;
+            controller.stopListening(bound);
+        }
     }
 
     public TcpController getController() {
@@ -75,6 +129,63 @@ public class MsrpEndpoint implements IMsrpResources {
         return endPointSession;
     }
 
+    /**
+     * Sends the same message in several endpoint sessions, e.g. a group chat message to all members of the chat.
+     * The cpim header block and the content are put into one buffer once, which all sessions share: each session
+     * only marshalls the head and the end-line of its own chunk pieces and the connection writes the part of the
+     * shared buffer right after them. The cost of sending therefore grows with the number of sessions, but not
+     * with the size of the content times the number of sessions.
+     * <p/>
+     * As with IEndPointSession.sendFile(), the stack creates the chunk pieces itself whenever the outbound queue of
+     * a session has room for more, so the content may be larger than Configurator.getMaxChunkPieceSize(). The cpim
+     * From header is that of the first session, all sessions are expected to belong to the same participant. The
+     * sessions should be connected (see IMsrpEndpointApplication.connected()).
+     *
+     * @param sessions                 the sessions to send the message in, created by this endpoint
+     * @param content                  the content of the message, which is copied once
+     * @param contentType              the content-type of the message
+     * @param recipients               list of recipients
+     * @param contentDispositionHeader the Content-Disposition header to be sent, or null
+     * @param priority                 the priority of this message in each session
+     * @param whenWritten              executed once the message has been written in all sessions (or the sessions
+     *                                 terminated before), may be null
+     * @return the messageID, which is the same in all sessions
+     */
+    public String sendMessageToAll(List<IEndPointSession> sessions,
+                                   byte[] content,
+                                   MimeType contentType,
+                                   List<Address> recipients,
+                                   ContentDispositionHeader contentDispositionHeader,
+                                   int priority,
+                                   Runnable whenWritten) {
+        if (sessions.isEmpty()) {
+            throw new IllegalArgumentException("no sessions");
+        }
+        for (IEndPointSession session : sessions) {
+            if (!(session instanceof EndPointSessionImpl)) {
+                throw new IllegalArgumentException("session " + session + " was not created by this endpoint");
+            }
+        }
+
+        Address from = ((EndPointSessionImpl) sessions.get(0)).getAddress();
+        byte[] cpimBlock = SendingMessageState.createCpimHeaderBlock(from, recipients, contentType, null, contentDispositionHeader).toString().getBytes();
+        ByteBuffer bb = ByteBuffer.allocate(cpimBlock.length + content.length);
+        bb.put(cpimBlock);
+        bb.put(content);
+        bb.flip();
+
+        SharedContent shared = new SharedContent(bb, whenWritten);
+        String msgId = getNextId();
+        try {
+            for (IEndPointSession session : sessions) {
+                ((EndPointSessionImpl) session).sendSharedContent(msgId, shared, contentType, recipients, contentDispositionHeader, priority);
+            }
+        } finally {
+            shared.release(); // each session holds references of its own now
+        }
+        return msgId;
+    }
+
     public void closeAllConnections() {
         Participants.getInstance().clear();
     }
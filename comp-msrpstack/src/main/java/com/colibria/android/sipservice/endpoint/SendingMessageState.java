@@ -20,6 +20,7 @@ package com.colibria.android.sipservice.endpoint;
 
 import com.colibria.android.sipservice.endpoint.api.ISendingListener;
 import com.colibria.android.sipservice.headers.*;
+import com.colibria.android.sipservice.io.IReferenceCounted;
 import com.colibria.android.sipservice.sip.Address;
 import com.colibria.android.sipservice.MimeType;
 
@@ -38,11 +39,15 @@ public class SendingMessageState {
     private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
         @Override
         protected ByteBuffer initialValue() {
-            return ByteBuffer.allocate(1024 * 8); // needs to fit at least SEND_AT_A_TIME plus cpim headers
+            return ByteBuffer.allocate(1024 * 8);
         }
     };
 
     private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE; // according to the msrp-rfc, we should send as many bytes as possible in one chunk (as long as we can be interruptible)
+    /**
+     * @deprecated the content size now adapts to the connection, see IEndPointSession.getChunkPieceSize()
+     */
+    @Deprecated
     public static final int SEND_AT_A_TIME = 1024 * 2;
 
     public enum State {
@@ -59,6 +64,7 @@ public class SendingMessageState {
     private final ContentDispositionHeader contentDispositionHeader;
     private final List<Address> receipients;
     private final ISendingListener sendingListener;
+    private final int priority;
 
     private long msgSize;
     private State state;
@@ -66,20 +72,55 @@ public class SendingMessageState {
     private long bytesSentCurrentChunk;
     private long currentByteRangeStart;
     private String currentTxID;
+    private boolean cpimSent;
+    private SuccessReportHeader successReportHeader;
+    private FailureReportHeader failureReportHeader;
+    private ContentEncoder encoder;
 
-    public SendingMessageState(EndPointSessionImpl context, long msgSize, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, ISendingListener sendingListener) {
+    public SendingMessageState(EndPointSessionImpl context, long msgSize, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, ISendingListener sendingListener, int priority) {
+        this(context, null, 0, msgSize, contentType, contentDispositionHeader, receipients, sendingListener, priority);
+    }
+
+    /**
+     * Creates the state of a message which resumes an earlier, interrupted attempt to send the same content. The
+     * message keeps the Message-ID and the Byte-Range positions of the original message, the cpim header block is
+     * not sent again since the receiver already has it.
+     *
+     * @param context                  the session
+     * @param msgID                    the Message-ID of the original message, null to start a new message
+     * @param contentOffset            where in the content to continue, 0 to start a new message
+     * @param msgSize                  the size of the content (including the part before contentOffset), -1 if unknown
+     * @param contentType              the content-type, must be the same as in the original message
+     * @param contentDispositionHeader the Content-Disposition header, must be the same as in the original message
+     * @param receipients              the recipients, must be the same as in the original message
+     * @param sendingListener          the call-back listener
+     * @param priority                 the priority
+     */
+    public SendingMessageState(EndPointSessionImpl context, String msgID, long contentOffset, long msgSize, MimeType contentType, ContentDispositionHeader contentDispositionHeader, List<Address> receipients, ISendingListener sendingListener, int priority) {
         this.context = context;
         this.msgSize = msgSize;
         this.contentType = contentType;
         this.contentDispositionHeader = contentDispositionHeader;
         this.receipients = receipients;
         this.sendingListener = sendingListener;
-        this.msgID = context.getMsrpResources().getNextId();
+        this.priority = priority;
+        this.msgID = msgID != null ? msgID : context.getMsrpResources().getNextId();
 
         currentByteRangeStart = 1;
         state = State.init;
-        bytesSent = 0;
         bytesSentCurrentChunk = 0;
+
+        if (contentOffset > 0) {
+            // the positions are those of the original message, which started with the cpim block
+            int cpimLength = getCpimHeaderBlock().toString().getBytes().length;
+            bytesSent = cpimLength + contentOffset;
+            if (this.msgSize >= 0)
+                this.msgSize += cpimLength;
+            cpimSent = true;
+        } else {
+            bytesSent = 0;
+            cpimSent = false;
+        }
     }
 
 
@@ -91,11 +132,114 @@ public class SendingMessageState {
         return sendingListener;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the report headers which all chunks of this message carry, null to leave the header out
+     * (which means 'yes' for Failure-Report and 'no' for Success-Report). Must be set before the first chunk piece is created.
+     *
+     * @param successReportHeader the Success-Report header, or null
+     * @param failureReportHeader the Failure-Report header, or null
+     */
+    void setReportHeaders(SuccessReportHeader successReportHeader, FailureReportHeader failureReportHeader) {
+        this.successReportHeader = successReportHeader;
+        this.failureReportHeader = failureReportHeader;
+    }
+
+    /**
+     * Tells this message that its content already starts with the cpim header block, as is the case for content
+     * shared among several sessions (see createCpimHeaderBlock()). Must be called before the first chunk piece
+     * is created.
+     */
+    void setCpimHeaderBlockIncluded() {
+        cpimSent = true;
+    }
+
+    /**
+     * Creates the next chunk piece of this message. If the session uses a Content-Encoding, the content is
+     * compressed on its way, see ContentEncoder; the message then has no known size.
+     *
+     * @param content      the content of this piece, null at the end of the content
+     * @param abortSending whether sending of this message should be aborted
+     * @param lastChunk    whether this is the last piece
+     * @return the next chunk piece
+     */
     public MsrpSendRequest getNextChunkPiece(byte[] content, boolean abortSending, boolean lastChunk) {
+        State oldState = state;
+        long beforeBytesSent = bytesSent;
+        if (!cpimSent && !abortSending) {
+            encoder = ContentEncoder.create(context.getContentEncoding(), contentType, msgSize, content, lastChunk);
+            if (encoder != null) {
+                msgSize = -1; // the size of the encoded content isn't known up-front
+            }
+        }
+        if (encoder != null) {
+            if (abortSending) {
+                encoder.end();
+            } else {
+                lastChunk = encoder.isLast(content, lastChunk);
+                content = encoder.encode(content, lastChunk);
+            }
+        }
+        byte[] body = getMoreContent(content, 0, abortSending, lastChunk); // updates "state"
+        if (encoder != null && (abortSending || lastChunk)) {
+            encoder = null;
+        }
+        return createChunkPiece(oldState, beforeBytesSent, ByteBuffer.wrap(body), null, null);
+    }
 
+    /**
+     * Same as getNextChunkPiece() above, but the content is a region of a file which the connection transfers
+     * straight from the file. A piece carrying a file region never completes the message; the message is completed
+     * by a piece created without a region and with lastChunk set, which is an empty tail (or a complete request
+     * without content in case nothing was sent before).
+     *
+     * @param fileRegion   the content of this piece, or null
+     * @param abortSending whether sending of this message should be aborted
+     * @param lastChunk    whether this is the last piece, only taken into account if fileRegion is null
+     * @return the next chunk piece
+     */
+    public MsrpSendRequest getNextChunkPiece(FileRegion fileRegion, boolean abortSending, boolean lastChunk) {
         State oldState = state;
         long beforeBytesSent = bytesSent;
-        byte[] body = getMoreContent(content, abortSending, lastChunk); // updates "state"
+        byte[] body;
+        if (fileRegion != null && !abortSending) {
+            body = getMoreContent(new byte[0], fileRegion.getLength(), false, false);
+        } else {
+            body = getMoreContent(null, 0, abortSending, lastChunk);
+            fileRegion = null;
+        }
+        return createChunkPiece(oldState, beforeBytesSent, ByteBuffer.wrap(body), null, fileRegion);
+    }
+
+    /**
+     * Same as getNextChunkPiece() above, but the content is a slice of content which is shared with other
+     * sessions. The body of the piece is a read-only view of the slice which holds a reference on the content
+     * until the piece has been written. Like a piece carrying a file region, a piece carrying a slice never
+     * completes the message.
+     *
+     * @param content      the shared content, or null
+     * @param offset       the position of the slice within the content
+     * @param length       the number of bytes of the slice, greater than 0
+     * @param abortSending whether sending of this message should be aborted
+     * @param lastChunk    whether this is the last piece, only taken into account if content is null
+     * @return the next chunk piece
+     */
+    public MsrpSendRequest getNextChunkPiece(SharedContent content, int offset, int length, boolean abortSending, boolean lastChunk) {
+        State oldState = state;
+        long beforeBytesSent = bytesSent;
+        if (content != null && !abortSending) {
+            getMoreContent(new byte[0], length, false, false);
+            return createChunkPiece(oldState, beforeBytesSent, content.retainSlice(offset, length), content, null);
+        } else {
+            byte[] body = getMoreContent(null, 0, abortSending, lastChunk);
+            return createChunkPiece(oldState, beforeBytesSent, ByteBuffer.wrap(body), null, null);
+        }
+    }
+
+    private MsrpSendRequest createChunkPiece(State oldState, long beforeBytesSent, ByteBuffer body, IReferenceCounted bodyOwner, FileRegion fileRegion) {
         final MsrpSendRequest.ChunkType type;
 
         if (oldState == State.sending) {
@@ -146,24 +290,40 @@ public class SendingMessageState {
                 continuation,
                 MimeType.MESSAGE_CPIM,
                 null,
-                new MsrpPath(context.getRemoteMsrpURI()),
-                new MsrpPath(context.getLocalMsrpURI()),
-                null,
-                null,
+                context.getRemotePath(),
+                context.getLocalPath(),
+                successReportHeader,
+                failureReportHeader,
                 null,
                 null,
                 body,
-                body.length, // this is not accurant since the headers are not included, but it will do for managing the output queue capacity 
+                bodyOwner,
+                fileRegion,
+                body.limit() + (fileRegion != null ? fileRegion.getLength() : 0), // this is not accurant since the headers are not included, but it will do for managing the output queue capacity
                 0
         );
     }
 
     private StringBuffer getCpimHeaderBlock() {
+        return createCpimHeaderBlock(context.getAddress(), receipients, contentType, encoder != null ? encoder.getName() : null, contentDispositionHeader);
+    }
+
+    /**
+     * Creates the cpim header block which precedes the content of a message
+     *
+     * @param from                     the address of the sender
+     * @param receipients              the recipients
+     * @param contentType              the content-type of the content
+     * @param contentEncoding          the Content-Encoding of the content, or null
+     * @param contentDispositionHeader the Content-Disposition header, or null
+     * @return the header block, including the empty line which separates it from the content
+     */
+    static StringBuffer createCpimHeaderBlock(Address from, List<Address> receipients, MimeType contentType, String contentEncoding, ContentDispositionHeader contentDispositionHeader) {
 
         StringBuffer sb = new StringBuffer();
 
         // from-header
-        CPIMFromHeader fh = new CPIMFromHeader(context.getAddress());
+        CPIMFromHeader fh = new CPIMFromHeader(from);
         sb.append(CPIMFromHeader.NAME).append(": ").append(fh.getValue()).append("\r\n");
 
         // to headers
@@ -177,6 +337,9 @@ public class SendingMessageState {
 
         MimeContentTypeHeader mimeContentTypeHeader = new MimeContentTypeHeader(contentType);
         sb.append("Content-Type").append(": ").append(mimeContentTypeHeader.getValue()).append("\r\n");
+        if (contentEncoding != null) {
+            sb.append("Content-Encoding").append(": ").append(contentEncoding).append("\r\n");
+        }
         if (contentDispositionHeader != null) {
             sb.append(contentDispositionHeader.getName()).append(": ").append(contentDispositionHeader.getValue()).append("\r\n");
         }
@@ -185,7 +348,10 @@ public class SendingMessageState {
         return sb;
     }
 
-    private byte[] getMoreContent(byte[] content, boolean abortSending, boolean lastChunk) {
+    /**
+     * @param regionLength the number of bytes which follow the body on the wire (a file region or a slice of shared content)
+     */
+    private byte[] getMoreContent(byte[] content, int regionLength, boolean abortSending, boolean lastChunk) {
 
         if (abortSending) {
             state = State.abort;
@@ -199,10 +365,11 @@ public class SendingMessageState {
         * But since this request is only sent and not parsed again, we don't care about this
         */
         final byte[] cpimBytes;
-        if (state == State.init) {
+        if (!cpimSent) {
             StringBuffer cpimBlock = getCpimHeaderBlock();
             String cpimBlockStr = cpimBlock.toString();
             cpimBytes = cpimBlockStr.getBytes();
+            cpimSent = true;
         } else {
             cpimBytes = new byte[0];
         }
@@ -212,6 +379,11 @@ public class SendingMessageState {
 
         // get a buffer we can use prepare a buffer
         ByteBuffer bb = buffer.get();
+        int needed = cpimBytes.length + (content == null ? 0 : content.length);
+        if (bb.capacity() < needed) {
+            bb = ByteBuffer.allocate(needed);
+            buffer.set(bb);
+        }
         bb.clear();
 
         // write the cpim block into it if required
@@ -230,11 +402,16 @@ public class SendingMessageState {
         /*
         * Writing done, update state
         */
-        bytesSent += bb.limit();
-        bytesSentCurrentChunk += bb.limit();
+        bytesSent += bb.limit() + regionLength;
+        bytesSentCurrentChunk += bb.limit() + regionLength;
+
+        // a region can only be sent in a head or body_only piece, so the message continues in any case
+        if (regionLength > 0) {
+            state = State.sending;
+        }
 
         // stream ended; end of msg detected
-        if (eos || lastChunk || (msgSize >= 0 && bytesSent >= msgSize)) {
+        else if (eos || lastChunk || (msgSize >= 0 && bytesSent >= msgSize)) {
             state = State.done;
             bytesSentCurrentChunk = 0;
         }
@@ -0,0 +1,134 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint;
+
+import com.colibria.android.sipservice.endpoint.api.ISendingListener;
+import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.SharedContent;
+import com.colibria.android.sipservice.logging.Logger;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives the sending of content which is shared with other sessions, see MsrpEndpoint.sendMessageToAll(). Works
+ * like FileSendingTask: each time the outbound queue has room for more, the next chunk piece is created, its body
+ * being the next getChunkPieceSize() bytes of the shared content. Only the head and the end-line of the pieces
+ * are marshalled per session, the connection writes the slice right after them.
+ * <p/>
+ * The task holds a reference on the content until the last piece has been created or the session terminated.
+ *
+ * @author Sebastian Dehne
+ */
+class SharedContentSendingTask implements ISendingListener {
+    private static final String TAG = "SharedContentSendingTask";
+
+    private final EndPointSessionImpl parent;
+    private final SharedContent content;
+    private final AtomicBoolean contentReleased;
+    private final Runnable sendMore;
+
+    private SendingMessageState messageState;
+    private int position; // guarded by 'this'
+    private volatile boolean abortRequested;
+    private volatile boolean finished;
+
+    /**
+     * @param parent  the session to send the content in
+     * @param content the content, which already starts with the cpim header block. A reference is added on it
+     */
+    SharedContentSendingTask(EndPointSessionImpl parent, SharedContent content) {
+        this.parent = parent;
+        this.content = content;
+        this.contentReleased = new AtomicBoolean(false);
+        this.sendMore = new Runnable() {
+            public void run() {
+                sendNextChunkPiece();
+            }
+        };
+        content.retain();
+    }
+
+    /**
+     * Starts sending, must be called once the message state has been registered with the MessageSender
+     *
+     * @param messageState the state of the message the content is sent in
+     */
+    void start(SendingMessageState messageState) {
+        this.messageState = messageState;
+        parent.getMsrpResources().getThreadFarm().execute(sendMore);
+    }
+
+    public void readyForMore(String msgID) {
+        if (!finished) {
+            parent.getMsrpResources().getThreadFarm().execute(sendMore);
+        }
+    }
+
+    public void abortSendingMsg(String msgID) {
+        abortRequested = true;
+        parent.getMsrpResources().getThreadFarm().execute(sendMore);
+    }
+
+    /**
+     * Called when the session has terminated, no more pieces are created
+     */
+    void terminate() {
+        finished = true;
+        releaseContent();
+    }
+
+    private synchronized void sendNextChunkPiece() {
+        if (finished) {
+            return;
+        }
+
+        MsrpSendRequest nextChunkPiece;
+        if (abortRequested) {
+            nextChunkPiece = messageState.getNextChunkPiece((SharedContent) null, 0, 0, true, false);
+        } else if (position < content.getLength()) {
+            if (parent.getOutboundQueueUsage() >= MessageSender.READY_FOR_MORE_THRESHOLD) {
+                return;
+            }
+            int length = Math.min(parent.getChunkPieceSize(), content.getLength() - position);
+            nextChunkPiece = messageState.getNextChunkPiece(content, position, length, false, false);
+            position += length;
+        } else {
+            nextChunkPiece = messageState.getNextChunkPiece((SharedContent) null, 0, 0, false, true);
+        }
+
+        if (nextChunkPiece.getContinuation() != Continuation.more) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "This is the last chunk (piece) for msgID=" + messageState.getMsgID());
+            }
+            finished = true;
+            releaseContent(); // the pieces created so far hold references of their own
+            parent.getMessageSender().sendingFinished(messageState.getMsgID());
+        }
+
+        // send chunk piece, the pieces of one message have to be handed over in order
+        parent.send(nextChunkPiece, messageState.getPriority());
+    }
+
+    private void releaseContent() {
+        if (contentReleased.compareAndSet(false, true)) {
+            content.release();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message store which takes the received content as buffer. The content is typically a read-only slice
+ * of the buffer the bytes were read into from the network, so stores implementing this interface save
+ * the copy the byte[] variant of store() requires.
+ * <p/>
+ * Stores which only implement IMessageContentStore keep working, they are handed a copy of the content.
+ *
+ * @author Sebastian Dehne
+ */
+public interface IByteBufferContentStore extends IMessageContentStore {
+
+    /**
+     * Stores the received content somewhere
+     *
+     * @param start   where in the complete msg this piece of data should be stored to.
+     *                Should were left off when set to -1
+     * @param content the data between its position and limit. The buffer is only valid during this call,
+     *                its content must be consumed (or copied) before returning
+     * @return the number of bytes which were recevied at this interation
+     */
+    public long store(long start, ByteBuffer content);
+
+}
@@ -24,6 +24,9 @@ import com.colibria.android.sipservice.headers.ContentDispositionHeader;
 import com.colibria.android.sipservice.headers.MsrpURI;
 import com.colibria.android.sipservice.sip.Address;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 
@@ -37,6 +40,14 @@ import java.util.List;
  */
 public interface IEndPointSession {
 
+    /*
+     * Priority hints for sendNewMessage(). The priority is the share of the outbound bandwidth a message
+     * gets while other messages are being sent in the same session; responses and reports always go first.
+     */
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 4;
+    public static final int PRIORITY_HIGH = 16;
+
     /**
      * Gets the local msrpURI assosiated to this endpoint session
      *
@@ -52,13 +63,81 @@ public interface IEndPointSession {
      */
     public void establishOutgoingConnection(MsrpRemoteAddress remoteAddress);
 
+    /**
+     * Lets the remote end connect to this endpoint session directly, e.g. when the SDP answer says a=setup:passive.
+     * The endpoint must be listening (see MsrpEndpoint.listen()); the session binds itself to the connection on
+     * which the first request for its local msrpURI arrives from the given remote URI.
+     *
+     * @param remoteURI the msrpURI of the remote end as offered in the SDP, or null to accept any
+     */
+    public void acceptIncomingConnection(MsrpURI remoteURI);
+
+    /**
+     * Sets the largest message the remote end may send in this session, as announced with a=max-size in the local
+     * SDP. A message which is announced to be larger is answered with 413 on its first chunk, before any of its
+     * content is stored; one of unknown size is aborted with 413 once it grows beyond the limit.
+     *
+     * @param maxSize the size in bytes of the msrp body including a cpim header block, -1 for no limit (the default)
+     */
+    public void setMaxMessageSize(long maxSize);
+
+    /**
+     * Sets the largest message of a certain content-type the remote end may send in this session. This takes
+     * precedence over setMaxMessageSize(long); the most specific matching type applies, so e.g. a limit for
+     * image/png wins over one for image/*.
+     *
+     * @param contentType the content-type, wildcards like "image/*" are allowed
+     * @param maxSize     the size in bytes, -1 to remove the limit for this content-type
+     */
+    public void setMaxMessageSize(MimeType contentType, long maxSize);
+
+    /**
+     * Sets the content-types which are accepted in this session, as announced with a=accept-types (and
+     * a=accept-wrapped-types for cpim wrapped content) in the local SDP. A message of another content-type is
+     * answered with 415 on its first chunk, before any of its content is stored. For cpim wrapped messages, the
+     * content-type of the wrapped content is checked.
+     *
+     * @param contentTypes the accepted content-types, wildcards like "*" or "text/*" are allowed; null to accept any
+     *                     (the default)
+     */
+    public void setAcceptedContentTypes(List<MimeType> contentTypes);
+
+    /**
+     * Sets the Content-Encoding with which the content of messages sent in this session is compressed, e.g. when
+     * the remote end listed "deflate" or "gzip" as content-encoding in its SDP. Only textual content of at least
+     * Configurator.getCompressionThreshold() bytes is compressed, and only content which is passed as byte[];
+     * files and shared content are sent as they are. Received messages are decoded regardless of this setting.
+     * <p/>
+     * Unless set explicitly, the session adopts the content-encoding the remote end uses for the first encoded
+     * message it sends.
+     *
+     * @param contentEncoding "deflate" or "gzip", null to send the content as is (the default)
+     * @throws IllegalArgumentException if the content-encoding is not supported
+     */
+    public void setContentEncoding(String contentEncoding);
+
+    /**
+     * @return the Content-Encoding with which content is compressed, null if not compressed
+     */
+    public String getContentEncoding();
+
+    /**
+     * Returns how many bytes of content the application should pass into sendNewMessage() per call.
+     * The value adapts to how fast the connection drains and may change between calls; it is never larger than
+     * Configurator.getMaxChunkPieceSize(), which is the most sendNewMessage() accepts.
+     *
+     * @return the preferred content size in bytes
+     */
+    public int getChunkPieceSize();
+
     /**
      * Sends either a new message or continues on a ongoing message by sending more data. The caller should ensure
      * that this is a connected endpoint session. See IMsrpEndpointApplication.connected().
      *
      * @param msgId                    the msgId of the ongoing msgs for which to transmit more data for. Set this to null
      *                                 in case a new message is being sent.
-     * @param content                  The data which is to be sent for this integration
+     * @param content                  The data which is to be sent for this integration, at most
+     *                                 Configurator.getMaxChunkPieceSize() bytes (see getChunkPieceSize())
      * @param abortSending             whether the stack should abort sending this message
      * @param lastChunk                tells the msrp-stack that this is the last chunk for this message
      * @param contentType              the content-type of the message
@@ -79,6 +158,105 @@ public interface IEndPointSession {
             long msgSize,
             ISendingListener sendingListener);
 
+    /**
+     * Same as sendNewMessage() above, with a priority hint for this message.
+     * The priority is only taken into account when a new message is started (msgId is null).
+     *
+     * @param msgId                    the msgId of the ongoing msgs for which to transmit more data for. Set this to null
+     *                                 in case a new message is being sent.
+     * @param content                  The data which is to be sent for this integration
+     * @param abortSending             whether the stack should abort sending this message
+     * @param lastChunk                tells the msrp-stack that this is the last chunk for this message
+     * @param contentType              the content-type of the message
+     * @param recipients              list of recipients
+     * @param contentDispositionHeader the Content-Disposition header to be sent
+     * @param msgSize                  the message size. Should be -1 if unknown
+     * @param sendingListener          the call-back listener which should be notified about the sending process
+     * @param priority                 the priority of this message, e.g. PRIORITY_HIGH for short chat messages
+     * @return the messageID which was generated by the endpoint
+     */
+    public String sendNewMessage(
+            String msgId,
+            byte[] content,
+            boolean abortSending,
+            boolean lastChunk,
+            MimeType contentType,
+            List<Address> recipients,
+            ContentDispositionHeader contentDispositionHeader,
+            long msgSize,
+            ISendingListener sendingListener,
+            int priority);
+
+    /**
+     * Sends the content of a file as a new message. Unlike with sendNewMessage(), the stack drives the transfer
+     * itself: whenever the outbound queue has room for more, it creates the next chunk piece of getChunkPieceSize()
+     * bytes and the connection transfers the content of that piece straight from the file
+     * (FileChannel.transferTo()), so the content never passes through the heap. The file is closed once it has been
+     * sent or once sending it was aborted.
+     *
+     * @param file                     the file to be sent
+     * @param contentType              the content-type of the message
+     * @param recipients               list of recipients
+     * @param contentDispositionHeader the Content-Disposition header to be sent
+     * @param priority                 the priority of this message, e.g. PRIORITY_LOW for bulk transfers
+     * @return the messageID which was generated by the endpoint
+     * @throws IOException if the file could not be opened
+     */
+    public String sendFile(
+            File file,
+            MimeType contentType,
+            List<Address> recipients,
+            ContentDispositionHeader contentDispositionHeader,
+            int priority) throws IOException;
+
+    /**
+     * Same as sendFile() above, for a file which was opened by the application. The file is sent from its current
+     * position up to its size and is not closed by the stack; it must stay open until the last chunk piece has
+     * been written, which is the case once the final response for the message has been received.
+     *
+     * @param file                     the file to be sent
+     * @param contentType              the content-type of the message
+     * @param recipients               list of recipients
+     * @param contentDispositionHeader the Content-Disposition header to be sent
+     * @param priority                 the priority of this message, e.g. PRIORITY_LOW for bulk transfers
+     * @return the messageID which was generated by the endpoint
+     * @throws IOException if the position or the size of the file could not be read
+     */
+    public String sendFile(
+            FileChannel file,
+            MimeType contentType,
+            List<Address> recipients,
+            ContentDispositionHeader contentDispositionHeader,
+            int priority) throws IOException;
+
+    /**
+     * Resumes sending a file of which an earlier attempt was interrupted, e.g. because the session went down.
+     * This is meant for file transfers where the receiver asked to continue at a certain position, for instance
+     * with the file-range attribute of rfc5547. The message keeps the Message-ID and the Byte-Range positions of
+     * the original message and starts right at the given offset, so the receiver can add the remaining content
+     * to what it has kept (see ResumableMessageCollector). The cpim header block is not sent again, which is why
+     * the content-type, the recipients and the Content-Disposition header must be the same as in the original
+     * message.
+     *
+     * @param msgId                    the Message-ID of the interrupted message
+     * @param file                     the file to be sent
+     * @param offset                   the number of bytes of the file the receiver already has
+     * @param contentType              the content-type of the original message
+     * @param recipients               list of recipients of the original message
+     * @param contentDispositionHeader the Content-Disposition header of the original message
+     * @param priority                 the priority of this message, e.g. PRIORITY_LOW for bulk transfers
+     * @return the messageID, which is msgId
+     * @throws IOException if the file could not be opened
+     */
+    public String resumeFile(
+            String msgId,
+            File file,
+            long offset,
+            MimeType contentType,
+            List<Address> recipients,
+            ContentDispositionHeader contentDispositionHeader,
+            int priority) throws IOException;
+
     /**
      * Instructs the endPoint Session to send an "abort response" 413 for a certain incoming message in order to
      * ask the originator to cancel it
@@ -0,0 +1,43 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.api;
+
+import com.colibria.android.sipservice.headers.ByteRange;
+
+/**
+ * An optional interface which the endpoint application may implement in addition to IMsrpEndpointApplication,
+ * in order to learn about the REPORTs the remote side sends for messages of this session.
+ * <p/>
+ * The remote side sends a REPORT with status 200 once a message sent with Success-Report: yes was received
+ * completely (see Configurator.setFileTransferSuccessReport()). When the chunks of a file are sent with
+ * Failure-Report: no, this is the only confirmation of the transfer.
+ *
+ * @author Sebastian Dehne
+ */
+public interface IMessageReportListener {
+
+    /**
+     * A REPORT was received for a message which was sent in this session
+     *
+     * @param msgID      the Message-ID of the message which the report is about
+     * @param statusCode the status code of the report, 200 if the message was received
+     * @param byteRange  the part of the message which the report is about, may be null
+     */
+    public void reportReceived(String msgID, int statusCode, ByteRange byteRange);
+}
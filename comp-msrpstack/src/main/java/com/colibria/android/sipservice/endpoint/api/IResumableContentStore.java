@@ -0,0 +1,58 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.api;
+
+import com.colibria.android.sipservice.headers.ByteRange;
+
+import java.util.List;
+
+/**
+ * A message store which keeps the content of a message which was not received completely, so that the transfer
+ * can be resumed later on, typically in a new session (see IEndPointSession.resumeFile()).
+ * <p/>
+ * When a message is resumed, the sender continues with the same Message-ID and the Byte-Range positions of the
+ * original message, but doesn't repeat the cpim header block. The stack therefore asks the store how many bytes
+ * preceded the content when the message was received the first time and which parts of the content it already has.
+ *
+ * @author Sebastian Dehne
+ */
+public interface IResumableContentStore extends IByteBufferContentStore {
+
+    /**
+     * Returns the number of bytes which preceded the content in the msrp body, which is the size of the cpim
+     * header block
+     *
+     * @return the number of bytes, or -1 if the beginning of the message has not been received yet
+     */
+    public long getHeaderLength();
+
+    /**
+     * Called by the stack when the beginning of the message is received
+     *
+     * @param headerLength the number of bytes which precede the content in the msrp body
+     */
+    public void setHeaderLength(long headerLength);
+
+    /**
+     * Returns the parts of the content which are stored already
+     *
+     * @return the ranges, relative to the content (not including the cpim header block), in order
+     */
+    public List<ByteRange> getStoredRanges();
+}
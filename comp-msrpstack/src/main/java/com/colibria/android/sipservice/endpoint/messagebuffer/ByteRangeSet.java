@@ -0,0 +1,155 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.headers.ByteRange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The set of byte ranges of a message which have been received so far. Overlapping and adjacent ranges are
+ * merged as they are added, so the set holds one entry per contiguous block and adding a range costs
+ * O(log n) plus the removal of the blocks it joins.
+ * <p/>
+ * Internally, positions are zero based and ranges are half-open. The public methods speak ByteRange, which
+ * (like the Byte-Range header) is one based and inclusive.
+ * <p/>
+ * Only the SortedMap methods of the TreeMap are used, the NavigableMap ones need Android API level 9.
+ * <p/>
+ * This class is thread-safe.
+ *
+ * @author Sebastian Dehne
+ */
+public class ByteRangeSet {
+
+    private final TreeMap<Long, Long> ranges; // start -> end (exclusive), guarded by 'this'
+    private long receivedBytes; // guarded by 'this'
+
+    public ByteRangeSet() {
+        ranges = new TreeMap<Long, Long>();
+        receivedBytes = 0;
+    }
+
+    /**
+     * Adds the range [start, end)
+     *
+     * @param start the zero based position of the first byte
+     * @param end   the position after the last byte
+     * @return the number of bytes which were not part of the set before
+     */
+    synchronized long add(long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        long added = end - start;
+        long newStart = start;
+        long newEnd = end;
+
+        // joins the block before, if that one overlaps or touches
+        SortedMap<Long, Long> before = ranges.headMap(start + 1);
+        if (!before.isEmpty()) {
+            Long key = before.lastKey();
+            long value = ranges.get(key);
+            if (value >= start) {
+                added -= Math.max(0, Math.min(value, end) - start);
+                newStart = key;
+                newEnd = Math.max(newEnd, value);
+                ranges.remove(key);
+            }
+        }
+
+        // and all blocks which start within the range or right after it
+        SortedMap<Long, Long> after;
+        while (!(after = ranges.tailMap(start)).isEmpty() && after.firstKey() <= newEnd) {
+            Long key = after.firstKey();
+            long value = ranges.remove(key);
+            added -= Math.max(0, Math.min(value, end) - key);
+            newEnd = Math.max(newEnd, value);
+        }
+
+        ranges.put(newStart, newEnd);
+        receivedBytes += added;
+        return added;
+    }
+
+    synchronized void clear() {
+        ranges.clear();
+        receivedBytes = 0;
+    }
+
+    /**
+     * @return the number of distinct bytes received
+     */
+    public synchronized long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * @param total the size of the message
+     * @return true if all bytes from 1 to total have been received
+     */
+    public synchronized boolean isComplete(long total) {
+        if (total == 0) {
+            return true;
+        }
+        return !ranges.isEmpty() && ranges.firstKey() == 0 && ranges.get(ranges.firstKey()) >= total;
+    }
+
+    /**
+     * @param total the size of the message, -1 if unknown
+     * @return the received blocks, in order
+     */
+    public synchronized List<ByteRange> getReceivedRanges(long total) {
+        List<ByteRange> list = new ArrayList<ByteRange>(ranges.size());
+        for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+            list.add(ByteRange.create(e.getKey() + 1, e.getValue(), total));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the gaps, which are the ranges that would have to be requested again in order to complete
+     * the message.
+     *
+     * @param total the size of the message, -1 if unknown in which case only the gaps between received blocks are known
+     * @return the missing ranges, in order
+     */
+    public synchronized List<ByteRange> getMissingRanges(long total) {
+        List<ByteRange> list = new ArrayList<ByteRange>();
+        long position = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet()) {
+            if (e.getKey() > position) {
+                list.add(ByteRange.create(position + 1, e.getKey(), total));
+            }
+            position = e.getValue();
+        }
+        if (total > position) {
+            list.add(ByteRange.create(position + 1, total, total));
+        }
+        return list;
+    }
+
+    public synchronized String toString() {
+        return "ByteRangeSet: " + getReceivedRanges(-1);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.endpoint.ContentEncoder;
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * Decompresses the content of an incoming message which carries a Content-Encoding within cpim, piece by piece
+ * as the chunks arrive, and hands the decoded content to the message's store. Since the content can only be
+ * decoded in order, the pieces must be fed in the order in which they were sent.
+ * <p/>
+ * The decoded content is limited to the max-size of the message, so that a small message can't expand into
+ * more than the application is willing to take.
+ * <p/>
+ * This class is not thread-safe, it is guarded by the MessageReassembler it belongs to.
+ *
+ * @author Sebastian Dehne
+ */
+class ContentDecoder {
+
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private final IMessageContentStore store;
+    private final long maxSize;
+    private final boolean gzip;
+    private final CRC32 crc; // only for gzip
+    private final byte[] out;
+
+    private Inflater inflater;
+    private byte[] pending; // header or trailer bytes which are not complete yet
+    private int pendingLength;
+    private long decodedSize;
+    private boolean complete;
+
+    private ContentDecoder(IMessageContentStore store, boolean gzip, long maxSize) {
+        this.store = store;
+        this.gzip = gzip;
+        this.maxSize = maxSize;
+        this.crc = gzip ? new CRC32() : null;
+        this.out = new byte[1024 * 8];
+        this.pending = new byte[64];
+    }
+
+    /**
+     * @param encoding the content-encoding of the message, see ContentEncoder.isSupported()
+     * @param store    where the decoded content is stored
+     * @param maxSize  the max-size of the decoded content, -1 for no limit
+     * @return the decoder, or null if the encoding is not supported
+     */
+    static ContentDecoder create(String encoding, IMessageContentStore store, long maxSize) {
+        if (ContentEncoder.DEFLATE.equals(encoding)) {
+            return new ContentDecoder(store, false, maxSize);
+        } else if (ContentEncoder.GZIP.equals(encoding)) {
+            return new ContentDecoder(store, true, maxSize);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the next piece of the encoded content and stores what could be decoded
+     *
+     * @param content the data
+     * @param offSet  where in the data the encoded content starts
+     * @param len     how many bytes of the data should be read
+     * @return the number of decoded bytes which were stored
+     * @throws IOException if the content is corrupt or decodes into more than the max-size
+     */
+    long decode(byte[] content, int offSet, int len) throws IOException {
+        long before = decodedSize;
+        int end = offSet + len;
+        while (offSet < end && !complete) {
+            if (inflater == null) {
+                // collect the header, it tells which kind of deflate stream follows
+                offSet += fillPending(content, offSet, end, 64 * 1024);
+                int headerLength = gzip ? gzipHeaderLength() : (pendingLength < 2 ? -1 : 0);
+                if (headerLength >= 0) {
+                    byte[] rest = startInflater(headerLength);
+                    decode(rest, 0, rest.length);
+                }
+            } else if (!inflater.finished()) {
+                inflater.setInput(content, offSet, end - offSet);
+                offSet = end;
+                inflate();
+                if (inflater.finished()) {
+                    offSet -= inflater.getRemaining();
+                }
+            } else {
+                // the gzip trailer
+                offSet += fillPending(content, offSet, end, GZIP_TRAILER_LENGTH);
+                if (pendingLength == GZIP_TRAILER_LENGTH) {
+                    checkTrailer();
+                }
+            }
+        }
+        if (offSet < end) {
+            throw new ZipException((end - offSet) + " bytes after the end of the encoded content");
+        }
+        return decodedSize - before;
+    }
+
+    /**
+     * @return true once the whole encoded content has been decoded
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    long getDecodedSize() {
+        return decodedSize;
+    }
+
+    /**
+     * Releases the decompressor, must be called when the message ends, completely received or not
+     */
+    void end() {
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /*
+     * Creates the decompressor once the header is complete, returns the collected bytes which follow the header
+     */
+    private byte[] startInflater(int headerLength) {
+        if (gzip) {
+            inflater = new Inflater(true);
+        } else {
+            /*
+             * A zlib stream (RFC 1950) is what deflate means, but some implementations send a raw deflate stream
+             * instead. A zlib header is recognized by its check bits.
+             */
+            int cmf = pending[0] & 0xff, flg = pending[1] & 0xff;
+            boolean zlib = (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            inflater = new Inflater(!zlib);
+        }
+        byte[] rest = new byte[pendingLength - headerLength];
+        System.arraycopy(pending, headerLength, rest, 0, rest.length);
+        pending = new byte[GZIP_TRAILER_LENGTH];
+        pendingLength = 0;
+        return rest;
+    }
+
+    private void inflate() throws IOException {
+        try {
+            int n;
+            while ((n = inflater.inflate(out)) > 0 || (!inflater.finished() && !inflater.needsInput())) {
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("preset dictionaries are not supported");
+                }
+                if (n == 0) {
+                    continue;
+                }
+                if (maxSize >= 0 && decodedSize + n > maxSize) {
+                    throw new ZipException("decoded content grows beyond the max-size of " + maxSize);
+                }
+                if (crc != null) {
+                    crc.update(out, 0, n);
+                }
+                store.store(decodedSize, out, 0, n);
+                decodedSize += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        if (inflater.finished() && !gzip) {
+            complete = true;
+        }
+    }
+
+    private int fillPending(byte[] content, int offSet, int end, int max) throws IOException {
+        int n = Math.min(end - offSet, max - pendingLength);
+        if (n <= 0) {
+            throw new ZipException("header too large");
+        }
+        if (pendingLength + n > pending.length) {
+            byte[] b = new byte[Math.max(pending.length * 2, pendingLength + n)];
+            System.arraycopy(pending, 0, b, 0, pendingLength);
+            pending = b;
+        }
+        System.arraycopy(content, offSet, pending, pendingLength, n);
+        pendingLength += n;
+        return n;
+    }
+
+    /*
+     * The length of the gzip header (RFC 1952) which has been collected in pending, or -1 if not complete yet
+     */
+    private int gzipHeaderLength() throws IOException {
+        if (pendingLength < GZIP_HEADER_LENGTH) {
+            return -1;
+        }
+        if ((pending[0] & 0xff) != 0x1f || (pending[1] & 0xff) != 0x8b || pending[2] != 8) {
+            throw new ZipException("not in gzip format");
+        }
+        int flags = pending[3] & 0xff;
+        int pos = GZIP_HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            if (pendingLength < pos + 2) {
+                return -1;
+            }
+            pos += 2 + ((pending[pos] & 0xff) | ((pending[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(pos);
+        }
+        if ((flags & FCOMMENT) != 0 && pos >= 0) {
+            pos = skipZeroTerminated(pos);
+        }
+        if ((flags & FHCRC) != 0 && pos >= 0) {
+            pos += 2;
+        }
+        return pos < 0 || pos > pendingLength ? -1 : pos;
+    }
+
+    private int skipZeroTerminated(int pos) {
+        for (int i = pos; i < pendingLength; i++) {
+            if (pending[i] == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void checkTrailer() throws IOException {
+        long crcValue = readIntLE(0);
+        long size = readIntLE(4);
+        if (crcValue != crc.getValue()) {
+            throw new ZipException("corrupt gzip trailer, crc mismatch");
+        }
+        if (size != (decodedSize & 0xffffffffL)) {
+            throw new ZipException("corrupt gzip trailer, size mismatch");
+        }
+        complete = true;
+    }
+
+    private long readIntLE(int pos) {
+        return (pending[pos] & 0xffL)
+                | ((pending[pos + 1] & 0xffL) << 8)
+                | ((pending[pos + 2] & 0xffL) << 16)
+                | ((pending[pos + 3] & 0xffL) << 24);
+    }
+}
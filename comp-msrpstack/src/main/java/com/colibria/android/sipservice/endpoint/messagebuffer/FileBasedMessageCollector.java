@@ -19,17 +19,18 @@
 package com.colibria.android.sipservice.endpoint.messagebuffer;
 
 import com.colibria.android.sipservice.logging.Logger;
-import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 
 /**
  * @author Sebastian Dehne
  */
-public class FileBasedMessageCollector implements IMessageContentStore {
+public class FileBasedMessageCollector implements IByteBufferContentStore {
     private static final String TAG = "FileBasedMessageCollector";
 
     private static final String TMP_FILE_PREFIX = "msrpendpoint-";
@@ -101,6 +102,33 @@ public class FileBasedMessageCollector implements IMessageContentStore {
         return len;
     }
 
+    public long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        if (isReady()) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "start=" + start + ", len=" + len);
+            }
+            try {
+                if (start >= 0)
+                    randomAccessFile.seek(start);
+                while (content.hasRemaining()) {
+                    randomAccessFile.getChannel().write(content);
+                }
+                bytesReceived += len;
+            } catch (IOException e) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "Could not write recevied content to file", e);
+                }
+                errorOccured = true;
+            }
+        } else {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "not ready");
+            }
+        }
+        return len;
+    }
+
     public long getBytesReceivedSoFar() {
         return bytesReceived;
     }
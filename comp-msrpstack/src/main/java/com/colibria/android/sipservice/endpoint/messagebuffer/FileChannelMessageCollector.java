@@ -0,0 +1,240 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
+import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Stores the received content into a file, meant for large file transfers.
+ * <p/>
+ * The file is opened right away and, if the size of the message is known, preallocated to that size.
+ * Since that size includes the cpim header block, which isn't stored, the file is cut back to the end of
+ * the stored content once receiving has finished; this also applies to transfers which ended early.
+ * Content is written with positional FileChannel writes, small chunk pieces are first collected in a
+ * buffer and written together once it is full or the next piece doesn't continue where the previous
+ * one ended.
+ * <p/>
+ * In memory mapped mode, which requires a known size, the file is mapped as a whole and the content
+ * is put into the mapping instead. Content outside of the announced size is written through the channel.
+ * The mapping itself is only released once it has been garbage collected.
+ *
+ * @author Sebastian Dehne
+ */
+public class FileChannelMessageCollector implements IByteBufferContentStore {
+    private static final String TAG = "FileChannelMessageCollector";
+
+    private static final int COALESCE_BUFFER_SIZE = 1024 * 64;
+    private static final int COALESCE_MAX_PIECE = COALESCE_BUFFER_SIZE / 4; // larger pieces are written as they are
+
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+
+    private final Object attachment;
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private ByteBuffer pending;
+    private long pendingPosition;
+    private long nextPosition;
+    private long endPosition; // the end of the highest stored content
+
+    private volatile boolean errorOccured = false;
+    private volatile boolean wasAborted = false;
+    private volatile long bytesReceived;
+
+    /**
+     * @param file         the file to store the content into
+     * @param expectedSize the size of the message, as in ReceivedMessageMetaData.getExpectedMsgSize(), or
+     *                     a value smaller than 1 if not known
+     * @param attachment   any object the application wants to keep with this collector
+     */
+    public FileChannelMessageCollector(File file, long expectedSize, Object attachment) {
+        this(file, expectedSize, false, attachment);
+    }
+
+    /**
+     * @param file         the file to store the content into
+     * @param expectedSize the size of the message, as in ReceivedMessageMetaData.getExpectedMsgSize(), or
+     *                     a value smaller than 1 if not known
+     * @param memoryMapped whether to map the file into memory. Ignored if the size is not known or
+     *                     too large to be mapped as a whole
+     * @param attachment   any object the application wants to keep with this collector
+     */
+    public FileChannelMessageCollector(File file, long expectedSize, boolean memoryMapped, Object attachment) {
+        this.attachment = attachment;
+        this.file = file;
+        bytesReceived = 0;
+        nextPosition = 0;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            if (expectedSize > 0) {
+                randomAccessFile.setLength(expectedSize);
+            }
+            if (memoryMapped && expectedSize > 0 && expectedSize <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, expectedSize);
+            }
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not open file and therfore won't be able to store the content:", e);
+            }
+            errorOccured = true;
+            close();
+        }
+    }
+
+    public void receivingFinished(boolean wasAborted) {
+        this.wasAborted = wasAborted;
+        if (channel != null) {
+            try {
+                flush();
+                channel.truncate(endPosition);
+            } catch (IOException e) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "Could not write recevied content to file", e);
+                }
+                errorOccured = true;
+            }
+            close();
+        }
+    }
+
+    public long store(long start, byte[] content, int offSet, int len) {
+        return store(start, ByteBuffer.wrap(content, offSet, len));
+    }
+
+    public long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        if (errorOccured || channel == null) {
+            return len;
+        }
+
+        final long position = start >= 0 ? start : nextPosition;
+        try {
+            if (mapped != null && position + len <= mapped.capacity()) {
+                mapped.position((int) position);
+                mapped.put(content);
+                BODY_BYTES_COPIED.add(len);
+            } else {
+                write(position, content);
+            }
+            nextPosition = position + len;
+            endPosition = Math.max(endPosition, nextPosition);
+            bytesReceived += len;
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not write recevied content to file", e);
+            }
+            errorOccured = true;
+        }
+        return len;
+    }
+
+    private void write(long position, ByteBuffer content) throws IOException {
+        // the pending bytes can only be extended if this content continues where they end
+        if (pending != null && pending.position() > 0 && pendingPosition + pending.position() != position) {
+            flush();
+        }
+
+        if (content.remaining() > COALESCE_MAX_PIECE) {
+            flush();
+            writeFully(position, content);
+            return;
+        }
+
+        if (pending == null) {
+            pending = ByteBuffer.allocateDirect(COALESCE_BUFFER_SIZE);
+        }
+        if (content.remaining() > pending.remaining()) {
+            flush();
+        }
+        if (pending.position() == 0) {
+            pendingPosition = position;
+        }
+        BODY_BYTES_COPIED.add(content.remaining());
+        pending.put(content);
+    }
+
+    private void flush() throws IOException {
+        if (pending != null && pending.position() > 0) {
+            pending.flip();
+            writeFully(pendingPosition, pending);
+            pending.clear();
+        }
+    }
+
+    private void writeFully(long position, ByteBuffer content) throws IOException {
+        while (content.hasRemaining()) {
+            position += channel.write(content, position);
+        }
+    }
+
+    private void close() {
+        mapped = null;
+        pending = null;
+        channel = null;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                //void
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    public long getBytesReceivedSoFar() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the file in which the content is stored into
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public void releaseResources() {
+        close();
+        file.delete();
+    }
+
+    public boolean isErrorOccured() {
+        return errorOccured;
+    }
+
+    public boolean wasAborted() {
+        return wasAborted;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+}
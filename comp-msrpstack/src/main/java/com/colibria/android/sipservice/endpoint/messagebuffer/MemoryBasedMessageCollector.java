@@ -18,8 +18,10 @@
  */
 package com.colibria.android.sipservice.endpoint.messagebuffer;
 
-import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
 
 import java.nio.ByteBuffer;
 
@@ -27,9 +29,11 @@ import java.nio.ByteBuffer;
 /**
  * @author Sebastian Dehne
  */
-public class MemoryBasedMessageCollector implements IMessageContentStore {
+public class MemoryBasedMessageCollector implements IByteBufferContentStore {
     private static final String TAG = "MemoryBasedMessageCollector";
 
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+
     private final Object attachment;
     private final ByteBuffer bb;
 
@@ -58,6 +62,28 @@ public class MemoryBasedMessageCollector implements IMessageContentStore {
                 bb.position((int) start);
             bb.put(content, offSet, len);
             bytesReceived += len;
+            BODY_BYTES_COPIED.add(len);
+        } catch (Exception e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not store received content into buffer: ", e);
+            }
+            errorOccured = true;
+        }
+        return len;
+    }
+
+    public long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        if (errorOccured) {
+            return len;
+        }
+
+        try {
+            if (start >= 0)
+                bb.position((int) start);
+            bb.put(content);
+            bytesReceived += len;
+            BODY_BYTES_COPIED.add(len);
         } catch (Exception e) {
             if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                 Logger.d(TAG, "Could not store received content into buffer: ", e);
@@ -0,0 +1,111 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.io.config.Configurator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much received content SegmentedMessageCollectors keep in memory. The application creates one
+ * budget per session and hands it to the collectors of that session. Every session budget is part of the
+ * global budget, which is limited by Configurator.getMaxCollectorMemory(); a reservation has to fit into both.
+ *
+ * @author Sebastian Dehne
+ */
+public class MemoryBudget {
+
+    private static final MemoryBudget GLOBAL = new MemoryBudget(-1, null);
+
+    private final long limit;
+    private final MemoryBudget parent;
+    private final AtomicLong inUse;
+
+    /**
+     * Creates a session budget limited by Configurator.getMaxSessionCollectorMemory()
+     */
+    public MemoryBudget() {
+        this(Configurator.getMaxSessionCollectorMemory());
+    }
+
+    /**
+     * Creates a session budget
+     *
+     * @param limit the number of bytes the collectors of the session may keep in memory
+     */
+    public MemoryBudget(long limit) {
+        this(limit, GLOBAL);
+    }
+
+    private MemoryBudget(long limit, MemoryBudget parent) {
+        this.limit = limit;
+        this.parent = parent;
+        this.inUse = new AtomicLong(0);
+    }
+
+    /**
+     * @return the budget all session budgets are part of
+     */
+    public static MemoryBudget getGlobal() {
+        return GLOBAL;
+    }
+
+    /**
+     * @return the number of bytes which may be reserved
+     */
+    public long getLimit() {
+        return limit < 0 ? Configurator.getMaxCollectorMemory() : limit;
+    }
+
+    /**
+     * @return the number of bytes which are currently reserved
+     */
+    public long getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Reserves the bytes in this budget and the global one, if they fit into both
+     *
+     * @param bytes the number of bytes to reserve
+     * @return true if the bytes were reserved and must be given back via release()
+     */
+    boolean reserve(long bytes) {
+        long current;
+        do {
+            current = inUse.get();
+            if (current + bytes > getLimit()) {
+                return false;
+            }
+        } while (!inUse.compareAndSet(current, current + bytes));
+
+        if (parent != null && !parent.reserve(bytes)) {
+            inUse.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    void release(long bytes) {
+        inUse.addAndGet(-bytes);
+        if (parent != null) {
+            parent.release(bytes);
+        }
+    }
+}
@@ -19,12 +19,24 @@
 package com.colibria.android.sipservice.endpoint.messagebuffer;
 
 import com.colibria.android.sipservice.endpoint.EndPointSessionImpl;
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
 import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IResumableContentStore;
+import com.colibria.android.sipservice.events.StackEvents;
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.StatusHeader;
+import com.colibria.android.sipservice.headers.SuccessReportHeader;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.headers.Continuation;
 import com.colibria.android.sipservice.headers.MsrpResponse;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -33,6 +45,19 @@ import java.util.concurrent.TimeUnit;
  * Base class for reassembly a complete message based on the received chunks.
  * This class also contains a timer which fires if no additional chunks are receieved
  * for some time, in order to allow resources to be released.
+ * <p/>
+ * Chunks may arrive in any order. The received byte ranges are tracked in the message's
+ * ReceivedMessageMetaData, and the message is considered complete once all of its bytes have been received,
+ * not just when the last chunk has arrived. If the timer fires while ranges are still missing, the
+ * message is reported as not completely received and the missing ranges can be obtained from
+ * ReceivedMessageMetaData.getMissingRanges().
+ * <p/>
+ * If the size of the message wasn't known up-front, the max-size of the session is enforced while the message
+ * grows: content beyond it is not stored anymore and the sender is asked to stop with 413.
+ * <p/>
+ * If the content carries a Content-Encoding, it is decoded while it arrives and the store only sees the decoded
+ * content. Encoded content can only be decoded in order, so such a message can neither arrive out of order nor
+ * be resumed; a gap is treated like content which can't be decoded, the message is aborted with 413.
  *
  * @author Sebastian Dehne
  */
@@ -41,20 +66,49 @@ public class MessageReassembler {
 
     private static final int TIMEOUT_IN_SECONDS = 32;
 
+    private static final Histogram THROUGHPUT = Metrics.histogram(Metrics.MSRP_REASSEMBLY_THROUGHPUT);
+    private static final Counter BYTES_REASSEMBLED = Metrics.counter(Metrics.MSRP_REASSEMBLY_BYTES);
+
     private final ReceivedMessageMetaData receivedMessageMetaData;
     private final IMessageContentStore store;
     private final EndPointSessionImpl parent;
+    private final long maxMessageSize;
+    private final ContentDecoder decoder;
 
     private ScheduledFuture timeoutTimer = null;
     private long byteCounter = 0;
     private boolean wasAborted = false;
     private long skipBytes;
+    private final ByteRangeSet receivedRanges;
+    private long nextWirePosition;
+    private boolean lastChunkReceived;
+    private boolean successReportRequested;
+    private final long createdAt;
+    private long decodedWirePosition;
+    private boolean decodingFailed;
 
-    public MessageReassembler(EndPointSessionImpl parent, ReceivedMessageMetaData metaData, IMessageContentStore store) {
+    /**
+     * @param parent         the session the message is received in
+     * @param metaData       the meta-data of the message
+     * @param store          where the content of the message is stored
+     * @param maxMessageSize  the max-size of the message including its cpim header block, -1 for no limit
+     * @param contentEncoding the Content-Encoding of the content, null if not encoded. Must be supported, see
+     *                        ContentEncoder.isSupported()
+     */
+    public MessageReassembler(EndPointSessionImpl parent, ReceivedMessageMetaData metaData, IMessageContentStore store, long maxMessageSize, String contentEncoding) {
         this.parent = parent;
+        this.maxMessageSize = maxMessageSize;
+        this.decoder = ContentDecoder.create(contentEncoding, store, maxMessageSize);
         this.receivedMessageMetaData = metaData;
         this.store = store;
         skipBytes = 0;
+        receivedRanges = metaData.getReceivedRangeSet();
+        nextWirePosition = 0;
+        lastChunkReceived = false;
+        if (decoder == null && store instanceof IResumableContentStore) {
+            resume((IResumableContentStore) store);
+        }
+        createdAt = Metrics.isEnabled() || StackEvents.isEnabled() ? System.nanoTime() : 0;
     }
 
     public final synchronized MsrpResponse.ResponseCode handleNextRequest(MsrpSendRequest request) {
@@ -65,18 +119,63 @@ public class MessageReassembler {
         MsrpResponse.ResponseCode returnCode = MsrpResponse.RESPONSE_200_OK;
 
         long start;
-        if (request.getChunkType() == MsrpSendRequest.ChunkType.head || request.getChunkType() == MsrpSendRequest.ChunkType.complete)
+        long wireStart;
+        if (request.getChunkType() == MsrpSendRequest.ChunkType.head || request.getChunkType() == MsrpSendRequest.ChunkType.complete) {
             start = request.getByteRange().getStart() - skipBytes - 1;
-        else
-            start = -1; // this is a subsequent chunk piece for an ongoing chunk, we don't need to seek() in the msgStore 
+            wireStart = request.getByteRange().getStart() - 1;
+            if (wireStart == 0 && decoder == null && store instanceof IResumableContentStore) {
+                ((IResumableContentStore) store).setHeaderLength(request.getBodyStartPosition());
+            }
+        } else {
+            start = -1; // this is a subsequent chunk piece for an ongoing chunk, we don't need to seek() in the msgStore
+            wireStart = nextWirePosition;
+        }
+        final long wireLength = request.getBodyLength();
+
+        if (maxMessageSize >= 0 && wireStart + wireLength > maxMessageSize) {
+            if (!wasAborted) {
+                Logger.i(TAG, "msgID=" + request.getMessageID() + " grows beyond the max-size of " + maxMessageSize + ", aborting");
+                wasAborted = true;
+            }
+            request.releaseBody();
+            updateTimer();
+            return MsrpResponse.RESPONSE_413;
+        }
+
+        // store the recevied content, the body isn't needed anymore afterwards
+        long stored;
+        if (decoder != null) {
+            stored = decode(request, wireStart, wireLength);
+        } else if (store instanceof IByteBufferContentStore) {
+            ByteBuffer content = request.getBodyBuffer();
+            content.position(request.getBodyStartPosition());
+            stored = ((IByteBufferContentStore) store).store(start, content);
+        } else {
+            stored = store.store(
+                    start,
+                    request.getBody(),
+                    request.getBodyStartPosition(),
+                    request.getBodyLength() - request.getBodyStartPosition()
+            );
+        }
+        request.releaseBody();
 
-        // store the recevied content
-        byteCounter += store.store(
-                start,
-                request.getBody(),
-                request.getBodyStartPosition(),
-                request.getBody().length - request.getBodyStartPosition()
-        );
+        /*
+         * Keep track of which bytes have been received, chunks may arrive out of order or more than once.
+         * Bytes which were received before are not counted again.
+         */
+        long added = receivedRanges.add(wireStart, wireStart + wireLength);
+        nextWirePosition = wireStart + wireLength;
+        if (added < wireLength) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, (wireLength - added) + " bytes of msgID=" + request.getMessageID() + " were already received");
+            }
+            if (decoder == null) {
+                stored = Math.max(0, stored - (wireLength - added));
+            }
+        }
+        byteCounter += stored;
+        BYTES_REASSEMBLED.add(stored);
 
         /*
          * A sub-sequent chunk will contains the byte-range start position relative to the msrp-body.
@@ -85,12 +184,43 @@ public class MessageReassembler {
          */
         skipBytes += request.getBodyStartPosition();
 
+        if (request.getSuccessReportHeader() != null && request.getSuccessReportHeader().get() == SuccessReportHeader.Value.yes) {
+            successReportRequested = true;
+        }
+
         final Continuation continuation = request.getContinuation();
+        if (continuation == Continuation.done) {
+            lastChunkReceived = true;
+            if (receivedMessageMetaData.getMsgSize() < 0) {
+                // the sender didn't know the size up-front, the last chunk tells where the message ends
+                receivedMessageMetaData.setMsgSize(nextWirePosition);
+            }
+        }
+
+        /*
+         * The message is complete once all bytes have been received and the last chunk was seen, regardless
+         * of the order in which the chunks arrived. The end of a chunk must have been seen too, since otherwise
+         * the end-line of the current chunk is still to come.
+         */
+        final long msgSize = receivedMessageMetaData.getMsgSize();
+        final boolean allReceived = continuation != null
+                && lastChunkReceived
+                && msgSize >= 0
+                && receivedRanges.isComplete(msgSize);
+        boolean complete = allReceived;
+        if (complete && decoder != null && !decoder.isComplete()) {
+            Logger.i(TAG, "msgID=" + request.getMessageID() + " ended before its encoded content did");
+            complete = false;
+        }
 
         /*
          * We expect more chunks (or chunk pieces) to arraive
          */
-        if (continuation == null || continuation == Continuation.more) {
+        if (!allReceived && continuation != Continuation.aborted) {
+            if (lastChunkReceived && continuation != null && Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Waiting for missing ranges " + receivedMessageMetaData.getMissingRanges() + " of msgID=" + request.getMessageID());
+            }
+
             // notify the app
             parent.getApplication().moreBytesRecevied(request.getMessageID(), byteCounter, receivedMessageMetaData.getExpectedMsgSize(), store);
 
@@ -109,8 +239,23 @@ public class MessageReassembler {
             // cancel
             cancelTimer();
 
+            if (createdAt != 0) {
+                long elapsed = System.nanoTime() - createdAt;
+                if (elapsed > 0) {
+                    THROUGHPUT.record(byteCounter * 1000000000L / elapsed);
+                }
+                StackEvents.reassemblyCompleted(StackEvents.getCurrentCorrelationId(), request.getMessageID(), byteCounter, elapsed, !complete);
+            }
+
             // release resources
-            store.receivingFinished(continuation != Continuation.done);
+            if (decoder != null) {
+                decoder.end();
+            }
+            store.receivingFinished(!complete);
+
+            if (complete && successReportRequested) {
+                sendSuccessReport(request);
+            }
 
             // notify the app
             parent.getApplication().messageRecevied(request.getMessageID(), receivedMessageMetaData, store);
@@ -123,6 +268,71 @@ public class MessageReassembler {
 
     }
 
+    /*
+     * Feeds the content of the request to the decoder, skipping what has been fed already
+     */
+    private long decode(MsrpSendRequest request, long wireStart, long wireLength) {
+        if (decodingFailed) {
+            return 0;
+        }
+        if (wireStart > decodedWirePosition) {
+            Logger.i(TAG, "msgID=" + request.getMessageID() + " arrives out of order, its encoded content can't be decoded, aborting");
+            decodingFailed = true;
+            wasAborted = true;
+            return 0;
+        }
+        int from = (int) Math.max(request.getBodyStartPosition(), decodedWirePosition - wireStart);
+        if (from >= wireLength) {
+            return 0;
+        }
+        try {
+            long decoded = decoder.decode(request.getBody(), from, (int) wireLength - from);
+            decodedWirePosition = wireStart + wireLength;
+            return decoded;
+        } catch (IOException e) {
+            Logger.i(TAG, "msgID=" + request.getMessageID() + " can't be decoded (" + e.getMessage() + "), aborting");
+            decodingFailed = true;
+            wasAborted = true;
+            return 0;
+        }
+    }
+
+    /*
+     * Confirms to the sender that the whole message was received (RFC 4975, section 7.1.2)
+     */
+    private void sendSuccessReport(MsrpSendRequest request) {
+        long msgSize = receivedMessageMetaData.getMsgSize();
+        parent.sendReport(new MsrpReportRequest(
+                parent.getMsrpResources().getNextId(),
+                request.getMessageID(),
+                request.getFromPath(),
+                request.getToPath(),
+                ByteRange.create(1, msgSize, msgSize),
+                StatusHeader.create(200, "OK"),
+                null,
+                0));
+    }
+
+    /*
+     * Picks up where a previous attempt to receive this message ended. The sender continues with the positions of
+     * the original message, so the cpim header block which was received back then still has to be skipped.
+     */
+    private void resume(IResumableContentStore resumableStore) {
+        long headerLength = resumableStore.getHeaderLength();
+        if (headerLength < 0) {
+            return;
+        }
+        skipBytes = headerLength;
+        receivedRanges.add(0, headerLength);
+        for (ByteRange r : resumableStore.getStoredRanges()) {
+            receivedRanges.add(headerLength + r.getStart() - 1, headerLength + r.getEnd());
+            byteCounter += r.getEnd() - r.getStart() + 1;
+        }
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Resuming msgID=" + receivedMessageMetaData.getMsgID() + ", already received: " + receivedRanges);
+        }
+    }
+
     public synchronized final void abort() {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "Aborting incoming message " + receivedMessageMetaData.getMsgID());
@@ -137,18 +347,35 @@ public class MessageReassembler {
         timeoutTimer = parent.getMsrpResources().getThreadFarm().schedule(new Runnable() {
             public void run() {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                    Logger.d(TAG, "timeout timer fired for " + receivedMessageMetaData.getMsgID());
-                }
-                synchronized (MessageReassembler.this) {
-                    store.receivingFinished(true);
-
-                    // notify the app
-                    parent.getApplication().messageRecevied(receivedMessageMetaData.getMsgID(), receivedMessageMetaData, store);
+                    Logger.d(TAG, "timeout timer fired for " + receivedMessageMetaData.getMsgID() + ", missing ranges: " + receivedMessageMetaData.getMissingRanges());
                 }
+                receivingInterrupted();
             }
         }, TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
     }
 
+    /**
+     * Called when the session has terminated, no more chunks will be received for this message
+     */
+    public synchronized final void terminated() {
+        if (timeoutTimer != null && timeoutTimer.cancel(false)) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Session terminated while receiving " + receivedMessageMetaData.getMsgID() + ", missing ranges: " + receivedMessageMetaData.getMissingRanges());
+            }
+            receivingInterrupted();
+        }
+    }
+
+    private synchronized void receivingInterrupted() {
+        if (decoder != null) {
+            decoder.end();
+        }
+        store.receivingFinished(true);
+
+        // notify the app
+        parent.getApplication().messageRecevied(receivedMessageMetaData.getMsgID(), receivedMessageMetaData, store);
+    }
+
     private void cancelTimer() {
         if (timeoutTimer != null) {
             timeoutTimer.cancel(false);
@@ -18,12 +18,14 @@
  */
 package com.colibria.android.sipservice.endpoint.messagebuffer;
 
-import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
+
+import java.nio.ByteBuffer;
 
 /**
  * @author Sebastian Dehne
  */
-public class NullMessageContentStore implements IMessageContentStore {
+public class NullMessageContentStore implements IByteBufferContentStore {
 
     private volatile long bytesReceived = 0;
 
@@ -38,6 +40,13 @@ public class NullMessageContentStore implements IMessageContentStore {
         return len;
     }
 
+    @Override
+    public long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        bytesReceived += len;
+        return len;
+    }
+
     @Override
     public long getBytesReceivedSoFar() {
         return bytesReceived;
@@ -19,6 +19,7 @@
 package com.colibria.android.sipservice.endpoint.messagebuffer;
 
 import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.headers.ByteRange;
 import com.colibria.android.sipservice.headers.ContentDispositionHeader;
 import com.colibria.android.sipservice.sip.Address;
 
@@ -36,6 +37,8 @@ public class ReceivedMessageMetaData {
     private final Address originator;
     private final List<Address> destinations;
     private final long expectedMsgSize;
+    private final ByteRangeSet receivedRanges;
+    private volatile long msgSize;
 
     public ReceivedMessageMetaData(
             String msgID,
@@ -51,6 +54,8 @@ public class ReceivedMessageMetaData {
         this.contentDispositionHeader = contentDispositionHeader;
         this.originator = originator;
         this.expectedMsgSize = expectedMsgSize;
+        this.receivedRanges = new ByteRangeSet();
+        this.msgSize = expectedMsgSize;
     }
 
     public MimeType getContentType() {
@@ -78,6 +83,54 @@ public class ReceivedMessageMetaData {
         return expectedMsgSize;
     }
 
+    /**
+     * Returns the size of the message. Unlike getExpectedMsgSize(), this also is known for messages sent
+     * with an unknown total size once their last chunk has been received.
+     *
+     * @return the size in bytes, -1 if not (yet) known
+     */
+    public long getMsgSize() {
+        return msgSize;
+    }
+
+    void setMsgSize(long msgSize) {
+        this.msgSize = msgSize;
+    }
+
+    ByteRangeSet getReceivedRangeSet() {
+        return receivedRanges;
+    }
+
+    /**
+     * Returns the number of distinct bytes received so far. Chunks which are received more than once
+     * are only counted once.
+     *
+     * @return the number of bytes, including a leading cpim header
+     */
+    public long getReceivedBytes() {
+        return receivedRanges.getReceivedBytes();
+    }
+
+    /**
+     * Returns the byte ranges received so far, as they would appear in a Byte-Range header
+     *
+     * @return the received ranges, in order
+     */
+    public List<ByteRange> getReceivedRanges() {
+        return receivedRanges.getReceivedRanges(msgSize);
+    }
+
+    /**
+     * Returns the byte ranges which have not been received. For a message which was not received
+     * completely, these are the ranges which would have to be requested again.
+     *
+     * @return the missing ranges, in order. If the message size is not known, the range after the last received
+     *         byte is not included.
+     */
+    public List<ByteRange> getMissingRanges() {
+        return receivedRanges.getMissingRanges(msgSize);
+    }
+
     /**
      * Returns a list of destinations
      *
@@ -0,0 +1,298 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.endpoint.api.IResumableContentStore;
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+
+/**
+ * Stores the received content into a file which is kept if the message was not received completely, so the
+ * transfer can be resumed, in the style of the file-range attribute of rfc5547.
+ * <p/>
+ * The files are kept in a directory and named after the Message-ID and the hash of the file (as in the hash
+ * of the file-selector attribute), so the same collector is found again when the transfer is resumed in a new
+ * session. Next to the content, a small index file records the length of the cpim header block and the
+ * ranges of the content received so far. The index is written when receiving ends without the message being
+ * complete and deleted once the message is complete. Content received without the beginning of the message
+ * can't be placed in a later attempt and is therefore not kept in the index.
+ * <p/>
+ * To resume, the application creates a collector for the same Message-ID and hash, asks the sender to continue
+ * at getResumeOffset() (for instance with a=file-range:(offset+1)-*) and returns the collector from
+ * IMsrpEndpointApplication.getNewMessageCollector() when the message arrives.
+ *
+ * @author Sebastian Dehne
+ */
+public class ResumableMessageCollector implements IResumableContentStore {
+    private static final String TAG = "ResumableMessageCollector";
+
+    private static final String CONTENT_SUFFIX = ".part";
+    private static final String INDEX_SUFFIX = ".ranges";
+
+    private final Object attachment;
+    private final File file;
+    private final File indexFile;
+    private final ByteRangeSet storedRanges;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long nextPosition;
+    private long headerLength;
+
+    private volatile boolean errorOccured = false;
+    private volatile boolean wasAborted = false;
+
+    /**
+     * Creates a collector, or picks up the content of a previous attempt to receive the same message
+     *
+     * @param directory  the directory to keep the files in
+     * @param msgID      the Message-ID of the message
+     * @param fileHash   the hash of the file which is received, or null if not known
+     * @param attachment any object the application wants to keep with this collector
+     */
+    public ResumableMessageCollector(File directory, String msgID, String fileHash, Object attachment) {
+        this.attachment = attachment;
+        String name = toFileName(fileHash != null ? msgID + "-" + fileHash : msgID);
+        this.file = new File(directory, name + CONTENT_SUFFIX);
+        this.indexFile = new File(directory, name + INDEX_SUFFIX);
+        this.storedRanges = new ByteRangeSet();
+        this.headerLength = -1;
+        this.nextPosition = 0;
+
+        if (file.exists() && indexFile.exists()) {
+            readIndex();
+        }
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not open file and therfore won't be able to store the content:", e);
+            }
+            errorOccured = true;
+            close();
+        }
+    }
+
+    public synchronized void receivingFinished(boolean wasAborted) {
+        this.wasAborted = wasAborted;
+        close();
+        if (wasAborted && !errorOccured && headerLength >= 0) {
+            writeIndex();
+        } else {
+            indexFile.delete();
+        }
+    }
+
+    public long store(long start, byte[] content, int offSet, int len) {
+        return store(start, ByteBuffer.wrap(content, offSet, len));
+    }
+
+    public synchronized long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        if (errorOccured || channel == null) {
+            return len;
+        }
+
+        long position = start >= 0 ? start : nextPosition;
+        final long from = position;
+        try {
+            while (content.hasRemaining()) {
+                position += channel.write(content, position);
+            }
+            storedRanges.add(from, position);
+            nextPosition = position;
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not write recevied content to file", e);
+            }
+            errorOccured = true;
+        }
+        return len;
+    }
+
+    public long getBytesReceivedSoFar() {
+        return storedRanges.getReceivedBytes();
+    }
+
+    public synchronized long getHeaderLength() {
+        return headerLength;
+    }
+
+    public synchronized void setHeaderLength(long headerLength) {
+        this.headerLength = headerLength;
+    }
+
+    public List<ByteRange> getStoredRanges() {
+        return storedRanges.getReceivedRanges(-1);
+    }
+
+    /**
+     * Returns where the sender should continue, which is right after the content received without gaps from
+     * the beginning
+     *
+     * @return the offset into the content, 0 if nothing has been received yet
+     */
+    public long getResumeOffset() {
+        if (getHeaderLength() < 0) {
+            return 0;
+        }
+        List<ByteRange> ranges = getStoredRanges();
+        if (ranges.isEmpty() || ranges.get(0).getStart() != 1) {
+            return 0;
+        }
+        return ranges.get(0).getEnd();
+    }
+
+    /**
+     * Returns the parts of the content which are missing
+     *
+     * @param size the size of the file
+     * @return the missing ranges, relative to the content
+     */
+    public List<ByteRange> getMissingRanges(long size) {
+        return storedRanges.getMissingRanges(size);
+    }
+
+    /**
+     * @return the file in which the content is stored into
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Deletes the content and the index, for when the transfer is not going to be resumed
+     */
+    public synchronized void releaseResources() {
+        close();
+        file.delete();
+        indexFile.delete();
+    }
+
+    public boolean isErrorOccured() {
+        return errorOccured;
+    }
+
+    public boolean wasAborted() {
+        return wasAborted;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    private void close() {
+        channel = null;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                //void
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    /*
+     * The index holds the length of the cpim header block in its first line and one
+     * line "start end" (zero based, end exclusive) per range of the content
+     */
+
+    private void readIndex() {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(indexFile));
+            headerLength = Long.parseLong(in.readLine().trim());
+            String line;
+            while ((line = in.readLine()) != null) {
+                int sep = line.indexOf(' ');
+                if (sep > 0) {
+                    storedRanges.add(Long.parseLong(line.substring(0, sep)), Long.parseLong(line.substring(sep + 1).trim()));
+                }
+            }
+        } catch (Exception e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not read index " + indexFile + ", starting from scratch", e);
+            }
+            headerLength = -1;
+            storedRanges.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //void
+                }
+            }
+        }
+    }
+
+    private void writeIndex() {
+        FileWriter out = null;
+        try {
+            out = new FileWriter(indexFile);
+            out.write(Long.toString(headerLength));
+            out.write("\n");
+            for (ByteRange r : storedRanges.getReceivedRanges(-1)) {
+                out.write((r.getStart() - 1) + " " + r.getEnd() + "\n");
+            }
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not write index " + indexFile, e);
+            }
+            indexFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //void
+                }
+            }
+        }
+    }
+
+    /*
+     * The Message-ID is chosen by the remote party, so only a safe subset of characters is used for the file name
+     */
+    private static String toFileName(String key) {
+        StringBuilder sb = new StringBuilder(key.length());
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+}
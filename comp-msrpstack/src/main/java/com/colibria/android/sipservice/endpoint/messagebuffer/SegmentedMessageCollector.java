@@ -0,0 +1,359 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.endpoint.api.IByteBufferContentStore;
+import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Collects the content in memory, in pooled segments of SEGMENT_SIZE bytes which are taken as the content
+ * grows, as long as they fit into the MemoryBudget. Once a segment doesn't fit anymore, or if the expected
+ * size of the message doesn't fit from the start, the content is spilled to a temporary file and all
+ * further content goes there.
+ * <p/>
+ * The content is read via getInputStream() in either case, or via getByteBuffers() while it is held in
+ * memory; neither concatenates the segments. The application must call releaseResources() once it is done
+ * with the content, which gives the segments back to the pool and the budget and deletes the temporary file.
+ *
+ * @author Sebastian Dehne
+ */
+public class SegmentedMessageCollector implements IByteBufferContentStore {
+    private static final String TAG = "SegmentedMessageCollector";
+
+    public static final int SEGMENT_SIZE = 1024 * 16;
+    private static final int MAX_POOLED_SEGMENTS = 64;
+
+    private static final String TMP_FILE_PREFIX = "msrpendpoint-";
+    private static final String TMP_FILE_SUFIX = null;
+
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+    private static final Counter SPILLED_BYTES = Metrics.counter(Metrics.MSRP_COLLECTOR_SPILLED_BYTES);
+
+    private static final ConcurrentLinkedQueue<byte[]> freeSegments = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger pooledSegments = new AtomicInteger(0);
+
+    private final Object attachment;
+    private final MemoryBudget budget;
+    private final ArrayList<byte[]> segments; // segment i holds the content from i * SEGMENT_SIZE on
+    private long position; // where content stored with start -1 goes
+    private long size; // the end of the furthest byte stored
+    private boolean spillRequired;
+    private File file;
+    private FileChannel fileChannel;
+
+    private volatile boolean errorOccured = false;
+    private volatile boolean wasAborted = false;
+    private volatile boolean released = false;
+    private volatile long bytesReceived;
+
+    /**
+     * @param attachment any object the application wants to keep with the content
+     * @param budget     the budget of the session, or null to only be limited by the global one
+     */
+    public SegmentedMessageCollector(Object attachment, MemoryBudget budget) {
+        this(attachment, -1, budget);
+    }
+
+    /**
+     * @param attachment   any object the application wants to keep with the content
+     * @param expectedSize the size of the message if known (ReceivedMessageMetaData.getExpectedMsgSize()), otherwise -1. Messages
+     *                     which are larger than the budget go to the temporary file straight away
+     * @param budget       the budget of the session, or null to only be limited by the global one
+     */
+    public SegmentedMessageCollector(Object attachment, long expectedSize, MemoryBudget budget) {
+        this.attachment = attachment;
+        this.budget = budget != null ? budget : MemoryBudget.getGlobal();
+        this.segments = new ArrayList<byte[]>();
+        this.spillRequired = expectedSize > this.budget.getLimit();
+        bytesReceived = 0;
+    }
+
+    public void receivingFinished(boolean wasAborted) {
+        this.wasAborted = wasAborted;
+        synchronized (this) {
+            closeFileChannel();
+        }
+    }
+
+    public long store(long start, byte[] content, int offSet, int len) {
+        return store(start, ByteBuffer.wrap(content, offSet, len));
+    }
+
+    public synchronized long store(long start, ByteBuffer content) {
+        final int len = content.remaining();
+        if (errorOccured || released) {
+            return len;
+        }
+
+        long pos = start >= 0 ? start : position;
+        try {
+            if (fileChannel == null && (spillRequired || !reserveSegments(pos + len))) {
+                spill();
+            }
+            if (fileChannel != null) {
+                long p = pos;
+                while (content.hasRemaining()) {
+                    p += fileChannel.write(content, p);
+                }
+            } else {
+                copyIntoSegments(pos, content);
+                BODY_BYTES_COPIED.add(len);
+            }
+            position = pos + len;
+            size = Math.max(size, position);
+            bytesReceived += len;
+        } catch (IOException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Could not store received content: ", e);
+            }
+            errorOccured = true;
+        }
+        return len;
+    }
+
+    public long getBytesReceivedSoFar() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the number of bytes of the content, up to the end of the furthest byte received
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the content went to the temporary file
+     */
+    public synchronized boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * May return null
+     *
+     * @return the temporary file the content was spilled to, null while it is held in memory
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the content as read-only buffers, one per segment and in order. The buffers are only valid until
+     * releaseResources() has been called.
+     *
+     * @return the content, or null if it was spilled to the temporary file
+     */
+    public synchronized ByteBuffer[] getByteBuffers() {
+        if (file != null || released) {
+            return null;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            int length = (int) Math.min(SEGMENT_SIZE, size - (long) i * SEGMENT_SIZE);
+            buffers[i] = ByteBuffer.wrap(segments.get(i), 0, Math.max(0, length)).slice().asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    /**
+     * Returns a stream over the content, wherever it is held. A stream over segments is only valid until
+     * releaseResources() has been called.
+     *
+     * @return a new stream over the content
+     * @throws IOException           if the temporary file could not be opened
+     * @throws IllegalStateException if releaseResources() has been called already
+     */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (released) {
+            throw new IllegalStateException("Content has been released already");
+        }
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+        return new SegmentInputStream(getByteBuffers());
+    }
+
+    /**
+     * Gives the segments back to the pool and the budget and deletes the temporary file, if any
+     */
+    public synchronized void releaseResources() {
+        released = true;
+        releaseSegments();
+        closeFileChannel();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    public boolean isErrorOccured() {
+        return errorOccured;
+    }
+
+    public boolean wasAborted() {
+        return wasAborted;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Makes sure the segments cover the content up to end
+     *
+     * @param end the end of the content to be stored
+     * @return false if the budget has no room for the segments
+     */
+    private boolean reserveSegments(long end) {
+        while ((long) segments.size() * SEGMENT_SIZE < end) {
+            if (!budget.reserve(SEGMENT_SIZE)) {
+                return false;
+            }
+            segments.add(acquireSegment());
+        }
+        return true;
+    }
+
+    private void copyIntoSegments(long pos, ByteBuffer content) {
+        while (content.hasRemaining()) {
+            int index = (int) (pos / SEGMENT_SIZE);
+            int offset = (int) (pos % SEGMENT_SIZE);
+            int n = Math.min(SEGMENT_SIZE - offset, content.remaining());
+            content.get(segments.get(index), offset, n);
+            pos += n;
+        }
+    }
+
+    /**
+     * Moves the content received so far into a temporary file, which receives all further content
+     */
+    private void spill() throws IOException {
+        file = File.createTempFile(TMP_FILE_PREFIX, TMP_FILE_SUFIX);
+        file.deleteOnExit();
+        fileChannel = new RandomAccessFile(file, "rw").getChannel();
+
+        for (int i = 0; i < segments.size(); i++) {
+            long segmentStart = (long) i * SEGMENT_SIZE;
+            ByteBuffer bb = ByteBuffer.wrap(segments.get(i), 0, (int) Math.max(0, Math.min(SEGMENT_SIZE, size - segmentStart)));
+            long p = segmentStart;
+            while (bb.hasRemaining()) {
+                p += fileChannel.write(bb, p);
+            }
+        }
+        SPILLED_BYTES.add(size);
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Spilled " + size + " bytes to " + file);
+        }
+        releaseSegments();
+    }
+
+    private void releaseSegments() {
+        for (byte[] segment : segments) {
+            if (pooledSegments.incrementAndGet() <= MAX_POOLED_SEGMENTS) {
+                freeSegments.offer(segment);
+            } else {
+                pooledSegments.decrementAndGet();
+            }
+        }
+        budget.release((long) segments.size() * SEGMENT_SIZE);
+        segments.clear();
+    }
+
+    private void closeFileChannel() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                //void
+            }
+            fileChannel = null;
+        }
+    }
+
+    private static byte[] acquireSegment() {
+        byte[] segment = freeSegments.poll();
+        if (segment == null) {
+            return new byte[SEGMENT_SIZE];
+        }
+        pooledSegments.decrementAndGet();
+        Arrays.fill(segment, (byte) 0); // content which is never stored must not show what a previous message left
+        return segment;
+    }
+
+    /**
+     * Reads the segments one after the other
+     */
+    private static class SegmentInputStream extends InputStream {
+        private final ByteBuffer[] buffers;
+        private int index;
+
+        private SegmentInputStream(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+            this.index = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer bb = current();
+            return bb == null ? -1 : bb.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer bb = current();
+            if (bb == null) {
+                return -1;
+            }
+            int n = Math.min(len, bb.remaining());
+            bb.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ByteBuffer bb = current();
+            return bb == null ? 0 : bb.remaining();
+        }
+
+        private ByteBuffer current() {
+            while (index < buffers.length && !buffers[index].hasRemaining()) {
+                index++;
+            }
+            return index < buffers.length ? buffers[index] : null;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package com.colibria.android.sipservice.headers;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * In case of wildcard, then -1 is used
@@ -67,6 +68,27 @@ public class ByteRange {
         return sb.toString();
     }
 
+    /**
+     * Writes the same as toString() into dst, without creating a String
+     *
+     * @param dst the buffer to write into
+     */
+    void writeTo(ByteBuffer dst) {
+        HeaderEncoder.putDecimal(dst, start);
+        dst.put((byte) '-');
+        if (end >= 0) {
+            HeaderEncoder.putDecimal(dst, end);
+        } else {
+            dst.put((byte) '*');
+        }
+        dst.put((byte) '/');
+        if (total >= 0) {
+            HeaderEncoder.putDecimal(dst, total);
+        } else {
+            dst.put((byte) '*');
+        }
+    }
+
     public static ByteRange parse(String v) throws IOException {
 
         long start, end, total;
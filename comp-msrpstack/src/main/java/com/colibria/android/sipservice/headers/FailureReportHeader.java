@@ -39,12 +39,20 @@ public class FailureReportHeader {
 
     }
 
+    public static final FailureReportHeader YES = new FailureReportHeader(Value.yes);
+    public static final FailureReportHeader NO = new FailureReportHeader(Value.no);
+    public static final FailureReportHeader PARTIAL = new FailureReportHeader(Value.partial);
+
     private final Value value;
 
     public FailureReportHeader(String value) throws IOException {
         this.value = Value.fromValue(value);
     }
 
+    public FailureReportHeader(Value value) {
+        this.value = value;
+    }
+
     public Value get() {
         return value;
     }
@@ -0,0 +1,67 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.headers;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A region of a file which makes up (the tail end of) the body of an outgoing chunk piece. The region is
+ * transferred from the file to the connection as it is, without its content passing through the heap.
+ *
+ * @author Sebastian Dehne
+ */
+public class FileRegion {
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+    private final Runnable whenWritten;
+
+    /**
+     * @param channel     the file to read from
+     * @param position    the position of the first byte of the region within the file
+     * @param length      the number of bytes of the region
+     * @param whenWritten executed once the region has been written to (or failed to be written to) the connection, may be null
+     */
+    public FileRegion(FileChannel channel, long position, int length, Runnable whenWritten) {
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+        this.whenWritten = whenWritten;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public Runnable getWhenWritten() {
+        return whenWritten;
+    }
+
+    public String toString() {
+        return "FileRegion " + position + "+" + length;
+    }
+}
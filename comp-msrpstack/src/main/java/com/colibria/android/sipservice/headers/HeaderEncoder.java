@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.headers;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes msrp header fields straight into a ByteBuffer. Fixed parts (header names, separators) are encoded
+ * once; the per-chunk fields (transaction-ID, byte-range, ...) are written character by character, such that
+ * no String or byte[] needs to be created while marshalling a chunk.
+ * <p/>
+ * The values written by putAscii() are restricted to US-ASCII by the msrp grammar (RFC 4975, section 9).
+ *
+ * @author Sebastian Dehne
+ */
+final class HeaderEncoder {
+
+    static final byte[] CRLF = encode("\r\n");
+    static final byte[] HEADER_SEPARATOR = encode(": ");
+
+    private HeaderEncoder() {
+    }
+
+    /**
+     * @param value the string to encode
+     * @return the UTF-8 encoded bytes of value
+     */
+    static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    /**
+     * Writes 'name: ' into dst
+     *
+     * @param dst  the buffer to write into
+     * @param name the pre-encoded header name
+     */
+    static void putName(ByteBuffer dst, byte[] name) {
+        dst.put(name);
+        dst.put(HEADER_SEPARATOR);
+    }
+
+    /**
+     * @param dst   the buffer to write into
+     * @param value an ascii string
+     */
+    static void putAscii(ByteBuffer dst, String value) {
+        for (int i = 0, n = value.length(); i < n; i++) {
+            dst.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the decimal representation of value into dst
+     *
+     * @param dst   the buffer to write into
+     * @param value the number to write, must not be negative
+     */
+    static void putDecimal(ByteBuffer dst, long value) {
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            dst.put((byte) ('0' + (value / divisor) % 10));
+            divisor /= 10;
+        }
+    }
+}
@@ -25,11 +25,15 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
+ * A path is immutable, its encoded form is therefore created only once. A path which is reused for all the
+ * chunks of a session (see Participant.getLocalPath()) is thus encoded once per session rather than per chunk.
+ *
  * @author Sebastian Dehne
  */
 public class MsrpPath {
 
     private final List<MsrpURI> uris;
+    private volatile byte[] encoded;
 
     public MsrpPath(MsrpURI uri) {
         List<MsrpURI> uris = new LinkedList<MsrpURI>();
@@ -38,7 +42,8 @@ public class MsrpPath {
     }
 
     public MsrpPath(List<MsrpURI> uris) {
-        this.uris = uris;
+        // copied, the cached encoded form must not go stale
+        this.uris = Collections.unmodifiableList(new ArrayList<MsrpURI>(uris));
     }
 
     public List<MsrpURI> getURIs() {
@@ -49,6 +54,19 @@ public class MsrpPath {
         return uris.get(0);
     }
 
+    /**
+     * @return the UTF-8 encoded form of toString(), must not be modified
+     */
+    byte[] getEncoded() {
+        byte[] e = encoded;
+        if (e == null) {
+            // racing threads compute the same value, no need to lock
+            e = HeaderEncoder.encode(toString());
+            encoded = e;
+        }
+        return e;
+    }
+
     public static MsrpPath parseValue(String value) throws IOException {
 
         List<MsrpURI> list = new ArrayList<MsrpURI>();
@@ -58,7 +76,7 @@ public class MsrpPath {
             list.add(MsrpURI.parse(uri));
         }
 
-        return new MsrpPath(Collections.unmodifiableList(list));
+        return new MsrpPath(list);
     }
 
     public String toString() {
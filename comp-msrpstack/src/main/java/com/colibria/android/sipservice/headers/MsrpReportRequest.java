@@ -18,6 +18,7 @@
  */
 package com.colibria.android.sipservice.headers;
 
+import com.colibria.android.sipservice.io.MsrpParser;
 
 import java.nio.ByteBuffer;
 import java.util.Collections;
@@ -29,6 +30,8 @@ import java.util.Map;
  */
 public class MsrpReportRequest implements IMsrpMessage {
 
+    public static final String REPORT = "REPORT";
+
     private final String transactionID;
     private final String messageID;
     private final MsrpPath toPath;
@@ -97,10 +100,36 @@ public class MsrpReportRequest implements IMsrpMessage {
     }
 
     public void marshall(ByteBuffer dst) {
-        //todo
+        byte[] data = toStringBuffer().toString().getBytes();
+        dst.put(data, 0, data.length);
     }
 
     public int getSize() {
         return msgSizeOnWire;
     }
+
+    public String toString() {
+        return "MsrpReportRequest: \r\n" + (toStringBuffer().toString());
+    }
+
+    private StringBuffer toStringBuffer() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("MSRP").append(" ").append(transactionID).append(" ").append(REPORT).append("\r\n");
+        sb.append(MsrpParser.MSRP_HEADER_TOPATH).append(": ").append(toPath).append("\r\n");
+        sb.append(MsrpParser.MSRP_HEADER_FROMPATH).append(": ").append(fromPath).append("\r\n");
+        if (messageID != null) {
+            sb.append(MsrpParser.MSRP_HEADER_MESSAGE_ID).append(": ").append(messageID).append("\r\n");
+        }
+        if (byteRange != null) {
+            sb.append(MsrpParser.MSRP_HEADER_BYTE_RANGE).append(": ").append(byteRange).append("\r\n");
+        }
+        if (status != null) {
+            sb.append(StatusHeader.NAME).append(": ").append(status).append("\r\n");
+        }
+        for (String n : exHeaders.keySet()) {
+            sb.append(n).append(": ").append(exHeaders.get(n)).append("\r\n");
+        }
+        sb.append(MsrpSendRequest.ENDLINE_START).append(transactionID).append(Continuation.done).append("\r\n");
+        return sb;
+    }
 }
@@ -33,6 +33,7 @@ public class MsrpResponse implements IMsrpMessage {
     public static ResponseCode RESPONSE_400_MESSAGE_STATE_NOT_FOUND = new ResponseCode(400, "Cound not find any existing message state");
     public static ResponseCode RESPONSE_481 = new ResponseCode(481, "No such session");
     public static ResponseCode RESPONSE_413 = new ResponseCode(413, "Abort");
+    public static ResponseCode RESPONSE_415 = new ResponseCode(415, "Unsupported media type");
     public static ResponseCode RESPONSE_506 = new ResponseCode(506, "Already bound");
 
     private final String transactionID;
@@ -109,6 +110,14 @@ public class MsrpResponse implements IMsrpMessage {
             this.statusCode = statusCode;
             this.statusText = statusTxt;
         }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusText() {
+            return statusText;
+        }
     }
 
 }
@@ -20,16 +20,31 @@ package com.colibria.android.sipservice.headers;
 
 import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.io.MsrpParser;
+import com.colibria.android.sipservice.io.IReferenceCounted;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This object (and its subobjects) is immutable and can therefore safely be shared among threads
+ * This object (and its subobjects) is immutable and can therefore safely be shared among threads.
+ * <p/>
+ * A received body may be a slice of a pooled read buffer rather than a copy. Its content is then only
+ * valid until releaseBody() has been called, which the final consumer of the body does once it is done with it.
+ * <p/>
+ * An outgoing head or body_only chunk piece may in addition carry a file region, which logically follows the
+ * bytes of the body. The region is not marshalled into the buffer but transferred by the connection right after it.
+ * <p/>
+ * The body of an outgoing head or body_only chunk piece may also be a slice of a SharedContent, which is sent to
+ * several participants. Such a body is not marshalled into the buffer either but written by the connection right
+ * after it (a gathering write), see isBodyShared().
  *
  * @author Sebastian Dehne
  */
@@ -38,6 +53,22 @@ public class MsrpSendRequest implements IMsrpMessage {
     public static final String SEND = "SEND";
     public static final String ENDLINE_START = "-------";
 
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+
+    /*
+     * The fixed parts of the head and the end-line, encoded once
+     */
+    private static final byte[] REQUEST_LINE_START = HeaderEncoder.encode("MSRP ");
+    private static final byte[] REQUEST_LINE_END = HeaderEncoder.encode(" " + SEND + "\r\n");
+    private static final byte[] TO_PATH = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_TOPATH);
+    private static final byte[] FROM_PATH = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_FROMPATH);
+    private static final byte[] MESSAGE_ID = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_MESSAGE_ID);
+    private static final byte[] BYTE_RANGE = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_BYTE_RANGE);
+    private static final byte[] SUCCESS_REPORT = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_REPORT_SUCC);
+    private static final byte[] FAILURE_REPORT = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_REPORT_FAIL);
+    private static final byte[] CONTENT_TYPE = HeaderEncoder.encode(MsrpParser.MSRP_HEADER_CONTENT_TYPE);
+    private static final byte[] ENDLINE = HeaderEncoder.encode(ENDLINE_START);
+
 
     /**
      * Defines the type for this chunk
@@ -77,7 +108,10 @@ public class MsrpSendRequest implements IMsrpMessage {
     private final FailureReportHeader failureReportHeader;
     private final Map<String, List<ICPIMHeader>> cpimHeaders;
     private final Map<String, String> extentionHeaders;
-    private final byte[] body;
+    private final ByteBuffer body;
+    private final IReferenceCounted bodyOwner;
+    private final AtomicBoolean bodyReleased;
+    private final FileRegion fileRegion;
     private final int msgSizeOnWire;
     private final int bodyStartPosition;
 
@@ -115,6 +149,97 @@ public class MsrpSendRequest implements IMsrpMessage {
                            byte[] body,
                            int msgSizeOnWire,
                            int bodyStartPosition) {
+        this(chunkType, transactionID, messageID, byteRange, continuation, contentType, contentDispositionHeader,
+                toPath, fromPath, successReportHeader, failureReportHeader, cpimHeaders, extentionHeaders,
+                body != null ? ByteBuffer.wrap(body) : null, null, msgSizeOnWire, bodyStartPosition);
+    }
+
+    /**
+     * @param chunkType                the chunk type of this request
+     * @param transactionID            the txID
+     * @param messageID                the MsgID
+     * @param byteRange                the byteRange header
+     * @param continuation             the continuation flag
+     * @param contentType              the msrp content type header
+     * @param contentDispositionHeader the Content-Disposition header
+     * @param toPath                   the toPath
+     * @param fromPath                 the fromPath
+     * @param successReportHeader      the successReport header
+     * @param failureReportHeader      the failureReport header
+     * @param cpimHeaders              the cpim headers read from the body array
+     * @param extentionHeaders         any extention headers, those who were not regognized by the parser
+     * @param body                     the body from position 0 to its limit, containing the cpim header block if present
+     * @param bodyOwner                the pooled buffer or shared content body is a slice of and which one reference is held on, or null
+     * @param msgSizeOnWire            number of bytes this message was long when it was received
+     * @param bodyStartPosition        The relative start position of the cpim header in the body array (since the body array also contains the cpim header block)
+     */
+    public MsrpSendRequest(ChunkType chunkType,
+                           String transactionID,
+                           String messageID,
+                           ByteRange byteRange,
+                           Continuation continuation,
+                           MimeType contentType,
+                           ContentDispositionHeader contentDispositionHeader,
+                           MsrpPath toPath,
+                           MsrpPath fromPath,
+                           SuccessReportHeader successReportHeader,
+                           FailureReportHeader failureReportHeader,
+                           Map<String, List<ICPIMHeader>> cpimHeaders,
+                           Map<String, String> extentionHeaders,
+                           ByteBuffer body,
+                           IReferenceCounted bodyOwner,
+                           int msgSizeOnWire,
+                           int bodyStartPosition) {
+        this(chunkType, transactionID, messageID, byteRange, continuation, contentType, contentDispositionHeader,
+                toPath, fromPath, successReportHeader, failureReportHeader, cpimHeaders, extentionHeaders,
+                body, bodyOwner, null, msgSizeOnWire, bodyStartPosition);
+    }
+
+    /**
+     * @param chunkType                the chunk type of this request
+     * @param transactionID            the txID
+     * @param messageID                the MsgID
+     * @param byteRange                the byteRange header
+     * @param continuation             the continuation flag
+     * @param contentType              the msrp content type header
+     * @param contentDispositionHeader the Content-Disposition header
+     * @param toPath                   the toPath
+     * @param fromPath                 the fromPath
+     * @param successReportHeader      the successReport header
+     * @param failureReportHeader      the failureReport header
+     * @param cpimHeaders              the cpim headers read from the body array
+     * @param extentionHeaders         any extention headers, those who were not regognized by the parser
+     * @param body                     the body from position 0 to its limit, containing the cpim header block if present
+     * @param bodyOwner                the pooled buffer or shared content body is a slice of and which one reference is held on, or null
+     * @param fileRegion               the file region following the body, or null. Only allowed for head and body_only pieces
+     * @param msgSizeOnWire            number of bytes this message was long when it was received
+     * @param bodyStartPosition        The relative start position of the cpim header in the body array (since the body array also contains the cpim header block)
+     */
+    public MsrpSendRequest(ChunkType chunkType,
+                           String transactionID,
+                           String messageID,
+                           ByteRange byteRange,
+                           Continuation continuation,
+                           MimeType contentType,
+                           ContentDispositionHeader contentDispositionHeader,
+                           MsrpPath toPath,
+                           MsrpPath fromPath,
+                           SuccessReportHeader successReportHeader,
+                           FailureReportHeader failureReportHeader,
+                           Map<String, List<ICPIMHeader>> cpimHeaders,
+                           Map<String, String> extentionHeaders,
+                           ByteBuffer body,
+                           IReferenceCounted bodyOwner,
+                           FileRegion fileRegion,
+                           int msgSizeOnWire,
+                           int bodyStartPosition) {
+
+        if (fileRegion != null && chunkType != ChunkType.head && chunkType != ChunkType.body_only) {
+            throw new IllegalArgumentException("A file region can not be sent in a " + chunkType + " chunk piece");
+        }
+        if (bodyOwner instanceof SharedContent && chunkType != ChunkType.head && chunkType != ChunkType.body_only) {
+            throw new IllegalArgumentException("Shared content can not be sent in a " + chunkType + " chunk piece");
+        }
 
         this.chunkType = chunkType;
         this.transactionID = transactionID;
@@ -128,10 +253,13 @@ public class MsrpSendRequest implements IMsrpMessage {
         this.successReportHeader = successReportHeader;
         this.failureReportHeader = failureReportHeader;
         if (body == null) {
-            this.body = new byte[0];
+            this.body = ByteBuffer.allocate(0);
         } else {
             this.body = body;
         }
+        this.bodyOwner = bodyOwner;
+        this.fileRegion = fileRegion;
+        this.bodyReleased = new AtomicBoolean(false);
         this.msgSizeOnWire = msgSizeOnWire;
         this.bodyStartPosition = bodyStartPosition;
 
@@ -187,43 +315,58 @@ public class MsrpSendRequest implements IMsrpMessage {
         }
 
         /*
-         * Prepare and write the msrp-header to the buffer
+         * Write the msrp-header to the buffer. The paths are encoded once per MsrpPath,
+         * everything else is written without creating intermediate strings
          */
-        StringBuffer sb = new StringBuffer();
-        sb.append("MSRP").append(" ").append(txID).append(" ").append(SEND).append("\r\n");
-        sb.append(MsrpParser.MSRP_HEADER_TOPATH).append(": ").append(to).append("\r\n");
-        sb.append(MsrpParser.MSRP_HEADER_FROMPATH).append(": ").append(from).append("\r\n");
+        dst.put(REQUEST_LINE_START);
+        HeaderEncoder.putAscii(dst, txID);
+        dst.put(REQUEST_LINE_END);
+        HeaderEncoder.putName(dst, TO_PATH);
+        dst.put(to.getEncoded());
+        dst.put(HeaderEncoder.CRLF);
+        HeaderEncoder.putName(dst, FROM_PATH);
+        dst.put(from.getEncoded());
+        dst.put(HeaderEncoder.CRLF);
 
         if (this.messageID != null) {
-            sb.append(MsrpParser.MSRP_HEADER_MESSAGE_ID).append(": ").append(this.messageID).append("\r\n");
+            HeaderEncoder.putName(dst, MESSAGE_ID);
+            HeaderEncoder.putAscii(dst, this.messageID);
+            dst.put(HeaderEncoder.CRLF);
         }
         if (this.byteRange != null) {
-            sb.append(MsrpParser.MSRP_HEADER_BYTE_RANGE).append(": ").append(byteRange).append("\r\n");
+            HeaderEncoder.putName(dst, BYTE_RANGE);
+            byteRange.writeTo(dst);
+            dst.put(HeaderEncoder.CRLF);
         }
         if (this.successReportHeader != null) {
-            sb.append(MsrpParser.MSRP_HEADER_REPORT_SUCC).append(": ").append(this.successReportHeader).append("\r\n");
+            HeaderEncoder.putName(dst, SUCCESS_REPORT);
+            HeaderEncoder.putAscii(dst, this.successReportHeader.toString());
+            dst.put(HeaderEncoder.CRLF);
         }
         if (this.failureReportHeader != null) {
-            sb.append(MsrpParser.MSRP_HEADER_REPORT_FAIL).append(": ").append(this.failureReportHeader).append("\r\n");
+            HeaderEncoder.putName(dst, FAILURE_REPORT);
+            HeaderEncoder.putAscii(dst, this.failureReportHeader.toString());
+            dst.put(HeaderEncoder.CRLF);
         }
         if (extentionHeaders != null) {
-            String v;
-            for (String n : extentionHeaders.keySet()) {
-                if ((v = extentionHeaders.get(n)) != null)
-                    sb.append(n).append(": ").append(v).append("\r\n");
+            for (Map.Entry<String, String> h : extentionHeaders.entrySet()) {
+                if (h.getValue() != null) {
+                    dst.put(HeaderEncoder.encode(h.getKey()));
+                    dst.put(HeaderEncoder.HEADER_SEPARATOR);
+                    dst.put(HeaderEncoder.encode(h.getValue()));
+                    dst.put(HeaderEncoder.CRLF);
+                }
             }
         }
         // and the last header is: Content-Type
         if (this.contentType != null) {
-            sb.append(MsrpParser.MSRP_HEADER_CONTENT_TYPE).append(": ").append(this.contentType).append("\r\n");
+            HeaderEncoder.putName(dst, CONTENT_TYPE);
+            HeaderEncoder.putAscii(dst, this.contentType.toString());
+            dst.put(HeaderEncoder.CRLF);
         }
-        // write the header to the buffer
-        byte[] data = sb.toString().getBytes();
-        sb.setLength(0); // reset buffer
-        dst.put(data, 0, data.length);
 
         if (willBeFollowedByBody) {
-            dst.put("\r\n".getBytes(), 0, 2);
+            dst.put(HeaderEncoder.CRLF);
         }
     }
 
@@ -241,13 +384,12 @@ public class MsrpSendRequest implements IMsrpMessage {
             c = this.continuation;
         }
 
-        StringBuffer sb = new StringBuffer();
         if (isAfterBody)
-            sb.append("\r\n");
-        sb.append(ENDLINE_START).append(txID).append(c).append("\r\n");
-
-        byte[] data = sb.toString().getBytes();
-        dst.put(data, 0, data.length);
+            dst.put(HeaderEncoder.CRLF);
+        dst.put(ENDLINE);
+        HeaderEncoder.putAscii(dst, txID);
+        dst.put((byte) c.getDelimiter());
+        dst.put(HeaderEncoder.CRLF);
     }
 
     /**
@@ -256,7 +398,7 @@ public class MsrpSendRequest implements IMsrpMessage {
      * @param overrideByteRange     the byteRange which should be used instead of the one in this request
      * @param overrideFrom          the fromPath which should be used instead of the one in this request
      * @param overrideTo            the toPath which should be used instead of the one in this request
-     * @return Number of bytes of the body
+     * @return Number of bytes of the body, including the file region and a shared body which both aren't written into dst
      */
     public int marshall(ByteBuffer dst, ByteRange overrideByteRange, String overrideTransactionID, MsrpPath overrideFrom, MsrpPath overrideTo) {
         String txID;
@@ -267,27 +409,32 @@ public class MsrpSendRequest implements IMsrpMessage {
         }
 
         int bodyLengh = 0;
+        final int length = getBodyLength();
 
         switch (chunkType) {
             case complete:
-                marshallHead(dst, txID, overrideByteRange, body.length > 0, overrideFrom, overrideTo);
-                dst.put(body, 0, body.length);
-                bodyLengh += body.length;
-                marshallTail(dst, txID, body.length > 0, null);
+                marshallHead(dst, txID, overrideByteRange, length > 0, overrideFrom, overrideTo);
+                dst.put(body.asReadOnlyBuffer());
+                bodyLengh += length;
+                marshallTail(dst, txID, length > 0, null);
                 break;
             case head:
-                marshallHead(dst, txID, overrideByteRange, body.length > 0, overrideFrom, overrideTo);
-                dst.put(body, 0, body.length);
-                bodyLengh += body.length;
+                marshallHead(dst, txID, overrideByteRange, length > 0, overrideFrom, overrideTo);
+                if (!isBodyShared()) {
+                    dst.put(body.asReadOnlyBuffer()); // the file region, if any, is written after dst by the connection
+                }
+                bodyLengh += length;
                 break;
             case body_only:
-                dst.put(body, 0, body.length);
-                bodyLengh += body.length;
+                if (!isBodyShared()) {
+                    dst.put(body.asReadOnlyBuffer());
+                }
+                bodyLengh += length;
                 break;
             case tail:
-                dst.put(body, 0, body.length);
-                bodyLengh += body.length;
-                marshallTail(dst, txID, body.length > 0, null);
+                dst.put(body.asReadOnlyBuffer());
+                bodyLengh += length;
+                marshallTail(dst, txID, length > 0, null);
         }
 
         return bodyLengh;
@@ -309,8 +456,88 @@ public class MsrpSendRequest implements IMsrpMessage {
         return byteRange;
     }
 
+    /**
+     * Returns the body as array. Received bodies are usually slices of a read buffer and are copied
+     * by this method, consider getBodyBuffer() instead.
+     *
+     * @return the body, containing the cpim header block if present
+     */
     public byte[] getBody() {
-        return body;
+        if (fileRegion != null) {
+            return readFileRegion().array();
+        }
+        if (body.hasArray() && body.arrayOffset() == 0 && body.limit() == body.array().length) {
+            return body.array();
+        }
+        byte[] copy = new byte[body.limit()];
+        body.duplicate().get(copy);
+        BODY_BYTES_COPIED.add(copy.length);
+        return copy;
+    }
+
+    /**
+     * @return a read-only view of the body, from position 0 up to its limit, containing the cpim header block if present.
+     *         If this request carries a file region, the view is a copy which includes the content of the region.
+     */
+    public ByteBuffer getBodyBuffer() {
+        if (fileRegion != null) {
+            return readFileRegion().asReadOnlyBuffer();
+        }
+        return body.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of bytes of the body, including the file region
+     */
+    public int getBodyLength() {
+        return fileRegion == null ? body.limit() : body.limit() + fileRegion.getLength();
+    }
+
+    /**
+     * @return true if the body is a slice of a SharedContent. Such a body is not written by marshall(), the
+     *         connection writes it right after the marshalled bytes instead.
+     */
+    public boolean isBodyShared() {
+        return bodyOwner instanceof SharedContent;
+    }
+
+    /**
+     * @return the file region which follows the body on the wire, or null
+     */
+    public FileRegion getFileRegion() {
+        return fileRegion;
+    }
+
+    private ByteBuffer readFileRegion() {
+        ByteBuffer copy = ByteBuffer.allocate(getBodyLength());
+        copy.put(body.duplicate());
+        try {
+            long position = fileRegion.getPosition();
+            while (copy.hasRemaining()) {
+                int len = fileRegion.getChannel().read(copy, position);
+                if (len < 0) {
+                    throw new IllegalStateException("File region ends beyond the end of the file");
+                }
+                position += len;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the file region", e);
+        }
+        copy.flip();
+        BODY_BYTES_COPIED.add(copy.limit());
+        return copy;
+    }
+
+    /**
+     * Called by the final consumer of the body once it is done with it. If the body is a slice
+     * of a pooled read buffer or of shared content, the reference on it is given up and the body
+     * must not be accessed anymore.
+     * Calling this method more than once has no effect.
+     */
+    public void releaseBody() {
+        if (bodyOwner != null && bodyReleased.compareAndSet(false, true)) {
+            bodyOwner.release();
+        }
     }
 
     public SuccessReportHeader getSuccessReportHeader() {
@@ -389,20 +616,20 @@ public class MsrpSendRequest implements IMsrpMessage {
 
         // the header (if present)
         if (getChunkType() == MsrpSendRequest.ChunkType.complete || getChunkType() == MsrpSendRequest.ChunkType.head) {
-            marshallHead(bb, null, null, getBody().length > 0, null, null);
+            marshallHead(bb, null, null, getBodyLength() > 0, null, null);
             byte[] tmp = new byte[bb.position()];
             bb.flip();
             bb.get(tmp, 0, tmp.length);
             sb.append(new String(tmp));
         }
         // the body (if present)
-        if (getBody().length > 0) {
-            sb.append("<Not showing the ").append(getBody().length).append(" bytes long body>");
+        if (getBodyLength() > 0) {
+            sb.append("<Not showing the ").append(getBodyLength()).append(" bytes long body>");
         }
         // the tail (if present)
         if (getChunkType() == MsrpSendRequest.ChunkType.complete || getChunkType() == MsrpSendRequest.ChunkType.tail) {
             bb.clear();
-            marshallTail(bb, null, getBody().length > 0, null);
+            marshallTail(bb, null, getBodyLength() > 0, null);
             byte[] tmp = new byte[bb.position()];
             bb.flip();
             bb.get(tmp, 0, tmp.length);
@@ -423,36 +650,39 @@ public class MsrpSendRequest implements IMsrpMessage {
 
         // the header (if present)
         if (getChunkType() == MsrpSendRequest.ChunkType.complete || getChunkType() == MsrpSendRequest.ChunkType.head) {
-            marshallHead(bb, null, null, getBody().length > 0, null, null);
+            marshallHead(bb, null, null, getBodyLength() > 0, null, null);
             byte[] tmp = new byte[bb.position()];
             bb.flip();
             bb.get(tmp, 0, tmp.length);
             sb.append(new String(tmp));
         }
         // the body (if present)
-        if (getBody().length > 0) {
-            sb.append(new String(getBody(), 0, getBodyStartPosition()));
+        if (body.limit() > 0) {
+            int logLength = Math.min(maxContentLength, body.limit() - getBodyStartPosition());
+            byte[] logged = new byte[getBodyStartPosition() + logLength];
+            body.duplicate().get(logged);
+            sb.append(new String(logged, 0, getBodyStartPosition()));
 
-
-            int logLength = Math.min(maxContentLength, getBody().length - getBodyStartPosition());
             try {
-                String body = new String(getBody(), getBodyStartPosition(), logLength, "UTF-8");
+                String body = new String(logged, getBodyStartPosition(), logLength, "UTF-8");
                 sb.append(body);
             } catch (UnsupportedEncodingException e) {
                 sb.append("hexdump(");
                 for (int i = 0; i < logLength; i++) {
-                    sb.append(Integer.toHexString(getBody()[getBodyStartPosition() + i]));
+                    sb.append(Integer.toHexString(logged[getBodyStartPosition() + i]));
                 }
                 sb.append(")");
             }
-            if (logLength < getBody().length) {
+            if (logLength < getBodyLength()) {
                 sb.append(" !only first ").append(logLength).append(" bytes shown!");
             }
+        } else if (fileRegion != null) {
+            sb.append("<Not showing the ").append(getBodyLength()).append(" bytes long body>");
         }
         // the tail (if present)
         if (getChunkType() == MsrpSendRequest.ChunkType.complete || getChunkType() == MsrpSendRequest.ChunkType.tail) {
             bb.clear();
-            marshallTail(bb, null, getBody().length > 0, null);
+            marshallTail(bb, null, getBodyLength() > 0, null);
             byte[] tmp = new byte[bb.position()];
             bb.flip();
             bb.get(tmp, 0, tmp.length);
@@ -486,7 +716,8 @@ public class MsrpSendRequest implements IMsrpMessage {
                 getFailureReportHeader(),
                 cpimHeaders,
                 extentionHeaders,
-                getBody(),
+                body, // shared, the reference on its read buffer stays with this request
+                null,
                 getSize(),
                 getBodyStartPosition()
         );
@@ -495,7 +726,7 @@ public class MsrpSendRequest implements IMsrpMessage {
     public MsrpSendRequest generateCloneWithOverride(ICPIMHeader newHeader) {
 
         int newMsgSize;
-        byte[] newBody;
+        ByteBuffer newBody;
         int newBodyStartPos;
         Map<String, List<ICPIMHeader>> cpimHeaders;
         if (chunkType == ChunkType.complete || chunkType == ChunkType.head && this.cpimHeaders != null && this.cpimHeaders.size() > 0 && newHeader != null) {
@@ -521,13 +752,16 @@ public class MsrpSendRequest implements IMsrpMessage {
             cpimBytes = cpimBlockStr.getBytes();
 
             // define the new body
-            newBody = new byte[cpimBytes.length + (body.length - bodyStartPosition)];
+            newBody = ByteBuffer.allocate(cpimBytes.length + (body.limit() - bodyStartPosition));
 
             // write the cpim bytes
-            System.arraycopy(cpimBytes, 0, newBody, 0, cpimBytes.length);
+            newBody.put(cpimBytes);
 
             // write the body part without the old cpim stuff
-            System.arraycopy(body, bodyStartPosition, newBody, cpimBytes.length, body.length - bodyStartPosition);
+            ByteBuffer content = body.duplicate();
+            content.position(bodyStartPosition);
+            newBody.put(content);
+            newBody.flip();
 
             if (cpimBytes.length >= bodyStartPosition) {
                 newMsgSize = msgSizeOnWire + (cpimBytes.length - bodyStartPosition);
@@ -560,6 +794,8 @@ public class MsrpSendRequest implements IMsrpMessage {
                 cpimHeaders,
                 this.extentionHeaders,
                 newBody,
+                null,
+                this.fileRegion,
                 newMsgSize,
                 newBodyStartPos
         );
@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.headers;
+
+import com.colibria.android.sipservice.io.IReferenceCounted;
+import com.colibria.android.sipservice.logging.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The immutable content of a message which is sent to several participants, e.g. the cpim header block and the
+ * content of a group chat message. The content is prepared once and the bodies of the chunk pieces sent to each
+ * of the participants are read-only slices of it, which the connections write right after the per-session head
+ * (see ChannelState.writeAsync()), so the content is neither copied per participant nor per chunk piece.
+ * <p/>
+ * The creator holds the first reference, every chunk piece carrying a slice holds another one until it has
+ * been written. Once the last reference is given up, whenReleased is executed.
+ *
+ * @author Sebastian Dehne
+ */
+public class SharedContent implements IReferenceCounted {
+    private static final String TAG = "SharedContent";
+
+    private final ByteBuffer content;
+    private final AtomicInteger references;
+    private final Runnable whenReleased;
+
+    /**
+     * @param content      the content from its position up to its limit, which must not be changed afterwards
+     * @param whenReleased executed once the last reference has been given up, may be null
+     */
+    public SharedContent(ByteBuffer content, Runnable whenReleased) {
+        this.content = content.slice().asReadOnlyBuffer();
+        this.references = new AtomicInteger(1);
+        this.whenReleased = whenReleased;
+    }
+
+    public int getLength() {
+        return content.limit();
+    }
+
+    /**
+     * Returns a part of the content and adds a reference on behalf of the caller, which is given up via release()
+     * (or MsrpSendRequest.releaseBody() if the slice is the body of a request).
+     *
+     * @param offset the position of the first byte of the slice within the content
+     * @param length the number of bytes of the slice
+     * @return a read-only view of the slice, from position 0 up to its limit
+     */
+    public ByteBuffer retainSlice(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > content.limit()) {
+            throw new IndexOutOfBoundsException(offset + "+" + length + " is not within " + content.limit());
+        }
+        retain();
+        ByteBuffer slice = content.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    public void retain() {
+        if (references.getAndIncrement() < 1) {
+            throw new IllegalStateException("Content has been released already");
+        }
+    }
+
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            if (whenReleased != null) {
+                try {
+                    whenReleased.run();
+                } catch (Exception e) {
+                    Logger.e(TAG, "", e);
+                }
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("Content has been released already");
+        }
+    }
+
+    public String toString() {
+        return "SharedContent " + content.limit() + " bytes, " + references.get() + " references";
+    }
+}
@@ -52,6 +52,10 @@ public class StatusHeader {
         return sb.toString();
     }
 
+    public static StatusHeader create(int code, String reason) {
+        return new StatusHeader(code, reason);
+    }
+
     public static StatusHeader parse(String v) throws IOException {
         /*
          * possible formats are:
@@ -39,12 +39,19 @@ public class SuccessReportHeader {
 
     }
 
+    public static final SuccessReportHeader YES = new SuccessReportHeader(Value.yes);
+    public static final SuccessReportHeader NO = new SuccessReportHeader(Value.no);
+
     private final Value value;
 
     public SuccessReportHeader(String value) throws IOException {
         this.value = Value.fromValue(value);
     }
 
+    public SuccessReportHeader(Value value) {
+        this.value = value;
+    }
+
     public Value get() {
         return value;
     }
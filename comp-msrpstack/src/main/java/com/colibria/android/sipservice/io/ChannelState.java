@@ -20,35 +20,67 @@ package com.colibria.android.sipservice.io;
 
 import com.colibria.android.sipservice.IMsrpResources;
 import com.colibria.android.sipservice.ITcpConnectionListener;
+import com.colibria.android.sipservice.ITcpReadBufferProvider;
 import com.colibria.android.sipservice.TcpConnection;
+import com.colibria.android.sipservice.events.StackEvents;
+import com.colibria.android.sipservice.headers.FileRegion;
 import com.colibria.android.sipservice.headers.IMsrpMessage;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
 import com.colibria.android.sipservice.headers.MsrpResponse;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
 import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.config.Configurator;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Gauge;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.tx.Participant;
+import com.colibria.android.sipservice.tx.Participants;
 import com.colibria.android.sipservice.tx.OutboundFSM;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * @author Sebastian Dehne
  */
-public class ChannelState implements ITcpConnectionListener {
+public class ChannelState implements ITcpConnectionListener, ITcpReadBufferProvider {
     private static final String TAG = "ChannelState";
 
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+    private static final Counter POOL_HITS = Metrics.counter(Metrics.MSRP_CONNECTION_POOL_HITS);
+    private static final Counter POOL_MISSES = Metrics.counter(Metrics.MSRP_CONNECTION_POOL_MISSES);
+    private static final Counter POOL_EVICTIONS = Metrics.counter(Metrics.MSRP_CONNECTION_POOL_EVICTIONS);
+    private static final Gauge POOL_IDLE = Metrics.gauge(Metrics.MSRP_CONNECTION_POOL_IDLE);
+    private static final Histogram DISPATCH_DEPTH = Metrics.histogram(Metrics.MSRP_INBOUND_DISPATCH_DEPTH);
+
     public static final Runnable DO_NOTHING = new Runnable() {
         public void run() {
         }
     };
 
+    // for how long an accepted connection may stay without a participant bound to it
+    private static final int UNBOUND_TIMEOUT = 30 * 1000;
+
     private static final ConcurrentHashMap<InetSocketAddress, ChannelState> states = new ConcurrentHashMap<InetSocketAddress, ChannelState>();
 
+    // the channels in state lingering, the one lingering the longest first. Guarded by itself.
+    private static final LinkedHashSet<ChannelState> lingeringStates = new LinkedHashSet<ChannelState>();
+
     public static ChannelState getOrCreate(IMsrpResources resources, Participant p, InetSocketAddress targetHost) {
         ChannelState state = null, existingState;
         boolean added = false;
@@ -81,24 +113,83 @@ public class ChannelState implements ITcpConnectionListener {
         return state;
     }
 
+    /**
+     * Creates the channel of a connection which the remote end established. The channel is not shared with
+     * outgoing connections; the participant it belongs to is found by the To-Path of the first request received.
+     * If no participant binds itself to the channel in time, the connection is closed again.
+     *
+     * @param resources  the resources to be used for this instance
+     * @param connection the accepted connection
+     * @return the channel, which is to be set as listener of the connection
+     */
+    public static ChannelState createForAcceptedConnection(IMsrpResources resources, TcpConnection connection) {
+        final ChannelState state = new ChannelState(resources, connection);
+        resources.getThreadFarm().schedule(new Runnable() {
+            public void run() {
+                state.closeIfUnbound();
+            }
+        }, UNBOUND_TIMEOUT, TimeUnit.MILLISECONDS);
+        return state;
+    }
+
     @SuppressWarnings({"UnusedDeclaration"})
     protected void remove(InetSocketAddress key) {
         states.remove(key);
     }
 
     private final InetSocketAddress targetHost;
+    private final boolean accepted; // the remote end established the connection, see createForAcceptedConnection()
     private final IMsrpResources parentInstance;
     private final ConcurrentHashMap<MsrpURI, Participant> participants;
     private volatile TcpConnection tcpConnection;
     private final MsrpParser parser;
 
+    // the buffer the connection reads into, only touched by the TcpController thread
+    private PooledReadBuffer pooledReadBuffer;
+
+    // when data was last read from and handed for writing to the connection (System.currentTimeMillis())
+    private volatile long lastReadAt;
+    private volatile long lastWrittenAt;
+
+    // bytes of requests which were parsed, but not handled by the thread farm yet
+    private final AtomicInteger dispatchedBytes = new AtomicInteger();
+    private volatile boolean dispatchPaused;
+
+    // the parsed messages in the order they were received; the pieces of a chunk must be handled in that order
+    private final ConcurrentLinkedQueue<Runnable> pendingDispatches = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final Runnable dispatchPending = new Runnable() {
+        public void run() {
+            // the tasks may run concurrently on the thread farm, only one of them handles the messages at a time
+            do {
+                if (!dispatching.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    Runnable next;
+                    while ((next = pendingDispatches.poll()) != null) {
+                        try {
+                            next.run();
+                        } catch (RuntimeException e) {
+                            Logger.e(TAG, "Failed to handle a received message", e);
+                        }
+                    }
+                } finally {
+                    dispatching.set(false);
+                }
+            } while (!pendingDispatches.isEmpty());
+        }
+    };
 
     // mutable state guarded by "this"
     private LifeState lifeCycleState; // completely steered by the register/unregister calls from the Participant
+    private ScheduledFuture<?> lingerTimerTask;
+    private final Set<Participant> readPausers = new HashSet<Participant>(); // reading is suspended while not empty
 
     private ChannelState(IMsrpResources parentInstance, InetSocketAddress targetHost) {
         this.parentInstance = parentInstance;
         this.targetHost = targetHost;
+        this.accepted = false;
         this.participants = new ConcurrentHashMap<MsrpURI, Participant>();
         parser = new MsrpParser();
 
@@ -107,6 +198,19 @@ public class ChannelState implements ITcpConnectionListener {
         }
     }
 
+    private ChannelState(IMsrpResources parentInstance, TcpConnection acceptedConnection) {
+        this.parentInstance = parentInstance;
+        this.targetHost = acceptedConnection.getRemoteAddress();
+        this.accepted = true;
+        this.participants = new ConcurrentHashMap<MsrpURI, Participant>();
+        this.tcpConnection = acceptedConnection;
+        parser = new MsrpParser();
+
+        synchronized (this) {
+            lifeCycleState = LifeState.available;
+        }
+    }
+
     /**
      * Called by grizzly in case a request was received
      *
@@ -122,6 +226,14 @@ public class ChannelState implements ITcpConnectionListener {
 
         participant = findParticipantLocally(localURI);
 
+        // the first request on a connection the remote end established tells which participant it is for
+        if (participant == null && accepted) {
+            Participant waiting = Participants.getInstance().get(localURI);
+            if (waiting != null && waiting.incomingConnection(this, request)) {
+                return;
+            }
+        }
+
         if (participant == null) {
             ByteBuffer bb = OutboundFSM.getReadBuffer();
             MsrpResponse.create(request, MsrpResponse.RESPONSE_481).marshall(bb);
@@ -157,14 +269,62 @@ public class ChannelState implements ITcpConnectionListener {
         }
     }
 
+    /**
+     * Called when a REPORT was received. REPORTs are never responded to.
+     *
+     * @param report the received report
+     */
+    public void handleReport(MsrpReportRequest report) {
+        final MsrpURI localURI = report.getToPath().getFirst();
+        Participant participant = findParticipantLocally(localURI);
+
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Channel " + toString() + " received message: " + report.toString());
+        }
+
+        if (participant != null) {
+            participant.handleIncomingReport(report);
+        } else {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Forced to ignore this report since no participant could be found for it");
+            }
+        }
+    }
+
     public void writeAsync(ByteBuffer data, final Runnable whenOne, final Runnable onIOException) {
         data.flip();
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "Channel " + toString() + " is about to write " + data.limit() + " bytes of data");
         }
+        lastWrittenAt = System.currentTimeMillis();
         tcpConnection.write(data, whenOne, onIOException);
     }
 
+    /**
+     * Same as writeAsync(data, whenOne, onIOException), but the file region is transferred right after data.
+     */
+    public void writeAsync(ByteBuffer data, FileRegion fileRegion, final Runnable whenOne, final Runnable onIOException) {
+        data.flip();
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Channel " + toString() + " is about to write " + data.limit() + " bytes of data followed by " + fileRegion);
+        }
+        lastWrittenAt = System.currentTimeMillis();
+        tcpConnection.write(data, fileRegion.getChannel(), fileRegion.getPosition(), fileRegion.getLength(), whenOne, onIOException);
+    }
+
+    /**
+     * Same as writeAsync(data, whenOne, onIOException), but the content of following is written right after data,
+     * with a single gathering write. following is typically shared with other channels and is not changed.
+     */
+    public void writeAsync(ByteBuffer data, ByteBuffer following, final Runnable whenOne, final Runnable onIOException) {
+        data.flip();
+        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+            Logger.d(TAG, "Channel " + toString() + " is about to write " + data.limit() + " bytes of data followed by " + following.remaining() + " shared bytes");
+        }
+        lastWrittenAt = System.currentTimeMillis();
+        tcpConnection.write(new ByteBuffer[]{data, following.duplicate()}, whenOne, onIOException);
+    }
+
     /**
      * Called ONLY by the participant to register itself to this channel
      *
@@ -172,6 +332,9 @@ public class ChannelState implements ITcpConnectionListener {
      * @return true upon success
      */
     public synchronized boolean register(Participant participant) {
+        if (accepted && lifeCycleState == LifeState.unavailable) {
+            return false; // an accepted connection cannot be re-established once closed
+        }
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             int oldState = participants.size();
             participants.put(participant.getLocalMsrpURI(), participant);
@@ -196,9 +359,71 @@ public class ChannelState implements ITcpConnectionListener {
         } else {
             participants.remove(participant.getLocalMsrpURI());
         }
+        resumeReading(participant);
         updateLifeCycle();
     }
 
+    /**
+     * Called by a participant which cannot take any more data for now. Reading from the connection is
+     * suspended until all participants which paused it have called resumeReading(), which also
+     * happens when they unregister.
+     *
+     * @param participant the participant which wants reading to be paused
+     */
+    public synchronized void pauseReading(Participant participant) {
+        if (readPausers.add(participant)) {
+            updateReadingSuspended();
+        }
+    }
+
+    /**
+     * Called by a participant which earlier called pauseReading() and can take more data again.
+     *
+     * @param participant the participant which paused reading
+     */
+    public synchronized void resumeReading(Participant participant) {
+        if (readPausers.remove(participant)) {
+            updateReadingSuspended();
+        }
+    }
+
+    private synchronized void pauseDispatching() {
+        int maxSize = Configurator.getMaxInboundQueueSize();
+        if (!dispatchPaused && dispatchedBytes.get() > maxSize) {
+            dispatchPaused = true;
+            updateReadingSuspended();
+
+            // the thread farm may have caught up before the flag was visible to it
+            resumeDispatchingIfDrained();
+        }
+    }
+
+    private synchronized void resumeDispatchingIfDrained() {
+        if (dispatchPaused && dispatchedBytes.get() <= Configurator.getMaxInboundQueueSize() / 2) {
+            dispatchPaused = false;
+            updateReadingSuspended();
+        }
+    }
+
+    /**
+     * For testing only.
+     *
+     * @return the bytes of the received requests which were not handled by the thread farm yet
+     */
+    int getDispatchedBytes() {
+        return dispatchedBytes.get();
+    }
+
+    private void updateReadingSuspended() {
+        boolean suspended = dispatchPaused || !readPausers.isEmpty();
+        if (suspended != tcpConnection.isReadingSuspended()) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, (suspended ? "Suspending" : "Resuming") + " reading from " + toString() + " (" + dispatchedBytes.get() + " bytes dispatched)");
+            }
+            tcpConnection.setReadingSuspended(suspended);
+        }
+    }
+
     public void close() {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "Closing channel");
@@ -249,40 +474,141 @@ public class ChannelState implements ITcpConnectionListener {
 
     private void updateLifeCycle() {
         if (participants.size() > 0) {
+            if (lifeCycleState == LifeState.lingering) {
+                stopLingering();
+                if (tcpConnection.getUnSafeConnectionState() == TcpConnection.ConnectionState.connected) {
+                    if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                        Logger.d(TAG, "Changing state from lingering to available, re-using the connection");
+                    }
+                    lifeCycleState = LifeState.available;
+                    POOL_HITS.inc();
+                } else {
+                    if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                        Logger.d(TAG, "Lingering connection was lost, changing state to unavailable");
+                    }
+                    lifeCycleState = LifeState.unavailable;
+                    tcpConnection.close();
+                }
+            }
             if (lifeCycleState == LifeState.unavailable) {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "Changing state to available");
                 }
                 lifeCycleState = LifeState.available;
+                POOL_MISSES.inc();
                 tcpConnection = parentInstance.getController().createNewManagedConnection(targetHost.getHostName(), targetHost.getPort(), this);
+                tcpConnection.setReadingSuspended(dispatchPaused || !readPausers.isEmpty());
                 tcpConnection.reconnect();
             }
         } else {
             if (lifeCycleState == LifeState.available) {
-                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                    Logger.d(TAG, "Changing state to unavailable and closing channel");
+                int lingerTime = Configurator.getConnectionLingerTime();
+                if (!accepted && lingerTime > 0 && Configurator.getMaxLingeringConnections() > 0
+                        && tcpConnection.getUnSafeConnectionState() == TcpConnection.ConnectionState.connected) {
+                    if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                        Logger.d(TAG, "Changing state to lingering for " + lingerTime + "ms");
+                    }
+                    lifeCycleState = LifeState.lingering;
+                    startLingering(lingerTime);
+                } else {
+                    if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                        Logger.d(TAG, "Changing state to unavailable and closing channel");
+                    }
+                    lifeCycleState = LifeState.unavailable;
+                    close(); // all participant have left, close channel now
+                }
+            }
+        }
+    }
+
+    /*
+     * Adds this channel to the lingering ones and evicts the one lingering the longest if there are too many.
+     * Called while owning the lock of this channel; other channels are only closed asynchronously since
+     * their lock cannot be taken here.
+     */
+    private void startLingering(int lingerTime) {
+        final List<ChannelState> evicted = new LinkedList<ChannelState>();
+        synchronized (lingeringStates) {
+            lingeringStates.add(this);
+            Iterator<ChannelState> i = lingeringStates.iterator();
+            while (lingeringStates.size() > Configurator.getMaxLingeringConnections()) {
+                evicted.add(i.next());
+                i.remove();
+            }
+            POOL_IDLE.set(lingeringStates.size());
+        }
+        if (!evicted.contains(this)) {
+            lingerTimerTask = parentInstance.getThreadFarm().schedule(new Runnable() {
+                public void run() {
+                    closeIfLingering("linger time expired");
                 }
-                lifeCycleState = LifeState.unavailable;
-                close(); // all participant have left, close channel now
+            }, lingerTime, TimeUnit.MILLISECONDS);
+        }
+        if (evicted.size() > 0) {
+            POOL_EVICTIONS.add(evicted.size());
+            parentInstance.getThreadFarm().execute(new Runnable() {
+                public void run() {
+                    for (ChannelState state : evicted) {
+                        state.closeIfLingering("too many lingering connections");
+                    }
+                }
+            });
+        }
+    }
+
+    private void stopLingering() {
+        if (lingerTimerTask != null) {
+            lingerTimerTask.cancel(false);
+            lingerTimerTask = null;
+        }
+        synchronized (lingeringStates) {
+            lingeringStates.remove(this);
+            POOL_IDLE.set(lingeringStates.size());
+        }
+    }
+
+    private synchronized void closeIfUnbound() {
+        if (participants.isEmpty() && lifeCycleState == LifeState.available) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "No participant bound itself to accepted " + toString() + ", closing channel");
+            }
+            lifeCycleState = LifeState.unavailable;
+            close();
+        }
+    }
+
+    private synchronized void closeIfLingering(String reason) {
+        if (lifeCycleState == LifeState.lingering) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Changing state from lingering to unavailable and closing channel, " + reason);
             }
+            stopLingering();
+            lifeCycleState = LifeState.unavailable;
+            close();
         }
     }
 
+    @Override
+    public ByteBuffer getReadBuffer() {
+        if (pooledReadBuffer == null) {
+            pooledReadBuffer = PooledReadBuffer.acquire();
+        }
+        return pooledReadBuffer.getBuffer();
+    }
+
     @Override
     public void dataReceived(ByteBuffer readBuffer) {
+        lastReadAt = System.currentTimeMillis();
 
         // prepare buffer for reading/parsing
         readBuffer.limit(readBuffer.position());
         readBuffer.position(0);
 
-
-        boolean hasMoreBytesToParse;
-        boolean isExpectingMoreData;
-
         while (true) {
 
             // read and parse now
-            MsrpParser.State result = parser.parse(readBuffer);
+            long parseStart = StackEvents.isEnabled() ? System.nanoTime() : 0;
+            MsrpParser.State result = parser.parse(readBuffer, pooledReadBuffer);
             if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                 Logger.d(TAG, "MsrpParser said: " + result);
             }
@@ -297,19 +623,49 @@ public class ChannelState implements ITcpConnectionListener {
                     parser.reset();
                 }
 
-                // handle the actual received message async and continue parsing the next msg
-                parentInstance.getThreadFarm().execute(new Runnable() {
+                final long correlationId = StackEvents.nextCorrelationId();
+                if (correlationId != 0) {
+                    StackEvents.messageParsed(
+                            correlationId,
+                            "MSRP",
+                            parsedObject.getType() == IMsrpMessage.Type.report ? "REPORT" : parsedObject.getType() == IMsrpMessage.Type.request ? "SEND" : null,
+                            parsedObject instanceof MsrpResponse ? ((MsrpResponse) parsedObject).getStatusCode() : 0,
+                            parseStart != 0 ? System.nanoTime() - parseStart : -1);
+                }
+
+                // handle the actual received message async (in order) and continue parsing the next msg, but stop
+                // reading once the thread farm falls too far behind
+                final int dispatchedSize = parsedObject instanceof MsrpSendRequest ? ((MsrpSendRequest) parsedObject).getSize() : 0;
+                if (dispatchedSize > 0) {
+                    int depth = dispatchedBytes.addAndGet(dispatchedSize);
+                    DISPATCH_DEPTH.record(depth);
+                    if (depth > Configurator.getMaxInboundQueueSize() && !dispatchPaused) {
+                        pauseDispatching();
+                    }
+                }
+                pendingDispatches.offer(new Runnable() {
                     @Override
                     public void run() {
-                        if (parsedObject instanceof MsrpSendRequest) {
-                            handleRequest((MsrpSendRequest) parsedObject);
-                        } else if (parsedObject instanceof MsrpResponse) {
-                            handleResponse((MsrpResponse) parsedObject);
-                        } else {
-                            Logger.i(TAG, "Don't know what to do with " + parsedObject);
+                        StackEvents.setCurrentCorrelationId(correlationId);
+                        try {
+                            if (parsedObject instanceof MsrpSendRequest) {
+                                handleRequest((MsrpSendRequest) parsedObject);
+                            } else if (parsedObject instanceof MsrpResponse) {
+                                handleResponse((MsrpResponse) parsedObject);
+                            } else if (parsedObject instanceof MsrpReportRequest) {
+                                handleReport((MsrpReportRequest) parsedObject);
+                            } else {
+                                Logger.i(TAG, "Don't know what to do with " + parsedObject);
+                            }
+                        } finally {
+                            StackEvents.setCurrentCorrelationId(0);
+                            if (dispatchedSize > 0 && dispatchedBytes.addAndGet(-dispatchedSize) <= Configurator.getMaxInboundQueueSize() / 2 && dispatchPaused) {
+                                resumeDispatchingIfDrained();
+                            }
                         }
                     }
                 });
+                parentInstance.getThreadFarm().execute(dispatchPending);
             }
 
             // evaluate the parse result
@@ -318,38 +674,33 @@ public class ChannelState implements ITcpConnectionListener {
                 break;
             }
 
+            // the next message is already (partly) in the buffer, parse it from where this one ended
+            if (result == MsrpParser.State.done && haveMoreBytes) {
+                continue;
+            }
+
             // prepare the buffer for the next write iteration (reading from the socket into this buffer)
-            if (haveMoreBytes) {
+            if (pooledReadBuffer.isShared()) {
+                // handed out bodies still point into this buffer, continue with a fresh one
+                PooledReadBuffer fresh = PooledReadBuffer.acquire();
+                BODY_BYTES_COPIED.add(readBuffer.remaining());
+                fresh.getBuffer().put(readBuffer);  // prepares for writing
+                pooledReadBuffer.release();
+                pooledReadBuffer = fresh;
+            } else if (haveMoreBytes) {
+                BODY_BYTES_COPIED.add(readBuffer.remaining());
                 readBuffer.compact();  // prepares for writing
             } else {
                 readBuffer.clear();
             }
             parser.resetBufferPosition();
-
-
-            isExpectingMoreData = (result == MsrpParser.State.needMoreData ||  // we simply do not have enough data to generate a chunk pice
-
-                    // we had enough data to generate a chunk pice, but we left bytes in the buffer since they look like the start of an end-line
-                    (result == MsrpParser.State.chunk_piece_parsed && haveMoreBytes)
-            );
-
-            // tell grizzly that we are ready for a new parse iteration (without reading from the network socket)
-            hasMoreBytesToParse = (result == MsrpParser.State.done && haveMoreBytes);
-
-
-            if (isExpectingMoreData || !hasMoreBytesToParse) {
-                break; // we need to leave and read from data from the socket now
-            }
-
-            // switch back to reading mode for more reading round
-            readBuffer.limit(readBuffer.position());
-            readBuffer.position(0);
-
+            break; // we need to leave and read from data from the socket now
         }
     }
 
     @Override
     public void socketConnectionOpened() {
+        lastReadAt = lastWrittenAt = System.currentTimeMillis();
         for (Participant p : participants.values()) {
             p.connectionUp(this);
         }
@@ -357,7 +708,18 @@ public class ChannelState implements ITcpConnectionListener {
 
     @Override
     public void socketConnectionClosed() {
+        if (pooledReadBuffer != null) {
+            pooledReadBuffer.release();
+            pooledReadBuffer = null;
+        }
         kickParticipantsAsync();
+
+        // a lingering connection which was lost is of no use anymore
+        parentInstance.getThreadFarm().execute(new Runnable() {
+            public void run() {
+                closeIfLingering("connection lost");
+            }
+        });
     }
 
     @Override
@@ -367,13 +729,47 @@ public class ChannelState implements ITcpConnectionListener {
         }
     }
 
+    /**
+     * Sends one keep-alive for this connection, no matter how many participants share it, and only if
+     * the connection has been idle in both directions for Configurator.getKeepAliveIdleInterval(). If nothing
+     * is read within Configurator.getKeepAliveTimeout() after that, the connection is closed and all
+     * participants on it are terminated.
+     */
     @Override
     public void sendKeepAliveNow() {
+        final long now = System.currentTimeMillis();
+        final long lastActivity = Math.max(lastReadAt, lastWrittenAt);
+        if (now - lastActivity < Configurator.getKeepAliveIdleInterval()) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Channel " + toString() + " was active " + (now - lastActivity) + "ms ago, no keep-alive needed");
+            }
+            return;
+        }
+
+        Participant probingParticipant = null;
         //noinspection LoopStatementThatDoesntLoop
         for (Participant p : participants.values()) {
-            p.sendKeepAlive();
+            probingParticipant = p;
             break; // we only need one keep-alive per TCP-connection
         }
+        if (probingParticipant == null) {
+            return;
+        }
+        probingParticipant.sendKeepAlive();
+
+        int timeout = Configurator.getKeepAliveTimeout();
+        if (timeout > 0) {
+            final TcpConnection probedConnection = tcpConnection;
+            parentInstance.getThreadFarm().schedule(new Runnable() {
+                public void run() {
+                    if (lastReadAt < now && probedConnection == tcpConnection && !probedConnection.isReadingSuspended()
+                            && probedConnection.getUnSafeConnectionState() == TcpConnection.ConnectionState.connected) {
+                        Logger.i(TAG, "Nothing received on " + ChannelState.this.toString() + " since the keep-alive was sent, closing it");
+                        close();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
     }
 
     private enum LifeState {
@@ -382,6 +778,12 @@ public class ChannelState implements ITcpConnectionListener {
          */
         available,
 
+        /**
+         * Indicates that all participants have left, but the connection is kept open for a while
+         * such that the next participant towards the same host can use it right away
+         */
+        lingering,
+
         /**
          * Indicates that the channel is not usable
          */
@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+/**
+ * Searches a chunk body for the end-line of one transaction: CRLF, seven dashes, the
+ * transaction-id and the continuation flag followed by CRLF.
+ * <p/>
+ * The body is scanned directly in the backing array using Horspool's algorithm on everything up to
+ * the continuation flag, which lets the search skip ahead by up to the length of that prefix at a time.
+ * The end-line bytes and the skip table are computed once per transaction; the parser keeps the instance
+ * in its ParseState, such that an interruptible chunk which arrives in many reads doesn't rebuild it
+ * on every read.
+ *
+ * @author Sebastian Dehne
+ */
+class EndLineScanner {
+
+    private static final String END_LINE_START = "\r\n-------";
+
+    private final byte[] endLine;
+    private final int flagOffset;
+    private final int[] skip;
+
+    EndLineScanner(String transactionID) {
+        final String s = END_LINE_START + transactionID + "?\r\n";
+        endLine = new byte[s.length()];
+        for (int i = 0; i < endLine.length; i++) {
+            endLine[i] = (byte) s.charAt(i);
+        }
+        flagOffset = endLine.length - 3;
+
+        // how far the prefix (everything before the flag) can be moved, based on the byte found under its last position
+        skip = new int[256];
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = flagOffset;
+        }
+        for (int i = 0; i < flagOffset - 1; i++) {
+            skip[endLine[i] & 0xff] = flagOffset - 1 - i;
+        }
+    }
+
+    /**
+     * @return the length of the complete end-line
+     */
+    int length() {
+        return endLine.length;
+    }
+
+    /**
+     * @return the offset of the continuation flag within the end-line
+     */
+    int getFlagOffset() {
+        return flagOffset;
+    }
+
+    /**
+     * Searches a[from..to) for the end-line.
+     * <p/>
+     * The result follows the convention of Arrays.binarySearch(): if a complete end-line was found,
+     * its index is returned. Otherwise (-(p) - 1) is returned, where p is the index from which on the
+     * bytes might be the start of an end-line that hasn't been received completely yet; all bytes
+     * before p are body. If nothing looks like the start of an end-line, p equals to.
+     *
+     * @param a    the array to search
+     * @param from the index of the first byte which may start the end-line
+     * @param to   the index after the last received byte
+     * @return the index of the end-line, or (-(p) - 1)
+     */
+    int find(byte[] a, int from, int to) {
+        final byte[] p = endLine;
+        final int last = flagOffset - 1;
+
+        int i = from;
+        while (i + flagOffset <= to) {
+            final byte b = a[i + last];
+            if (b == p[last] && prefixMatches(a, i, last)) {
+                if (i + p.length > to) {
+                    // the flag and/or the closing crlf haven't been received yet
+                    return -i - 1;
+                }
+                if (a[i + flagOffset + 1] == '\r' && a[i + flagOffset + 2] == '\n') {
+                    return i;
+                }
+            }
+            i += skip[b & 0xff];
+        }
+
+        // less than the prefix is left, but these bytes might still start an end-line
+        for (; i < to; i++) {
+            if (prefixMatches(a, i, to - i)) {
+                return -i - 1;
+            }
+        }
+        return -to - 1;
+    }
+
+    /*
+     * Compares a[i..i+len) to the start of the end-line; len never exceeds the prefix up to the flag
+     */
+    private boolean prefixMatches(byte[] a, int i, int len) {
+        for (int j = len - 1; j >= 0; j--) {
+            if (a[i + j] != endLine[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+/**
+ * Case-insensitive lookup of well-known header names, done directly on the characters collected by
+ * the ByteParser. The parser dispatches on the returned index, so no String needs to be created for
+ * headers it knows about and the name isn't compared against each known header in turn.
+ *
+ * @author Sebastian Dehne
+ */
+class HeaderNameTable {
+
+    private static final int BUCKETS = 32;
+
+    private final char[][] names;
+    private final int[][] buckets;
+
+    /**
+     * @param names the known header names; lookup() returns the index into this array
+     */
+    HeaderNameTable(String... names) {
+        this.names = new char[names.length][];
+        int[] bucketSizes = new int[BUCKETS];
+        for (int i = 0; i < names.length; i++) {
+            this.names[i] = names[i].toCharArray();
+            bucketSizes[bucket(this.names[i], this.names[i].length)]++;
+        }
+
+        buckets = new int[BUCKETS][];
+        for (int b = 0; b < BUCKETS; b++) {
+            buckets[b] = new int[bucketSizes[b]];
+            bucketSizes[b] = 0;
+        }
+        for (int i = 0; i < names.length; i++) {
+            int b = bucket(this.names[i], this.names[i].length);
+            buckets[b][bucketSizes[b]++] = i;
+        }
+    }
+
+    /**
+     * @param word   the characters of the header name
+     * @param length the number of characters used in word
+     * @return the index of the matching known name, -1 if the name isn't known
+     */
+    int lookup(char[] word, int length) {
+        if (length == 0) {
+            return -1;
+        }
+        for (int i : buckets[bucket(word, length)]) {
+            if (equalsIgnoreCase(names[i], word, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int bucket(char[] word, int length) {
+        return (toLower(word[0]) + length) & (BUCKETS - 1);
+    }
+
+    private static boolean equalsIgnoreCase(char[] name, char[] word, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != word[i] && toLower(name[i]) != toLower(word[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * header names are plain ascii
+     */
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
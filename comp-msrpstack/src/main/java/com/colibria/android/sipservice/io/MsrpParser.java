@@ -20,12 +20,14 @@ package com.colibria.android.sipservice.io;
 
 import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.headers.*;
+import com.colibria.android.sipservice.io.config.Configurator;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.parse.ByteParser;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 import static com.colibria.android.sipservice.parse.ByteParser.*;
@@ -108,10 +110,43 @@ public class MsrpParser {
     public static final String MSRP_HEADER_REPORT_SUCC = "Success-Report";
     public static final String MSRP_HEADER_REPORT_FAIL = "Failure-Report";
 
-    private static final String CRLF = "\r\n";
     private static final String END_LINE_PREAMBLE = "-------";
     private static final byte[] MSRP = "MSRP ".getBytes();
 
+    private static final Counter BODY_BYTES_COPIED = Metrics.counter(Metrics.MSRP_BODY_BYTES_COPIED);
+
+    /*
+     * Known msrp headers, in the order of the HEADER_* indexes below
+     */
+    private static final HeaderNameTable MSRP_HEADERS = new HeaderNameTable(
+            MSRP_HEADER_FROMPATH,
+            MSRP_HEADER_TOPATH,
+            MSRP_HEADER_MESSAGE_ID,
+            MSRP_HEADER_BYTE_RANGE,
+            MSRP_HEADER_CONTENT_TYPE,
+            ContentDispositionHeader.NAME,
+            MSRP_HEADER_REPORT_SUCC,
+            MSRP_HEADER_REPORT_FAIL,
+            StatusHeader.NAME);
+    private static final int HEADER_FROMPATH = 0;
+    private static final int HEADER_TOPATH = 1;
+    private static final int HEADER_MESSAGE_ID = 2;
+    private static final int HEADER_BYTE_RANGE = 3;
+    private static final int HEADER_CONTENT_TYPE = 4;
+    private static final int HEADER_CONTENT_DISPOSITION = 5;
+    private static final int HEADER_REPORT_SUCC = 6;
+    private static final int HEADER_REPORT_FAIL = 7;
+    private static final int HEADER_STATUS = 8;
+
+    /*
+     * Known headers of the mime part within cpim, in the order of the MIME_HEADER_* indexes below
+     */
+    private static final HeaderNameTable MIME_HEADERS = new HeaderNameTable(
+            MimeContentTypeHeader.NAME,
+            ContentDispositionHeader.NAME);
+    private static final int MIME_HEADER_CONTENT_TYPE = 0;
+    private static final int MIME_HEADER_CONTENT_DISPOSITION = 1;
+
 
     /**
      * The external parse state
@@ -154,6 +189,7 @@ public class MsrpParser {
     private ParseState parseState;
     private ByteParser st;
     private IMsrpMessage parsedMessage;
+    private PooledReadBuffer bufferOwner;
 
     public MsrpParser() {
         parseState = new ParseState();
@@ -177,8 +213,23 @@ public class MsrpParser {
      * @return the state in which the parser is in when it reached the end of the applied stream
      */
     public State parse(ByteBuffer bb) {
+        return parse(bb, null);
+    }
+
+    /**
+     * Same as parse(ByteBuffer), but bodies are handed out as read-only slices of bb instead of copies.
+     * Each slice holds a reference to owner, which is given up via MsrpSendRequest.releaseBody().
+     * <p/>
+     * The caller must not change the content of bb for as long as owner is shared.
+     *
+     * @param bb    the buffer containing the stream
+     * @param owner the pooled buffer bb belongs to, or null to copy the bodies out of bb
+     * @return the state in which the parser is in when it reached the end of the applied stream
+     */
+    public State parse(ByteBuffer bb, PooledReadBuffer owner) {
 
         parsedMessage = null;
+        bufferOwner = owner;
         boolean wasReadingContentAtBeginning = parseState.getState() == ParseState.State.readingBody;
 
         boolean eofFound = false;
@@ -244,7 +295,8 @@ public class MsrpParser {
                     }
                 case readingBody:
                     bb.position(parseState.getLastBufferPosition());
-                    if (wasReadingContentAtBeginning && isInterruptable()) {
+                    if (wasReadingContentAtBeginning && !parseState.isWorkingOnFirstChunkPiece()) {
+                        // the body parsed so far was handed out already
                         parseState.setChunkStartPos(bb.position());
                         parseState.setMsrpBodyStartPos(parseState.getChunkStartPos());
                     }
@@ -293,6 +345,7 @@ public class MsrpParser {
                                     parseState.getCpimHeaders(),
                                     parseState.getExHeaders(),
                                     parseState.getBody(),
+                                    parseState.getBodyOwner(),
                                     bb.position() - parseState.getChunkStartPos(),
                                     parseState.getMessageContentStartAt());
                             break;
@@ -319,11 +372,11 @@ public class MsrpParser {
              * EOF was reached, but we have enough info to create a chunk piece anyway
              */
             try {
-                if (parseState.getState() == ParseState.State.readingBody && isInterruptable() && parseState.getBody() != null) {
+                if (parseState.getState() == ParseState.State.readingBody && parseState.getBody() != null) {
 
                     validateContent();
 
-                    if (!wasReadingContentAtBeginning) {
+                    if (parseState.isWorkingOnFirstChunkPiece()) {
                         parsedMessage = new MsrpSendRequest(
                                 MsrpSendRequest.ChunkType.head,
                                 parseState.getTransactionID(),
@@ -339,6 +392,7 @@ public class MsrpParser {
                                 parseState.getCpimHeaders(),
                                 parseState.getExHeaders(),
                                 parseState.getBody(),
+                                parseState.getBodyOwner(),
                                 parseState.getLastBufferPosition() - parseState.getChunkStartPos(),
                                 parseState.getMessageContentStartAt());
                     } else if (parseState.getBody() != null) {
@@ -357,11 +411,12 @@ public class MsrpParser {
                                 parseState.getCpimHeaders(),
                                 parseState.getExHeaders(),
                                 parseState.getBody(),
+                                parseState.getBodyOwner(),
                                 parseState.getLastBufferPosition() - parseState.getChunkStartPos(),
                                 parseState.getMessageContentStartAt());
                     }
 
-                    parseState.setBody(null, 0);
+                    parseState.setBody(null, null, 0);
                     parseState.forgetCpimHeaders();
                     parseState.setMsrpBodyStartPos(0);
                     parseState.setWorkingOnFirstChunkPiece(false); // first chunk piece is now created, sub-seqent onces can never be a complete piece anymore
@@ -387,6 +442,26 @@ public class MsrpParser {
         return (parseState.getType() == IMsrpMessage.Type.request && parseState.getByteRange() != null && parseState.getByteRange().getEnd() < 0);
     }
 
+    /**
+     * Decides whether the body bytes parsed so far are handed out as a chunk piece now, or kept in
+     * the buffer until the end-line has been received.
+     * <p/>
+     * Interruptible chunks are always handed out as they arrive. Other SEND chunks are handed out in
+     * pieces once enough body is buffered, such that a chunk larger than the read buffer never has to fit
+     * into it completely. Small chunks therefore still arrive as one complete piece.
+     *
+     * @param bb            the read buffer
+     * @param bufferedBytes the number of body bytes in the buffer which haven't been handed out
+     * @return true if the buffered body is to be handed out as a chunk piece
+     */
+    private boolean isPieceDue(ByteBuffer bb, int bufferedBytes) {
+        if (isInterruptable()) {
+            return true;
+        }
+        return parseState.getType() == IMsrpMessage.Type.request
+                && bufferedBytes >= Math.min(Configurator.getInboundChunkPieceSize(), bb.capacity() / 2);
+    }
+
     private State calculateState() {
         switch (parseState.getState()) {
             case error:
@@ -510,14 +585,16 @@ public class MsrpParser {
         bb.position(parseState.getLastBufferPosition());
 
         String headerName, headerValue;
-        int i;
+        int header, i;
         while ((i = st.read(bb, PATTERN_HEADER_NAME)) == READ_WORD) {
 
-            headerName = st.getWordAsString();
+            // only unknown headers need their name as a string
+            header = MSRP_HEADERS.lookup(st.getWord(), st.getWordLength());
+            headerName = header < 0 ? st.getWordAsString() : null;
             st.resetWord();
 
             // Test whether we've hit the bottum line yet
-            if (headerName.startsWith(END_LINE_PREAMBLE)) {
+            if (headerName != null && headerName.startsWith(END_LINE_PREAMBLE)) {
                 parseState.setLastBufferPosition(parseState.getLastBufferPosition() - 2); // move back to last known pos min the last crlf
                 return;
             }
@@ -540,27 +617,37 @@ public class MsrpParser {
                 throw new IOException("Unexpected prolog");
             }
 
-            if (MSRP_HEADER_FROMPATH.equals(headerName)) {
-                parseState.setFromPath(MsrpPath.parseValue(headerValue));
-            } else if (MSRP_HEADER_TOPATH.equals(headerName)) {
-                parseState.setToPath(MsrpPath.parseValue(headerValue));
-            } else if (MSRP_HEADER_MESSAGE_ID.equals(headerName)) {
-                parseState.setMessageID(headerValue);
-            } else if (MSRP_HEADER_BYTE_RANGE.equals(headerName)) {
-                parseState.setByteRange(ByteRange.parse(headerValue));
-            } else if (MSRP_HEADER_CONTENT_TYPE.equals(headerName)) {
-                parseState.setContentType(MimeType.parse(headerValue));
-            } else if (ContentDispositionHeader.NAME.equals(headerName)) {
-                parseState.setContentDispositionHeader(ContentDispositionHeader.parse(headerValue, false));
-            } else if (MSRP_HEADER_REPORT_SUCC.equals(headerName)) {
-                parseState.setSuccessReportHeader(new SuccessReportHeader(headerValue));
-            } else if (MSRP_HEADER_REPORT_FAIL.equals(headerName)) {
-                parseState.setFailureReportHeader(new FailureReportHeader(headerValue));
-            } else if (StatusHeader.NAME.equals(headerName)) {
-                parseState.setStatusHeader(StatusHeader.parse(headerValue));
-            } else {
-                // note: matching above was case-sensitive; thus it might be that some headers end up as "extention header"
-                parseState.addExHeader(headerName, headerValue);
+            switch (header) {
+                case HEADER_FROMPATH:
+                    parseState.setFromPath(MsrpPath.parseValue(headerValue));
+                    break;
+                case HEADER_TOPATH:
+                    parseState.setToPath(MsrpPath.parseValue(headerValue));
+                    break;
+                case HEADER_MESSAGE_ID:
+                    parseState.setMessageID(headerValue);
+                    break;
+                case HEADER_BYTE_RANGE:
+                    parseState.setByteRange(ByteRange.parse(headerValue));
+                    break;
+                case HEADER_CONTENT_TYPE:
+                    parseState.setContentType(MimeType.parse(headerValue));
+                    break;
+                case HEADER_CONTENT_DISPOSITION:
+                    parseState.setContentDispositionHeader(ContentDispositionHeader.parse(headerValue, false));
+                    break;
+                case HEADER_REPORT_SUCC:
+                    parseState.setSuccessReportHeader(new SuccessReportHeader(headerValue));
+                    break;
+                case HEADER_REPORT_FAIL:
+                    parseState.setFailureReportHeader(new FailureReportHeader(headerValue));
+                    break;
+                case HEADER_STATUS:
+                    parseState.setStatusHeader(StatusHeader.parse(headerValue));
+                    break;
+                default:
+                    // header names are matched case-insensitive, so only headers this stack doesn't know end up here
+                    parseState.addExHeader(headerName, headerValue);
             }
 
             parseState.setLastBufferPosition(bb.position());
@@ -643,9 +730,10 @@ public class MsrpParser {
         bb.position(parseState.getLastBufferPosition());
 
         String headerName, headerValue;
-        int i;
+        int header, i;
         while ((i = st.read(bb, PATTERN_HEADER_NAME)) == READ_WORD) {
-            headerName = st.getWordAsString();
+            header = MIME_HEADERS.lookup(st.getWord(), st.getWordLength());
+            headerName = header < 0 ? st.getWordAsString() : null;
             st.resetWord();
 
             if (st.read(bb, PATTERN_HEADER_NAME) != ':') {
@@ -666,12 +754,15 @@ public class MsrpParser {
                 throw new IOException("Unexpected prolog");
             }
 
-            if (MimeContentTypeHeader.NAME.equals(headerName)) {
-                parseState.addCPIMHeader(MimeContentTypeHeader.parse(headerValue));
-            } else if (ContentDispositionHeader.NAME.equals(headerName)) {
-                parseState.addCPIMHeader(ContentDispositionHeader.parse(headerValue, true));
-            } else {
-                parseState.addCPIMHeader(CPIMExtentionHeader.parse(headerName, headerValue, true));
+            switch (header) {
+                case MIME_HEADER_CONTENT_TYPE:
+                    parseState.addCPIMHeader(MimeContentTypeHeader.parse(headerValue));
+                    break;
+                case MIME_HEADER_CONTENT_DISPOSITION:
+                    parseState.addCPIMHeader(ContentDispositionHeader.parse(headerValue, true));
+                    break;
+                default:
+                    parseState.addCPIMHeader(CPIMExtentionHeader.parse(headerName, headerValue, true));
             }
 
             parseState.setLastBufferPosition(bb.position());
@@ -688,57 +779,24 @@ public class MsrpParser {
 
     private void readContent(ByteBuffer bb) throws IOException {
 
-        final byte[] magicSequence = (CRLF + END_LINE_PREAMBLE + parseState.getTransactionID() + '?' + CRLF).getBytes();
-        int contMarkPos = magicSequence.length - 3;
-        byte r;
-        boolean done = false;
-        int matchingIx = 0, continuationFlag = 0;
+        final EndLineScanner endLine = parseState.getEndLineScanner();
+        final byte[] data = bb.array();
+        final int offset = bb.arrayOffset();
         final int startPosition = bb.position();
+        int continuationFlag = 0;
 
-        do {
-            try {
-                r = bb.get();
-            } catch (BufferUnderflowException e) {
-                break;
-            }
-
-            // we are currently trying to parse the end-line
-            if (matchingIx > 0) {
-                if (magicSequence[matchingIx] == r || matchingIx == contMarkPos) {
-                    if (matchingIx == contMarkPos) {
-                        continuationFlag = r;
-                    }
-                    matchingIx++;
-                    if (matchingIx == magicSequence.length) {
-                        done = true;
-                    }
-                } else {
-                    // had match, but no more, copy those skipped so far
-                    parseState.setLastBufferPosition(bb.position() - 1);
-
-                    if (r == magicSequence[0]) {
-                        // last read was matching first byte of magic sequence, so
-                        // set index to 1 and continue matching from here on
-                        matchingIx = 1;
-                    } else {
-                        // not matching first byte of magic sequence, so copy last read too
-                        matchingIx = 0;
-                        parseState.setLastBufferPosition(bb.position());
-                    }
-                }
-
-            }
-
-            // not currently parsing the end-line
-            else {
-                if (r == magicSequence[0] && (bb.position() - startPosition) > parseState.getCpimBlockLength()) {
-                    matchingIx = 1; // start to parse the end-line
-                } else {
-                    parseState.setLastBufferPosition(bb.position()); // save r
-                }
-            }
-
-        } while (!done);
+        // the end-line cannot start within the cpim block
+        final int found = endLine.find(data, offset + startPosition + parseState.getCpimBlockLength(), offset + bb.limit());
+        final boolean done = found >= 0;
+        if (done) {
+            parseState.setLastBufferPosition(found - offset);
+            continuationFlag = data[found + endLine.getFlagOffset()];
+            bb.position(found - offset + endLine.length());
+        } else {
+            // keep what might be the start of the end-line for the next iteration
+            parseState.setLastBufferPosition(-found - 1 - offset);
+            bb.position(bb.limit());
+        }
 
         // parsed until end of chunk
         if (done) {
@@ -746,10 +804,7 @@ public class MsrpParser {
             // set the body
             final int len = parseState.getLastBufferPosition() - parseState.getMsrpBodyStartPos();
             if (len > 0) {
-                byte[] content = new byte[len];
-                System.arraycopy(bb.array(), parseState.getMsrpBodyStartPos() + bb.arrayOffset(), content, 0, len);
-                parseState.setBody(content, parseState.getCpimBlockLength());
-                parseState.setCpimBlockLength(0);
+                setBody(bb, len);
             }
 
             // set the continuation flag
@@ -773,13 +828,10 @@ public class MsrpParser {
 
         // could not find end of chunk in this buffer, due to EOF
         else {
-            if (isInterruptable()) {
+            final int len = parseState.getLastBufferPosition() - parseState.getMsrpBodyStartPos();
+            if (isPieceDue(bb, len)) {
                 // set the body parsed so far
-                final int len = parseState.getLastBufferPosition() - parseState.getMsrpBodyStartPos();
-                byte[] content = new byte[len];
-                System.arraycopy(bb.array(), parseState.getMsrpBodyStartPos() + bb.arrayOffset(), content, 0, len);
-                parseState.setBody(content, parseState.getCpimBlockLength());
-                parseState.setCpimBlockLength(0);
+                setBody(bb, len);
             } else {
                 parseState.setLastBufferPosition(parseState.getMsrpBodyStartPos()); // go back to the beginning of the body such that our later compact() operation doesn't delete any bytes
             }
@@ -790,6 +842,33 @@ public class MsrpParser {
         }
     }
 
+    /**
+     * Sets the len bytes starting at the msrp body start position as body of the current chunk (piece).
+     *
+     * @param bb  the read buffer
+     * @param len the body length
+     */
+    private void setBody(ByteBuffer bb, int len) {
+        final int start = parseState.getMsrpBodyStartPos();
+        ByteBuffer content;
+        PooledReadBuffer owner = null;
+        if (bufferOwner != null && len > 0) {
+            content = bb.duplicate();
+            content.limit(start + len);
+            content.position(start);
+            content = content.slice();
+            owner = bufferOwner;
+            owner.retain();
+        } else {
+            byte[] copy = new byte[len];
+            System.arraycopy(bb.array(), start + bb.arrayOffset(), copy, 0, len);
+            BODY_BYTES_COPIED.add(len);
+            content = ByteBuffer.wrap(copy);
+        }
+        parseState.setBody(content, owner, parseState.getCpimBlockLength());
+        parseState.setCpimBlockLength(0);
+    }
+
     public void reset() {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "enter");
@@ -807,6 +886,8 @@ public class MsrpParser {
      * must resume parsing at the next iteration at position 0.
      */
     public void resetBufferPosition() {
+        // the bytes before the stopped position are gone, the current chunk may therefore have started before the buffer
+        parseState.setChunkStartPos(parseState.getChunkStartPos() - parseState.getLastBufferPosition());
         parseState.setLastBufferPosition(0);
         parseState.setMsrpBodyStartPos(0);
     }
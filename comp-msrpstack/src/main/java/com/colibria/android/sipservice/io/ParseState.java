@@ -22,6 +22,7 @@ import com.colibria.android.sipservice.MimeType;
 import com.colibria.android.sipservice.headers.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -88,6 +89,7 @@ public class ParseState {
 
     // general msrp message
     private String transactionID;
+    private EndLineScanner endLineScanner;
     private MsrpPath toPath;
     private MsrpPath fromPath;
     private Continuation continuation;
@@ -96,7 +98,8 @@ public class ParseState {
     private int chunkStartPos = 0;
     private int msrpBodyStartPos;
 
-    private byte[] body;
+    private ByteBuffer body;
+    private PooledReadBuffer bodyOwner; // the read buffer the body is a slice of, if it wasn't copied
     private int messageContentStartAt; // position in the byte[] body buffer
 
 
@@ -139,6 +142,17 @@ public class ParseState {
 
     public void setTransactionID(String transactionID) {
         this.transactionID = transactionID;
+        this.endLineScanner = null;
+    }
+
+    /**
+     * @return the scanner for the end-line of the current transaction, created once per transaction
+     */
+    EndLineScanner getEndLineScanner() {
+        if (endLineScanner == null) {
+            endLineScanner = new EndLineScanner(transactionID);
+        }
+        return endLineScanner;
     }
 
     public SuccessReportHeader getSuccessReportHeader() {
@@ -285,12 +299,17 @@ public class ParseState {
         return cpimHeaders != null && cpimHeaders.containsKey(name);
     }
 
-    public byte[] getBody() {
+    public ByteBuffer getBody() {
         return body;
     }
 
-    public void setBody(byte[] body, int messageContentStartAt) {
+    public PooledReadBuffer getBodyOwner() {
+        return bodyOwner;
+    }
+
+    public void setBody(ByteBuffer body, PooledReadBuffer bodyOwner, int messageContentStartAt) {
         this.body = body;
+        this.bodyOwner = bodyOwner;
         this.messageContentStartAt = messageContentStartAt;
     }
 
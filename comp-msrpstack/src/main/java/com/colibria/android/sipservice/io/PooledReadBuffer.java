@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted read buffer which is taken from and given back to a small pool.
+ * <p/>
+ * The channel reading from the network holds one reference. Every chunk body handed out as a slice of
+ * the buffer holds another one, until the body has been consumed and released. As long as slices are
+ * outstanding the buffer is shared and its content must not be changed, the channel therefore continues
+ * reading into a fresh buffer instead.
+ *
+ * @author Sebastian Dehne
+ */
+public class PooledReadBuffer implements IReferenceCounted {
+
+    public static final int SIZE = 1024 * 32;
+    private static final int MAX_POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<PooledReadBuffer> pool = new ConcurrentLinkedQueue<PooledReadBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger references;
+
+    private PooledReadBuffer() {
+        buffer = ByteBuffer.allocate(SIZE);
+        references = new AtomicInteger(0);
+    }
+
+    /**
+     * @return an empty buffer, in write mode and referenced once by the caller
+     */
+    public static PooledReadBuffer acquire() {
+        PooledReadBuffer b = pool.poll();
+        if (b == null) {
+            b = new PooledReadBuffer();
+        } else {
+            pooled.decrementAndGet();
+        }
+        b.buffer.clear();
+        b.references.set(1);
+        return b;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to this buffer, to be given up again via release()
+     */
+    public void retain() {
+        if (references.getAndIncrement() < 1) {
+            throw new IllegalStateException("Buffer has been released already");
+        }
+    }
+
+    /**
+     * Gives up one reference. The buffer goes back to the pool once the last reference is given up.
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.offer(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+        } else if (left < 0) {
+            throw new IllegalStateException("Buffer has been released already");
+        }
+    }
+
+    /**
+     * @return true if somebody besides the current holder still references this buffer
+     */
+    public boolean isShared() {
+        return references.get() > 1;
+    }
+
+}
@@ -18,6 +18,7 @@
  */
 package com.colibria.android.sipservice.io.config;
 
+import com.colibria.android.sipservice.headers.FailureReportHeader;
 
 /**
  * @author Sebastian Dehne
@@ -34,7 +35,43 @@ public class Configurator {
 
     private static volatile int qoDefaultInPolicyDelay = 2 * 1000;
 
-    private static volatile int maxOutboundQueueSize = 2048 * 10;
+    private static volatile int maxOutboundQueueSize = 2048 * 32;
+
+    private static volatile int sendWindowSize = 1;
+
+    private static volatile int sendTransactionTimeout = 0;
+
+    private static volatile int schedulerQuantum = 1024;
+
+    private static volatile int minChunkPieceSize = 512;
+
+    private static volatile int maxChunkPieceSize = 1024 * 16;
+
+    private static volatile int chunkPieceTargetDelay = 50;
+
+    private static volatile int inboundChunkPieceSize = 1024 * 8;
+
+    private static volatile long maxCollectorMemory = 1024 * 1024 * 8;
+
+    private static volatile long maxSessionCollectorMemory = 1024 * 1024 * 2;
+
+    private static volatile FailureReportHeader.Value fileTransferFailureReport = FailureReportHeader.Value.yes;
+
+    private static volatile boolean fileTransferSuccessReport = false;
+
+    private static volatile int keepAliveIdleInterval = 2 * 60 * 1000;
+
+    private static volatile int keepAliveTimeout = 30 * 1000;
+
+    private static volatile int connectionLingerTime = 30 * 1000;
+
+    private static volatile int maxLingeringConnections = 4;
+
+    private static volatile int maxAcceptsPerSecond = 10;
+
+    private static volatile int maxInboundQueueSize = 2048 * 32;
+
+    private static volatile int compressionThreshold = 512;
 
     public static int getBufferSize() {
         return bufferSize;
@@ -59,4 +96,320 @@ public class Configurator {
     public static int getMaxOutboundQueueSize() {
         return maxOutboundQueueSize;
     }
+
+    public static int getSendWindowSize() {
+        return sendWindowSize;
+    }
+
+    /**
+     * Sets the number of SEND transactions a participant may have outstanding
+     * (sent, but not yet responded to) at the same time. (Default is 1)
+     *
+     * @param sendWindowSize the window size, must be at least 1
+     */
+    public static void setSendWindowSize(int sendWindowSize) {
+        if (sendWindowSize < 1) {
+            throw new IllegalArgumentException("sendWindowSize must be at least 1");
+        }
+        Configurator.sendWindowSize = sendWindowSize;
+    }
+
+    public static int getSendTransactionTimeout() {
+        return sendTransactionTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an outstanding SEND transaction is
+     * given up and reported to the application as 408. (Default is 0, which means no timeout)
+     * <p/>
+     * Using a timeout is recommended when the send window is larger than 1, since
+     * responses may then arrive out of order and a missing response can no longer be
+     * detected by a mismatching transactionID.
+     * A response which arrives after its transaction timed out no longer matches. It is ignored while there is room
+     * in the window, otherwise the participant is closed.
+     *
+     * @param sendTransactionTimeout timeout in milliseconds, 0 to disable
+     */
+    public static void setSendTransactionTimeout(int sendTransactionTimeout) {
+        Configurator.sendTransactionTimeout = sendTransactionTimeout;
+    }
+
+    public static int getSchedulerQuantum() {
+        return schedulerQuantum;
+    }
+
+    /**
+     * Sets the number of bytes a message may send per round of the outbound scheduler and per unit
+     * of its priority, before chunk pieces of the next message get their turn. (Default is 1024)
+     *
+     * @param schedulerQuantum the quantum in bytes, must be at least 1
+     */
+    public static void setSchedulerQuantum(int schedulerQuantum) {
+        if (schedulerQuantum < 1) {
+            throw new IllegalArgumentException("schedulerQuantum must be at least 1");
+        }
+        Configurator.schedulerQuantum = schedulerQuantum;
+    }
+
+    public static int getMinChunkPieceSize() {
+        return minChunkPieceSize;
+    }
+
+    /**
+     * Sets the smallest number of content bytes a chunk piece is shrunk to on a slow connection. (Default is 512)
+     *
+     * @param minChunkPieceSize the size in bytes, must be at least 1
+     */
+    public static void setMinChunkPieceSize(int minChunkPieceSize) {
+        if (minChunkPieceSize < 1) {
+            throw new IllegalArgumentException("minChunkPieceSize must be at least 1");
+        }
+        Configurator.minChunkPieceSize = minChunkPieceSize;
+    }
+
+    public static int getMaxChunkPieceSize() {
+        return maxChunkPieceSize;
+    }
+
+    /**
+     * Sets the largest number of content bytes a chunk piece may carry. This is also the largest
+     * content the application may pass into IEndPointSession.sendNewMessage() at once. (Default is 16 KB)
+     * <p/>
+     * Chunk pieces never grow beyond a quarter of the outbound queue size either.
+     *
+     * @param maxChunkPieceSize the size in bytes, must be at least 1
+     */
+    public static void setMaxChunkPieceSize(int maxChunkPieceSize) {
+        if (maxChunkPieceSize < 1) {
+            throw new IllegalArgumentException("maxChunkPieceSize must be at least 1");
+        }
+        Configurator.maxChunkPieceSize = maxChunkPieceSize;
+    }
+
+    public static int getChunkPieceTargetDelay() {
+        return chunkPieceTargetDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds a chunk piece may spend in the write queue of the connection
+     * before the piece size is reduced. The piece size grows while pieces are written in less than
+     * half of this time. (Default is 50)
+     *
+     * @param chunkPieceTargetDelay the delay in milliseconds
+     */
+    public static void setChunkPieceTargetDelay(int chunkPieceTargetDelay) {
+        Configurator.chunkPieceTargetDelay = chunkPieceTargetDelay;
+    }
+
+    public static int getInboundChunkPieceSize() {
+        return inboundChunkPieceSize;
+    }
+
+    /**
+     * Sets the number of body bytes of a received chunk which are buffered before they are handed
+     * to the application as a chunk piece, for chunks which the parser would otherwise have to buffer
+     * completely (chunks with a known Byte-Range end). Never more than half of the read buffer is
+     * used. (Default is 8 KB)
+     *
+     * @param inboundChunkPieceSize the size in bytes, must be at least 1
+     */
+    public static void setInboundChunkPieceSize(int inboundChunkPieceSize) {
+        if (inboundChunkPieceSize < 1) {
+            throw new IllegalArgumentException("inboundChunkPieceSize must be at least 1");
+        }
+        Configurator.inboundChunkPieceSize = inboundChunkPieceSize;
+    }
+
+    public static long getMaxCollectorMemory() {
+        return maxCollectorMemory;
+    }
+
+    /**
+     * Sets how many bytes of received content all SegmentedMessageCollectors together may keep in memory.
+     * Once this is exceeded, further messages are spilled to temporary files. (Default is 8 MB)
+     *
+     * @param maxCollectorMemory the limit in bytes, must not be negative
+     */
+    public static void setMaxCollectorMemory(long maxCollectorMemory) {
+        if (maxCollectorMemory < 0) {
+            throw new IllegalArgumentException("maxCollectorMemory must not be negative");
+        }
+        Configurator.maxCollectorMemory = maxCollectorMemory;
+    }
+
+    public static long getMaxSessionCollectorMemory() {
+        return maxSessionCollectorMemory;
+    }
+
+    /**
+     * Sets the limit of a MemoryBudget created for a session without an explicit limit, that is how many bytes
+     * of received content the SegmentedMessageCollectors of one session may keep in memory. (Default is 2 MB)
+     *
+     * @param maxSessionCollectorMemory the limit in bytes, must not be negative
+     */
+    public static void setMaxSessionCollectorMemory(long maxSessionCollectorMemory) {
+        if (maxSessionCollectorMemory < 0) {
+            throw new IllegalArgumentException("maxSessionCollectorMemory must not be negative");
+        }
+        Configurator.maxSessionCollectorMemory = maxSessionCollectorMemory;
+    }
+
+    public static FailureReportHeader.Value getFileTransferFailureReport() {
+        return fileTransferFailureReport;
+    }
+
+    /**
+     * Sets the Failure-Report value of the chunks sent by IEndPointSession.sendFile() and resumeFile().
+     * With 'partial' the receiver only responds to chunks it could not accept, with 'no' it never responds, which
+     * means it can't refuse the transfer either. In both cases the chunks of a file no longer wait for a response
+     * before the next one is sent.
+     * Use this together with setFileTransferSuccessReport(), so that the completion of the transfer is
+     * still confirmed by a REPORT. (Default is yes)
+     *
+     * @param fileTransferFailureReport the Failure-Report value, must not be null
+     */
+    public static void setFileTransferFailureReport(FailureReportHeader.Value fileTransferFailureReport) {
+        if (fileTransferFailureReport == null) {
+            throw new IllegalArgumentException("fileTransferFailureReport must not be null");
+        }
+        Configurator.fileTransferFailureReport = fileTransferFailureReport;
+    }
+
+    public static boolean isFileTransferSuccessReport() {
+        return fileTransferSuccessReport;
+    }
+
+    /**
+     * Sets whether the chunks sent by IEndPointSession.sendFile() and resumeFile() request a REPORT from
+     * the receiver once the whole file arrived. (Default is false)
+     *
+     * @param fileTransferSuccessReport true to send Success-Report: yes
+     */
+    public static void setFileTransferSuccessReport(boolean fileTransferSuccessReport) {
+        Configurator.fileTransferSuccessReport = fileTransferSuccessReport;
+    }
+
+    public static int getKeepAliveIdleInterval() {
+        return keepAliveIdleInterval;
+    }
+
+    /**
+     * Sets for how long in milliseconds a connection must not have read nor written anything
+     * before a keep-alive request is sent on it. (Default is 2 minutes)
+     * <p/>
+     * Keep-alives are only attempted when TcpController.sendKeepAlives() is called, so the longest time a
+     * connection stays silent is the period of those calls plus this interval.
+     *
+     * @param keepAliveIdleInterval idle time in milliseconds, 0 to send a keep-alive on every attempt
+     */
+    public static void setKeepAliveIdleInterval(int keepAliveIdleInterval) {
+        if (keepAliveIdleInterval < 0) {
+            throw new IllegalArgumentException("keepAliveIdleInterval must not be negative");
+        }
+        Configurator.keepAliveIdleInterval = keepAliveIdleInterval;
+    }
+
+    public static int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait for any data after a keep-alive was sent. If nothing
+     * was read in time, the connection is closed and all participants using it are terminated. (Default is 30 seconds)
+     *
+     * @param keepAliveTimeout timeout in milliseconds, 0 to disable
+     */
+    public static void setKeepAliveTimeout(int keepAliveTimeout) {
+        if (keepAliveTimeout < 0) {
+            throw new IllegalArgumentException("keepAliveTimeout must not be negative");
+        }
+        Configurator.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public static int getConnectionLingerTime() {
+        return connectionLingerTime;
+    }
+
+    /**
+     * Sets for how long in milliseconds a connection is kept open after its last participant left, such that
+     * the next participant towards the same host can use it without connecting again. (Default is 30 seconds)
+     *
+     * @param connectionLingerTime linger time in milliseconds, 0 to close connections right away
+     */
+    public static void setConnectionLingerTime(int connectionLingerTime) {
+        if (connectionLingerTime < 0) {
+            throw new IllegalArgumentException("connectionLingerTime must not be negative");
+        }
+        Configurator.connectionLingerTime = connectionLingerTime;
+    }
+
+    public static int getMaxLingeringConnections() {
+        return maxLingeringConnections;
+    }
+
+    /**
+     * Sets how many connections without participants may be kept open at the same time. When another connection
+     * starts lingering, the one which has been lingering the longest is closed. (Default is 4)
+     *
+     * @param maxLingeringConnections the maximum number of lingering connections, 0 to close connections right away
+     */
+    public static void setMaxLingeringConnections(int maxLingeringConnections) {
+        if (maxLingeringConnections < 0) {
+            throw new IllegalArgumentException("maxLingeringConnections must not be negative");
+        }
+        Configurator.maxLingeringConnections = maxLingeringConnections;
+    }
+
+    public static int getMaxAcceptsPerSecond() {
+        return maxAcceptsPerSecond;
+    }
+
+    /**
+     * Sets how many connections per second MsrpEndpoint.listen() accepts at most. Connections beyond
+     * that are closed right away. Only applies to listeners started after the change. (Default is 10)
+     *
+     * @param maxAcceptsPerSecond the number of connections, must be at least 1
+     */
+    public static void setMaxAcceptsPerSecond(int maxAcceptsPerSecond) {
+        if (maxAcceptsPerSecond < 1) {
+            throw new IllegalArgumentException("maxAcceptsPerSecond must be at least 1");
+        }
+        Configurator.maxAcceptsPerSecond = maxAcceptsPerSecond;
+    }
+
+    public static int getMaxInboundQueueSize() {
+        return maxInboundQueueSize;
+    }
+
+    /**
+     * Sets how many bytes of received requests may be waiting to be handled, per connection as well as per
+     * session. Once exceeded, reading from the connection is suspended until half of them have been handled.
+     * A transaction of which more than this would be queued for a session is answered with 413. (Default is 64k)
+     *
+     * @param maxInboundQueueSize the size in bytes, must be at least 1
+     */
+    public static void setMaxInboundQueueSize(int maxInboundQueueSize) {
+        if (maxInboundQueueSize < 1) {
+            throw new IllegalArgumentException("maxInboundQueueSize must be at least 1");
+        }
+        Configurator.maxInboundQueueSize = maxInboundQueueSize;
+    }
+
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets how large the content of a message must be at least to be compressed, in sessions which use a
+     * Content-Encoding. Smaller content grows rather than shrinks once the compression overhead is added.
+     * (Default is 512)
+     *
+     * @param compressionThreshold the size in bytes, must not be negative
+     */
+    public static void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("compressionThreshold must not be negative");
+        }
+        Configurator.compressionThreshold = compressionThreshold;
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.tx;
+
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decides how many bytes of content should go into one chunk piece.
+ * <p/>
+ * The time it takes for a chunk piece to get from the OutboundFSM through the write queue of the
+ * connection onto the socket tells how fast the connection drains. While pieces drain in less than half
+ * of Configurator.getChunkPieceTargetDelay(), the piece size is doubled, such that fast links aren't
+ * spending their time on piece headers and FSM transitions. Once a piece takes longer than the target delay,
+ * the piece size is halved, such that a slow link isn't filled up blindly. The piece size always stays between
+ * Configurator.getMinChunkPieceSize() and Configurator.getMaxChunkPieceSize(), and never exceeds a quarter of
+ * the outbound queue, since the participant is terminated once its queue overflows.
+ * <p/>
+ * Only one chunk piece is written at a time per OutboundFSM, so updates don't race; reads may happen
+ * from any thread.
+ *
+ * @author Sebastian Dehne
+ */
+class ChunkPieceSizer {
+
+    /**
+     * The piece size used until the first piece has been written
+     */
+    static final int INITIAL_PIECE_SIZE = 1024 * 2;
+
+    // a histogram rather than a gauge, since every OutboundFSM has its own piece size
+    private static final Histogram PIECE_SIZE = Metrics.histogram(Metrics.MSRP_CHUNK_PIECE_SIZE);
+    private static final Histogram PIECE_BYTES = Metrics.histogram(Metrics.MSRP_CHUNK_PIECE_BYTES);
+
+    private final IOutboundFSMListener listener;
+    private volatile int pieceSize;
+
+    ChunkPieceSizer(IOutboundFSMListener listener) {
+        this.listener = listener;
+        this.pieceSize = INITIAL_PIECE_SIZE;
+    }
+
+    /**
+     * @return the number of content bytes the next chunk piece should carry
+     */
+    int getPieceSize() {
+        return clamp(pieceSize);
+    }
+
+    /**
+     * Called once a chunk piece has been written to the socket
+     *
+     * @param bytes      the size of the written chunk piece, including its headers
+     * @param delayNanos the time between queuing the piece on the connection and the write completing
+     */
+    void pieceWritten(int bytes, long delayNanos) {
+        PIECE_BYTES.record(bytes);
+
+        long targetDelay = TimeUnit.MILLISECONDS.toNanos(Configurator.getChunkPieceTargetDelay());
+        int size = pieceSize;
+        if (delayNanos > targetDelay) {
+            size = clamp(size / 2);
+        } else if (delayNanos < targetDelay / 2 && bytes >= size) {
+            // only grow if the application actually fills the pieces
+            size = clamp(size * 2);
+        }
+        pieceSize = size;
+        PIECE_SIZE.record(size);
+    }
+
+    private int clamp(int size) {
+        int min = Configurator.getMinChunkPieceSize();
+        int max = Math.min(Configurator.getMaxChunkPieceSize(), listener.getMaxOutboudQueueSize() / 4);
+        return Math.max(min, Math.min(max, size));
+    }
+}
@@ -20,6 +20,7 @@ package com.colibria.android.sipservice.tx;
 
 import com.colibria.android.sipservice.IMsrpTrafficLogger;
 import com.colibria.android.sipservice.fsm.UnhandledConditionException;
+import com.colibria.android.sipservice.headers.FailureReportHeader;
 import com.colibria.android.sipservice.headers.MsrpResponse;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
 import com.colibria.android.sipservice.logging.Logger;
@@ -27,12 +28,19 @@ import com.colibria.android.sipservice.fsm.Machine;
 import com.colibria.android.sipservice.fsm.TransitionActivityException;
 import com.colibria.android.sipservice.headers.Continuation;
 import com.colibria.android.sipservice.headers.MsrpReportRequest;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.tx.fsm.InboundFSMCondition;
 import com.colibria.android.sipservice.tx.fsm.InboundFSMSignal;
 import com.colibria.android.sipservice.tx.fsm.InboundFSMState;
 import com.colibria.android.sipservice.tx.fsm.InboundFSMTransition;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
 
 
@@ -77,12 +85,23 @@ import java.util.Queue;
  *                                  One leaving this state, the response will be sent.
  * TERMINATED                     : This state is used when the FSM has terminated and cannot handle more data
  * </pre>
+ * <p/>
+ * Requests which are received while a response is pending are queued. The queue is bounded by
+ * Configurator.getMaxInboundQueueSize() bytes: once exceeded, reading from the channel is suspended until half
+ * of it has been worked off. A single request larger than the whole queue is answered with 413 right away, and
+ * the rest of its transaction is dropped.
  *
  * @author Sebastian Dehne
  */
 public class InboundFSM extends Machine<InboundFSMSignal> {
     private static final String TAG = "InboundFSM";
 
+    private static final Counter RESPONSES_SENT = Metrics.counter(Metrics.MSRP_RESPONSES_SENT);
+    private static final Counter RESPONSES_SUPPRESSED = Metrics.counter(Metrics.MSRP_RESPONSES_SUPPRESSED);
+    private static final Counter REPORTS_RECEIVED = Metrics.counter(Metrics.MSRP_REPORTS_RECEIVED);
+    private static final Counter QUEUE_REJECTED = Metrics.counter(Metrics.MSRP_INBOUND_QUEUE_REJECTED);
+    private static final Histogram QUEUE_DEPTH = Metrics.histogram(Metrics.MSRP_INBOUND_QUEUE_DEPTH);
+
     /*
      * The states
      */
@@ -99,7 +118,10 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
     public static final InboundFSMState PENDING = new InboundFSMState("PENDING") {
         @Override
         public void enter(InboundFSM owner, boolean reEnter) {
-            owner.sendResponse();
+            // staying in PENDING (e.g. queuing a request) must not complete the transaction a second time
+            if (!reEnter) {
+                owner.sendResponse();
+            }
         }
     };
     public static final InboundFSMState TERMINATED = new InboundFSMState("TERMINATED");
@@ -138,8 +160,13 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
                     if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                         Logger.d(TAG, "Application requests to send a response for this currently incoming chunk");
                     }
-                    MsrpResponse response = MsrpResponse.create(signal.getReceivedSendRequest(), errorResponse);
-                    machine.parent.outboundFSM.sendResponse(response);
+                    if (isResponseWanted(signal.getReceivedSendRequest(), errorResponse)) {
+                        MsrpResponse response = MsrpResponse.create(signal.getReceivedSendRequest(), errorResponse);
+                        machine.parent.outboundFSM.sendResponse(response);
+                        RESPONSES_SENT.inc();
+                    } else {
+                        RESPONSES_SUPPRESSED.inc();
+                    }
 
                     // ensure that we don't send a second response when we see the end-line
                     machine.sentResponseForCurrentTransaction = true;
@@ -162,8 +189,8 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "IDLE -> IDLE received report");
                 }
-                // machine.additionalBytesReceived();
-                //todo do something with the report
+                REPORTS_RECEIVED.inc();
+                machine.parent.getApplication().reportReceived(machine.parent, signal.getReceivedReportRequest());
             }
         });
         IDLE.addTransition(new InboundFSMTransition(InboundFSMCondition.CLOSE, TERMINATED) {
@@ -181,7 +208,8 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "PENDING -> PENDING (received report)");
                 }
-                //todo do something with the report
+                REPORTS_RECEIVED.inc();
+                machine.parent.getApplication().reportReceived(machine.parent, signal.getReceivedReportRequest());
             }
         });
         PENDING.addTransition(new InboundFSMTransition(InboundFSMCondition.RECEIVED_RESPONSE, PENDING) {
@@ -214,7 +242,7 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
 
                 // forward the request to the conference
                 if (machine.pendingRequest.isChunkType(MsrpSendRequest.ChunkType.complete) &&
-                        machine.pendingRequest.getBody().length < 1 &&
+                        machine.pendingRequest.getBodyLength() < 1 &&
                         machine.pendingRequest.getContinuation() == Continuation.done &&
                         (machine.pendingRequest.getByteRange() == null || machine.pendingRequest.getByteRange().getTotal() <= 0)) {
                     if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
@@ -232,9 +260,17 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
                 }
 
                 if (!machine.sentResponseForCurrentTransaction) {
-                    // send the response
-                    MsrpResponse response = MsrpResponse.create(machine.pendingRequest, responseCode);
-                    machine.parent.outboundFSM.sendResponse(response);
+                    if (isResponseWanted(machine.pendingRequest, responseCode)) {
+                        // send the response
+                        MsrpResponse response = MsrpResponse.create(machine.pendingRequest, responseCode);
+                        machine.parent.outboundFSM.sendResponse(response);
+                        RESPONSES_SENT.inc();
+                    } else {
+                        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                            Logger.d(TAG, "Not sending a response since the sender asked for Failure-Report: " + machine.pendingRequest.getFailureReportHeader());
+                        }
+                        RESPONSES_SUPPRESSED.inc();
+                    }
                 } else {
                     // response already sent
                     machine.sentResponseForCurrentTransaction = false;
@@ -265,6 +301,10 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
 
     // mutable state guarded by the lock of the FSM
     private final Queue<MsrpSendRequest> inputQueue;
+    private int bytesInQueue;
+    private final Map<String, Integer> bytesInQueuePerTransaction; // the queued pieces of each transaction
+    private boolean readingPaused;
+    private String rejectedTransactionID; // the transaction answered with 413, its remaining pieces are dropped
     private MsrpSendRequest pendingRequest;
     private long messageTimer;
     private int bytesReceived;
@@ -274,6 +314,7 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
         super(IDLE);
         this.parent = participant;
         inputQueue = new LinkedList<MsrpSendRequest>();
+        bytesInQueuePerTransaction = new HashMap<String, Integer>();
         messageTimer = System.currentTimeMillis();
 
     }
@@ -342,16 +383,115 @@ public class InboundFSM extends Machine<InboundFSMSignal> {
 
     private void addToQueue(MsrpSendRequest msrpMessage) {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-            Logger.d(TAG, "size before add: " + inputQueue.size());
+            Logger.d(TAG, "size before add: " + inputQueue.size() + " (" + bytesInQueue + " bytes)");
         }
+        String transactionID = msrpMessage.getTransactionID();
+        if (transactionID.equals(rejectedTransactionID)) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Dropping piece of rejected transaction " + transactionID);
+            }
+            return;
+        }
+
+        // a single piece never exceeds the read buffer, so all queued pieces of the transaction count
+        int maxSize = Configurator.getMaxInboundQueueSize();
+        Integer queuedOfTransaction = bytesInQueuePerTransaction.get(transactionID);
+        int transactionBytes = (queuedOfTransaction != null ? queuedOfTransaction : 0) + msrpMessage.getSize();
+        if (transactionBytes > maxSize) {
+            rejectTransaction(msrpMessage, transactionBytes);
+            return;
+        }
+
         inputQueue.offer(msrpMessage);
+        bytesInQueuePerTransaction.put(transactionID, transactionBytes);
+        bytesInQueue += msrpMessage.getSize();
+        QUEUE_DEPTH.record(bytesInQueue);
+
+        if (bytesInQueue > maxSize && !readingPaused && parent.getChannelState() != null) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, bytesInQueue + " bytes queued, pausing the channel");
+            }
+            readingPaused = true;
+            parent.getChannelState().pauseReading(parent);
+        }
     }
 
     private MsrpSendRequest popFromQueue() {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-            Logger.d(TAG, "size before pop: " + inputQueue.size());
+            Logger.d(TAG, "size before pop: " + inputQueue.size() + " (" + bytesInQueue + " bytes)");
+        }
+        MsrpSendRequest msrpMessage = inputQueue.poll();
+        if (msrpMessage != null) {
+            bytesInQueue -= msrpMessage.getSize();
+            int transactionBytes = bytesInQueuePerTransaction.get(msrpMessage.getTransactionID()) - msrpMessage.getSize();
+            if (transactionBytes > 0) {
+                bytesInQueuePerTransaction.put(msrpMessage.getTransactionID(), transactionBytes);
+            } else {
+                bytesInQueuePerTransaction.remove(msrpMessage.getTransactionID());
+            }
+            QUEUE_DEPTH.record(bytesInQueue);
+            resumeReadingIfDrained();
+        }
+        return msrpMessage;
+    }
+
+    private void resumeReadingIfDrained() {
+        if (readingPaused && bytesInQueue <= Configurator.getMaxInboundQueueSize() / 2) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, bytesInQueue + " bytes queued, resuming the channel");
+            }
+            readingPaused = false;
+            parent.getChannelState().resumeReading(parent);
+        }
+    }
+
+    /**
+     * Answers a transaction which doesn't fit into the queue with 413, which tells the sender to stop sending the
+     * message (RFC 4975, section 7.2). Pieces of the transaction which are already queued are dropped, and so
+     * are the ones still to come.
+     *
+     * @param request          the piece which made the transaction exceed the queue
+     * @param transactionBytes the bytes of the transaction, including the ones of this piece
+     */
+    private void rejectTransaction(MsrpSendRequest request, int transactionBytes) {
+        Logger.i(TAG, "Transaction " + request.getTransactionID() + " of " + transactionBytes + " bytes exceeds the inbound queue, rejecting it");
+        QUEUE_REJECTED.inc();
+        rejectedTransactionID = request.getTransactionID();
+        bytesInQueuePerTransaction.remove(rejectedTransactionID);
+
+        Iterator<MsrpSendRequest> i = inputQueue.iterator();
+        while (i.hasNext()) {
+            MsrpSendRequest queued = i.next();
+            if (rejectedTransactionID.equals(queued.getTransactionID())) {
+                bytesInQueue -= queued.getSize();
+                i.remove();
+            }
+        }
+        QUEUE_DEPTH.record(bytesInQueue);
+        resumeReadingIfDrained();
+
+        if (isResponseWanted(request, MsrpResponse.RESPONSE_413)) {
+            parent.outboundFSM.sendResponse(MsrpResponse.create(request, MsrpResponse.RESPONSE_413));
+            RESPONSES_SENT.inc();
+        } else {
+            RESPONSES_SUPPRESSED.inc();
+        }
+    }
+
+    /**
+     * Whether the sender of a request wants a response with the given code, as per its Failure-Report header:
+     * 'no' means it doesn't want any response, 'partial' only negative ones (RFC 4975, section 7.1.2)
+     *
+     * @param request      the received request
+     * @param responseCode the response code about to be sent
+     * @return true if the response should be sent
+     */
+    private static boolean isResponseWanted(MsrpSendRequest request, MsrpResponse.ResponseCode responseCode) {
+        FailureReportHeader failureReport = request.getFailureReportHeader();
+        if (failureReport == null || failureReport.get() == FailureReportHeader.Value.yes) {
+            return true;
         }
-        return inputQueue.poll();
+        return failureReport.get() == FailureReportHeader.Value.partial && responseCode.getStatusCode() / 100 != 2;
     }
 
     private void additionalBytesReceived(MsrpSendRequest request) {
@@ -22,8 +22,12 @@ import com.colibria.android.sipservice.IMsrpTrafficLogger;
 import com.colibria.android.sipservice.fsm.*;
 import com.colibria.android.sipservice.headers.*;
 import com.colibria.android.sipservice.io.ChannelState;
+import com.colibria.android.sipservice.events.StackEvents;
 import com.colibria.android.sipservice.io.config.Configurator;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.fsm.Machine;
 import com.colibria.android.sipservice.fsm.State;
 import com.colibria.android.sipservice.fsm.UnhandledConditionException;
@@ -34,8 +38,11 @@ import com.colibria.android.sipservice.tx.fsm.OutboundFSMTransition;
 
 import java.nio.ByteBuffer;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -82,15 +89,25 @@ import java.util.Map;
  * START_SENT    : The handshake request was sent and the FSM is currently waiting for a matching response
  * IDLE          : This state is used when the outboundFSM is able to accept a new transaction
  * SENDING_CHUNK : This state is used when the FSM is currently sending parts of a (larger) chunk
- * WAIT_RESPONSE : A request has been sent for which a matching response is expected.
+ * WAIT_RESPONSE : The send window is full: as many requests have been sent as the window allows
+ *                 (see Configurator.getSendWindowSize(), default 1) and a matching response is expected
+ *                 for each of them. When entering this state with room left in the window, the FSM
+ *                 moves straight on to IDLE (windowOpen) such that the next request can be sent.
  *                 In case a new sendRequest arrived from the conference when the FSM in the WAIT_RESPONSE
- *                 state, the request will be put on the queue and processed after the current transaction
+ *                 state, the request will be put on the queue and processed after an outstanding transaction
  *                 is completed.
- *                 Please note that there is no timeout timer since it is not needed: Either the participant
+ *                 Responses for outstanding transactions are matched by transactionID and may arrive in any
+ *                 order; they are also accepted in the IDLE and SENDING_CHUNK(_WAIT) states.
+ *                 By default there is no timeout timer since it is not needed: Either the participant
  *                 sends a response which doesn't match (in that case the participant is terminated)
  *                 or nevers sends any response in which case the outbound FIFO queues fills up to its
  *                 max size and the participant is kicked out from the converence. No using a timer
- *                 here increases the overall performance.
+ *                 here increases the overall performance. With a window larger than 1, a per-transaction
+ *                 timeout can be configured (see Configurator.getSendTransactionTimeout()); an expired
+ *                 transaction is reported to the application as 408.
+ *                 Requests sent with Failure-Report 'no' or 'partial' don't expect a response and therefore
+ *                 never occupy the send window. In case a negative response arrives for them anyway,
+ *                 it is passed on to the application, responses with a 2xx code are ignored.
  * TERMINATED    : The participant and this FSM is terminated and all new traffic will be rejected
  * <p/>
  * <p/>
@@ -103,13 +120,27 @@ import java.util.Map;
 public class OutboundFSM extends Machine<OutboundFSMSignal> {
     private static final String TAG = "OutboundFSM";
 
+    private static final Histogram QUEUE_DEPTH = Metrics.histogram(Metrics.MSRP_OUTBOUND_QUEUE_DEPTH);
+    private static final Histogram CHUNK_RTT = Metrics.histogram(Metrics.MSRP_CHUNK_RTT);
+    private static final Histogram QUEUE_WAIT = Metrics.histogram(Metrics.MSRP_OUTBOUND_QUEUE_WAIT);
+    private static final Counter CHUNKS_UNACKNOWLEDGED = Metrics.counter(Metrics.MSRP_CHUNKS_UNACKNOWLEDGED);
+    private static final Counter REPORTS_SENT = Metrics.counter(Metrics.MSRP_REPORTS_SENT);
+
+    /**
+     * The number of transactions sent with Failure-Report 'no' or 'partial' which are remembered, such that a
+     * late negative response can still be mapped to its message
+     */
+    private static final int MAX_UNACKNOWLEDGED_TRANSACTIONS = 256;
+
+    private static final int STATUS_REQUEST_TIMEOUT = 408;
+
     private static final ThreadLocal<ByteBuffer> writeBuffers = new ThreadLocal<ByteBuffer>() {
         @Override
         protected ByteBuffer initialValue() {
             // the output buffer needs to be somewhat larger then the inbound buffer, since
             // we modify some headers which might lead to a larger msg than the original
             // received request
-            return ByteBuffer.allocate(Configurator.getBufferSize() * 2);
+            return ByteBuffer.allocate(getWriteBufferSize());
         }
     };
 
@@ -129,18 +160,34 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
     public static final OutboundFSMState SENDING_CHUNK = new OutboundFSMState("SENDING_CHUNK") {
         @Override
         public void enter(OutboundFSM machine, boolean reEnter) {
-            // a new chunk of data was sent
-            machine.listener.updateOutboundQueueUsage(machine.getCurrentQueueUsage());
-            machine.scheduleNextRequest();
+            if (!reEnter) {
+                // a new chunk of data was sent
+                machine.listener.updateOutboundQueueUsage(machine.getCurrentQueueUsage());
+                machine.scheduleNextRequest();
+            }
         }
     };
     public static final OutboundFSMState SENDING_CHUNK_WAIT = new OutboundFSMState("SENDING_CHUNK_WAIT", true);
-    public static final OutboundFSMState WAIT_RESPONSE = new OutboundFSMState("WAIT_RESPONSE");
+    public static final OutboundFSMState WAIT_RESPONSE = new OutboundFSMState("WAIT_RESPONSE") {
+        @Override
+        public void enter(OutboundFSM machine, boolean reEnter) {
+            if (!reEnter) {
+                machine.transactionStarted();
+                if (machine.pendingTransactions.size() < Configurator.getSendWindowSize()) {
+                    machine.openWindow();
+                } else {
+                    // responses and reports don't need to wait for the window to open
+                    machine.scheduleControlMessages();
+                }
+            }
+        }
+    };
     public static final OutboundFSMState TERMINATED = new OutboundFSMState("TERMINATED") {
         @Override
         public void enter(OutboundFSM machine, boolean reEnter) {
             // clear some memory now
-            machine.messageQueue.clear();
+            machine.scheduler.clear(); // gives up the bodies of queued requests as well
+            machine.clearPendingTransactions();
         }
     };
 
@@ -160,8 +207,8 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 // generate handshake request
                 MsrpSendRequest handShake = MsrpSendRequest.generateHandShake(
                         m.parent.parentInstance.getNextId(),
-                        new MsrpPath(m.parent.getRemoteURI()),
-                        new MsrpPath(m.parent.getLocalMsrpURI()),
+                        m.parent.getRemotePath(),
+                        m.parent.getLocalPath(),
                         m.parent.parentInstance.getNextId());
 
                 // remeber the txID
@@ -175,7 +222,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, handShake, null, null, null, null, null, null, bb);
 
                 // write data to challen
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing handshake request failed. Sending close signal now");
@@ -234,12 +281,13 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 MsrpReportRequest report = signal.getMsrpReportRequest();
                 ByteBuffer bb = getReadBuffer();
                 report.marshall(bb);
+                REPORTS_SENT.inc();
 
                 // log data before sending
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, report, null, null, null, null, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing report failed. Sending close signal now");
@@ -263,7 +311,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, response, null, null, null, null, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing response failed. Sending close signal now");
@@ -283,33 +331,23 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
                 // create msg
                 String newTxId = m.parent.parentInstance.getNextId();
-                ByteBuffer bb = getReadBuffer();
-                MsrpPath fromPath = new MsrpPath(m.parent.getLocalMsrpURI());
-                MsrpPath toPath = new MsrpPath(m.parent.getRemoteURI());
+                ByteBuffer bb = m.getPieceBuffer();
+                MsrpPath fromPath = m.parent.getLocalPath();
+                MsrpPath toPath = m.parent.getRemotePath();
                 int bodyLength = request.marshall(bb, null, newTxId, fromPath, toPath);
 
                 // log data before sending
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.head, request, null, newTxId, fromPath, toPath, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, new Runnable() {
-                    public void run() {
-                        m.bytesSent();
-                    }
-                }, new Runnable() {
-                    public void run() {
-                        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                            Logger.d(TAG, "Writing request failed. Sending close signal now");
-                        }
-                        m.parent.onIOError();
-                    }
-                });
+                m.writeChunkPiece(bb, request);
 
                 // create and store state
                 m.chunkPieceStates.put(request.getTransactionID(), m.createNewState(bodyLength, newTxId));
                 m.currentTransactionID = newTxId;
                 m.currentOrigTransactionID = request.getTransactionID();
                 m.currentMessageStateId = signal.getMessageStateId();
+                m.currentResponseExpected = isResponseExpected(request);
             }
         });
         IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_REQUEST_INCOMPLETE_BODY, SENDING_CHUNK_WAIT) {
@@ -325,11 +363,11 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 state.setOutgoingTransactionID(m.parent.parentInstance.getNextId());
 
                 // first, we need to generate a new header before we can continue with this body chunk piece
-                ByteBuffer bb = getReadBuffer();
+                ByteBuffer bb = m.getPieceBuffer();
                 ByteRange origRange = request.getByteRange();
                 ByteRange newByteRange = ByteRange.create(origRange.getStart() + state.getBytesWritten(), -1, origRange.getTotal());
-                MsrpPath newFrompath = new MsrpPath(m.parent.getLocalMsrpURI());
-                MsrpPath newToPath = new MsrpPath(m.parent.getRemoteURI());
+                MsrpPath newFrompath = m.parent.getLocalPath();
+                MsrpPath newToPath = m.parent.getRemotePath();
                 request.marshallHead(
                         bb,
                         state.getOutgoingTransactionID(),
@@ -347,24 +385,14 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.head, request, newByteRange, state.outgoingTransactionID, newFrompath, newToPath, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, new Runnable() {
-                    public void run() {
-                        m.bytesSent();
-                    }
-                }, new Runnable() {
-                    public void run() {
-                        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                            Logger.d(TAG, "Writing request failed. Sending close signal now");
-                        }
-                        m.parent.onIOError();
-                    }
-                });
+                m.writeChunkPiece(bb, request);
 
                 // update state
                 state.increaseBytesWrittenBy(bodyLegnth);
                 m.currentOrigTransactionID = request.getTransactionID();
                 m.currentMessageStateId = signal.getMessageStateId();
                 m.currentTransactionID = state.getOutgoingTransactionID();
+                m.currentResponseExpected = isResponseExpected(request);
             }
         });
         IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_REQUEST_INCOMPLETE_TAIL, WAIT_RESPONSE) {
@@ -386,13 +414,13 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                         origRange.getStart() + state.getBytesWritten(),
                         -1,
                         origRange.getTotal());
-                MsrpPath newFromPath = new MsrpPath(m.parent.getLocalMsrpURI());
-                MsrpPath newToPath = new MsrpPath(m.parent.getRemoteURI());
+                MsrpPath newFromPath = m.parent.getLocalPath();
+                MsrpPath newToPath = m.parent.getRemotePath();
                 request.marshallHead(
                         bb,
                         state.getOutgoingTransactionID(),
                         newByteRange,
-                        request.getBody().length > 0,
+                        request.getBodyLength() > 0,
                         newFromPath,
                         newToPath
                 );
@@ -403,7 +431,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, request, newByteRange, state.getOutgoingTransactionID(), newFromPath, newToPath, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -418,6 +446,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 // set the outgoing txId such that we can map a response to it
                 m.currentTransactionID = state.getOutgoingTransactionID();
                 m.currentMessageStateId = signal.getMessageStateId();
+                m.currentResponseExpected = isResponseExpected(request);
             }
         });
         IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_REQUEST_COMPLETE, WAIT_RESPONSE) {
@@ -431,15 +460,15 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 String newTxId = m.parent.parentInstance.getNextId();
 
                 ByteBuffer bb = getReadBuffer();
-                MsrpPath newFrompath = new MsrpPath(m.parent.getLocalMsrpURI());
-                MsrpPath newToPath = new MsrpPath(m.parent.getRemoteURI());
+                MsrpPath newFrompath = m.parent.getLocalPath();
+                MsrpPath newToPath = m.parent.getRemotePath();
                 request.marshall(bb, null, newTxId, newFrompath, newToPath);
 
                 // log data before sending
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, request, null, newTxId, newFrompath, newToPath, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -449,6 +478,34 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 });
                 m.currentTransactionID = newTxId;
                 m.currentMessageStateId = signal.getMessageStateId();
+                m.currentResponseExpected = isResponseExpected(request);
+            }
+        });
+        IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.UNACKNOWLEDGED_RESPONSE_RECEIVED, IDLE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "IDLE -> IDLE (response for a transaction which didn't expect one)");
+                }
+                m.unacknowledgedResponseReceived(signal.getResponse());
+            }
+        });
+        IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.PENDING_RESPONSE_RECEIVED, IDLE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "IDLE -> IDLE (response for an outstanding transaction)");
+                }
+                m.transactionCompleted(signal.getResponse());
+            }
+        });
+        IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.TRANSACTION_TIMEOUT, IDLE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "IDLE -> IDLE (outstanding transaction timed out)");
+                }
+                m.transactionTimedOut(signal.getTimedOutTransactionID());
             }
         });
         IDLE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.CLOSE, TERMINATED) {
@@ -470,25 +527,14 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
                 ChunkPieceState state = m.chunkPieceStates.get(m.currentOrigTransactionID);
 
-                ByteBuffer bb = getReadBuffer();
+                ByteBuffer bb = m.getPieceBuffer();
                 int bodyLength = +request.marshall(bb, null, null, null, null);
 
                 // log data before sending
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.body_only, request, null, null, null, null, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, new Runnable() {
-                    public void run() {
-                        m.bytesSent();
-                    }
-                }, new Runnable() {
-                    public void run() {
-                        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                            Logger.d(TAG, "Writing request failed. Sending close signal now");
-                        }
-                        m.parent.onIOError();
-                    }
-                });
+                m.writeChunkPiece(bb, request);
 
                 // keep track of the number of bytes sent
                 state.increaseBytesWrittenBy(bodyLength);
@@ -505,14 +551,14 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 ChunkPieceState state = m.chunkPieceStates.get(m.currentOrigTransactionID);
 
                 ByteBuffer bb = getReadBuffer();
-                bb.put(request.getBody());
+                bb.put(request.getBodyBuffer());
                 request.marshallTail(bb, state.getOutgoingTransactionID(), true, null);
 
                 // log data before sending
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.tail, request, null, state.getOutgoingTransactionID(), null, null, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -533,8 +579,8 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 }
                 MsrpSendRequest request = signal.getToBeSentRequest();
 
-                // queue message
-                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId());
+                // queue message, it will be the next chunk piece to be sent for its message
+                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId(), signal.getPriority(), true);
 
                 ChunkPieceState state = m.chunkPieceStates.get(m.currentOrigTransactionID);
 
@@ -545,7 +591,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.tail, null, null, state.getOutgoingTransactionID(), null, null, Continuation.more, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -596,7 +642,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.tail, null, null, state.getOutgoingTransactionID(), null, null, Continuation.more, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -646,7 +692,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.tail, null, null, state.getOutgoingTransactionID(), null, null, Continuation.more, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -695,7 +741,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.tail, null, null, state.getOutgoingTransactionID(), null, null, Continuation.more, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing request failed. Sending close signal now");
@@ -709,6 +755,33 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
             }
         });
+        SENDING_CHUNK.addTransition(new OutboundFSMTransition(OutboundFSMCondition.UNACKNOWLEDGED_RESPONSE_RECEIVED, SENDING_CHUNK) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK -> SENDING_CHUNK (response for a transaction which didn't expect one)");
+                }
+                m.unacknowledgedResponseReceived(signal.getResponse());
+            }
+        });
+        SENDING_CHUNK.addTransition(new OutboundFSMTransition(OutboundFSMCondition.PENDING_RESPONSE_RECEIVED, SENDING_CHUNK) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK -> SENDING_CHUNK (response for an outstanding transaction)");
+                }
+                m.transactionCompleted(signal.getResponse());
+            }
+        });
+        SENDING_CHUNK.addTransition(new OutboundFSMTransition(OutboundFSMCondition.TRANSACTION_TIMEOUT, SENDING_CHUNK) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK -> SENDING_CHUNK (outstanding transaction timed out)");
+                }
+                m.transactionTimedOut(signal.getTimedOutTransactionID());
+            }
+        });
         SENDING_CHUNK.addTransition(new OutboundFSMTransition(OutboundFSMCondition.CLOSE, TERMINATED) {
             @Override
             public void activity(OutboundFSM m, OutboundFSMSignal signal) {
@@ -732,16 +805,16 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (send request; queuing it for now)");
                 }
-                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId());
+                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId(), signal.getPriority(), false);
             }
         });
         SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_REPORT, SENDING_CHUNK_WAIT) {
             @Override
             public void activity(final OutboundFSM m, OutboundFSMSignal signal) {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                    Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (send report)");
+                    Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (send report; queuing it for now)");
                 }
-                //not implemented so far
+                m.addToQueue(signal.getMsrpReportRequest(), null);
             }
         });
         SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_RESPONSE, SENDING_CHUNK_WAIT) {
@@ -750,7 +823,34 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (send response; queuing it for now)");
                 }
-                m.addToQueue(signal.getResponse(), signal.getMessageStateId(), true);
+                m.addToQueue(signal.getResponse(), signal.getMessageStateId(), 0, true);
+            }
+        });
+        SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.UNACKNOWLEDGED_RESPONSE_RECEIVED, SENDING_CHUNK_WAIT) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (response for a transaction which didn't expect one)");
+                }
+                m.unacknowledgedResponseReceived(signal.getResponse());
+            }
+        });
+        SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.PENDING_RESPONSE_RECEIVED, SENDING_CHUNK_WAIT) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (response for an outstanding transaction)");
+                }
+                m.transactionCompleted(signal.getResponse());
+            }
+        });
+        SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.TRANSACTION_TIMEOUT, SENDING_CHUNK_WAIT) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "SENDING_CHUNK_WAIT -> SENDING_CHUNK_WAIT (outstanding transaction timed out)");
+                }
+                m.transactionTimedOut(signal.getTimedOutTransactionID());
             }
         });
         SENDING_CHUNK_WAIT.addTransition(new OutboundFSMTransition(OutboundFSMCondition.CLOSE, TERMINATED) {
@@ -764,13 +864,28 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
         WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_REPORT, WAIT_RESPONSE) {
             @Override
-            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+            public void activity(final OutboundFSM m, OutboundFSMSignal signal) {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "WAIT_RESPONSE -> WAIT_RESPONSE (sending report)");
                 }
-                // not handling this while waiting for a tx to complete. Queue it and handle it later
-                // todo is this correct?
-                m.addToQueue(signal.getMsrpReportRequest(), null);
+                // reports don't start a transaction and no chunk is open, so there is no need to wait
+                MsrpReportRequest report = signal.getMsrpReportRequest();
+                ByteBuffer bb = getReadBuffer();
+                report.marshall(bb);
+                REPORTS_SENT.inc();
+
+                // log data before sending
+                logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, report, null, null, null, null, null, null, bb);
+
+                // write data to channel
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
+                    public void run() {
+                        if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                            Logger.d(TAG, "Writing report failed. Sending close signal now");
+                        }
+                        m.parent.onIOError();
+                    }
+                });
             }
         });
         WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.SEND_RESPONSE, WAIT_RESPONSE) {
@@ -789,7 +904,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 logOutgoingData(m.parent, MsrpSendRequest.ChunkType.complete, response, null, null, null, null, null, null, bb);
 
                 // write data to channel
-                m.parent.getChannelState().writeAsync(bb, ChannelState.DO_NOTHING, new Runnable() {
+                m.parent.getChannelState().writeAsync(detach(bb), ChannelState.DO_NOTHING, new Runnable() {
                     public void run() {
                         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                             Logger.d(TAG, "Writing response failed. Sending close signal now");
@@ -806,7 +921,16 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                     Logger.d(TAG, "WAIT_RESPONSE -> WAIT_RESPONSE (queuing a new request)");
                 }
                 // not handling this while waiting for a tx to complete. Queue it and handle it later
-                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId());
+                m.addToQueue(signal.getToBeSentRequest(), signal.getMessageStateId(), signal.getPriority(), false);
+            }
+        });
+        WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.UNACKNOWLEDGED_RESPONSE_RECEIVED, WAIT_RESPONSE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "WAIT_RESPONSE -> WAIT_RESPONSE (response for a transaction which didn't expect one)");
+                }
+                m.unacknowledgedResponseReceived(signal.getResponse());
             }
         });
         WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.RESPONSE_RECEIVED, IDLE) {
@@ -815,19 +939,24 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                     Logger.d(TAG, "WAIT_RESPONSE -> IDLE");
                 }
-                // test whether this response matched the txID
-                MsrpResponse response = signal.getResponse();
-                if (!m.currentTransactionID.equals(response.getTransactionID())) {
-                    if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                        Logger.d(TAG, "The transactionID (" + signal.getResponse().getTransactionID() + ") of the response does't match the transactionID expected (" + m.currentTransactionID + "). Sending close signal");
-                    }
-                    m.parent.terminate();
+                m.transactionCompleted(signal.getResponse());
+            }
+        });
+        WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.TRANSACTION_TIMEOUT, IDLE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "WAIT_RESPONSE -> IDLE (outstanding transaction timed out)");
+                }
+                m.transactionTimedOut(signal.getTimedOutTransactionID());
+            }
+        });
+        WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.WINDOW_OPEN, IDLE) {
+            @Override
+            public void activity(OutboundFSM m, OutboundFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "WAIT_RESPONSE -> IDLE (send window not full yet)");
                 }
-
-                /*
-                 * Notify the application about this response
-                 */
-                m.parent.getApplication().responseReceived(m.currentMessageStateId, m.parent, response.getStatusCode());
             }
         });
         WAIT_RESPONSE.addTransition(new OutboundFSMTransition(OutboundFSMCondition.CLOSE, TERMINATED) {
@@ -847,18 +976,42 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
     private String currentTransactionID;
     private String currentMessageStateId;
     private String currentOrigTransactionID;
+    private boolean currentResponseExpected = true;
 
     /**
-     * The internal FIFO queue where messages are stored until the FSM is ready to handle them
+     * The outgoing transactions for which a response is still expected, keyed by transactionID.
+     * Never holds more than Configurator.getSendWindowSize() entries.
      */
-    private final LinkedList<QueuedMessage> messageQueue;
-    private int bytesInQueue;
+    private final Map<String, PendingTransaction> pendingTransactions;
+    private volatile int pendingTransactionCount;
+
+    /**
+     * The outgoing transactions sent with Failure-Report 'no' or 'partial', mapped to their messageStateId.
+     * Only the most recent MAX_UNACKNOWLEDGED_TRANSACTIONS are kept.
+     */
+    private final Map<String, String> unacknowledgedTransactions;
+
+    /**
+     * The internal queue where messages are stored until the FSM is ready to handle them
+     */
+    private final OutboundScheduler scheduler;
+    private volatile int bytesInQueue; // written by the FSM only, but read by the app-layer as well
     private final Map<String, ChunkPieceState> chunkPieceStates;
+    private final ChunkPieceSizer pieceSizer;
+    private ByteBuffer pieceBuffer; // the chunk pieces are marshalled into, see getPieceBuffer()
 
     public OutboundFSM(Participant partent, IOutboundFSMListener listener) {
         super(INIT);
-        messageQueue = new LinkedList<QueuedMessage>();
+        scheduler = new OutboundScheduler();
         chunkPieceStates = new HashMap<String, ChunkPieceState>();
+        pieceSizer = new ChunkPieceSizer(listener);
+        pendingTransactions = new LinkedHashMap<String, PendingTransaction>();
+        unacknowledgedTransactions = new LinkedHashMap<String, String>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_UNACKNOWLEDGED_TRANSACTIONS;
+            }
+        };
         this.parent = partent;
         this.listener = listener;
     }
@@ -982,10 +1135,11 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
      *
      * @param request        the request to be sent
      * @param messageStateId some id which identifies some state in the app-layer related to this message
+     * @param priority       the share of the outbound bandwidth this message gets while other messages are queued
      */
-    protected void sendSendRequest(MsrpSendRequest request, String messageStateId) {
+    protected void sendSendRequest(MsrpSendRequest request, String messageStateId, int priority) {
         try {
-            super.input(OutboundFSMSignal.getSendRequestSignal(request, messageStateId));
+            super.input(OutboundFSMSignal.getSendRequestSignal(request, messageStateId, priority));
         } catch (UnhandledConditionException e) {
             if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
                 Logger.d(TAG, "Could not handle signal at this moment");
@@ -997,6 +1151,26 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
         }
     }
 
+    /**
+     * Called by the Participant class when no response was received in time
+     * for an outstanding transaction
+     *
+     * @param transactionID the outgoing transactionID which timed out
+     */
+    protected void transactionTimeout(String transactionID) {
+        try {
+            super.input(OutboundFSMSignal.getTransactionTimeoutSignal(transactionID));
+        } catch (UnhandledConditionException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Transaction " + transactionID + " completed before it timed out");
+            }
+        } catch (InterruptedException e) {
+            Logger.e(TAG, "", e);
+        } catch (TransitionActivityException e) {
+            Logger.e(TAG, "", e);
+        }
+    }
+
     /**
      * Warning: Only for internal use. Must never be called from anyone else than the FSM itself
      *
@@ -1016,33 +1190,58 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
     }
 
     /**
-     * Adds a new message to the FIFO queue. In case the size limit is
+     * Warning: Only for internal use. Must never be called from anyone else than the FSM itself
+     *
+     * @param transactionID an outgoing txID
+     * @return true if a response is still expected for this txID
+     */
+    public boolean isTransactionPending(String transactionID) {
+        return transactionID != null && pendingTransactions.containsKey(transactionID);
+    }
+
+    /**
+     * Warning: Only for internal use. Must never be called from anyone else than the FSM itself
+     *
+     * @param transactionID an outgoing txID
+     * @return true if this txID was sent with a Failure-Report which doesn't ask for a (positive) response
+     */
+    public boolean isTransactionUnacknowledged(String transactionID) {
+        return transactionID != null && unacknowledgedTransactions.containsKey(transactionID);
+    }
+
+    /**
+     * Adds a new message to the queue. In case the size limit is
      * exceeded, this method send a terminate signal to the participant
      *
      * @param message        the message to be added
      * @param messageStateId the id which identifies some state in the app-layer related to this message
      */
     private void addToQueue(IMsrpMessage message, String messageStateId) {
-        addToQueue(message, messageStateId, false);
+        addToQueue(message, messageStateId, 0, false);
     }
 
     /**
-     * Adds a new message to the FIFO queue. In case the size limit is
+     * Adds a new message to the queue. In case the size limit is
      * exceeded, this method send a terminate signal to the participant
      *
      * @param message        the message to be added
      * @param messageStateId the id which identifies some state in the app-layer related to this message
-     * @param firstPlace     to true in case this message should be added at the top of the queu
+     * @param priority       the priority of the message (requests only)
+     * @param firstPlace     to true in case this message should be the next one of its kind to be handed out
      */
-    private void addToQueue(IMsrpMessage message, String messageStateId, boolean firstPlace) {
-        QueuedMessage queuedMessage = new QueuedMessage(message, messageStateId);
+    private void addToQueue(IMsrpMessage message, String messageStateId, int priority, boolean firstPlace) {
+        OutboundScheduler.QueuedMessage queuedMessage = new OutboundScheduler.QueuedMessage(
+                message,
+                messageStateId,
+                priority,
+                Metrics.isEnabled() ? System.nanoTime() : 0);
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "About to add a " + message.getType() + " to the outbound message queue");
             if (message.getType() == IMsrpMessage.Type.request) {
                 MsrpSendRequest r = (MsrpSendRequest) message;
                 Logger.d(TAG, "Request has type: " + r.getChunkType());
             }
-            Logger.d(TAG, "Queue size before adding new message is: " + messageQueue.size());
+            Logger.d(TAG, "Queue size before adding new message is: " + scheduler.size());
         }
 
         if (bytesInQueue > listener.getMaxOutboudQueueSize()) {
@@ -1055,55 +1254,129 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
         // proceed no matter what, the terminate signal is fired/handles async
 
-
-        if (!firstPlace)
-            messageQueue.offer(queuedMessage);
-        else
-            messageQueue.addFirst(queuedMessage);
+        scheduler.offer(queuedMessage, firstPlace);
 
         bytesInQueue += message.getSize();
+        QUEUE_DEPTH.record(bytesInQueue);
     }
 
     /**
-     * Called by the FSM in order to get the next message from the FIFO queue to be sent
+     * Called by the FSM in order to get the next message from the queue to be sent
      */
     private void scheduleNextRequest() {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-            Logger.d(TAG, "enter (queueSize=" + messageQueue.size() + ")");
+            Logger.d(TAG, "enter (queueSize=" + scheduler.size() + ")");
         }
 
-        QueuedMessage message;
-        if ((message = messageQueue.poll()) != null) {
-            bytesInQueue -= message.getMsg().getSize();
-            OutboundFSMSignal signal = null;
-            switch (message.getMsg().getType()) {
-                case report:
-                    signal = OutboundFSMSignal.getSendReportSignal((MsrpReportRequest) message.getMsg());
-                    break;
-                case request:
-                    signal = OutboundFSMSignal.getSendRequestSignal((MsrpSendRequest) message.getMsg(), message.getMessageStateId());
-                    break;
-                case response:
-                    signal = OutboundFSMSignal.getSendResponseSignal((MsrpResponse) message.getMsg());
-                    break;
+        OutboundScheduler.QueuedMessage message;
+        if ((message = scheduler.poll()) != null) {
+            inputQueuedMessage(message);
+        }
+    }
+
+    /**
+     * Called by the FSM in order to send all queued responses and reports, but no requests
+     */
+    private void scheduleControlMessages() {
+        OutboundScheduler.QueuedMessage message;
+        while ((message = scheduler.pollControl()) != null) {
+            inputQueuedMessage(message);
+        }
+    }
+
+    private void inputQueuedMessage(OutboundScheduler.QueuedMessage message) {
+        bytesInQueue -= message.getMsg().getSize();
+        if (message.getQueuedAt() != 0) {
+            QUEUE_WAIT.recordNanosSince(message.getQueuedAt());
+        }
+        OutboundFSMSignal signal = null;
+        switch (message.getMsg().getType()) {
+            case report:
+                signal = OutboundFSMSignal.getSendReportSignal((MsrpReportRequest) message.getMsg());
+                break;
+            case request:
+                signal = OutboundFSMSignal.getSendRequestSignal((MsrpSendRequest) message.getMsg(), message.getMessageStateId(), message.getPriority());
+                break;
+            case response:
+                signal = OutboundFSMSignal.getSendResponseSignal((MsrpResponse) message.getMsg());
+                break;
+        }
+
+        try {
+            super.input(signal);
+        } catch (UnhandledConditionException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "FSM not able to accept this signal");
             }
+        } catch (InterruptedException e) {
+            Logger.e(TAG, "", e);
+        } catch (TransitionActivityException e) {
+            Logger.e(TAG, "", e);
+        }
+    }
 
-            try {
-                super.input(signal);
-            } catch (UnhandledConditionException e) {
+    /**
+     * @return the fraction of the outbound queue which is currently used
+     */
+    float getCurrentQueueUsage() {
+        return ((float) bytesInQueue) / ((float) listener.getMaxOutboudQueueSize());
+    }
+
+    /**
+     * Writes a chunk piece and signals bytesSent once it has been written. The time this takes
+     * is what the chunk piece size is adapted to.
+     *
+     * @param bb      the marshalled chunk piece, in write mode
+     * @param request the request bb was marshalled from. Its file region or its shared body, if any, follows
+     *                the marshalled bytes on the wire
+     */
+    private void writeChunkPiece(ByteBuffer bb, final MsrpSendRequest request) {
+        final FileRegion fileRegion = request.getFileRegion();
+        final ByteBuffer sharedBody = request.isBodyShared() ? request.getBodyBuffer() : null;
+        final int pieceLength = bb.position() + (fileRegion != null ? fileRegion.getLength() : 0) + (sharedBody != null ? sharedBody.remaining() : 0);
+        final long queuedAt = System.nanoTime();
+        Runnable whenDone = new Runnable() {
+            public void run() {
+                regionWritten(fileRegion);
+                request.releaseBody();
+                pieceSizer.pieceWritten(pieceLength, System.nanoTime() - queuedAt);
+                bytesSent();
+            }
+        };
+        Runnable whenError = new Runnable() {
+            public void run() {
+                regionWritten(fileRegion);
+                request.releaseBody();
                 if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
-                    Logger.d(TAG, "FSM not able to accept this signal");
+                    Logger.d(TAG, "Writing request failed. Sending close signal now");
                 }
-            } catch (InterruptedException e) {
-                Logger.e(TAG, "", e);
-            } catch (TransitionActivityException e) {
+                parent.onIOError();
+            }
+        };
+        if (fileRegion != null) {
+            parent.getChannelState().writeAsync(bb, fileRegion, whenDone, whenError);
+        } else if (sharedBody != null) {
+            parent.getChannelState().writeAsync(bb, sharedBody, whenDone, whenError);
+        } else {
+            parent.getChannelState().writeAsync(bb, whenDone, whenError);
+        }
+    }
+
+    private static void regionWritten(FileRegion fileRegion) {
+        if (fileRegion != null && fileRegion.getWhenWritten() != null) {
+            try {
+                fileRegion.getWhenWritten().run();
+            } catch (Exception e) {
                 Logger.e(TAG, "", e);
             }
         }
     }
 
-    private float getCurrentQueueUsage() {
-        return ((float) bytesInQueue) / ((float) listener.getMaxOutboudQueueSize());
+    /**
+     * @return the number of content bytes which should go into the next chunk piece
+     */
+    int getChunkPieceSize() {
+        return pieceSizer.getPieceSize();
     }
 
     private void bytesSent() {
@@ -1118,6 +1391,126 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
         }
     }
 
+    /**
+     * Called by the FSM once the request identified by currentTransactionID has been
+     * written completely, such that a response is now expected for it
+     */
+    private void transactionStarted() {
+        final String transactionID = currentTransactionID;
+        if (!currentResponseExpected) {
+            // no response is coming, don't let this transaction occupy the send window
+            unacknowledgedTransactions.put(transactionID, currentMessageStateId);
+            CHUNKS_UNACKNOWLEDGED.inc();
+            StackEvents.chunkSent(StackEvents.getCurrentCorrelationId(), transactionID, currentMessageStateId);
+            return;
+        }
+        PendingTransaction t = new PendingTransaction(
+                currentMessageStateId,
+                Metrics.isEnabled() || StackEvents.isEnabled() ? System.nanoTime() : 0,
+                StackEvents.getCurrentCorrelationId());
+
+        int timeout = Configurator.getSendTransactionTimeout();
+        if (timeout > 0) {
+            t.timeoutTask = parent.parentInstance.getThreadFarm().schedule(new Runnable() {
+                public void run() {
+                    parent.transactionTimedOut(transactionID);
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        pendingTransactions.put(transactionID, t);
+        pendingTransactionCount = pendingTransactions.size();
+        StackEvents.chunkSent(t.correlationId, transactionID, t.messageStateId);
+    }
+
+    /**
+     * Matches a received response against the outstanding transactions and notifies the application.
+     * A response which doesn't match any outstanding transaction terminates the participant.
+     *
+     * @param response the received response
+     */
+    private void transactionCompleted(MsrpResponse response) {
+        PendingTransaction t = pendingTransactions.remove(response.getTransactionID());
+        pendingTransactionCount = pendingTransactions.size();
+        if (t == null) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "The transactionID (" + response.getTransactionID() + ") of the response does't match any of the transactionIDs expected (" + pendingTransactions.keySet() + "). Sending close signal");
+            }
+            parent.terminate();
+            return;
+        }
+        if (t.timeoutTask != null) {
+            t.timeoutTask.cancel(false);
+        }
+
+        if (t.sentAt != 0) {
+            long rtt = System.nanoTime() - t.sentAt;
+            CHUNK_RTT.record(rtt);
+            StackEvents.chunkAcknowledged(t.correlationId, response.getTransactionID(), response.getStatusCode(), rtt);
+        }
+
+        /*
+         * Notify the application about this response
+         */
+        parent.getApplication().responseReceived(t.messageStateId, parent, response.getStatusCode());
+    }
+
+    /**
+     * A response arrived for a transaction which was sent with Failure-Report 'no' or 'partial'. A negative
+     * response is passed on to the application, a positive one is not of any interest.
+     *
+     * @param response the received response
+     */
+    private void unacknowledgedResponseReceived(MsrpResponse response) {
+        String messageStateId = unacknowledgedTransactions.remove(response.getTransactionID());
+        if ((response.getStatusCode() / 100) != 2) {
+            parent.getApplication().responseReceived(messageStateId, parent, response.getStatusCode());
+        }
+    }
+
+    /**
+     * @param request the request about to be sent
+     * @return false if the Failure-Report header of the request tells the receiver to not send a 200 response
+     */
+    private static boolean isResponseExpected(MsrpSendRequest request) {
+        FailureReportHeader failureReport = request.getFailureReportHeader();
+        return failureReport == null || failureReport.get() == FailureReportHeader.Value.yes;
+    }
+
+    private void transactionTimedOut(String transactionID) {
+        PendingTransaction t = pendingTransactions.remove(transactionID);
+        pendingTransactionCount = pendingTransactions.size();
+        if (t != null) {
+            Logger.i(TAG, "No response received in time for transaction " + transactionID + " (for " + parent.getLocalMsrpURI() + ")");
+            parent.getApplication().responseReceived(t.messageStateId, parent, STATUS_REQUEST_TIMEOUT);
+        }
+    }
+
+    private void clearPendingTransactions() {
+        Iterator<PendingTransaction> i = pendingTransactions.values().iterator();
+        while (i.hasNext()) {
+            PendingTransaction t = i.next();
+            if (t.timeoutTask != null) {
+                t.timeoutTask.cancel(false);
+            }
+            i.remove();
+        }
+        pendingTransactionCount = 0;
+        unacknowledgedTransactions.clear();
+    }
+
+    private void openWindow() {
+        try {
+            super.input(OutboundFSMSignal.getWindowOpenSignal());
+        } catch (UnhandledConditionException e) {
+            Logger.e(TAG, "", e);
+        } catch (InterruptedException e) {
+            Logger.e(TAG, "", e);
+        } catch (TransitionActivityException e) {
+            Logger.e(TAG, "", e);
+        }
+    }
+
     private ChunkPieceState createNewState(int bytesWritten, String outgoingTransactionID) {
         if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
             Logger.d(TAG, "Creating new chunkPieceState for txID=" + outgoingTransactionID + ", bytesWritten=" + bytesWritten);
@@ -1130,10 +1523,54 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
 
     public static ByteBuffer getReadBuffer() {
         ByteBuffer bb = writeBuffers.get();
+        if (bb.capacity() < getWriteBufferSize()) {
+            // the max chunk piece size was raised
+            bb = ByteBuffer.allocate(getWriteBufferSize());
+            writeBuffers.set(bb);
+        }
         bb.clear();
         return bb;
     }
 
+    /**
+     * Returns the buffer chunk pieces are marshalled into. A chunk piece is queued on the connection without being
+     * copied, which is safe since this FSM waits in SENDING_CHUNK_WAIT until the piece has been written before it
+     * marshalls the next one. The buffer must not be shared with other FSMs though: with several sessions sending
+     * at the same time (e.g. a message sent to all members of a group chat) the same thread would otherwise
+     * overwrite the piece of one session while it is still waiting to be written.
+     *
+     * @return the cleared buffer, in write mode
+     */
+    private ByteBuffer getPieceBuffer() {
+        if (pieceBuffer == null || pieceBuffer.capacity() < getWriteBufferSize()) {
+            pieceBuffer = ByteBuffer.allocate(getWriteBufferSize());
+        }
+        pieceBuffer.clear();
+        return pieceBuffer;
+    }
+
+    private static int getWriteBufferSize() {
+        return Math.max(Configurator.getBufferSize(), Configurator.getMaxChunkPieceSize()) * 2;
+    }
+
+    /**
+     * Copies the data written so far into the (thread-local) buffer into a new buffer of its own.
+     * <p/>
+     * Writes are queued on the connection without copying. This is only safe if the buffer is not
+     * re-used before the write completed, which is not the case for messages which are written without
+     * waiting for them, since the same thread may write the next message right away, e.g. while the send
+     * window is open. Chunk pieces are marshalled into a buffer of their own instead, see getPieceBuffer().
+     *
+     * @param bb the buffer to copy from, in write mode
+     * @return a new buffer in write mode containing the same data
+     */
+    private static ByteBuffer detach(ByteBuffer bb) {
+        ByteBuffer copy = ByteBuffer.allocate(bb.position());
+        bb.flip();
+        copy.put(bb);
+        return copy;
+    }
+
     private static void logOutgoingData(Participant instance,
                                         MsrpSendRequest.ChunkType chunkType,
                                         IMsrpMessage baseRequest,
@@ -1151,7 +1588,7 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
     }
 
     public boolean cannotBeClosed() {
-        return super.getUnsafeCurrentState() == WAIT_RESPONSE;
+        return super.getUnsafeCurrentState() == WAIT_RESPONSE || pendingTransactionCount > 0;
     }
 
     private class ChunkPieceState {
@@ -1178,21 +1615,16 @@ public class OutboundFSM extends Machine<OutboundFSMSignal> {
         }
     }
 
-    private class QueuedMessage {
-        private final IMsrpMessage msg;
+    private static class PendingTransaction {
         private final String messageStateId;
+        private final long sentAt;
+        private final long correlationId;
+        private ScheduledFuture timeoutTask;
 
-        public QueuedMessage(IMsrpMessage msg, String messageStateId) {
-            this.msg = msg;
+        public PendingTransaction(String messageStateId, long sentAt, long correlationId) {
             this.messageStateId = messageStateId;
-        }
-
-        public IMsrpMessage getMsg() {
-            return msg;
-        }
-
-        public String getMessageStateId() {
-            return messageStateId;
+            this.sentAt = sentAt;
+            this.correlationId = correlationId;
         }
     }
 }
@@ -0,0 +1,217 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.tx;
+
+import com.colibria.android.sipservice.headers.IMsrpMessage;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.config.Configurator;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * The outbound queue of the OutboundFSM.
+ * <p/>
+ * Responses and REPORTs are always handed out first, in the order they were queued, since they complete
+ * or report on transactions of the remote party. SEND requests are queued per message (one flow per Message-ID)
+ * and the flows are served deficit round-robin: each time a flow gets its turn, its deficit is increased by
+ * Configurator.getSchedulerQuantum() multiplied by the flow's priority, and chunk pieces are handed out for this
+ * flow as long as the deficit covers their size. A large file transfer can therefore no longer hold back a small
+ * message queued behind it for longer than one quantum.
+ * <p/>
+ * Chunk pieces of the same message always leave in the order they were queued.
+ * <p/>
+ * This class is not thread-safe and is guarded by the lock of the OutboundFSM.
+ *
+ * @author Sebastian Dehne
+ */
+class OutboundScheduler {
+
+    /**
+     * The priority used for messages which don't carry a priority hint
+     */
+    static final int DEFAULT_PRIORITY = 4;
+
+    private final LinkedList<QueuedMessage> controlQueue;
+    private final LinkedList<Flow> activeFlows;
+    private final Map<String, Flow> flows;
+    private int size;
+
+    OutboundScheduler() {
+        controlQueue = new LinkedList<QueuedMessage>();
+        activeFlows = new LinkedList<Flow>();
+        flows = new HashMap<String, Flow>();
+    }
+
+    /**
+     * Queues a message.
+     *
+     * @param message    the message to be queued
+     * @param firstPlace true in case this message should be the next one of its kind to be handed out
+     */
+    void offer(QueuedMessage message, boolean firstPlace) {
+        size++;
+        if (message.getMsg().getType() != IMsrpMessage.Type.request) {
+            if (firstPlace) {
+                controlQueue.addFirst(message);
+            } else {
+                controlQueue.offer(message);
+            }
+            return;
+        }
+
+        String key = getFlowKey((MsrpSendRequest) message.getMsg());
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            flow = new Flow(key, message.getPriority());
+            flows.put(key, flow);
+        }
+        if (firstPlace) {
+            // hand it back out right away, without charging the flow again
+            flow.queue.addFirst(message);
+            flow.deficit += message.getMsg().getSize();
+            activeFlows.remove(flow);
+            activeFlows.addFirst(flow);
+            flow.inTurn = true;
+        } else {
+            flow.queue.offer(message);
+            if (flow.queue.size() == 1) {
+                activeFlows.offer(flow);
+            }
+        }
+    }
+
+    /**
+     * Returns the message which should be sent next
+     *
+     * @return the next message, or null if nothing is queued
+     */
+    QueuedMessage poll() {
+        QueuedMessage message = pollControl();
+        if (message != null) {
+            return message;
+        }
+
+        Flow flow;
+        while ((flow = activeFlows.peek()) != null) {
+            if (!flow.inTurn) {
+                flow.deficit += Configurator.getSchedulerQuantum() * flow.priority;
+                flow.inTurn = true;
+            }
+
+            int pieceSize = flow.queue.peek().getMsg().getSize();
+            if (pieceSize <= flow.deficit) {
+                message = flow.queue.poll();
+                flow.deficit -= pieceSize;
+                if (flow.queue.isEmpty()) {
+                    // an idle flow doesn't keep its credit
+                    activeFlows.poll();
+                    flows.remove(flow.key);
+                }
+                size--;
+                return message;
+            }
+
+            // turn is over, move on to the next flow
+            flow.inTurn = false;
+            activeFlows.offer(activeFlows.poll());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next queued response or report, leaving all requests queued
+     *
+     * @return the next response or report, or null if there is none
+     */
+    QueuedMessage pollControl() {
+        QueuedMessage message = controlQueue.poll();
+        if (message != null) {
+            size--;
+        }
+        return message;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        // the queued requests won't be sent anymore, give up the shared bodies they hold
+        for (Flow flow : flows.values()) {
+            for (QueuedMessage message : flow.queue) {
+                ((MsrpSendRequest) message.getMsg()).releaseBody();
+            }
+        }
+        controlQueue.clear();
+        activeFlows.clear();
+        flows.clear();
+        size = 0;
+    }
+
+    private static String getFlowKey(MsrpSendRequest request) {
+        return request.getMessageID() != null ? request.getMessageID() : request.getTransactionID();
+    }
+
+    private static class Flow {
+        private final String key;
+        private final int priority;
+        private final LinkedList<QueuedMessage> queue;
+        private long deficit;
+        private boolean inTurn;
+
+        public Flow(String key, int priority) {
+            this.key = key;
+            this.priority = priority > 0 ? priority : DEFAULT_PRIORITY;
+            this.queue = new LinkedList<QueuedMessage>();
+        }
+    }
+
+    static class QueuedMessage {
+        private final IMsrpMessage msg;
+        private final String messageStateId;
+        private final int priority;
+        private final long queuedAt;
+
+        public QueuedMessage(IMsrpMessage msg, String messageStateId, int priority, long queuedAt) {
+            this.msg = msg;
+            this.messageStateId = messageStateId;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+        }
+
+        public IMsrpMessage getMsg() {
+            return msg;
+        }
+
+        public String getMessageStateId() {
+            return messageStateId;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+    }
+}
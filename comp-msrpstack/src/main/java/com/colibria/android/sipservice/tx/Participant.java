@@ -37,6 +37,7 @@ import com.colibria.android.sipservice.headers.MsrpResponse;
 import com.colibria.android.sipservice.headers.MsrpSendRequest;
 import com.colibria.android.sipservice.headers.MsrpURI;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -99,8 +100,9 @@ import java.util.concurrent.atomic.AtomicReference;
  *              the local end or the remote end. When entering this state, the underlying FSM's are prepared.
  *              In case of local connection setup, the inboundFSM will be put to the IDLE state and the
  *              outboundFSM sends the handshake request and transitions to START_SENT state
- *              In case of remote connection setup, the inboundFSM will be put to the IDLE state and the
- *              outboundFSM sends a reponse to the incoming handshake requests and transitions to IDLE.
+ *              In case of remote connection setup, the first request received on the connection completes the
+ *              handshake right away: the participant goes from INIT to BOUND, the outboundFSM transitions
+ *              to IDLE without sending anything and the request is responded to as any other.
  * BOUND      : The participant is bound to a connection, handshake is completed and the participant is able
  *              to handle traffic using the inbound- and outboundFSM
  * TERMINATED : the connection setup failed OR the connection has been closed and the
@@ -169,6 +171,23 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
                 p.startHandShake();
             }
         });
+        INIT.addTransition(new LifeCycleFSMTransition(LifeCycleFSMCondition.INCOMING_HANDSHAKE, BOUND) {
+            @Override
+            public void activity(Participant p, LifeCycleFSMSignal signal) {
+                if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                    Logger.d(TAG, "INIT -> BOUND (INCOMING_HANDSHAKE) (localURI:" + p.localMsrpURI + "; channel:" + signal.getChannelState() + ")");
+                }
+                p.channelState = signal.getChannelState();
+                if (p.remoteURI == null) {
+                    List<MsrpURI> fromPath = signal.getHandshakeRequest().getFromPath().getURIs();
+                    p.setRemoteURI(fromPath.get(fromPath.size() - 1));
+                }
+                p.outboundFSM.completeHandshake();
+
+                // tell the app that we are now active
+                p.application.participantActivated(p);
+            }
+        });
         INIT.addTransition(new LifeCycleFSMTransition(LifeCycleFSMCondition.CONNECT_FAILED, TERMINATED) {
             @Override
             public void activity(Participant p, LifeCycleFSMSignal signal) {
@@ -253,6 +272,7 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
     protected final OutboundFSM outboundFSM;
     protected final InboundFSM inboundFSM;
     private final MsrpURI localMsrpURI;
+    private final MsrpPath localPath;
     private final IMsrpApplication application;
     private final Address cpimAddress;
 
@@ -261,6 +281,7 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
      * The following mutable state is guarded by lock in the FSM
      */
     private volatile MsrpURI remoteURI;
+    private volatile MsrpPath remotePath;
     private ScheduledFuture timeoutTimerTask;
     private ChannelState channelState;
 
@@ -268,6 +289,7 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
         super(INIT);
         this.parentInstance = parentInstance;
         this.localMsrpURI = localMsrpURI;
+        this.localPath = new MsrpPath(localMsrpURI);
         this.application = application;
         this.cpimAddress = cpimAddress;
         this.outboundFSM = new OutboundFSM(this, listener);
@@ -289,9 +311,28 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
     }
 
     public void setRemoteURI(MsrpURI remoteURI) {
+        this.remotePath = remoteURI != null ? new MsrpPath(remoteURI) : null;
         this.remoteURI = remoteURI;
     }
 
+    /**
+     * The path is the same for all requests of this participant, such that its encoded form is
+     * created only once rather than for each chunk sent.
+     *
+     * @return the path consisting of the local uri only
+     */
+    public MsrpPath getLocalPath() {
+        return localPath;
+    }
+
+    /**
+     * @return the path consisting of the remote uri only, null if the remoteURI is not known yet
+     * @see #getLocalPath()
+     */
+    public MsrpPath getRemotePath() {
+        return remotePath;
+    }
+
     /**
      * Called from the channelState in case the underlying bound channel was closed
      */
@@ -328,6 +369,49 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
         }
     }
 
+    /**
+     * Called from a channelState of a connection which the remote end established, when the first request
+     * received on it is addressed to this participant. The participant binds itself to that channel and
+     * handles the request.
+     *
+     * @param channelState the channel the request was received on
+     * @param request      the first request received on the channel
+     * @return false if this participant doesn't wait for this connection, the request was not handled then
+     */
+    public boolean incomingConnection(ChannelState channelState, MsrpSendRequest request) {
+        List<MsrpURI> fromPath = request.getFromPath().getURIs();
+        MsrpURI expected = remoteURI;
+        if (expected != null && !expected.equals(fromPath.get(fromPath.size() - 1))) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Incoming connection is from " + request.getFromPath() + ", but " + expected + " was expected");
+            }
+            return false;
+        }
+
+        try {
+            super.input(LifeCycleFSMSignal.createIncomingHandshakeSignal(channelState, request));
+        } catch (UnhandledConditionException e) {
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "Not waiting for an incoming connection (localURI:" + localMsrpURI + ")");
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Logger.e(TAG, "", e);
+            return false;
+        } catch (TransitionActivityException e) {
+            Logger.e(TAG, "", e);
+            return false;
+        }
+
+        if (!channelState.register(this)) {
+            // the connection got closed meanwhile
+            terminate();
+            return true;
+        }
+        handleIncomingRequest(request);
+        return true;
+    }
+
     public void outgoingConnectFailed() {
         try {
             super.input(LifeCycleFSMSignal.createConnectFailedSignal());
@@ -402,6 +486,49 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
         }
     }
 
+    /**
+     * Called from the I/O layer upon receiving a REPORT
+     *
+     * @param report the received report
+     */
+    public void handleIncomingReport(final MsrpReportRequest report) {
+        try {
+            super.checkAndPerform(new Callable<Object>() {
+                public Object call() throws Exception {
+                    inboundFSM.receivedReportRequest(report);
+                    return null;
+                }
+            }, BOUND);
+        } catch (UnhandledConditionException e) {
+            //current state doesn't allow this
+        } catch (Exception e) {
+            Logger.e(TAG, "", e);
+        }
+    }
+
+    /**
+     * Sends a REPORT to the remote side of this participant
+     *
+     * @param report the report to be sent
+     */
+    public void handleOutgoingReport(final MsrpReportRequest report) {
+        try {
+            super.checkAndPerform(new Callable<Object>() {
+                public Object call() throws Exception {
+                    outboundFSM.sendReport(report);
+                    return null;
+                }
+            }, BOUND);
+        } catch (UnhandledConditionException e) {
+            // participant just terminated or so
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "", e);
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "", e);
+        }
+    }
+
     /**
      * Called by the conference to start a new outbound transaction for this participant
      *
@@ -409,11 +536,23 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
      * @param messageStateId the id which identifies some state in the app-layer
      */
     public void handleOutgoingRequest(final MsrpSendRequest request, final String messageStateId) {
+        handleOutgoingRequest(request, messageStateId, OutboundScheduler.DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Called by the conference to start a new outbound transaction for this participant
+     *
+     * @param request        the request to be sent
+     * @param messageStateId the id which identifies some state in the app-layer
+     * @param priority       the share of the outbound bandwidth this message gets while other messages
+     *                       are queued for this participant (weight, at least 1)
+     */
+    public void handleOutgoingRequest(final MsrpSendRequest request, final String messageStateId, final int priority) {
 
         try {
             super.checkAndPerform(new Callable<Object>() {
                 public Object call() throws Exception {
-                    outboundFSM.sendSendRequest(request, messageStateId);
+                    outboundFSM.sendSendRequest(request, messageStateId, priority);
                     return null;
                 }
             }, BOUND);
@@ -428,6 +567,33 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
 
     }
 
+    /**
+     * Called by the OutboundFSM's timeout timer in case no response was received in time
+     * for an outstanding transaction
+     *
+     * @param transactionID the outgoing transactionID which timed out
+     */
+    protected void transactionTimedOut(final String transactionID) {
+        try {
+            super.checkAndPerform(new Callable<Object>() {
+                public Object call() throws Exception {
+                    outboundFSM.transactionTimeout(transactionID);
+                    if (timeoutTimerTask != null) {
+                        injectCloseSignal(false);
+                    }
+                    return null;
+                }
+            }, BOUND);
+        } catch (UnhandledConditionException e) {
+            // participant just terminated or so
+            if (Logger.isLoggable(Logger.Level.DEBUG, TAG)) {
+                Logger.d(TAG, "", e);
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "", e);
+        }
+    }
+
     /**
      * Returns the channelState which this participant is bound to.
      * This method must only be called by a thread which owns the lock of
@@ -451,6 +617,23 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
         return cpimAddress;
     }
 
+    /**
+     * Returns the number of content bytes a chunk piece should currently carry. This adapts
+     * to how fast the underlying connection drains.
+     *
+     * @return the chunk piece size in bytes
+     */
+    public int getChunkPieceSize() {
+        return outboundFSM.getChunkPieceSize();
+    }
+
+    /**
+     * @return the fraction of the outbound queue which is currently used
+     */
+    public float getOutboundQueueUsage() {
+        return outboundFSM.getCurrentQueueUsage();
+    }
+
     public String toString() {
         return "Participant-" + localMsrpURI.toString();
     }
@@ -522,6 +705,10 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
         return outboundFSM.cannotBeClosed();
     }
 
+    /**
+     * Sends an empty SEND through this participant. Only called by the ChannelState, which decides
+     * when its connection needs a keep-alive and sends it through one of its participants.
+     */
     public void sendKeepAlive() {
         parentInstance.getThreadFarm().execute(new Runnable() {
             @Override
@@ -532,8 +719,8 @@ public class Participant extends Machine<LifeCycleFSMSignal> {
                 // send an empty msrp request
                 MsrpSendRequest handShake = MsrpSendRequest.generateHandShake(
                         parentInstance.getNextId(),
-                        new MsrpPath(getRemoteURI()),
-                        new MsrpPath(getLocalMsrpURI()),
+                        getRemotePath(),
+                        getLocalPath(),
                         parentInstance.getNextId());
                 handleOutgoingRequest(handShake, null);
             }
@@ -39,7 +39,6 @@ public class InboundFSMSignal {
     private final Type type;
     private final MsrpSendRequest receivedSendRequest;
     private final MsrpResponse receivedResponse;
-    @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"})
     private final MsrpReportRequest report;
 
     private InboundFSMSignal(Type type, MsrpSendRequest receivedSendRequest, MsrpResponse receivedResponse, MsrpReportRequest report) {
@@ -65,6 +64,10 @@ public class InboundFSMSignal {
         return receivedResponse;
     }
 
+    public MsrpReportRequest getReceivedReportRequest() {
+        return report;
+    }
+
     public String toString() {
         return type.toString();
     }
@@ -37,6 +37,7 @@ public class LifeCycleFSMCondition extends Condition<LifeCycleFSMSignal, Partici
     public static final LifeCycleFSMCondition CONNECT_FAILED = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.connectFailed);
     public static final LifeCycleFSMCondition HANDSHAKE_COMPLETED = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.handshake_completed);
     public static final LifeCycleFSMCondition CONNECTION_UP = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.connection_up);
+    public static final LifeCycleFSMCondition INCOMING_HANDSHAKE = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.incoming_handshake);
     public static final LifeCycleFSMCondition CLOSE = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.close);
     public static final LifeCycleFSMCondition CLOSE_REQUEST = new LifeCycleFSMCondition(LifeCycleFSMSignal.Type.close) {
         @Override
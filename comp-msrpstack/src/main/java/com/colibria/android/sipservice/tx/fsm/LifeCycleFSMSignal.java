@@ -45,6 +45,11 @@ public class LifeCycleFSMSignal {
          */
         connection_up,
 
+        /**
+         * Binds a TCP connection which the remote end established to a participant, upon its first request
+         */
+        incoming_handshake,
+
         /**
          * signal the FSM that the handshake is completed
          */
@@ -101,6 +106,10 @@ public class LifeCycleFSMSignal {
         return new LifeCycleFSMSignal(Type.connection_up, channelState, null, null, false);
     }
 
+    public static LifeCycleFSMSignal createIncomingHandshakeSignal(ChannelState channelState, MsrpSendRequest request) {
+        return new LifeCycleFSMSignal(Type.incoming_handshake, channelState, request, null, false);
+    }
+
     public static LifeCycleFSMSignal createConnectFailedSignal() {
         return new LifeCycleFSMSignal(Type.connectFailed, null, null, null, false);
     }
@@ -99,6 +99,26 @@ public class OutboundFSMCondition extends Condition<OutboundFSMSignal, OutboundF
                     owner.getCurrentTransactionID().equals(signal.getResponse().getTransactionID());
         }
     };
+    public static final OutboundFSMCondition PENDING_RESPONSE_RECEIVED = new OutboundFSMCondition(OutboundFSMSignal.Type.responseReceived) {
+        @Override
+        public boolean satisfiedBy(OutboundFSMSignal signal, OutboundFSM owner) {
+            return signal.isType(type) && owner.isTransactionPending(signal.getResponse().getTransactionID());
+        }
+    };
+    public static final OutboundFSMCondition UNACKNOWLEDGED_RESPONSE_RECEIVED = new OutboundFSMCondition(OutboundFSMSignal.Type.responseReceived) {
+        @Override
+        public boolean satisfiedBy(OutboundFSMSignal signal, OutboundFSM owner) {
+            return signal.isType(type) && owner.isTransactionUnacknowledged(signal.getResponse().getTransactionID());
+        }
+    };
+
+    public static final OutboundFSMCondition WINDOW_OPEN = new OutboundFSMCondition(OutboundFSMSignal.Type.windowOpen);
+    public static final OutboundFSMCondition TRANSACTION_TIMEOUT = new OutboundFSMCondition(OutboundFSMSignal.Type.transactionTimeout) {
+        @Override
+        public boolean satisfiedBy(OutboundFSMSignal signal, OutboundFSM owner) {
+            return signal.isType(type) && owner.isTransactionPending(signal.getTimedOutTransactionID());
+        }
+    };
 
     public static final OutboundFSMCondition CLOSE = new OutboundFSMCondition(OutboundFSMSignal.Type.close);
 }
@@ -74,7 +74,17 @@ public class OutboundFSMSignal {
         /**
          * To indicate that data was actually sent out by grizzly
          */
-        bytesSent
+        bytesSent,
+
+        /**
+         * Signals the FSM that the send window has room for another transaction
+         */
+        windowOpen,
+
+        /**
+         * Signals the FSM that no response was received in time for an outstanding transaction
+         */
+        transactionTimeout
     }
 
 
@@ -92,19 +102,31 @@ public class OutboundFSMSignal {
 
     private final MsrpSendRequest toBeSentRequest;
     private final String messageStateId;
+    private final int priority;
 
     /**
      * the report to be sent
      */
     private final MsrpReportRequest msrpReportRequest;
 
+    /**
+     * the outgoing transaction which timed out
+     */
+    private final String timedOutTransactionID;
+
     private OutboundFSMSignal(Type type, MsrpResponse response, MsrpSendRequest handshakeReuqest, MsrpSendRequest toBeSentRequest, String messageStateId, MsrpReportRequest report) {
+        this(type, response, handshakeReuqest, toBeSentRequest, messageStateId, 0, report, null);
+    }
+
+    private OutboundFSMSignal(Type type, MsrpResponse response, MsrpSendRequest handshakeReuqest, MsrpSendRequest toBeSentRequest, String messageStateId, int priority, MsrpReportRequest report, String timedOutTransactionID) {
         this.type = type;
         this.response = response;
         this.handshakeReuqest = handshakeReuqest;
         this.toBeSentRequest = toBeSentRequest;
         this.messageStateId = messageStateId;
+        this.priority = priority;
         this.msrpReportRequest = report;
+        this.timedOutTransactionID = timedOutTransactionID;
     }
 
     public boolean isType(Type type) {
@@ -131,6 +153,14 @@ public class OutboundFSMSignal {
         return messageStateId;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getTimedOutTransactionID() {
+        return timedOutTransactionID;
+    }
+
     public String toString() {
         return type.toString();
     }
@@ -151,8 +181,8 @@ public class OutboundFSMSignal {
         return new OutboundFSMSignal(Type.completeHandshake, null, null, null, null, null);
     }
 
-    public static OutboundFSMSignal getSendRequestSignal(MsrpSendRequest request, String messageStateId) {
-        return new OutboundFSMSignal(Type.sendRequest, null, null, request, messageStateId, null);
+    public static OutboundFSMSignal getSendRequestSignal(MsrpSendRequest request, String messageStateId, int priority) {
+        return new OutboundFSMSignal(Type.sendRequest, null, null, request, messageStateId, priority, null, null);
     }
 
     public static OutboundFSMSignal getSendResponseSignal(MsrpResponse response) {
@@ -166,4 +196,12 @@ public class OutboundFSMSignal {
     public static OutboundFSMSignal getBytesSentSignal() {
         return new OutboundFSMSignal(Type.bytesSent, null, null, null, null, null);
     }
+
+    public static OutboundFSMSignal getWindowOpenSignal() {
+        return new OutboundFSMSignal(Type.windowOpen, null, null, null, null, null);
+    }
+
+    public static OutboundFSMSignal getTransactionTimeoutSignal(String transactionID) {
+        return new OutboundFSMSignal(Type.transactionTimeout, null, null, null, null, 0, null, transactionID);
+    }
 }
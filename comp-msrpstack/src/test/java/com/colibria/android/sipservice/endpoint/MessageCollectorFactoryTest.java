@@ -0,0 +1,127 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint;
+
+import com.colibria.android.sipservice.MimeType;
+import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.MsrpParser;
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class MessageCollectorFactoryTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+    }
+
+    private static MsrpSendRequest firstChunk(String contentType, String byteRange, String body) throws Exception {
+        String raw = "MSRP a786hjs2 SEND\r\n" +
+                "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+                "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+                "Message-ID: 87652491\r\n" +
+                "Byte-Range: " + byteRange + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "\r\n" +
+                body + "\r\n" +
+                "-------a786hjs2+\r\n";
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(ByteBuffer.wrap(raw.getBytes("US-ASCII"))));
+        return (MsrpSendRequest) parser.getParsedMessage();
+    }
+
+    private static MsrpSendRequest cpimChunk(String wrappedType, long total) throws Exception {
+        return cpimChunk(wrappedType, null, total);
+    }
+
+    private static MsrpSendRequest cpimChunk(String wrappedType, String contentEncoding, long total) throws Exception {
+        String cpim = "From: <sip:alice@example.com>\r\n" +
+                "To: <sip:bob@example.com>\r\n" +
+                "\r\n" +
+                "Content-Type: " + wrappedType + "\r\n" +
+                (contentEncoding != null ? "Content-Encoding: " + contentEncoding + "\r\n" : "") +
+                "\r\n" +
+                "abc";
+        return firstChunk("message/CPIM", "1-" + cpim.length() + "/" + total, cpim);
+    }
+
+    public void testNoLimitsByDefault() throws Exception {
+        MessageCollectorFactory factory = new MessageCollectorFactory(null);
+        assertNull(factory.checkLimits(firstChunk("text/plain", "1-3/1000000000", "abc")));
+    }
+
+    public void testMaxSize() throws Exception {
+        MessageCollectorFactory factory = new MessageCollectorFactory(null);
+        factory.setMaxMessageSize(1000);
+        assertNull(factory.checkLimits(firstChunk("text/plain", "1-3/1000", "abc")));
+        assertSame(MsrpResponse.RESPONSE_413, factory.checkLimits(firstChunk("text/plain", "1-3/1001", "abc")));
+
+        // unknown size, enforced by the reassembler later on
+        assertNull(factory.checkLimits(firstChunk("text/plain", "1-3/*", "abc")));
+    }
+
+    public void testMaxSizePerContentType() throws Exception {
+        MessageCollectorFactory factory = new MessageCollectorFactory(null);
+        factory.setMaxMessageSize(1000);
+        factory.setMaxMessageSize(MimeType.parse("image/*"), 100000);
+        factory.setMaxMessageSize(MimeType.parse("image/gif"), 10);
+
+        assertSame(MsrpResponse.RESPONSE_413, factory.checkLimits(firstChunk("text/plain", "1-3/5000", "abc")));
+        assertNull(factory.checkLimits(firstChunk("image/png", "1-3/5000", "abc")));
+        assertSame(MsrpResponse.RESPONSE_413, factory.checkLimits(firstChunk("image/gif", "1-3/11", "abc")));
+
+        factory.setMaxMessageSize(MimeType.parse("image/gif"), -1);
+        assertNull(factory.checkLimits(firstChunk("image/gif", "1-3/5000", "abc")));
+    }
+
+    public void testAcceptedContentTypes() throws Exception {
+        MessageCollectorFactory factory = new MessageCollectorFactory(null);
+        factory.setAcceptedContentTypes(Arrays.asList(MimeType.parse("message/cpim"), MimeType.parse("text/*")));
+        assertNull(factory.checkLimits(firstChunk("text/plain", "1-3/3", "abc")));
+        assertSame(MsrpResponse.RESPONSE_415, factory.checkLimits(firstChunk("image/png", "1-3/3", "abc")));
+
+        // the wrapped content-type counts
+        assertNull(factory.checkLimits(cpimChunk("text/html", 1000)));
+        assertSame(MsrpResponse.RESPONSE_415, factory.checkLimits(cpimChunk("application/octet-stream", 1000)));
+
+        factory.setAcceptedContentTypes(Arrays.asList(MimeType.parse("*/*")));
+        assertNull(factory.checkLimits(cpimChunk("application/octet-stream", 1000)));
+    }
+
+    public void testContentEncoding() throws Exception {
+        MessageCollectorFactory factory = new MessageCollectorFactory(null);
+        assertNull(MessageCollectorFactory.getContentEncoding(cpimChunk("text/plain", 1000)));
+        assertNull(MessageCollectorFactory.getContentEncoding(cpimChunk("text/plain", "identity", 1000)));
+        assertEquals("gzip", MessageCollectorFactory.getContentEncoding(cpimChunk("text/plain", "GZIP", 1000)));
+        assertNull(factory.checkLimits(cpimChunk("text/plain", "deflate", 1000)));
+        assertSame(MsrpResponse.RESPONSE_415, factory.checkLimits(cpimChunk("text/plain", "br", 1000)));
+    }
+}
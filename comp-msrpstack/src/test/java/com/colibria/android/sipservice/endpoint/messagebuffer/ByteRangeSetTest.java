@@ -0,0 +1,84 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.headers.ByteRange;
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class ByteRangeSetTest extends TestCase {
+
+    public void testOutOfOrderAndOverlapping() {
+        ByteRangeSet set = new ByteRangeSet();
+
+        assertEquals(10, set.add(20, 30));
+        assertEquals(10, set.add(0, 10));
+        assertFalse(set.isComplete(30));
+
+        List<ByteRange> missing = set.getMissingRanges(40);
+        assertEquals(2, missing.size());
+        assertEquals(11, missing.get(0).getStart());
+        assertEquals(20, missing.get(0).getEnd());
+        assertEquals(31, missing.get(1).getStart());
+        assertEquals(40, missing.get(1).getEnd());
+
+        // overlaps both blocks, only the gap is new
+        assertEquals(10, set.add(5, 25));
+        assertEquals(1, set.getReceivedRanges(30).size());
+        assertEquals(30, set.getReceivedBytes());
+        assertTrue(set.isComplete(30));
+
+        // already received
+        assertEquals(0, set.add(0, 30));
+        assertEquals(30, set.getReceivedBytes());
+    }
+
+    public void testAdjacentRangesAreMerged() {
+        ByteRangeSet set = new ByteRangeSet();
+        for (int i = 9; i >= 0; i--) {
+            assertEquals(100, set.add(i * 100, (i + 1) * 100));
+        }
+        assertEquals(1, set.getReceivedRanges(1000).size());
+        assertTrue(set.isComplete(1000));
+        assertTrue(set.getMissingRanges(1000).isEmpty());
+    }
+
+    public void testJoinsSeveralBlocks() {
+        ByteRangeSet set = new ByteRangeSet();
+        set.add(0, 10);
+        set.add(20, 30);
+        set.add(40, 50);
+        set.add(60, 70);
+
+        // starts inside the first block and ends inside the last one
+        assertEquals(30, set.add(5, 65));
+        assertEquals(1, set.getReceivedRanges(80).size());
+
+        // touches the end of the block before
+        assertEquals(10, set.add(70, 80));
+        assertEquals(1, set.getReceivedRanges(80).size());
+        assertEquals(80, set.getReceivedBytes());
+        assertTrue(set.isComplete(80));
+        assertFalse(set.isComplete(81));
+    }
+}
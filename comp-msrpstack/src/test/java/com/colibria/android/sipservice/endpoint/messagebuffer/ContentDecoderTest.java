@@ -0,0 +1,149 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.endpoint.api.IMessageContentStore;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class ContentDecoderTest extends TestCase {
+
+    private static class Store implements IMessageContentStore {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        public void receivingFinished(boolean wasAbortedOrTimedOut) {
+        }
+
+        public long store(long start, byte[] b, int offSet, int len) {
+            assertEquals(content.size(), start);
+            content.write(b, offSet, len);
+            return len;
+        }
+
+        public long getBytesReceivedSoFar() {
+            return content.size();
+        }
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder();
+        Random r = new Random(size);
+        while (sb.length() < size) {
+            sb.append("<item id=\"").append(r.nextInt(1000)).append("\">hello world</item>\n");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bos);
+        out.write(content);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content, boolean nowrap) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bos, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap));
+        out.write(content);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static Store decodeInPieces(String encoding, byte[] encoded, int pieceSize, long maxSize) throws IOException {
+        Store store = new Store();
+        ContentDecoder decoder = ContentDecoder.create(encoding, store, maxSize);
+        try {
+            for (int pos = 0; pos < encoded.length; pos += pieceSize) {
+                assertFalse(decoder.isComplete());
+                decoder.decode(encoded, pos, Math.min(pieceSize, encoded.length - pos));
+            }
+            assertTrue(decoder.isComplete());
+            assertEquals(store.content.size(), decoder.getDecodedSize());
+        } finally {
+            decoder.end();
+        }
+        return store;
+    }
+
+    public void testGzip() throws Exception {
+        byte[] content = text(100000);
+        byte[] encoded = gzip(content);
+        for (int pieceSize : new int[]{1, 3, 11, 512, encoded.length}) {
+            assertTrue(Arrays.equals(content, decodeInPieces("gzip", encoded, pieceSize, -1).content.toByteArray()));
+        }
+    }
+
+    public void testDeflate() throws Exception {
+        byte[] content = text(100000);
+        for (boolean nowrap : new boolean[]{false, true}) {
+            // raw deflate streams are accepted as well, some implementations send those for 'deflate'
+            byte[] encoded = deflate(content, nowrap);
+            for (int pieceSize : new int[]{1, 7, 4096, encoded.length}) {
+                assertTrue(Arrays.equals(content, decodeInPieces("deflate", encoded, pieceSize, -1).content.toByteArray()));
+            }
+        }
+    }
+
+    public void testUnsupported() {
+        assertNull(ContentDecoder.create("compress", new Store(), -1));
+    }
+
+    public void testMaxSize() throws Exception {
+        byte[] encoded = gzip(new byte[1000000]);
+        assertTrue(encoded.length < 2000);
+        try {
+            decodeInPieces("gzip", encoded, 512, 100000);
+            fail("decoded beyond the max-size");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1000000, decodeInPieces("gzip", encoded, 512, 1000000).content.size());
+    }
+
+    public void testCorrupt() throws Exception {
+        byte[] encoded = gzip(text(10000));
+        encoded[encoded.length - 6] ^= 1; // crc
+        try {
+            decodeInPieces("gzip", encoded, 100, -1);
+            fail("corrupt crc accepted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        encoded = gzip(text(10000));
+        byte[] trailing = Arrays.copyOf(encoded, encoded.length + 1);
+        try {
+            decodeInPieces("gzip", trailing, 100, -1);
+            fail("trailing bytes accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.MsrpParser;
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class FileChannelMessageCollectorTest extends TestCase {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+        file = File.createTempFile("collector", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static MsrpSendRequest cpimMessage() throws Exception {
+        String cpim = "From: <sip:alice@example.com>\r\n" +
+                "To: <sip:bob@example.com>\r\n" +
+                "\r\n" +
+                "Content-Type: application/octet-stream\r\n" +
+                "\r\n" +
+                CONTENT;
+        String raw = "MSRP a786hjs2 SEND\r\n" +
+                "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+                "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+                "Message-ID: 87652491\r\n" +
+                "Byte-Range: 1-" + cpim.length() + "/" + cpim.length() + "\r\n" +
+                "Content-Type: message/CPIM\r\n" +
+                "\r\n" +
+                cpim + "\r\n" +
+                "-------a786hjs2$\r\n";
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(ByteBuffer.wrap(raw.getBytes("US-ASCII"))));
+        return (MsrpSendRequest) parser.getParsedMessage();
+    }
+
+    private byte[] readFile() throws Exception {
+        byte[] b = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < b.length) {
+                read += in.read(b, read, b.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private void receiveCpimMessage(boolean memoryMapped) throws Exception {
+        MsrpSendRequest request = cpimMessage();
+        assertTrue(request.getBodyStartPosition() > 0);
+
+        // the expected size is the Byte-Range total, which includes the cpim header block
+        FileChannelMessageCollector collector = new FileChannelMessageCollector(file, request.getByteRange().getTotal(), memoryMapped, null);
+        collector.store(0, request.getBody(), request.getBodyStartPosition(), request.getBodyLength() - request.getBodyStartPosition());
+        collector.receivingFinished(false);
+
+        assertFalse(collector.isErrorOccured());
+        assertEquals(CONTENT.length(), file.length());
+        assertTrue(Arrays.equals(CONTENT.getBytes("US-ASCII"), readFile()));
+    }
+
+    public void testCpimWrappedMessage() throws Exception {
+        receiveCpimMessage(false);
+    }
+
+    public void testCpimWrappedMessageMemoryMapped() throws Exception {
+        receiveCpimMessage(true);
+    }
+
+    public void testAbortedTransfer() throws Exception {
+        FileChannelMessageCollector collector = new FileChannelMessageCollector(file, 100000, null);
+        assertEquals(100000, file.length());
+        collector.store(0, new byte[1000], 0, 1000);
+        collector.store(-1, new byte[500], 0, 500);
+        collector.receivingFinished(true);
+
+        assertTrue(collector.wasAborted());
+        assertEquals(1500, file.length());
+    }
+}
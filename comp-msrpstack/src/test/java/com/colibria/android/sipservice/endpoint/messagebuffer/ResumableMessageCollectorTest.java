@@ -0,0 +1,98 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class ResumableMessageCollectorTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+        directory = File.createTempFile("resumable", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    public void testResumeAfterInterruption() throws IOException {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        // first attempt ends after 4000 bytes
+        ResumableMessageCollector collector = new ResumableMessageCollector(directory, "msg/1", "sha-1:AB", null);
+        assertEquals(0, collector.getResumeOffset());
+        collector.setHeaderLength(77);
+        collector.store(0, ByteBuffer.wrap(content, 0, 1500));
+        collector.store(-1, ByteBuffer.wrap(content, 1500, 2500));
+        collector.receivingFinished(true);
+        assertTrue(collector.getFile().getParentFile().equals(directory));
+
+        // second attempt picks up the received content
+        collector = new ResumableMessageCollector(directory, "msg/1", "sha-1:AB", null);
+        assertEquals(77, collector.getHeaderLength());
+        assertEquals(4000, collector.getResumeOffset());
+        assertEquals(1, collector.getMissingRanges(content.length).size());
+        collector.store(4000, ByteBuffer.wrap(content, 4000, 6000));
+        collector.receivingFinished(false);
+        assertEquals(0, collector.getMissingRanges(content.length).size());
+
+        byte[] stored = new byte[content.length];
+        FileInputStream in = new FileInputStream(collector.getFile());
+        try {
+            assertEquals(content.length, in.read(stored));
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(content, stored));
+
+        // once complete, the transfer is not resumed again
+        collector = new ResumableMessageCollector(directory, "msg/1", "sha-1:AB", null);
+        assertEquals(-1, collector.getHeaderLength());
+        assertEquals(0, collector.getResumeOffset());
+        collector.releaseResources();
+        assertEquals(0, directory.listFiles().length);
+    }
+}
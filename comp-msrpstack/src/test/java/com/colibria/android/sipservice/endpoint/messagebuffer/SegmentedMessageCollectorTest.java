@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.endpoint.messagebuffer;
+
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class SegmentedMessageCollectorTest extends TestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+    }
+
+    public void testSmallMessageStaysInMemory() throws Exception {
+        MemoryBudget budget = new MemoryBudget(SegmentedMessageCollector.SEGMENT_SIZE * 4);
+        byte[] content = content(SegmentedMessageCollector.SEGMENT_SIZE * 2 + 100);
+
+        SegmentedMessageCollector collector = new SegmentedMessageCollector(null, budget);
+        collector.store(0, ByteBuffer.wrap(content, 0, 1000));
+        collector.store(-1, content, 1000, content.length - 1000);
+        collector.receivingFinished(false);
+
+        assertFalse(collector.isSpilled());
+        assertEquals(SegmentedMessageCollector.SEGMENT_SIZE * 3, budget.getInUse());
+        ByteBuffer[] buffers = collector.getByteBuffers();
+        assertEquals(3, buffers.length);
+        assertEquals(100, buffers[2].remaining());
+        assertTrue(Arrays.equals(content, read(collector.getInputStream())));
+
+        collector.releaseResources();
+        assertEquals(0, budget.getInUse());
+    }
+
+    public void testSpillsOnceTheBudgetIsExhausted() throws Exception {
+        MemoryBudget budget = new MemoryBudget(SegmentedMessageCollector.SEGMENT_SIZE * 2);
+        byte[] content = content(SegmentedMessageCollector.SEGMENT_SIZE * 5 + 7);
+
+        SegmentedMessageCollector collector = new SegmentedMessageCollector(null, budget);
+        for (int i = 0; i < content.length; i += 5000) {
+            collector.store(i, content, i, Math.min(5000, content.length - i));
+        }
+        collector.receivingFinished(false);
+
+        assertTrue(collector.isSpilled());
+        assertNull(collector.getByteBuffers());
+        assertEquals(0, budget.getInUse());
+        assertEquals(content.length, collector.getFile().length());
+        assertTrue(Arrays.equals(content, read(collector.getInputStream())));
+
+        collector.releaseResources();
+        assertFalse(collector.getFile().exists());
+    }
+
+    public void testLargeExpectedSizeGoesToFileStraightAway() throws Exception {
+        MemoryBudget budget = new MemoryBudget(SegmentedMessageCollector.SEGMENT_SIZE);
+        SegmentedMessageCollector collector = new SegmentedMessageCollector(null, SegmentedMessageCollector.SEGMENT_SIZE * 2, budget);
+        collector.store(0, "hello".getBytes("US-ASCII"), 0, 5);
+        collector.receivingFinished(false);
+
+        assertTrue(collector.isSpilled());
+        assertEquals(0, budget.getInUse());
+        assertEquals("hello", new String(read(collector.getInputStream()), "US-ASCII"));
+        collector.releaseResources();
+    }
+
+    public void testNoStreamAfterRelease() throws Exception {
+        SegmentedMessageCollector collector = new SegmentedMessageCollector(null, new MemoryBudget(SegmentedMessageCollector.SEGMENT_SIZE));
+        collector.store(0, "hello".getBytes("US-ASCII"), 0, 5);
+        collector.receivingFinished(false);
+        assertFalse(collector.isErrorOccured());
+
+        collector.releaseResources();
+        assertNull(collector.getByteBuffers());
+        try {
+            collector.getInputStream();
+            fail("stream over released content");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[3000];
+        int n;
+        while ((n = in.read(b)) != -1) {
+            out.write(b, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.headers;
+
+import com.colibria.android.sipservice.io.MsrpParser;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class MsrpReportRequestTest extends TestCase {
+
+    private static final String REPORT = "MSRP dkei38sd REPORT\r\n" +
+            "To-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+            "From-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+            "Message-ID: 12339sdqwer\r\n" +
+            "Byte-Range: 1-106/106\r\n" +
+            "Status: 000 200 OK\r\n" +
+            "-------dkei38sd$\r\n";
+
+    public void testMarshallParsedReport() throws Exception {
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(ByteBuffer.wrap(REPORT.getBytes("US-ASCII"))));
+        MsrpReportRequest report = (MsrpReportRequest) parser.getParsedMessage();
+        assertEquals("12339sdqwer", report.getMessageID());
+        assertEquals(200, report.getStatus().getCode());
+        assertEquals(106, report.getByteRange().getTotal());
+
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        report.marshall(bb);
+        assertEquals(REPORT, new String(bb.array(), 0, bb.position(), "US-ASCII"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.headers;
+
+import com.colibria.android.sipservice.io.MsrpParser;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class MsrpSendRequestTest extends TestCase {
+
+    private static final String SEND = "MSRP a786hjs2 SEND\r\n" +
+            "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+            "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+            "Message-ID: 87652491\r\n" +
+            "Byte-Range: 1-25/25\r\n" +
+            "Success-Report: yes\r\n" +
+            "Failure-Report: partial\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "\r\n" +
+            "Hey Bob, are you there?\r\n" +
+            "\r\n" +
+            "-------a786hjs2$\r\n";
+
+    private static final String HEAD = "MSRP d93kswow SEND\r\n" +
+            "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+            "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+            "Message-ID: 12339sdqwer\r\n" +
+            "Byte-Range: 1-*/*\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "\r\n" +
+            "abc\r\n" +
+            "-------d93kswow+\r\n";
+
+    public void testMarshallParsedRequest() throws Exception {
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(ByteBuffer.wrap(SEND.getBytes("US-ASCII"))));
+        MsrpSendRequest request = (MsrpSendRequest) parser.getParsedMessage();
+
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        request.marshall(bb, null, null, null, null);
+        assertEquals(SEND, new String(bb.array(), 0, bb.position(), "US-ASCII"));
+    }
+
+    public void testMarshallWithOverrides() throws Exception {
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(ByteBuffer.wrap(HEAD.getBytes("US-ASCII"))));
+        MsrpSendRequest request = (MsrpSendRequest) parser.getParsedMessage();
+
+        MsrpPath to = MsrpPath.parseValue("msrp://relay.example.com:2855/x1y2;tcp msrp://bob.example.com:8888/9di4eae923wzd;tcp");
+        MsrpPath from = MsrpPath.parseValue("msrp://alicepc.example.com:7777/iau39soe2843z;tcp");
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        request.marshallHead(bb, "tx1234567890", ByteRange.create(1234567890123L, -1, 98765432101234L), true, from, to);
+        request.marshallTail(bb, "tx1234567890", false, Continuation.aborted);
+
+        assertEquals("MSRP tx1234567890 SEND\r\n" +
+                "To-Path: msrp://relay.example.com:2855/x1y2;tcp msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+                "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+                "Message-ID: 12339sdqwer\r\n" +
+                "Byte-Range: 1234567890123-*/98765432101234\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "-------tx1234567890#\r\n", new String(bb.array(), 0, bb.position(), "US-ASCII"));
+    }
+
+    public void testSharedBodyIsNotMarshalled() throws Exception {
+        final boolean[] released = new boolean[1];
+        SharedContent content = new SharedContent(ByteBuffer.wrap("0123456789".getBytes("US-ASCII")), new Runnable() {
+            public void run() {
+                released[0] = true;
+            }
+        });
+        MsrpPath to = MsrpPath.parseValue("msrp://bob.example.com:8888/9di4eae923wzd;tcp");
+        MsrpPath from = MsrpPath.parseValue("msrp://alicepc.example.com:7777/iau39soe2843z;tcp");
+        MsrpSendRequest request = new MsrpSendRequest(MsrpSendRequest.ChunkType.head, "tx1", "msg1",
+                ByteRange.create(1, -1, 10), Continuation.more, null, null, to, from, null, null, null, null,
+                content.retainSlice(2, 5), content, null, 5, 0);
+        content.release();
+        assertTrue(request.isBodyShared());
+        assertFalse(released[0]);
+
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        assertEquals(5, request.marshall(bb, null, null, null, null));
+        assertEquals("MSRP tx1 SEND\r\n" +
+                "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+                "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+                "Message-ID: msg1\r\n" +
+                "Byte-Range: 1-*/10\r\n" +
+                "\r\n", new String(bb.array(), 0, bb.position(), "US-ASCII"));
+        assertEquals("23456", new String(request.getBody(), "US-ASCII"));
+
+        request.releaseBody();
+        assertTrue(released[0]);
+    }
+}
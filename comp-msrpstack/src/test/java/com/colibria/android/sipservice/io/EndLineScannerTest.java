@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class EndLineScannerTest extends TestCase {
+
+    private final EndLineScanner scanner = new EndLineScanner("a786hjs2");
+
+    public void testFindsEndLine() throws Exception {
+        byte[] data = "body\r\n-------a786hjs2$\r\nMSRP".getBytes("US-ASCII");
+        int found = scanner.find(data, 0, data.length);
+        assertEquals(4, found);
+        assertEquals('$', data[found + scanner.getFlagOffset()]);
+        assertEquals(data.length - 4, found + scanner.length());
+    }
+
+    public void testIgnoresLookalikes() throws Exception {
+        byte[] data = "\r\n-------a786hjs\r\n-------a786hjs2+\rx\r\n-------a786hjs2#\r\n".getBytes("US-ASCII");
+        assertEquals(36, scanner.find(data, 0, data.length));
+    }
+
+    public void testPartialEndLineAtEndOfData() throws Exception {
+        byte[] data = "body\r\n-------a786".getBytes("US-ASCII");
+        assertEquals(-4 - 1, scanner.find(data, 0, data.length));
+
+        // complete up to the flag, but the closing crlf is missing
+        data = "body\r\n-------a786hjs2+\r".getBytes("US-ASCII");
+        assertEquals(-4 - 1, scanner.find(data, 0, data.length));
+
+        data = "body\r".getBytes("US-ASCII");
+        assertEquals(-4 - 1, scanner.find(data, 0, data.length));
+
+        data = "body".getBytes("US-ASCII");
+        assertEquals(-4 - 1, scanner.find(data, 0, data.length));
+    }
+
+    public void testRespectsFrom() throws Exception {
+        byte[] data = "\r\n-------a786hjs2$\r\nbody\r\n-------a786hjs2$\r\n".getBytes("US-ASCII");
+        assertEquals(24, scanner.find(data, 1, data.length));
+    }
+
+    public void testHeaderNameTable() throws Exception {
+        HeaderNameTable table = new HeaderNameTable("To-Path", "From-Path", "Content-Type");
+        assertEquals(1, table.lookup("from-PATH".toCharArray(), 9));
+        assertEquals(2, table.lookup("Content-Typex".toCharArray(), 12));
+        assertEquals(-1, table.lookup("Content-Typ".toCharArray(), 11));
+        assertEquals(-1, table.lookup("X-Path".toCharArray(), 6));
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+import com.colibria.android.sipservice.IMsrpApplication;
+import com.colibria.android.sipservice.IMsrpResources;
+import com.colibria.android.sipservice.TcpConnection;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.MsrpPath;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
+import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.tx.IOutboundFSMListener;
+import com.colibria.android.sipservice.tx.Participant;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class InboundBackpressureTest extends TestCase {
+
+    private static final int MAX_INBOUND_QUEUE_SIZE = 1000;
+
+    private static final String LOCAL_URI = "msrp://bob.example.com:8888/9di4eae923wzd;tcp";
+    private static final String REMOTE_URI = "msrp://alicepc.example.com:7777/iau39soe2843z;tcp";
+
+    private int oldMaxInboundQueueSize;
+    private HoldingThreadFarm threadFarm;
+    private ChannelState state;
+    private TcpConnection connection;
+
+    // what the channel did with the connection
+    private final List<Boolean> readingSuspendedCalls = new ArrayList<Boolean>();
+    private final List<String> written = new ArrayList<String>();
+    private final List<Boolean> suspendedAtWrite = new ArrayList<Boolean>();
+    private final List<Integer> dispatchedBytesAtWrite = new ArrayList<Integer>();
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+        oldMaxInboundQueueSize = Configurator.getMaxInboundQueueSize();
+        Configurator.setMaxInboundQueueSize(MAX_INBOUND_QUEUE_SIZE);
+
+        readingSuspendedCalls.clear();
+        written.clear();
+        suspendedAtWrite.clear();
+        dispatchedBytesAtWrite.clear();
+        threadFarm = new HoldingThreadFarm();
+        connection = new TcpConnection(null, 1, null, "127.0.0.1", 7777, true) {
+            @Override
+            public void setReadingSuspended(boolean suspended) {
+                super.setReadingSuspended(suspended);
+                readingSuspendedCalls.add(suspended);
+            }
+
+            @Override
+            public void write(ByteBuffer flippedByeBuffer, Runnable whenDone, Runnable whenError) {
+                byte[] data = new byte[flippedByeBuffer.remaining()];
+                flippedByeBuffer.get(data);
+                written.add(new String(data));
+                suspendedAtWrite.add(isReadingSuspended());
+                dispatchedBytesAtWrite.add(state.getDispatchedBytes());
+                whenDone.run();
+            }
+        };
+        state = ChannelState.createForAcceptedConnection(new IMsrpResources() {
+            public MsrpURI generateMsrpURI(boolean secure, String key) {
+                return null;
+            }
+
+            public TcpController getController() {
+                return null;
+            }
+
+            public ScheduledExecutorService getThreadFarm() {
+                return threadFarm;
+            }
+
+            public String getNextId() {
+                return null;
+            }
+        }, connection);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        threadFarm.shutdownNow();
+        Configurator.setMaxInboundQueueSize(oldMaxInboundQueueSize);
+    }
+
+    public void testReadingSuspendedUntilHalfDrained() throws Exception {
+        int size = chunk("t0").length();
+        int fed = 0;
+        while (!connection.isReadingSuspended()) {
+            assertTrue("reading never suspended", fed < 100);
+            feed(chunk("t" + fed++));
+        }
+
+        // suspended by the request which exceeded the limit, not earlier
+        assertTrue(fed * size > MAX_INBOUND_QUEUE_SIZE);
+        assertTrue((fed - 1) * size <= MAX_INBOUND_QUEUE_SIZE);
+        assertEquals(fed * size, state.getDispatchedBytes());
+        assertEquals(Arrays.asList(true), readingSuspendedCalls);
+        assertTrue(written.isEmpty());
+
+        threadFarm.runHeld();
+
+        // nobody is bound to the accepted channel, so each request was answered with 481 when handled
+        assertEquals(fed, written.size());
+        for (int i = 0; i < fed; i++) {
+            int notHandled = (fed - i) * size;
+            assertTrue(written.get(i).startsWith("MSRP t" + i + " 481 "));
+            assertEquals(notHandled, dispatchedBytesAtWrite.get(i).intValue());
+            assertEquals(notHandled > MAX_INBOUND_QUEUE_SIZE / 2, suspendedAtWrite.get(i).booleanValue());
+        }
+        assertEquals(0, state.getDispatchedBytes());
+        assertFalse(connection.isReadingSuspended());
+        assertEquals(Arrays.asList(true, false), readingSuspendedCalls);
+    }
+
+    public void testDispatchedBytesStayBounded() throws Exception {
+        int size = chunk("t0").length();
+        int fed = 0;
+
+        // reads like the controller does: only while reading is not suspended
+        while (fed < 50) {
+            if (connection.isReadingSuspended()) {
+                threadFarm.runHeld();
+            } else {
+                feed(chunk("t" + fed++));
+            }
+            assertTrue(state.getDispatchedBytes() <= MAX_INBOUND_QUEUE_SIZE + size);
+        }
+        threadFarm.runHeld();
+
+        // handled in the order received
+        assertEquals(50, written.size());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(written.get(i).startsWith("MSRP t" + i + " 481 "));
+        }
+        for (int dispatched : dispatchedBytesAtWrite) {
+            assertTrue(dispatched <= MAX_INBOUND_QUEUE_SIZE + size);
+        }
+        assertEquals(0, state.getDispatchedBytes());
+        assertFalse(connection.isReadingSuspended());
+        assertTrue(readingSuspendedCalls.size() > 2);
+    }
+
+    public void testOversizedTransactionIsRejected() throws Exception {
+        final MsrpPath toPath = new MsrpPath(MsrpURI.parse(LOCAL_URI));
+        final MsrpPath fromPath = new MsrpPath(MsrpURI.parse(REMOTE_URI));
+        final List<String> received = new ArrayList<String>();
+        Participant participant = new Participant(null, toPath.getFirst(), new IMsrpApplication() {
+            public MsrpResponse.ResponseCode requestReceived(Participant p, MsrpSendRequest request) {
+                received.add(request.getTransactionID());
+                if (request.getTransactionID().equals("t1")) {
+                    // these arrive while the participant is still busy with t1, so the inbound FSM queues them
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.complete, "t2", 100, toPath, fromPath));
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.head, "t3", 400, toPath, fromPath));
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.body_only, "t3", 400, toPath, fromPath));
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.body_only, "t3", 400, toPath, fromPath));
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.tail, "t3", 100, toPath, fromPath));
+                    p.handleIncomingRequest(request(MsrpSendRequest.ChunkType.complete, "t4", 100, toPath, fromPath));
+                }
+                return MsrpResponse.RESPONSE_200_OK;
+            }
+
+            public void responseReceived(String messageStateId, Participant p, int responseCode) {
+            }
+
+            public void reportReceived(Participant p, MsrpReportRequest report) {
+            }
+
+            public void participantActivated(Participant p) {
+            }
+
+            public void participantTerminated(Participant p) {
+            }
+
+            public IOutboundFSMListener getOutboundFsmListener() {
+                return null;
+            }
+        }, null, new IOutboundFSMListener() {
+            public void updateOutboundQueueUsage(float bufferCapacityInUse) {
+            }
+
+            public int getMaxOutboudQueueSize() {
+                return 1024 * 1024;
+            }
+        });
+
+        assertTrue(participant.incomingConnection(state, request(MsrpSendRequest.ChunkType.complete, "t0", 100, toPath, fromPath)));
+        participant.handleIncomingRequest(request(MsrpSendRequest.ChunkType.complete, "t1", 100, toPath, fromPath));
+
+        // t3 exceeded the queue with its third piece, none of its pieces reached the application
+        assertEquals(Arrays.asList("t0", "t1", "t2", "t4"), received);
+        assertEquals(5, written.size());
+        assertTrue(written.get(0).startsWith("MSRP t0 200 "));
+        assertTrue(written.get(1).startsWith("MSRP t1 200 "));
+        assertTrue(written.get(2).startsWith("MSRP t3 413 "));
+        assertTrue(written.get(3).startsWith("MSRP t2 200 "));
+        assertTrue(written.get(4).startsWith("MSRP t4 200 "));
+        assertFalse(connection.isReadingSuspended());
+    }
+
+    private void feed(String data) {
+        ByteBuffer readBuffer = state.getReadBuffer();
+        readBuffer.put(data.getBytes());
+        state.dataReceived(readBuffer);
+    }
+
+    private static String chunk(String txID) {
+        return "MSRP " + txID + " SEND\r\n" +
+                "To-Path: " + LOCAL_URI + "\r\n" +
+                "From-Path: " + REMOTE_URI + "\r\n" +
+                "Message-ID: 87652491\r\n" +
+                "Byte-Range: 1-5/5\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                "hello\r\n" +
+                "-------" + txID + "$\r\n";
+    }
+
+    private static MsrpSendRequest request(MsrpSendRequest.ChunkType chunkType, String txID, int size, MsrpPath toPath, MsrpPath fromPath) {
+        boolean hasEnd = chunkType == MsrpSendRequest.ChunkType.complete || chunkType == MsrpSendRequest.ChunkType.tail;
+        return new MsrpSendRequest(chunkType, txID, "m" + txID, ByteRange.create(1, -1, -1),
+                hasEnd ? Continuation.done : Continuation.more, null, null, toPath, fromPath, null, null, null, null,
+                "hello".getBytes(), size, 0);
+    }
+
+    /**
+     * Holds the tasks handed to it until runHeld() is called, like a thread farm which is busy with other work
+     */
+    private static class HoldingThreadFarm extends ScheduledThreadPoolExecutor {
+        private final List<Runnable> held = new ArrayList<Runnable>();
+
+        HoldingThreadFarm() {
+            super(1);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            held.add(command);
+        }
+
+        void runHeld() {
+            List<Runnable> tasks = new ArrayList<Runnable>(held);
+            held.clear();
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.io;
+
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class MsrpParserBodySliceTest extends TestCase {
+
+    private static final String CHUNK = "MSRP a786hjs2 SEND\r\n" +
+            "To-Path: msrp://bob.example.com:8888/9di4eae923wzd;tcp\r\n" +
+            "From-Path: msrp://alicepc.example.com:7777/iau39soe2843z;tcp\r\n" +
+            "Message-ID: 87652491\r\n" +
+            "Byte-Range: 1-5/5\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "\r\n" +
+            "hello\r\n" +
+            "-------a786hjs2$\r\n";
+
+    public void testBodyIsSliceOfOwner() throws Exception {
+        PooledReadBuffer owner = PooledReadBuffer.acquire();
+        ByteBuffer bb = owner.getBuffer();
+        bb.put(CHUNK.getBytes("US-ASCII"));
+        bb.flip();
+
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(bb, owner));
+        MsrpSendRequest request = (MsrpSendRequest) parser.getParsedMessage();
+        assertTrue(owner.isShared());
+
+        ByteBuffer body = request.getBodyBuffer();
+        assertTrue(body.isReadOnly());
+        assertEquals(5, request.getBodyLength());
+        assertEquals("hello", new String(request.getBody(), "US-ASCII"));
+
+        // no copy, the body sees changes made to the read buffer
+        bb.put(CHUNK.indexOf("hello"), (byte) 'j');
+        assertEquals('j', body.get(0));
+
+        request.releaseBody();
+        request.releaseBody();
+        assertFalse(owner.isShared());
+        owner.release();
+    }
+
+    public void testBodyIsCopiedWithoutOwner() throws Exception {
+        ByteBuffer bb = ByteBuffer.wrap(CHUNK.getBytes("US-ASCII"));
+
+        MsrpParser parser = new MsrpParser();
+        assertEquals(MsrpParser.State.done, parser.parse(bb));
+        MsrpSendRequest request = (MsrpSendRequest) parser.getParsedMessage();
+
+        byte[] body = request.getBody();
+        assertEquals("hello", new String(body, "US-ASCII"));
+        assertSame(body, request.getBody());
+        assertEquals(CHUNK.length(), request.getSize());
+        request.releaseBody();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.tx;
+
+import com.colibria.android.sipservice.io.config.Configurator;
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class ChunkPieceSizerTest extends TestCase {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long OK = TimeUnit.MILLISECONDS.toNanos(40);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(80);
+
+    private int oldMin, oldMax, oldTargetDelay;
+
+    @Override
+    protected void setUp() throws Exception {
+        oldMin = Configurator.getMinChunkPieceSize();
+        oldMax = Configurator.getMaxChunkPieceSize();
+        oldTargetDelay = Configurator.getChunkPieceTargetDelay();
+        Configurator.setMinChunkPieceSize(512);
+        Configurator.setMaxChunkPieceSize(1024 * 16);
+        Configurator.setChunkPieceTargetDelay(50);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Configurator.setMinChunkPieceSize(oldMin);
+        Configurator.setMaxChunkPieceSize(oldMax);
+        Configurator.setChunkPieceTargetDelay(oldTargetDelay);
+    }
+
+    private static ChunkPieceSizer sizer(final int maxOutboundQueueSize) {
+        return new ChunkPieceSizer(new IOutboundFSMListener() {
+            public void updateOutboundQueueUsage(float bufferCapacityInUse) {
+            }
+
+            public int getMaxOutboudQueueSize() {
+                return maxOutboundQueueSize;
+            }
+        });
+    }
+
+    public void testGrowsOnlyWhenFastAndFilled() {
+        ChunkPieceSizer sizer = sizer(1024 * 1024);
+        assertEquals(ChunkPieceSizer.INITIAL_PIECE_SIZE, sizer.getPieceSize());
+
+        // fast, but the application doesn't fill the pieces
+        sizer.pieceWritten(ChunkPieceSizer.INITIAL_PIECE_SIZE - 1, FAST);
+        assertEquals(ChunkPieceSizer.INITIAL_PIECE_SIZE, sizer.getPieceSize());
+
+        // filled, but not faster than half the target delay
+        sizer.pieceWritten(ChunkPieceSizer.INITIAL_PIECE_SIZE, OK);
+        assertEquals(ChunkPieceSizer.INITIAL_PIECE_SIZE, sizer.getPieceSize());
+
+        sizer.pieceWritten(ChunkPieceSizer.INITIAL_PIECE_SIZE, FAST);
+        assertEquals(ChunkPieceSizer.INITIAL_PIECE_SIZE * 2, sizer.getPieceSize());
+    }
+
+    public void testShrinksAboveTarget() {
+        ChunkPieceSizer sizer = sizer(1024 * 1024);
+        sizer.pieceWritten(100, SLOW);
+        assertEquals(ChunkPieceSizer.INITIAL_PIECE_SIZE / 2, sizer.getPieceSize());
+    }
+
+    public void testStaysWithinBounds() {
+        ChunkPieceSizer sizer = sizer(1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            sizer.pieceWritten(sizer.getPieceSize(), FAST);
+        }
+        assertEquals(Configurator.getMaxChunkPieceSize(), sizer.getPieceSize());
+        for (int i = 0; i < 20; i++) {
+            sizer.pieceWritten(sizer.getPieceSize(), SLOW);
+        }
+        assertEquals(Configurator.getMinChunkPieceSize(), sizer.getPieceSize());
+
+        // never more than a quarter of the outbound queue
+        sizer = sizer(1024 * 32);
+        for (int i = 0; i < 20; i++) {
+            sizer.pieceWritten(sizer.getPieceSize(), FAST);
+        }
+        assertEquals(1024 * 8, sizer.getPieceSize());
+
+        // a lowered max applies right away
+        Configurator.setMaxChunkPieceSize(1024 * 4);
+        assertEquals(1024 * 4, sizer.getPieceSize());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.tx;
+
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.io.config.Configurator;
+import junit.framework.TestCase;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class OutboundSchedulerTest extends TestCase {
+
+    private static final int QUANTUM = 1000;
+
+    private int oldQuantum;
+
+    @Override
+    protected void setUp() throws Exception {
+        oldQuantum = Configurator.getSchedulerQuantum();
+        Configurator.setSchedulerQuantum(QUANTUM);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Configurator.setSchedulerQuantum(oldQuantum);
+    }
+
+    private static OutboundScheduler.QueuedMessage piece(String msgID, int size, int priority) {
+        MsrpSendRequest request = new MsrpSendRequest(MsrpSendRequest.ChunkType.body_only, "tx" + msgID, msgID,
+                ByteRange.create(1, -1, -1), Continuation.more, null, null, null, null, null, null, null, null,
+                (byte[]) null, size, 0);
+        return new OutboundScheduler.QueuedMessage(request, msgID, priority, 0);
+    }
+
+    private static OutboundScheduler.QueuedMessage response(String txID) {
+        return new OutboundScheduler.QueuedMessage(new MsrpResponse(txID, 200, "OK", null, null, 50), null, 0, 0);
+    }
+
+    private static String msgID(OutboundScheduler.QueuedMessage message) {
+        return ((MsrpSendRequest) message.getMsg()).getMessageID();
+    }
+
+    public void testControlMessagesFirst() {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        scheduler.offer(piece("bulk", 100, 0), false);
+        scheduler.offer(piece("bulk", 100, 0), false);
+        OutboundScheduler.QueuedMessage r1 = response("r1");
+        scheduler.offer(r1, false);
+        assertSame(r1, scheduler.poll());
+        assertEquals("bulk", msgID(scheduler.poll()));
+
+        OutboundScheduler.QueuedMessage r2 = response("r2");
+        OutboundScheduler.QueuedMessage r3 = response("r3");
+        scheduler.offer(r2, false);
+        scheduler.offer(r3, false);
+        assertSame(r2, scheduler.pollControl());
+        assertSame(r3, scheduler.poll());
+        assertEquals("bulk", msgID(scheduler.poll()));
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    public void testSmallMessageNotHeldBackByBulk() {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        for (int i = 0; i < 100; i++) {
+            scheduler.offer(piece("bulk", 1000, 0), false);
+        }
+        assertEquals("bulk", msgID(scheduler.poll()));
+        scheduler.offer(piece("small", 100, 0), false);
+
+        // the bulk flow may finish its turn, but no more than that
+        long bulkBytes = 1000;
+        OutboundScheduler.QueuedMessage next;
+        while ("bulk".equals(msgID(next = scheduler.poll()))) {
+            bulkBytes += next.getMsg().getSize();
+        }
+        assertEquals("small", msgID(next));
+        assertTrue(bulkBytes + " bytes before the small message", bulkBytes <= QUANTUM * OutboundScheduler.DEFAULT_PRIORITY);
+        assertEquals(100 - bulkBytes / 1000, scheduler.size());
+    }
+
+    public void testShareIsProportionalToPriority() {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        for (int i = 0; i < 1000; i++) {
+            scheduler.offer(piece("low", 100, 2), false);
+            scheduler.offer(piece("high", 100, 6), false);
+        }
+
+        // 10 rounds: 2 * QUANTUM for the low one, 6 * QUANTUM for the high one per round
+        long low = 0, high = 0;
+        for (int i = 0; i < 10 * 8 * QUANTUM / 100; i++) {
+            OutboundScheduler.QueuedMessage message = scheduler.poll();
+            if ("low".equals(msgID(message))) {
+                low += message.getMsg().getSize();
+            } else {
+                high += message.getMsg().getSize();
+            }
+        }
+        assertEquals(10 * 2 * QUANTUM, low);
+        assertEquals(10 * 6 * QUANTUM, high);
+    }
+
+    public void testInterruptedPieceIsRequeuedFirst() {
+        OutboundScheduler scheduler = new OutboundScheduler();
+        OutboundScheduler.QueuedMessage a1 = piece("a", 1000, 0);
+        OutboundScheduler.QueuedMessage a2 = piece("a", 1000, 0);
+        OutboundScheduler.QueuedMessage b1 = piece("b", 1000, 0);
+        scheduler.offer(a1, false);
+        scheduler.offer(a2, false);
+        scheduler.offer(b1, false);
+
+        assertSame(a1, scheduler.poll());
+        scheduler.offer(a1, true);
+        assertSame(a1, scheduler.poll());
+        assertSame(a2, scheduler.poll());
+        assertSame(b1, scheduler.poll());
+
+        // also when the flow had no other pieces queued and another flow was next in line
+        OutboundScheduler.QueuedMessage c1 = piece("c", 1000, 0);
+        OutboundScheduler.QueuedMessage d1 = piece("d", 1000, 0);
+        scheduler.offer(c1, false);
+        scheduler.offer(d1, false);
+        assertSame(c1, scheduler.poll());
+        scheduler.offer(c1, true);
+        assertEquals(2, scheduler.size());
+        assertSame(c1, scheduler.poll());
+        assertSame(d1, scheduler.poll());
+        assertNull(scheduler.poll());
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.tx;
+
+import com.colibria.android.sipservice.IMsrpApplication;
+import com.colibria.android.sipservice.IMsrpResources;
+import com.colibria.android.sipservice.TcpConnection;
+import com.colibria.android.sipservice.TcpController;
+import com.colibria.android.sipservice.headers.ByteRange;
+import com.colibria.android.sipservice.headers.Continuation;
+import com.colibria.android.sipservice.headers.MsrpPath;
+import com.colibria.android.sipservice.headers.MsrpReportRequest;
+import com.colibria.android.sipservice.headers.MsrpResponse;
+import com.colibria.android.sipservice.headers.MsrpSendRequest;
+import com.colibria.android.sipservice.headers.MsrpURI;
+import com.colibria.android.sipservice.io.ChannelState;
+import com.colibria.android.sipservice.io.config.Configurator;
+import com.colibria.android.sipservice.logging.ILogger;
+import com.colibria.android.sipservice.logging.Logger;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Sebastian Dehne
+ */
+public class OutboundSendWindowTest extends TestCase {
+
+    private static final String LOCAL_URI = "msrp://bob.example.com:8888/9di4eae923wzd;tcp";
+    private static final String REMOTE_URI = "msrp://alicepc.example.com:7777/iau39soe2843z;tcp";
+
+    private int oldSendWindowSize, oldSendTransactionTimeout;
+    private TimerThreadFarm threadFarm;
+    private MsrpPath toPath, fromPath;
+    private Participant participant;
+    private int nextId;
+
+    // the transactionIDs of the SEND requests written, and what the application was told
+    private final List<String> sent = new ArrayList<String>();
+    private final List<String> responses = new ArrayList<String>();
+    private boolean terminated;
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.setLOGGER_IMPL(new ILogger() {
+            public void write(Logger.Level level, String tag, String message, Throwable t) {
+                //void
+            }
+        });
+        oldSendWindowSize = Configurator.getSendWindowSize();
+        oldSendTransactionTimeout = Configurator.getSendTransactionTimeout();
+
+        sent.clear();
+        responses.clear();
+        terminated = false;
+        nextId = 0;
+        threadFarm = new TimerThreadFarm();
+        toPath = new MsrpPath(MsrpURI.parse(REMOTE_URI));
+        fromPath = new MsrpPath(MsrpURI.parse(LOCAL_URI));
+
+        TcpConnection connection = new TcpConnection(null, 1, null, "127.0.0.1", 7777, true) {
+            @Override
+            public void write(ByteBuffer flippedByeBuffer, Runnable whenDone, Runnable whenError) {
+                byte[] data = new byte[flippedByeBuffer.remaining()];
+                flippedByeBuffer.get(data);
+                String[] firstLine = new String(data).split("\r\n")[0].split(" ");
+                if (firstLine[2].equals("SEND")) {
+                    sent.add(firstLine[1]);
+                }
+                whenDone.run();
+            }
+        };
+        IMsrpResources resources = new IMsrpResources() {
+            public MsrpURI generateMsrpURI(boolean secure, String key) {
+                return null;
+            }
+
+            public TcpController getController() {
+                return null;
+            }
+
+            public ScheduledExecutorService getThreadFarm() {
+                return threadFarm;
+            }
+
+            public String getNextId() {
+                return "o" + (++nextId);
+            }
+        };
+        participant = new Participant(resources, fromPath.getFirst(), new IMsrpApplication() {
+            public MsrpResponse.ResponseCode requestReceived(Participant p, MsrpSendRequest request) {
+                return MsrpResponse.RESPONSE_200_OK;
+            }
+
+            public void responseReceived(String messageStateId, Participant p, int responseCode) {
+                responses.add(messageStateId + ":" + responseCode);
+            }
+
+            public void reportReceived(Participant p, MsrpReportRequest report) {
+            }
+
+            public void participantActivated(Participant p) {
+            }
+
+            public void participantTerminated(Participant p) {
+                terminated = true;
+            }
+
+            public IOutboundFSMListener getOutboundFsmListener() {
+                return null;
+            }
+        }, null, new IOutboundFSMListener() {
+            public void updateOutboundQueueUsage(float bufferCapacityInUse) {
+            }
+
+            public int getMaxOutboudQueueSize() {
+                return 1024 * 1024;
+            }
+        });
+
+        // the remote end connects and sends the first request, which binds the participant
+        ChannelState state = ChannelState.createForAcceptedConnection(resources, connection);
+        assertTrue(participant.incomingConnection(state, new MsrpSendRequest(MsrpSendRequest.ChunkType.complete, "t0", "m0",
+                ByteRange.create(1, 5, 5), Continuation.done, null, null, fromPath, toPath, null, null, null, null,
+                "hello".getBytes(), 100, 0)));
+        threadFarm.timers.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        threadFarm.shutdownNow();
+        Configurator.setSendWindowSize(oldSendWindowSize);
+        Configurator.setSendTransactionTimeout(oldSendTransactionTimeout);
+    }
+
+    public void testWindowLimitsOutstandingTransactions() {
+        Configurator.setSendWindowSize(3);
+        for (int i = 1; i <= 5; i++) {
+            send("m" + i);
+        }
+        assertEquals(Arrays.asList("o1", "o2", "o3"), sent);
+
+        // each response makes room for exactly one more
+        respond("o1", 200);
+        assertEquals(Arrays.asList("o1", "o2", "o3", "o4"), sent);
+        respond("o2", 200);
+        assertEquals(Arrays.asList("o1", "o2", "o3", "o4", "o5"), sent);
+        respond("o3", 200);
+        respond("o4", 200);
+        respond("o5", 200);
+        assertEquals(Arrays.asList("m1:200", "m2:200", "m3:200", "m4:200", "m5:200"), responses);
+        assertFalse(terminated);
+    }
+
+    public void testResponsesOutOfOrder() {
+        Configurator.setSendWindowSize(3);
+        for (int i = 1; i <= 4; i++) {
+            send("m" + i);
+        }
+        assertEquals(3, sent.size());
+
+        respond("o3", 200);
+        assertEquals(Arrays.asList("o1", "o2", "o3", "o4"), sent);
+        respond("o1", 403);
+        respond("o4", 200);
+        respond("o2", 200);
+        assertEquals(Arrays.asList("m3:200", "m1:403", "m4:200", "m2:200"), responses);
+        assertFalse(terminated);
+
+        // the window is empty again
+        send("m5");
+        send("m6");
+        assertEquals(Arrays.asList("o1", "o2", "o3", "o4", "o5", "o6"), sent);
+    }
+
+    public void testUnknownTransactionID() {
+        Configurator.setSendWindowSize(2);
+
+        // with room left in the window, a response which matches nothing is ignored
+        send("m1");
+        respond("unknown", 200);
+        assertFalse(terminated);
+        respond("o1", 200);
+        assertEquals(Arrays.asList("m1:200"), responses);
+
+        // while the window is full, it closes the participant once the outstanding transactions completed
+        send("m2");
+        send("m3");
+        assertEquals(Arrays.asList("o1", "o2", "o3"), sent);
+        respond("unknown", 200);
+        assertFalse(terminated);
+        respond("o3", 200);
+        assertFalse(terminated);
+        respond("o2", 200);
+        assertTrue(terminated);
+        assertEquals(Arrays.asList("m1:200", "m3:200", "m2:200"), responses);
+    }
+
+    public void testTransactionTimeout() {
+        Configurator.setSendWindowSize(3);
+        Configurator.setSendTransactionTimeout(1000);
+        for (int i = 1; i <= 4; i++) {
+            send("m" + i);
+        }
+        assertEquals(3, threadFarm.timers.size());
+
+        // o2 times out while o1 and o3 are still outstanding, which frees its place in the window
+        threadFarm.timers.get(1).run();
+        assertEquals(Arrays.asList("m2:408"), responses);
+        assertEquals(Arrays.asList("o1", "o2", "o3", "o4"), sent);
+        assertEquals(4, threadFarm.timers.size());
+
+        respond("o3", 200);
+        respond("o1", 200);
+        assertEquals(Arrays.asList("m2:408", "m3:200", "m1:200"), responses);
+
+        // the timer of a transaction which completed in time doesn't do anything
+        threadFarm.timers.get(0).run();
+
+        // and a response which arrives after its transaction timed out doesn't match any longer
+        respond("o2", 200);
+        respond("o4", 200);
+        assertEquals(Arrays.asList("m2:408", "m3:200", "m1:200", "m4:200"), responses);
+        assertFalse(terminated);
+    }
+
+    private void send(String messageStateId) {
+        participant.handleOutgoingRequest(new MsrpSendRequest(MsrpSendRequest.ChunkType.complete, "x", messageStateId,
+                ByteRange.create(1, 5, 5), Continuation.done, null, null, toPath, fromPath, null, null, null, null,
+                "hello".getBytes(), 100, 0), messageStateId);
+    }
+
+    private void respond(String transactionID, int statusCode) {
+        participant.handleIncomingResponse(new MsrpResponse(transactionID, statusCode, "OK", fromPath, toPath, 50));
+    }
+
+    /**
+     * Keeps the scheduled tasks such that the test can run them when it wants to
+     */
+    private static class TimerThreadFarm extends ScheduledThreadPoolExecutor {
+        private final List<Runnable> timers = new ArrayList<Runnable>();
+
+        TimerThreadFarm() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            timers.add(command);
+            return super.schedule(command, 1, TimeUnit.HOURS);
+        }
+    }
+}
@@ -52,6 +52,8 @@ public interface SdpAttribute {
 
     public static final String FILE_TRANSFER_ID = "file-transfer-id";
 
+    public static final String FILE_RANGE = "file-range";
+
     public static final String CONNECTION = "connection";
 
     public static final String SUCCESS_REPORT = "Success-Report";
@@ -19,7 +19,11 @@
 package com.colibria.android.sipservice.sip;
 
 import com.colibria.android.sipservice.ByteBufferOutputStream;
+import com.colibria.android.sipservice.events.StackEvents;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.sip.messages.Request;
 import com.colibria.android.sipservice.sip.messages.Response;
 import com.colibria.android.sipservice.sip.messages.SipMessage;
@@ -42,6 +46,9 @@ import java.util.concurrent.ScheduledExecutorService;
 public class SipStack {
     private static final String TAG = "SipStack";
 
+    private static final Histogram PARSE_TIME = Metrics.histogram(Metrics.SIP_PARSE_TIME);
+    private static final Counter MESSAGES_PARSED = Metrics.counter(Metrics.SIP_MESSAGES_PARSED);
+
     private static volatile SipStack instance;
 
     public static SipStack get() {
@@ -138,43 +145,66 @@ public class SipStack {
         mSipTcpConnectionProvider.writeToTcpConnection(os.getBb(), restoreBB, restoreBB);
     }
 
-    private void handleReceivedMsg(final SipMessage parsedMessage) {
+    private void handleReceivedMsg(final SipMessage parsedMessage, final long correlationId) {
         getThreadPool().execute(new Runnable() {
             @Override
             public void run() {
-                Logger.d(TAG, "msg received:\n" + parsedMessage);
-                if (parsedMessage instanceof Response) {
-                    Response response = (Response) parsedMessage;
-                    ClientTransaction clientTransaction = getTxRepository().getClientTransaction(response);
-
-                    if (clientTransaction != null) {
-                        response.setClientTransaction(clientTransaction);
-                        clientTransaction.responseReceived(response);
-                    } else {
-                        Logger.e(TAG, "have no transaction for this response, forced to ignore it");
-                    }
-                } else {
-                    Request request = (Request) parsedMessage;
-                    ServerTransaction serverTransaction;
-                    if ((serverTransaction = getTxRepository().getServerTransaction(request)) == null) {
-                        serverTransaction = transactionRepository.getNewServerTransaction(request, mSipStackListener);
-                        request.setServerTransaction(serverTransaction);
-                    }
-                    serverTransaction.handleRequest(request);
+                StackEvents.setCurrentCorrelationId(correlationId);
+                try {
+                    processReceivedMsg(parsedMessage);
+                } finally {
+                    StackEvents.setCurrentCorrelationId(0);
                 }
             }
         });
     }
 
+    private void processReceivedMsg(final SipMessage parsedMessage) {
+        Logger.d(TAG, "msg received:\n" + parsedMessage);
+        if (parsedMessage instanceof Response) {
+            Response response = (Response) parsedMessage;
+            ClientTransaction clientTransaction = getTxRepository().getClientTransaction(response);
+
+            if (clientTransaction != null) {
+                response.setClientTransaction(clientTransaction);
+                clientTransaction.responseReceived(response);
+            } else {
+                Logger.e(TAG, "have no transaction for this response, forced to ignore it");
+            }
+        } else {
+            Request request = (Request) parsedMessage;
+            ServerTransaction serverTransaction;
+            if ((serverTransaction = getTxRepository().getServerTransaction(request)) == null) {
+                serverTransaction = transactionRepository.getNewServerTransaction(request, mSipStackListener);
+                request.setServerTransaction(serverTransaction);
+            }
+            serverTransaction.handleRequest(request);
+        }
+    }
+
     public void dataReceived(ByteBuffer readBuffer) {
         try {
             readBuffer.flip();
             while (readBuffer.hasRemaining()) {
+                long parseStart = Metrics.isEnabled() || StackEvents.isEnabled() ? System.nanoTime() : 0;
                 SipMessage parsedMessage = sipMessageParser.parseMoreBytes(readBuffer);
                 sipMessageParser.reset(); // we are done parsing one msg
 
                 if (parsedMessage != null) {
-                    handleReceivedMsg(parsedMessage);
+                    long parseTime = parseStart != 0 ? System.nanoTime() - parseStart : -1;
+                    if (parseTime >= 0) {
+                        PARSE_TIME.record(parseTime);
+                        MESSAGES_PARSED.inc();
+                    }
+                    long correlationId = StackEvents.nextCorrelationId();
+                    if (correlationId != 0) {
+                        if (parsedMessage instanceof Response) {
+                            StackEvents.messageParsed(correlationId, "SIP", parsedMessage.getCSeq().getMethod(), ((Response) parsedMessage).getStatusCode(), parseTime);
+                        } else {
+                            StackEvents.messageParsed(correlationId, "SIP", ((Request) parsedMessage).getMethod(), 0, parseTime);
+                        }
+                    }
+                    handleReceivedMsg(parsedMessage, correlationId);
                 }
 
                 if (readBuffer.hasRemaining()) {
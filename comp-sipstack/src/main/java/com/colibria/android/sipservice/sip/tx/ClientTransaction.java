@@ -21,6 +21,9 @@ package com.colibria.android.sipservice.sip.tx;
 import com.colibria.android.sipservice.fsm.TransitionActivityException;
 import com.colibria.android.sipservice.fsm.UnhandledConditionException;
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 import com.colibria.android.sipservice.sip.SipStack;
 import com.colibria.android.sipservice.sip.headers.CSeqHeader;
 import com.colibria.android.sipservice.sip.headers.RouteHeader;
@@ -30,6 +33,8 @@ import static com.colibria.android.sipservice.sip.tx.TransactionCondition.*;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The Client Transaction.
@@ -133,6 +138,9 @@ import java.util.List;
 public class ClientTransaction extends TransactionBase {
     private static final String TAG = "ClientTransaction";
 
+    private static final Counter RETRANSMISSIONS = Metrics.counter(Metrics.SIP_TX_RETRANSMISSIONS);
+    private static final ConcurrentMap<String, Histogram> RTT_PER_METHOD = new ConcurrentHashMap<String, Histogram>();
+
     // INVITE FSM states
     static final TransactionState I_INIT = new ClientTransactionState("I_INIT");
     static final TransactionState I_CALLING = new ClientTransactionState("I_CALLING") {
@@ -284,6 +292,7 @@ public class ClientTransaction extends TransactionBase {
             void activity(ClientTransaction transaction, Signal signal) {
                 // let provider re-send the request
                 SipStack.get().sendRequest(transaction.getRequest());
+                RETRANSMISSIONS.inc();
             }
         });
         I_CALLING.addTransition(new ClientTransactionTransition(C_TIMER_B_EXP, TERMINATED) {
@@ -398,6 +407,7 @@ public class ClientTransaction extends TransactionBase {
         NI_TRYING.addTransition(new ClientTransactionTransition(C_TIMER_E_EXP, NI_TRYING) {
             void activity(ClientTransaction transaction, Signal signal) {
                 SipStack.get().sendRequest(transaction.getRequest());
+                RETRANSMISSIONS.inc();
             }
         });
         NI_TRYING.addTransition(new ClientTransactionTransition(C_TIMER_F_EXP, TERMINATED) {
@@ -419,6 +429,7 @@ public class ClientTransaction extends TransactionBase {
         NI_PROCEEDING.addTransition(new ClientTransactionTransition(C_TIMER_E_EXP, NI_PROCEEDING) {
             void activity(ClientTransaction transaction, Signal signal) {
                 SipStack.get().sendRequest(transaction.getRequest());
+                RETRANSMISSIONS.inc();
             }
         });
         NI_PROCEEDING.addTransition(new ClientTransactionTransition(C_TIMER_F_EXP, TERMINATED) {
@@ -447,6 +458,7 @@ public class ClientTransaction extends TransactionBase {
     private boolean reliable;
     private int timerA;
     private int timerEscale = 0;
+    private volatile long sentAt;
     protected IClientTransactionListener listener;
 
     public ClientTransaction(Request rq, IClientTransactionListener listener, boolean reliable) {
@@ -569,6 +581,9 @@ public class ClientTransaction extends TransactionBase {
                                 + " the provider -- Send the Request using the Dialog.sendRequest(transaction)");
             }
         }
+        if (Metrics.isEnabled()) {
+            sentAt = System.nanoTime();
+        }
         Signal signal = new Signal(this.getRequest());
         //noinspection EmptyCatchBlock
         try {
@@ -640,6 +655,11 @@ public class ClientTransaction extends TransactionBase {
             dialog.responseReceived(rsp);
         }
         lastResponse = rsp;
+        if (sentAt != 0 && rsp.getStatusCode() >= 200) {
+            // only the first final response counts, retransmits of it are ignored
+            rttHistogram(getMethod()).recordNanosSince(sentAt);
+            sentAt = 0;
+        }
         try {
             Signal signal = new Signal(rsp);
             input(signal);
@@ -656,6 +676,21 @@ public class ClientTransaction extends TransactionBase {
         }
     }
 
+    /**
+     * Resolves the round-trip histogram of a method once, such that final responses don't build its name
+     *
+     * @param method the method of the transaction
+     * @return the histogram of the method
+     */
+    private static Histogram rttHistogram(String method) {
+        Histogram h = RTT_PER_METHOD.get(method);
+        if (h == null) {
+            h = Metrics.histogram(Metrics.SIP_TX_RTT_PREFIX + method);
+            RTT_PER_METHOD.putIfAbsent(method, h);
+        }
+        return h;
+    }
+
     public String toString() {
         return "ClientTransaction for " + Utils.getShortDescription(request);
     }
@@ -18,6 +18,7 @@
  */
 package com.colibria.android.sipservice.sip.tx;
 
+import com.colibria.android.sipservice.events.StackEvents;
 import com.colibria.android.sipservice.logging.Logger;
 import com.colibria.android.sipservice.RandomUtil;
 import com.colibria.android.sipservice.fsm.Machine;
@@ -76,11 +77,27 @@ public abstract class TransactionBase extends Machine<Signal> {
     protected String transactionId;
     private volatile Object applicationData;
 
+    /*
+     * Only set when stack events are enabled
+     */
+    private final long correlationId;
+    private final long createdAt;
+
 
     public TransactionBase(Request rq,TransactionState rtStartState) {
         super(rtStartState);
         setOriginalRequest(rq);
         lock = new ReentrantLock();
+
+        if (StackEvents.isEnabled()) {
+            long id = StackEvents.getCurrentCorrelationId();
+            correlationId = id != 0 ? id : StackEvents.nextCorrelationId();
+            createdAt = System.nanoTime();
+            StackEvents.transactionStarted(correlationId, getType() == Type.serverTransaction, method, branchId);
+        } else {
+            correlationId = 0;
+            createdAt = 0;
+        }
     }
 
 
@@ -117,6 +134,24 @@ public abstract class TransactionBase extends Machine<Signal> {
 
     protected void asyncUnmap() {
         SipStack.get().getTxRepository().removeTransaction(this);
+        if (createdAt != 0) {
+            StackEvents.transactionCompleted(
+                    correlationId,
+                    getType() == Type.serverTransaction,
+                    method,
+                    branchId,
+                    lastResponse != null ? lastResponse.getStatusCode() : 0,
+                    System.nanoTime() - createdAt);
+        }
+    }
+
+    /**
+     * Returns the id which relates this transaction to the received message that created it
+     *
+     * @return the correlation id, or 0 if stack events were disabled when this transaction was created
+     */
+    public long getCorrelationId() {
+        return correlationId;
     }
 
     abstract boolean isMessagePartOfTransaction(SipMessage messageToTest);
@@ -152,6 +187,9 @@ public abstract class TransactionBase extends Machine<Signal> {
                     && (forceCreation || Configuration.isAutomaticDialogSupport())) {
                 dialog = new Dialog(this);
                 Logger.d(TAG, "creating dialog: " + dialog);
+                if (correlationId != 0) {
+                    StackEvents.dialogCreated(correlationId, request.getCallId(), method);
+                }
             }
             Logger.d(TAG, "leave - returning dialog: " + dialog);
         } finally {
@@ -0,0 +1,37 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice;
+
+/**
+ * Call-back interface of a listener started with TcpController.listen()
+ *
+ * @author Sebastian Dehne
+ */
+public interface ITcpAcceptListener {
+
+    /**
+     * Called by the controller thread for each connection accepted. The connection is not read from
+     * before this method has returned.
+     *
+     * @param connection the accepted connection, already connected
+     * @return the listener of the connection, or null to close the connection again
+     */
+    public ITcpConnectionListener connectionAccepted(TcpConnection connection);
+
+}
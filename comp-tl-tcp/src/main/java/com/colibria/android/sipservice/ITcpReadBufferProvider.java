@@ -0,0 +1,43 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * May be implemented by an ITcpConnectionListener which wants to own the buffer the connection reads
+ * into, for instance to hand out parts of the received data without copying them and to continue reading
+ * into a fresh buffer while those parts are still in use.
+ * <p/>
+ * Without it, the TcpController reads into a buffer of its own which lives as long as the socket.
+ *
+ * @author Sebastian Dehne
+ */
+public interface ITcpReadBufferProvider {
+
+    /**
+     * Called before every read from the socket. The buffer must be in write mode, the received bytes are
+     * appended at its position and the same buffer is then passed to dataReceived(). This is also the state
+     * dataReceived() must leave the buffer in.
+     *
+     * @return the buffer to read into next
+     */
+    public ByteBuffer getReadBuffer();
+
+}
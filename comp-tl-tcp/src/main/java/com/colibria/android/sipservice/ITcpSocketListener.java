@@ -35,4 +35,11 @@ interface ITcpSocketListener {
     void newSocketEstablished(SocketChannel socketChannel);
 
     WriteTask getNextWriteTask();
+
+    boolean hasMoreWriteTasks();
+
+    /**
+     * @return the buffer provided by the connection listener to read into, null to use the controller's own buffer
+     */
+    ByteBuffer getReadBuffer();
 }
@@ -22,6 +22,7 @@ import com.colibria.android.sipservice.logging.Logger;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,21 +42,32 @@ public class TcpConnection {
     }
 
     private final int id;
-    private final ITcpConnectionListener mListener;
     private final TcpController mParent;
     private final String remoteHostname;
     private final int remotePort;
+    private final boolean mAccepted;
     private final ConcurrentLinkedQueue<WriteTask> mWriteQueue;
     private final AtomicBoolean mIsClosed;
     protected final ITcpSocketListener mHiddenListener;
     private volatile SocketChannel mSocketChannel;
+    private volatile ITcpConnectionListener mListener; // only set later for accepted connections
+    private volatile boolean mReadingSuspended;
 
     protected TcpConnection(TcpController parent, int id, ITcpConnectionListener listener, String remoteHostname, int remotePort) {
+        this(parent, id, listener, remoteHostname, remotePort, false);
+    }
+
+    /**
+     * An accepted connection was established by the remote end and cannot be re-established from this
+     * end: once lost or closed, it stays closed and writes fail.
+     */
+    protected TcpConnection(TcpController parent, int id, ITcpConnectionListener listener, String remoteHostname, int remotePort, boolean accepted) {
         this.id = id;
         this.remoteHostname = remoteHostname;
         this.remotePort = remotePort;
         this.mListener = listener;
         this.mParent = parent;
+        this.mAccepted = accepted;
         this.mWriteQueue = new ConcurrentLinkedQueue<WriteTask>();
         mIsClosed = new AtomicBoolean(false);
 
@@ -103,6 +115,16 @@ public class TcpConnection {
             public WriteTask getNextWriteTask() {
                 return mWriteQueue.poll();
             }
+
+            @Override
+            public boolean hasMoreWriteTasks() {
+                return !mWriteQueue.isEmpty();
+            }
+
+            @Override
+            public ByteBuffer getReadBuffer() {
+                return mListener instanceof ITcpReadBufferProvider ? ((ITcpReadBufferProvider) mListener).getReadBuffer() : null;
+            }
         };
     }
 
@@ -121,7 +143,38 @@ public class TcpConnection {
         }
     }
 
+    public boolean isAccepted() {
+        return mAccepted;
+    }
+
+    protected void setListener(ITcpConnectionListener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * Stops or resumes reading from the socket. While suspended, the controller doesn't select the socket for
+     * reading, so the received data backs up in the kernel buffers and eventually throttles the sender via
+     * TCP flow control. Writing is not affected. The setting survives a reconnect.
+     *
+     * @param suspended true to stop reading, false to resume
+     */
+    public void setReadingSuspended(boolean suspended) {
+        mReadingSuspended = suspended;
+        SocketChannel sc = mSocketChannel;
+        if (sc != null) {
+            mParent.readingSuspendedChanged(sc);
+        }
+    }
+
+    public boolean isReadingSuspended() {
+        return mReadingSuspended;
+    }
+
     public void reconnect() {
+        if (mAccepted) {
+            Logger.d(TAG, "reconnect() ignored, an accepted connection cannot be re-established");
+            return;
+        }
         if (!mIsClosed.get()) {
             closeSocketConnection();
 
@@ -136,8 +189,43 @@ public class TcpConnection {
     }
 
     public void write(ByteBuffer flippedByeBuffer, Runnable whenDone, Runnable whenError) {
-        Logger.d(TAG, "write() data.size=" + flippedByeBuffer.limit());
-        if (mIsClosed.get()) {
+        write(new WriteTask(flippedByeBuffer, whenDone, whenError));
+    }
+
+    /**
+     * Writes the content of the buffer followed by count bytes of the file starting at position. The file
+     * region is handed to the socket with FileChannel.transferTo(), so its content is never copied into the heap.
+     * The file channel is only read from, it is not closed by the connection.
+     *
+     * @param flippedByeBuffer the bytes to be sent ahead of the file region
+     * @param file             the file to be sent from
+     * @param position         the position of the first byte of the region within the file
+     * @param count            the number of bytes of the region
+     * @param whenDone         executed once all bytes have been written
+     * @param whenError        executed if the bytes could not be written
+     */
+    public void write(ByteBuffer flippedByeBuffer, FileChannel file, long position, long count, Runnable whenDone, Runnable whenError) {
+        write(new WriteTask(flippedByeBuffer, file, position, count, whenDone, whenError));
+    }
+
+    /**
+     * Writes the content of the buffers, one after the other. The buffers are handed to the socket with a
+     * single gathering write, so a buffer which is shared among several connections doesn't need to be
+     * copied next to the bytes of this connection first. The buffers must not be changed until the write has
+     * completed.
+     *
+     * @param flippedByeBuffers the buffers to be sent, in the order they are to be sent in
+     * @param whenDone          executed once all bytes have been written
+     * @param whenError         executed if the bytes could not be written
+     */
+    public void write(ByteBuffer[] flippedByeBuffers, Runnable whenDone, Runnable whenError) {
+        write(new WriteTask(flippedByeBuffers, whenDone, whenError));
+    }
+
+    private void write(WriteTask writeTask) {
+        Runnable whenError = writeTask.getWhenError();
+        Logger.d(TAG, "write() data.size=" + writeTask.getLength());
+        if (mIsClosed.get() || (mAccepted && mSocketChannel == null)) {
             try {
                 whenError.run();
             } catch (Exception e) {
@@ -153,7 +241,7 @@ public class TcpConnection {
             reconnect(); // note: this clears the writeQueue as well
         }
 
-        mWriteQueue.offer(new WriteTask(flippedByeBuffer, whenDone, whenError));
+        mWriteQueue.offer(writeTask);
 
         if ((sc = mSocketChannel) != null) {
             mParent.haveDataToBeWritten(sc);
@@ -19,14 +19,19 @@
 package com.colibria.android.sipservice;
 
 import com.colibria.android.sipservice.logging.Logger;
+import com.colibria.android.sipservice.metrics.Counter;
+import com.colibria.android.sipservice.metrics.Histogram;
+import com.colibria.android.sipservice.metrics.Metrics;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
@@ -40,6 +45,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class TcpController extends Thread {
     private static final String TAG = "TcpController";
 
+    private static final Histogram SELECT_LOOP_TIME = Metrics.histogram(Metrics.TCP_SELECT_LOOP_TIME);
+    private static final Histogram SELECT_KEYS = Metrics.histogram(Metrics.TCP_SELECT_KEYS);
+    private static final Counter BYTES_IN = Metrics.counter(Metrics.TCP_BYTES_IN);
+    private static final Counter BYTES_OUT = Metrics.counter(Metrics.TCP_BYTES_OUT);
+    private static final Counter ACCEPTS = Metrics.counter(Metrics.TCP_ACCEPTS);
+    private static final Counter ACCEPTS_REJECTED = Metrics.counter(Metrics.TCP_ACCEPTS_REJECTED);
+
     // todo implement a connect timeout
 
     private static final int CONNECT_TIMEOUT = 1000 * 10;
@@ -98,7 +110,9 @@ public class TcpController extends Thread {
                     Logger.i(TAG, "error during selection", e);
                 }
 
+                long loopStart = Metrics.isEnabled() ? System.nanoTime() : 0;
                 Set<SelectionKey> keys = mSelector.selectedKeys();
+                SELECT_KEYS.record(keys.size());
                 for (SelectionKey key : keys) {
 
                     // I can read something
@@ -118,11 +132,13 @@ public class TcpController extends Thread {
 
                     // I can accept something
                     else if ((key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) {
-                        // not used
-                        Logger.e(TAG, "Got an unexpected accept signal");
+                        handleAcceptOperation(key);
                     }
                 }
                 keys.clear();
+                if (loopStart != 0) {
+                    SELECT_LOOP_TIME.recordNanosSince(loopStart);
+                }
 
             }
         } catch (Throwable t) {
@@ -155,6 +171,68 @@ public class TcpController extends Thread {
         return new TcpConnection(this, mConnectionIdCounter.getAndIncrement(), listener, remoteHostname, remotePort);
     }
 
+    /**
+     * Starts accepting connections on the given local address. Accepting is done by the controller thread,
+     * just like reading and writing. Connections which arrive faster than maxAcceptsPerSecond are closed right
+     * away; short bursts up to that number are let through.
+     *
+     * @param localAddress       the address to bind to, the port may be 0 to have one picked
+     * @param maxAcceptsPerSecond the number of connections accepted per second at most
+     * @param listener           the listener which is handed each accepted connection
+     * @return the address actually bound to
+     * @throws IOException if the address could not be bound to
+     */
+    public InetSocketAddress listen(InetSocketAddress localAddress, int maxAcceptsPerSecond, ITcpAcceptListener listener) throws IOException {
+        Logger.d(TAG, "listen() - isRunning=" + isRunning + ", localAddress=" + localAddress);
+        if (!isRunning) {
+            throw new IOException("Controller not running");
+        }
+        if (maxAcceptsPerSecond < 1) {
+            throw new IllegalArgumentException("maxAcceptsPerSecond must be at least 1");
+        }
+
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.configureBlocking(false);
+            ssc.socket().setReuseAddress(true);
+            ssc.socket().bind(localAddress);
+            synchronized (this) {
+                mSelector.wakeup();
+                ssc.register(mSelector, SelectionKey.OP_ACCEPT, new ListenerKeyAttachment(listener, maxAcceptsPerSecond));
+            }
+        } catch (IOException e) {
+            ssc.close();
+            throw e;
+        }
+        InetSocketAddress bound = (InetSocketAddress) ssc.socket().getLocalSocketAddress();
+        Logger.i(TAG, "Listening on " + bound);
+        return bound;
+    }
+
+    /**
+     * Stops accepting connections on an address returned by listen(). Connections already accepted stay open.
+     *
+     * @param boundAddress the address returned by listen()
+     */
+    public void stopListening(InetSocketAddress boundAddress) {
+        Logger.d(TAG, "stopListening() - " + boundAddress);
+
+        synchronized (this) {
+            mSelector.wakeup();
+            for (SelectionKey k : mSelector.keys()) {
+                if (k.channel() instanceof ServerSocketChannel
+                        && boundAddress.equals(((ServerSocketChannel) k.channel()).socket().getLocalSocketAddress())) {
+                    k.cancel();
+                    try {
+                        k.channel().close();
+                    } catch (IOException e) {
+                        //ignore
+                    }
+                }
+            }
+        }
+    }
+
     public void shutdown() {
         Logger.d(TAG, "shutdown() - " + isRunning);
 
@@ -179,7 +257,8 @@ public class TcpController extends Thread {
             SelectionKeyAttachment a;
             if (keys != null) {
                 for (SelectionKey k : keys) {
-                    if ((a = (SelectionKeyAttachment) k.attachment()) != null) {
+                    if (k.attachment() instanceof SelectionKeyAttachment) {
+                        a = (SelectionKeyAttachment) k.attachment();
                         a.connection.sendKeepAliveNow();
                     }
                 }
@@ -194,18 +273,48 @@ public class TcpController extends Thread {
             return;
 
         synchronized (this) {
+            SelectionKey sk = sc.keyFor(mSelector);
+            if (sk != null) {
+                try {
+                    sk.interestOps(readOps(((SelectionKeyAttachment) sk.attachment()).connection) | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    Logger.d(TAG, "key already canceled, ignoring this event");
+                }
+            }
+
+            // wake up the selector after the interest set was changed, a select() which is already
+            // in progress might not pick up the change otherwise
             mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Called by a connection after reading from it was suspended or resumed, updates the interest set
+     * of its key accordingly.
+     */
+    protected void readingSuspendedChanged(SocketChannel sc) {
+        if (!isRunning)
+            return;
+
+        synchronized (this) {
             SelectionKey sk = sc.keyFor(mSelector);
             if (sk != null) {
                 try {
-                    sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    SelectionKeyAttachment attachment = (SelectionKeyAttachment) sk.attachment();
+                    int writeOps = sk.interestOps() & SelectionKey.OP_WRITE;
+                    sk.interestOps(readOps(attachment.connection) | writeOps);
                 } catch (CancelledKeyException e) {
                     Logger.d(TAG, "key already canceled, ignoring this event");
                 }
             }
+            mSelector.wakeup();
         }
     }
 
+    private static int readOps(TcpConnection connection) {
+        return connection.isReadingSuspended() ? 0 : SelectionKey.OP_READ;
+    }
+
     protected void openNewConnection(TcpConnection connection) {
         Logger.d(TAG, "openNewConnection() - " + isRunning);
 
@@ -270,7 +379,7 @@ public class TcpController extends Thread {
                     }
 
                     sc.configureBlocking(false);
-                    sc.register(mSelector, SelectionKey.OP_READ, ska);
+                    sc.register(mSelector, readOps(connectionListener), ska);
                     mThreadPool.execute(new Runnable() {
                         @Override
                         public void run() {
@@ -324,10 +433,19 @@ public class TcpController extends Thread {
         SocketChannel sc = (SocketChannel) key.channel();
         SelectionKeyAttachment attachment = (SelectionKeyAttachment) key.attachment();
         try {
-            if (sc.read(attachment.readBuffer) != -1) {
-                Logger.d(TAG, "read " + attachment.readBuffer.position() + " bytes");
-                if (attachment.readBuffer.position() > 0) {
-                    attachment.connection.mHiddenListener.dataReceived(attachment.readBuffer);
+            ByteBuffer readBuffer = attachment.connection.mHiddenListener.getReadBuffer();
+            if (readBuffer == null) {
+                if (attachment.readBuffer == null) {
+                    attachment.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                }
+                readBuffer = attachment.readBuffer;
+            }
+            int len = sc.read(readBuffer);
+            if (len != -1) {
+                BYTES_IN.add(len);
+                Logger.d(TAG, "read " + readBuffer.position() + " bytes");
+                if (readBuffer.position() > 0) {
+                    attachment.connection.mHiddenListener.dataReceived(readBuffer);
                 } else {
                     Logger.d(TAG, "read ignore since 0 bytes was read");
                 }
@@ -351,7 +469,7 @@ public class TcpController extends Thread {
         if ((writeTask = attachment.connection.mHiddenListener.getNextWriteTask()) != null) {
             try {
                 performWrite(sc, writeTask);
-                Logger.d(TAG, "wrote " + writeTask.getData().limit() + " bytes");
+                Logger.d(TAG, "wrote " + writeTask.getLength() + " bytes");
                 if (writeTask.getWhenDone() != null) {
                     try {
                         writeTask.getWhenDone().run();
@@ -370,7 +488,68 @@ public class TcpController extends Thread {
             }
         } else {
             // finished writing, no more data to be written for this connection
-            key.interestOps(SelectionKey.OP_READ);
+            synchronized (this) {
+                key.interestOps(readOps(attachment.connection));
+
+                // another thread may have queued a write (and set OP_WRITE) after the queue was
+                // found empty above; don't lose it
+                if (attachment.connection.mHiddenListener.hasMoreWriteTasks()) {
+                    key.interestOps(readOps(attachment.connection) | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    private void handleAcceptOperation(SelectionKey key) {
+        ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
+        ListenerKeyAttachment attachment = (ListenerKeyAttachment) key.attachment();
+        SocketChannel sc;
+        while (true) {
+            try {
+                if ((sc = ssc.accept()) == null) {
+                    return;
+                }
+            } catch (IOException e) {
+                Logger.i(TAG, "Could not accept connection", e);
+                return;
+            }
+
+            if (!attachment.tryAcquire()) {
+                Logger.i(TAG, "Too many connections accepted, closing " + sc.socket().getRemoteSocketAddress());
+                ACCEPTS_REJECTED.inc();
+                try {
+                    sc.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                continue;
+            }
+            ACCEPTS.inc();
+
+            InetSocketAddress remote = (InetSocketAddress) sc.socket().getRemoteSocketAddress();
+            Logger.d(TAG, "Accepted connection from " + remote);
+            TcpConnection connection = new TcpConnection(this, mConnectionIdCounter.getAndIncrement(), null,
+                    remote.getAddress().getHostAddress(), remote.getPort(), true);
+            try {
+                ITcpConnectionListener listener = attachment.listener.connectionAccepted(connection);
+                if (listener == null) {
+                    Logger.d(TAG, "Accepted connection refused by the listener");
+                    sc.close();
+                    continue;
+                }
+                connection.setListener(listener);
+                sc.configureBlocking(false);
+
+                // the connection knows its socket before anything is read from it
+                connection.mHiddenListener.newSocketEstablished(sc);
+                synchronized (this) {
+                    sc.register(mSelector, readOps(connection), new SelectionKeyAttachment(sc, connection));
+                }
+            } catch (IOException e) {
+                Logger.i(TAG, "Could not set up accepted connection", e);
+                closeChannel(sc);
+                connection.mHiddenListener.connectionLost();
+            }
         }
     }
 
@@ -381,17 +560,34 @@ public class TcpController extends Thread {
     }
 
     private void performWrite(SocketChannel socketChannel, WriteTask writeTask) throws IOException {
-        ByteBuffer bb = writeTask.getData();
+        ByteBuffer[] buffers = writeTask.getData();
+        FileChannel file = writeTask.getFile();
+        long fileWritten = 0;
         Selector writeSelector = null;
         SelectionKey key = null;
         int attempts = 0;
         try {
-            while (bb.hasRemaining()) {
-                int len = socketChannel.write(bb);
+            while (writeTask.hasRemainingData() || fileWritten < writeTask.getFileCount()) {
+                long len;
+                if (buffers.length > 1 && writeTask.hasRemainingData()) {
+                    // a gathering write, e.g. a head followed by a body which is shared with other connections
+                    len = socketChannel.write(buffers);
+                } else if (buffers[0].hasRemaining()) {
+                    len = socketChannel.write(buffers[0]);
+                } else {
+                    // the file region goes straight from the file to the socket, it doesn't pass the heap
+                    long position = writeTask.getFilePosition() + fileWritten;
+                    len = file.transferTo(position, writeTask.getFileCount() - fileWritten, socketChannel);
+                    if (len == 0 && position >= file.size()) {
+                        throw new EOFException("File region ends beyond the end of the file");
+                    }
+                    fileWritten += len;
+                }
                 attempts++;
                 if (len < 0) {
                     throw new EOFException();
                 }
+                BYTES_OUT.add(len);
                 if (len == 0) {
                     if (writeSelector == null) {
                         writeSelector = Selector.open();
@@ -426,16 +622,46 @@ public class TcpController extends Thread {
         }
     }
 
+    /*
+     * Attached to the key of a listening socket. Only touched by the controller thread.
+     */
+    private static class ListenerKeyAttachment {
+        final ITcpAcceptListener listener;
+        final int maxAcceptsPerSecond;
+        double tokens;
+        long lastRefill;
+
+        private ListenerKeyAttachment(ITcpAcceptListener listener, int maxAcceptsPerSecond) {
+            this.listener = listener;
+            this.maxAcceptsPerSecond = maxAcceptsPerSecond;
+            this.tokens = maxAcceptsPerSecond;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /*
+         * A token bucket which holds up to one second worth of accepts
+         */
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(maxAcceptsPerSecond, tokens + (now - lastRefill) * maxAcceptsPerSecond / 1e9);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
     private class SelectionKeyAttachment {
         final TcpConnection connection;
         final SocketChannel sc;
-        final ByteBuffer readBuffer;
+        ByteBuffer readBuffer; // only allocated if the listener doesn't provide a buffer itself
         volatile ScheduledFuture connectTimeoutTask;
 
         private SelectionKeyAttachment(SocketChannel sc, TcpConnection connection) {
             this.sc = sc;
             this.connection = connection;
-            readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         }
 
         void startConnectTimeoutTask() {
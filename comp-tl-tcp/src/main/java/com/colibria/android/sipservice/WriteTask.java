@@ -19,23 +19,83 @@
 package com.colibria.android.sipservice;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * @author Sebastian Dehne
  */
 class WriteTask {
-    private final ByteBuffer bb;
+    private final ByteBuffer[] buffers;
     private final Runnable whenDone;
     private final Runnable whenError;
+    private final FileChannel file;
+    private final long filePosition;
+    private final long fileCount;
 
     protected WriteTask(ByteBuffer flippedByeBuffer, Runnable whenDone, Runnable whenError) {
-        bb = flippedByeBuffer;
+        this(flippedByeBuffer, null, 0, 0, whenDone, whenError);
+    }
+
+    /**
+     * A write task which sends count bytes of the file, starting at position, right after the content of the buffer.
+     */
+    protected WriteTask(ByteBuffer flippedByeBuffer, FileChannel file, long position, long count, Runnable whenDone, Runnable whenError) {
+        this(new ByteBuffer[]{flippedByeBuffer}, file, position, count, whenDone, whenError);
+    }
+
+    /**
+     * A write task which sends the content of several buffers, one after the other, with a single gathering write.
+     */
+    protected WriteTask(ByteBuffer[] flippedByeBuffers, Runnable whenDone, Runnable whenError) {
+        this(flippedByeBuffers, null, 0, 0, whenDone, whenError);
+    }
+
+    private WriteTask(ByteBuffer[] flippedByeBuffers, FileChannel file, long position, long count, Runnable whenDone, Runnable whenError) {
+        buffers = flippedByeBuffers;
+        this.file = file;
+        this.filePosition = position;
+        this.fileCount = file == null ? 0 : count;
         this.whenDone = whenDone;
         this.whenError = whenError;
     }
 
-    public ByteBuffer getData() {
-        return bb;
+    public ByteBuffer[] getData() {
+        return buffers;
+    }
+
+    /**
+     * @return true if some of the buffers have not been written completely yet
+     */
+    public boolean hasRemainingData() {
+        for (ByteBuffer bb : buffers) {
+            if (bb.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public FileChannel getFile() {
+        return file;
+    }
+
+    public long getFilePosition() {
+        return filePosition;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return the total number of bytes this task puts on the wire
+     */
+    public long getLength() {
+        long length = fileCount;
+        for (ByteBuffer bb : buffers) {
+            length += bb.limit();
+        }
+        return length;
     }
 
     public Runnable getWhenDone() {
@@ -0,0 +1,106 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.events;
+
+/**
+ * Receives notifications about noteworthy things happening inside the SIP and MSRP stacks.
+ * <p/>
+ * All notifications which belong to the same received message (and the transactions, dialogs
+ * and application call-backs triggered by it) carry the same correlation id. A correlation id
+ * of 0 means that the event could not be related to any received message.
+ * <p/>
+ * Implementations are called on the stack's own threads, including the TcpController thread,
+ * and must therefore return quickly and never block.
+ *
+ * @author Sebastian Dehne
+ */
+public interface IStackEventListener {
+
+    /**
+     * A complete message has been parsed from the network
+     *
+     * @param correlationId the correlation id assigned to this message
+     * @param protocol      either "SIP" or "MSRP"
+     * @param method        the request method, or the method of the request which is being answered
+     * @param statusCode    the status code in case of a response, else 0
+     * @param parseNanos    time spent in the parser, -1 if unknown
+     */
+    public void messageParsed(long correlationId, String protocol, String method, int statusCode, long parseNanos);
+
+    /**
+     * A new SIP transaction has been created
+     *
+     * @param correlationId the correlation id
+     * @param serverSide    true for a server transaction, false for a client transaction
+     * @param method        the method of the request which created the transaction
+     * @param branchId      the branch id of the transaction
+     */
+    public void transactionStarted(long correlationId, boolean serverSide, String method, String branchId);
+
+    /**
+     * A SIP transaction has terminated
+     *
+     * @param correlationId  the correlation id of the message which created the transaction
+     * @param serverSide     true for a server transaction, false for a client transaction
+     * @param method         the method of the request which created the transaction
+     * @param branchId       the branch id of the transaction
+     * @param statusCode     the last status code received or sent, 0 if there was no response
+     * @param durationNanos  time between creation and termination of the transaction
+     */
+    public void transactionCompleted(long correlationId, boolean serverSide, String method, String branchId, int statusCode, long durationNanos);
+
+    /**
+     * A SIP dialog has been created
+     *
+     * @param correlationId the correlation id of the transaction which created the dialog
+     * @param callId        the Call-ID of the dialog
+     * @param method        the method of the dialog creating request
+     */
+    public void dialogCreated(long correlationId, String callId, String method);
+
+    /**
+     * A MSRP chunk has been written and the stack now waits for the response
+     *
+     * @param correlationId the correlation id
+     * @param transactionId the MSRP transaction id of the chunk
+     * @param messageId     the Message-ID, may be null
+     */
+    public void chunkSent(long correlationId, String transactionId, String messageId);
+
+    /**
+     * A response for a previously sent MSRP chunk has been received
+     *
+     * @param correlationId the correlation id the chunk was sent with
+     * @param transactionId the MSRP transaction id of the chunk
+     * @param statusCode    the status code of the response
+     * @param rttNanos      time between sending the chunk and receiving the response
+     */
+    public void chunkAcknowledged(long correlationId, String transactionId, int statusCode, long rttNanos);
+
+    /**
+     * A MSRP message has been received completely, or receiving it was given up
+     *
+     * @param correlationId the correlation id of the last chunk of the message
+     * @param messageId     the Message-ID
+     * @param bytes         the number of bytes which were stored
+     * @param durationNanos time between the first and the last chunk
+     * @param aborted       true if the message was aborted
+     */
+    public void reassemblyCompleted(long correlationId, String messageId, long bytes, long durationNanos, boolean aborted);
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches stack events to the installed {@link IStackEventListener}.
+ * <p/>
+ * No listener is installed by default, in which case every method in here returns after a single
+ * volatile read. Call sites which need to compute something for an event (like a time-stamp) should
+ * check {@link #isEnabled()} first.
+ * <p/>
+ * The correlation id of the message currently being handled is kept in a thread-local, such that
+ * code further down the call chain (transactions, the application's call-backs) can pick it up.
+ *
+ * @author Sebastian Dehne
+ */
+public class StackEvents {
+
+    private static volatile IStackEventListener listener = null;
+
+    private static final AtomicLong correlationIds = new AtomicLong();
+
+    private static final ThreadLocal<long[]> currentCorrelationId = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    public static void setListener(IStackEventListener newListener) {
+        listener = newListener;
+    }
+
+    public static boolean isEnabled() {
+        return listener != null;
+    }
+
+    /**
+     * Generates a new correlation id, or returns 0 if no listener is installed
+     *
+     * @return a new correlation id
+     */
+    public static long nextCorrelationId() {
+        return listener != null ? correlationIds.incrementAndGet() : 0;
+    }
+
+    /**
+     * Returns the correlation id of the message the current thread is handling
+     *
+     * @return the correlation id or 0 if the current thread isn't handling any received message
+     */
+    public static long getCurrentCorrelationId() {
+        return listener != null ? currentCorrelationId.get()[0] : 0;
+    }
+
+    /**
+     * Associates the current thread with a correlation id. Must be reset to 0 once the thread is done.
+     *
+     * @param correlationId the correlation id
+     */
+    public static void setCurrentCorrelationId(long correlationId) {
+        if (correlationId != 0 || listener != null) {
+            currentCorrelationId.get()[0] = correlationId;
+        }
+    }
+
+    public static void messageParsed(long correlationId, String protocol, String method, int statusCode, long parseNanos) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.messageParsed(correlationId, protocol, method, statusCode, parseNanos);
+        }
+    }
+
+    public static void transactionStarted(long correlationId, boolean serverSide, String method, String branchId) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.transactionStarted(correlationId, serverSide, method, branchId);
+        }
+    }
+
+    public static void transactionCompleted(long correlationId, boolean serverSide, String method, String branchId, int statusCode, long durationNanos) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.transactionCompleted(correlationId, serverSide, method, branchId, statusCode, durationNanos);
+        }
+    }
+
+    public static void dialogCreated(long correlationId, String callId, String method) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.dialogCreated(correlationId, callId, method);
+        }
+    }
+
+    public static void chunkSent(long correlationId, String transactionId, String messageId) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.chunkSent(correlationId, transactionId, messageId);
+        }
+    }
+
+    public static void chunkAcknowledged(long correlationId, String transactionId, int statusCode, long rttNanos) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.chunkAcknowledged(correlationId, transactionId, statusCode, rttNanos);
+        }
+    }
+
+    public static void reassemblyCompleted(long correlationId, String messageId, long bytes, long durationNanos, boolean aborted) {
+        IStackEventListener l = listener;
+        if (l != null) {
+            l.reassemblyCompleted(correlationId, messageId, bytes, durationNanos, aborted);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.fsm;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A fixed-size ring of the most recent transitions performed by one {@link Machine}.
+ * <p/>
+ * All slots are allocated up-front, recording a transition only stores references and
+ * primitive values. Signals and states are only turned into text when the ring is dumped.
+ * <p/>
+ * This class is not thread-safe by itself; the owning machine only accesses it while holding its lock.
+ *
+ * @author Sebastian Dehne
+ */
+class FlightRecorder {
+
+    private final long[] timestamps;
+    private final Object[] signals;
+    private final State[] sourceStates;
+    private final State[] targetStates;
+    private final long[] activityNanos;
+
+    private int next;
+    private int size;
+
+    FlightRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be larger than 0");
+        }
+        timestamps = new long[capacity];
+        signals = new Object[capacity];
+        sourceStates = new State[capacity];
+        targetStates = new State[capacity];
+        activityNanos = new long[capacity];
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * Records one transition, overwriting the oldest entry if the ring is full
+     *
+     * @param timestamp    wall-clock time in milliseconds when the signal was handled
+     * @param signal       the signal which triggered the transition
+     * @param source       the state in which the signal was received
+     * @param target       the state the machine ended up in, null if the signal could not be handled
+     * @param activityTime time spent in the transition activity in nanoseconds, -1 if no activity was executed
+     */
+    void record(long timestamp, Object signal, State source, State target, long activityTime) {
+        timestamps[next] = timestamp;
+        signals[next] = signal;
+        sourceStates[next] = source;
+        targetStates[next] = target;
+        activityNanos[next] = activityTime;
+        next = (next + 1) % timestamps.length;
+        if (size < timestamps.length) {
+            size++;
+        }
+    }
+
+    int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Produces a text representation of the ring, oldest transition first
+     *
+     * @param machineId the id of the owning machine
+     * @return the dump
+     */
+    String dump(String machineId) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        StringBuilder sb = new StringBuilder();
+        sb.append("Last ").append(size).append(" transitions of ").append(machineId).append(':');
+        int start = (next - size + timestamps.length) % timestamps.length;
+        for (int i = 0; i < size; i++) {
+            int idx = (start + i) % timestamps.length;
+            sb.append('\n').append(format.format(new Date(timestamps[idx])))
+                    .append(" '").append(signals[idx]).append("' ")
+                    .append(sourceStates[idx]).append(" -> ");
+            if (targetStates[idx] == null) {
+                sb.append("<unhandled>");
+            } else {
+                sb.append(targetStates[idx]);
+            }
+            if (activityNanos[idx] >= 0) {
+                sb.append(" (activity ").append(activityNanos[idx] / 1000).append("us)");
+            }
+        }
+        return sb.toString();
+    }
+}
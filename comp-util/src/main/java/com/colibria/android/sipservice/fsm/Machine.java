@@ -46,6 +46,20 @@ public class Machine<S> {
         Machine.MAX_QUEUED_SIGNALS = maxQueuedSignals;
     }
 
+    private static volatile int FLIGHT_RECORDER_SIZE = 0;
+
+    /**
+     * Sets the number of recent transitions each newly created machine keeps in its flight recorder.
+     * (Default is 0, which means no recording)
+     * <p/>
+     * Machines which already exist are not affected, see enableFlightRecorder() for that.
+     *
+     * @param size number of transitions to keep per machine, 0 to disable
+     */
+    public static void setDefaultFlightRecorderSize(int size) {
+        Machine.FLIGHT_RECORDER_SIZE = size;
+    }
+
     /*
      * The lock is a lock which is used to proect the FSM
      * from being used by multiple threads.
@@ -62,6 +76,7 @@ public class Machine<S> {
     private State<S, Machine<S>> targetState;
     private final LinkedList<S> waitingSignals;
     private final Condition waitForState;
+    private FlightRecorder flightRecorder;
 
     public Machine(State startState) {
         if (startState == null) {
@@ -74,6 +89,10 @@ public class Machine<S> {
             //noinspection unchecked
             currentState = startState;
             waitForState = lock.newCondition();
+            int recorderSize = FLIGHT_RECORDER_SIZE;
+            if (recorderSize > 0) {
+                flightRecorder = new FlightRecorder(recorderSize);
+            }
         } finally {
             lock.unlock();
         }
@@ -267,6 +286,47 @@ public class Machine<S> {
         return MAX_QUEUED_SIGNALS;
     }
 
+    /**
+     * Starts recording the most recent transitions of this machine into a fixed-size ring.
+     * Any previously recorded transitions are discarded.
+     *
+     * @param size number of transitions to keep
+     */
+    public void enableFlightRecorder(int size) {
+        lock.lock();
+        try {
+            flightRecorder = new FlightRecorder(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void disableFlightRecorder() {
+        lock.lock();
+        try {
+            flightRecorder = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the recent transitions of this machine, oldest first.
+     * <p/>
+     * Note: this method will block if being called during an onging transition
+     * which is performed by another thread.
+     *
+     * @return a text dump of the flight recorder, or null if the flight recorder is not enabled
+     */
+    public String dumpFlightRecorder() {
+        lock.lock();
+        try {
+            return flightRecorder != null ? flightRecorder.dump(getMachineId()) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Performs a specified task under the condition that the FSM is currently
      * in the sepcified state
@@ -292,6 +352,7 @@ public class Machine<S> {
 
     private void handle(S signal, long waitTimeoutInMilliseconds, final boolean ignoreBlockingStates) throws UnhandledConditionException, InterruptedException, TransitionActivityException, WaitingForStateTimeout {
         State<S, Machine<S>> targetState;
+        State<S, Machine<S>> sourceState;
         Transition<S, Machine<S>> selectedTransition = null;
 
         try {
@@ -331,6 +392,10 @@ public class Machine<S> {
             if (selectedTransition == null && (selectedTransition = currentState.input(signal, this)) == null) {
                 String errorMsg = "Cannot handle signal '" + signal + "' for currentState '" + currentState + "' since no transition has been specified";
                 Logger.d(TAG, errorMsg);
+                if (flightRecorder != null) {
+                    flightRecorder.record(System.currentTimeMillis(), signal, currentState, null, -1);
+                    Logger.i(TAG, flightRecorder.dump(getMachineId()));
+                }
                 throw new UnhandledConditionException(errorMsg);
             }
 
@@ -367,12 +432,13 @@ public class Machine<S> {
             /*
              * set the new state
              */
+            sourceState = currentState;
             currentState = targetState;
 
             /*
              * Execute the transition plus the enter-state code
              */
-            handleTransitionActivity(signal, selectedTransition, reEnter);
+            handleTransitionActivity(signal, sourceState, selectedTransition, reEnter);
 
         } finally {
             this.signal = null;
@@ -381,13 +447,18 @@ public class Machine<S> {
     }
 
 
-    private void handleTransitionActivity(final S signal, final Transition<S, Machine<S>> selectedTransition, final boolean reEnter) throws TransitionActivityException {
+    private void handleTransitionActivity(final S signal, final State<S, Machine<S>> sourceState, final Transition<S, Machine<S>> selectedTransition, final boolean reEnter) throws TransitionActivityException {
+        final FlightRecorder recorder = flightRecorder;
+        final long startedAt = recorder != null ? System.nanoTime() : 0;
 
         /*
          * Execute the transition
          */
         try {
             selectedTransition.activity(this, signal);
+            if (recorder != null) {
+                recorder.record(System.currentTimeMillis(), signal, sourceState, currentState, System.nanoTime() - startedAt);
+            }
         }
 
         /*
@@ -400,6 +471,10 @@ public class Machine<S> {
             } else {
                 Logger.i(TAG, "Transition Activity failed, no exception state defined", e);
             }
+            if (recorder != null) {
+                recorder.record(System.currentTimeMillis(), signal, sourceState, currentState, System.nanoTime() - startedAt);
+                Logger.i(TAG, recorder.dump(getMachineId()));
+            }
             throw e;
         }
 
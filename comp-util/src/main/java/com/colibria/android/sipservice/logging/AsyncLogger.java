@@ -0,0 +1,263 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ILogger which decouples the calling thread from the real log sink. Log events are
+ * copied into a pre-allocated, bounded ring buffer and written to the delegate ILogger
+ * by a background thread, such that slow logcat or file I/O no longer delays the
+ * TcpController reactor or any other caller.
+ * <p/>
+ * When the ring is full, the event is either dropped or, for ERROR events and when
+ * the policy is {@link OverflowPolicy#BLOCK_ON_ERROR}, the caller waits until there is
+ * room again. Dropped events are counted and can be queried at any time.
+ * <p/>
+ * Since the delegate is called from the background thread, it can't tell which thread
+ * logged an event. Optionally, the name of that thread is prefixed to the message.
+ *
+ * @author Sebastian Dehne
+ */
+public class AsyncLogger implements ILogger {
+    private static final String TAG = "AsyncLogger";
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        /**
+         * Always drop the new event if the ring is full
+         */
+        DROP,
+
+        /**
+         * Drop DEBUG, INFO and WARN events if the ring is full, but let the caller
+         * wait for free space when logging an ERROR
+         */
+        BLOCK_ON_ERROR
+    }
+
+    /**
+     * One pre-allocated slot in the ring. Slots are re-used, only the references
+     * to the caller's objects are copied.
+     */
+    private static final class Event {
+        Logger.Level level;
+        String tag;
+        String message;
+        Throwable throwable;
+        String threadName;
+
+        void clear() {
+            level = null;
+            tag = null;
+            message = null;
+            throwable = null;
+            threadName = null;
+        }
+    }
+
+    private final ILogger delegate;
+    private final OverflowPolicy policy;
+    private final boolean prefixThreadName;
+    private final Event[] ring;
+    private final AtomicLong droppedCount;
+    private final AtomicLong[] droppedPerLevel;
+    private final Thread drainer;
+
+    // guarded by "this"
+    private int head;
+    private int size;
+    private boolean closed;
+
+    public AsyncLogger(ILogger delegate) {
+        this(delegate, DEFAULT_CAPACITY, OverflowPolicy.BLOCK_ON_ERROR);
+    }
+
+    public AsyncLogger(ILogger delegate, int capacity, OverflowPolicy policy) {
+        this(delegate, capacity, policy, false);
+    }
+
+    /**
+     * @param delegate         the real log sink
+     * @param capacity         the number of events the ring can hold
+     * @param policy           what to do when the ring is full
+     * @param prefixThreadName whether messages are passed on as "[thread-name] message"
+     */
+    public AsyncLogger(ILogger delegate, int capacity, OverflowPolicy policy, boolean prefixThreadName) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        this.delegate = delegate;
+        this.policy = policy;
+        this.prefixThreadName = prefixThreadName;
+        this.ring = new Event[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Event();
+        }
+        this.droppedCount = new AtomicLong(0);
+        this.droppedPerLevel = new AtomicLong[Logger.Level.values().length];
+        for (int i = 0; i < droppedPerLevel.length; i++) {
+            droppedPerLevel[i] = new AtomicLong(0);
+        }
+        this.head = 0;
+        this.size = 0;
+        this.closed = false;
+
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, TAG);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    public void write(Logger.Level level, String tag, String message, Throwable t) {
+        synchronized (this) {
+            if (closed) {
+                countDropped(level);
+                return;
+            }
+
+            if (size == ring.length) {
+                if (policy == OverflowPolicy.BLOCK_ON_ERROR && level == Logger.Level.ERROR) {
+                    while (size == ring.length && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            countDropped(level);
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        countDropped(level);
+                        return;
+                    }
+                } else {
+                    countDropped(level);
+                    return;
+                }
+            }
+
+            Event e = ring[(head + size) % ring.length];
+            e.level = level;
+            e.tag = tag;
+            e.message = message;
+            e.throwable = t;
+            e.threadName = prefixThreadName ? Thread.currentThread().getName() : null;
+            size++;
+            if (size == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the total number of events which have been dropped since this logger was created
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @param level the level of interest
+     * @return the number of dropped events for the given level
+     */
+    public long getDroppedCount(Logger.Level level) {
+        return droppedPerLevel[level.ordinal()].get();
+    }
+
+    /**
+     * @return the number of events currently waiting to be written
+     */
+    public synchronized int getQueuedCount() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Stops accepting new events, writes all events which are still queued to
+     * the delegate and stops the background thread.
+     *
+     * @throws InterruptedException if interrupted while waiting for the queue to drain
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        drainer.join();
+    }
+
+    private void countDropped(Logger.Level level) {
+        droppedCount.incrementAndGet();
+        droppedPerLevel[level.ordinal()].incrementAndGet();
+    }
+
+    private void drainLoop() {
+        Logger.Level level;
+        String tag, message, threadName;
+        Throwable throwable;
+
+        while (true) {
+            synchronized (this) {
+                while (size == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // ignore, only close() stops this thread
+                    }
+                }
+                if (size == 0) {
+                    // closed and fully drained
+                    return;
+                }
+
+                Event e = ring[head];
+                level = e.level;
+                tag = e.tag;
+                message = e.message;
+                throwable = e.throwable;
+                threadName = e.threadName;
+                e.clear();
+                head = (head + 1) % ring.length;
+                size--;
+                if (size == ring.length - 1) {
+                    // wake up any ERROR writers waiting for a free slot
+                    notifyAll();
+                }
+            }
+
+            try {
+                delegate.write(level, tag, threadName != null ? "[" + threadName + "] " + message : message, throwable);
+            } catch (Throwable t) {
+                // never let a broken sink kill the drainer
+                countDropped(level);
+            }
+        }
+    }
+}
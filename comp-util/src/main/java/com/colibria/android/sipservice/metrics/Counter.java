@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A monotonically increasing counter which is safe to update from many threads.
+ * <p/>
+ * Updates are spread over a small number of cells, selected by the calling thread's id,
+ * such that the selector thread and the worker threads don't all contend on the same
+ * cache line. Reading the counter sums up all cells.
+ *
+ * @author Sebastian Dehne
+ */
+public class Counter {
+
+    private static final int STRIPES = 8; // must be a power of two
+    private static final int PADDING = 8; // one cell per 64 byte cache line
+
+    private final String name;
+    private final AtomicLongArray cells;
+
+    Counter(String name) {
+        this.name = name;
+        this.cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        if (Metrics.isEnabled()) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.addAndGet(stripe * PADDING, delta);
+        }
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
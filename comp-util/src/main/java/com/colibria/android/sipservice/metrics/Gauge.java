@@ -0,0 +1,69 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the last reported value of something which goes up and down, like a queue depth.
+ * The highest value ever reported is kept as well.
+ *
+ * @author Sebastian Dehne
+ */
+public class Gauge {
+
+    private final String name;
+    private final AtomicLong value;
+    private final AtomicLong max;
+
+    Gauge(String name) {
+        this.name = name;
+        this.value = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void set(long newValue) {
+        if (Metrics.isEnabled()) {
+            value.set(newValue);
+            long currentMax;
+            while (newValue > (currentMax = max.get())) {
+                if (max.compareAndSet(currentMax, newValue)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    void reset() {
+        value.set(0);
+        max.set(0);
+    }
+}
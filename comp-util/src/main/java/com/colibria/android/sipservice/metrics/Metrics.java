@@ -0,0 +1,159 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stack wide registry of counters, gauges and histograms.
+ * <p/>
+ * Metrics are disabled by default. While disabled, every update returns after a single volatile
+ * read; call sites which need to take a time-stamp first should check {@link #isEnabled()} such that
+ * System.nanoTime() isn't called either.
+ * <p/>
+ * Metric instances are created on first lookup and live for as long as the process does, so call sites
+ * should keep a reference to them instead of looking them up for every update.
+ *
+ * @author Sebastian Dehne
+ */
+public class Metrics {
+
+    /*
+     * Names of the metrics recorded by the stack itself
+     */
+    public static final String SIP_PARSE_TIME = "sip.parse.time.ns";
+    public static final String SIP_MESSAGES_PARSED = "sip.parse.messages";
+    public static final String SIP_TX_RTT_PREFIX = "sip.tx.rtt.ns.";
+    public static final String SIP_TX_RETRANSMISSIONS = "sip.tx.retransmissions";
+    public static final String TCP_SELECT_LOOP_TIME = "tcp.selector.loop.ns";
+    public static final String TCP_SELECT_KEYS = "tcp.selector.keys";
+    public static final String TCP_BYTES_IN = "tcp.bytes.in";
+    public static final String TCP_BYTES_OUT = "tcp.bytes.out";
+    public static final String TCP_ACCEPTS = "tcp.accepts";
+    public static final String TCP_ACCEPTS_REJECTED = "tcp.accepts.rejected";
+    public static final String MSRP_OUTBOUND_QUEUE_DEPTH = "msrp.outbound.queue.bytes";
+    public static final String MSRP_INBOUND_QUEUE_DEPTH = "msrp.inbound.queue.bytes";
+    public static final String MSRP_INBOUND_DISPATCH_DEPTH = "msrp.inbound.dispatch.bytes";
+    public static final String MSRP_INBOUND_QUEUE_REJECTED = "msrp.inbound.queue.rejected";
+    public static final String MSRP_OUTBOUND_QUEUE_WAIT = "msrp.outbound.queue.wait.ns";
+    public static final String MSRP_CHUNK_RTT = "msrp.chunk.rtt.ns";
+    public static final String MSRP_CHUNK_PIECE_SIZE = "msrp.chunk.piece.size.bytes";
+    public static final String MSRP_CHUNK_PIECE_BYTES = "msrp.chunk.piece.bytes";
+    public static final String MSRP_REASSEMBLY_THROUGHPUT = "msrp.reassembly.bytes.per.sec";
+    public static final String MSRP_REASSEMBLY_BYTES = "msrp.reassembly.bytes";
+    public static final String MSRP_BODY_BYTES_COPIED = "msrp.body.bytes.copied";
+    public static final String MSRP_COLLECTOR_SPILLED_BYTES = "msrp.collector.spilled.bytes";
+    public static final String MSRP_MESSAGES_REJECTED = "msrp.messages.rejected";
+    public static final String MSRP_CONTENT_ENCODED_BYTES = "msrp.content.encoded.bytes";
+    public static final String MSRP_CONTENT_ENCODING_SAVED_BYTES = "msrp.content.encoding.saved.bytes";
+    public static final String MSRP_RESPONSES_SENT = "msrp.responses.sent";
+    public static final String MSRP_RESPONSES_SUPPRESSED = "msrp.responses.suppressed";
+    public static final String MSRP_CHUNKS_UNACKNOWLEDGED = "msrp.chunks.unacknowledged";
+    public static final String MSRP_REPORTS_SENT = "msrp.reports.sent";
+    public static final String MSRP_REPORTS_RECEIVED = "msrp.reports.received";
+    public static final String MSRP_CONNECTION_POOL_HITS = "msrp.connection.pool.hits";
+    public static final String MSRP_CONNECTION_POOL_MISSES = "msrp.connection.pool.misses";
+    public static final String MSRP_CONNECTION_POOL_EVICTIONS = "msrp.connection.pool.evictions";
+    public static final String MSRP_CONNECTION_POOL_IDLE = "msrp.connection.pool.idle";
+
+    private static volatile boolean enabled = false;
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            c = new Counter(name);
+            Counter existing = counters.putIfAbsent(name, c);
+            if (existing != null) {
+                c = existing;
+            }
+        }
+        return c;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge g = gauges.get(name);
+        if (g == null) {
+            g = new Gauge(name);
+            Gauge existing = gauges.putIfAbsent(name, g);
+            if (existing != null) {
+                g = existing;
+            }
+        }
+        return g;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            h = new Histogram(name);
+            Histogram existing = histograms.putIfAbsent(name, h);
+            if (existing != null) {
+                h = existing;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Takes a copy of all registered metrics. Updates which happen concurrently may or may not
+     * be included in the copy.
+     *
+     * @return a snapshot of all metrics
+     */
+    public static MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(counters.values(), gauges.values(), histograms.values());
+    }
+
+    /**
+     * Produces a human readable dump of all metrics, meant for diagnostics
+     *
+     * @return the text dump
+     */
+    public static String dump() {
+        return snapshot().toString();
+    }
+
+    /**
+     * Sets all metrics back to zero. The registered instances remain valid.
+     */
+    public static void reset() {
+        for (Counter c : counters.values()) {
+            c.reset();
+        }
+        for (Gauge g : gauges.values()) {
+            g.reset();
+        }
+        for (Histogram h : histograms.values()) {
+            h.reset();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *
+ * Copyright (C) 2010 Colibria AS
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.colibria.android.sipservice.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A point-in-time copy of all metrics in the registry, sorted by name.
+ *
+ * @author Sebastian Dehne
+ */
+public class MetricsSnapshot {
+
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+    private final Map<String, Long> gaugeMaxima;
+    private final Map<String, Histogram.Snapshot> histograms;
+
+    MetricsSnapshot(Collection<Counter> counters, Collection<Gauge> gauges, Collection<Histogram> histograms) {
+        this.counters = new TreeMap<String, Long>();
+        for (Counter c : counters) {
+            this.counters.put(c.getName(), c.get());
+        }
+        this.gauges = new TreeMap<String, Long>();
+        this.gaugeMaxima = new TreeMap<String, Long>();
+        for (Gauge g : gauges) {
+            this.gauges.put(g.getName(), g.get());
+            this.gaugeMaxima.put(g.getName(), g.getMax());
+        }
+        this.histograms = new TreeMap<String, Histogram.Snapshot>();
+        for (Histogram h : histograms) {
+            this.histograms.put(h.getName(), h.snapshot());
+        }
+    }
+
+    public Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    public Map<String, Long> getGauges() {
+        return Collections.unmodifiableMap(gauges);
+    }
+
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    public long getCounter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    public long getGauge(String name) {
+        Long value = gauges.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * May return null
+     *
+     * @param name the name of the histogram
+     * @return the histogram snapshot or null if no such histogram has been registered
+     */
+    public Histogram.Snapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            sb.append("counter   ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> e : gauges.entrySet()) {
+            sb.append("gauge     ").append(e.getKey()).append(": ").append(e.getValue())
+                    .append(" (max=").append(gaugeMaxima.get(e.getKey())).append(")\n");
+        }
+        for (Map.Entry<String, Histogram.Snapshot> e : histograms.entrySet()) {
+            sb.append("histogram ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}